@@ -336,6 +336,7 @@ public abstract class AbstractContactsProvider extends ContentProvider
                     notify = true;
                 }
                 transaction.finish(callerIsBatch);
+                onEndTransaction();
                 if (notify) {
                     notifyChange();
                 }
@@ -370,6 +371,12 @@ public abstract class AbstractContactsProvider extends ContentProvider
 
     protected abstract void notifyChange();
 
+    /**
+     * Called once the transaction has been committed or rolled back.
+     */
+    protected void onEndTransaction() {
+    }
+
     private static final String ACCOUNTS_QUERY =
             "SELECT * FROM " + Tables.ACCOUNTS + " ORDER BY " + BaseColumns._ID;
 
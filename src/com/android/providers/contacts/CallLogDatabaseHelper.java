@@ -25,11 +25,13 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteCantOpenDatabaseException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.preference.PreferenceManager;
 import android.provider.CallLog.Calls;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
 import android.provider.VoicemailContract.Voicemails;
+import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
@@ -51,7 +53,7 @@ public class CallLogDatabaseHelper {
     private static final String TAG = "CallLogDatabaseHelper";
 
     @VisibleForTesting
-    static final int DATABASE_VERSION = 12;
+    static final int DATABASE_VERSION = 13;
 
     private static final boolean DEBUG = false; // DON'T SUBMIT WITH TRUE
 
@@ -78,6 +80,20 @@ public class CallLogDatabaseHelper {
         String VOICEMAIL_STATUS = "voicemail_status";
     }
 
+    /**
+     * Columns of the calls table that are only used internally, and are not exposed through
+     * {@link CallLogProvider}.
+     */
+    public interface CallsColumns {
+        /**
+         * The reversed trailing digits of {@link Calls#NUMBER}, as computed by
+         * {@link PhoneNumberUtils#toCallerIDMinMatch}, so that calls from a number can be found
+         * with an index lookup.  An empty string if the number has no digits, and null if it has
+         * not been computed yet.
+         */
+        String NUMBER_MIN_MATCH = "number_min_match";
+    }
+
     public interface DbProperties {
         String CALL_LOG_LAST_SYNCED = "call_log_last_synced";
         String CALL_LOG_LAST_SYNCED_FOR_SHADOW = "call_log_last_synced_for_shadow";
@@ -176,6 +192,7 @@ public class CallLogDatabaseHelper {
                     Calls.IS_PHONE_ACCOUNT_MIGRATION_PENDING + " INTEGER NOT NULL DEFAULT 0," +
                     Calls.IS_BUSINESS_CALL + " INTEGER NOT NULL DEFAULT 0," +
                     Calls.ASSERTED_DISPLAY_NAME + " TEXT," +
+                    CallsColumns.NUMBER_MIN_MATCH + " TEXT," +
 
                     Voicemails._DATA + " TEXT," +
                     Voicemails.HAS_CONTENT + " INTEGER," +
@@ -208,6 +225,7 @@ public class CallLogDatabaseHelper {
                     VoicemailContract.Status.SOURCE_TYPE + " TEXT" +
                     ");");
 
+            createCallsIndexesAndTriggers(db);
         }
 
         @Override
@@ -259,6 +277,10 @@ public class CallLogDatabaseHelper {
             if (oldVersion < 12) {
                 upgradeToVersion12(db);
             }
+
+            if (oldVersion < 13) {
+                upgradeToVersion13(db);
+            }
         }
 
         @Override
@@ -549,6 +571,79 @@ public class CallLogDatabaseHelper {
         }
     }
 
+    /**
+     * Adds {@link CallsColumns#NUMBER_MIN_MATCH}, which is filled in the background by
+     * {@link #updateMissingNumberMinMatches}, and the indexes on the calls table.
+     */
+    private void upgradeToVersion13(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE calls ADD " + CallsColumns.NUMBER_MIN_MATCH + " TEXT");
+        createCallsIndexesAndTriggers(db);
+    }
+
+    private static void createCallsIndexesAndTriggers(SQLiteDatabase db) {
+        // For the calls from a number, most recent first.
+        db.execSQL("CREATE INDEX IF NOT EXISTS calls_number_min_match_index ON " + Tables.CALLS
+                + " (" + CallsColumns.NUMBER_MIN_MATCH + ", " + Calls.DATE + ")");
+        // For the call log, most recent first.  The _id tie-breaker is implicitly part of it.
+        db.execSQL("CREATE INDEX IF NOT EXISTS calls_date_index ON " + Tables.CALLS
+                + " (" + Calls.DATE + ")");
+
+        // Recompute the min match of calls whose number is changed.
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + Tables.CALLS + "_number_updated"
+                + " AFTER UPDATE OF " + Calls.NUMBER + " ON " + Tables.CALLS
+                + " BEGIN"
+                + "   UPDATE " + Tables.CALLS
+                + "     SET " + CallsColumns.NUMBER_MIN_MATCH + "=NULL"
+                + "     WHERE " + Calls._ID + "=NEW." + Calls._ID + ";"
+                + " END");
+    }
+
+    /**
+     * Returns the value of {@link CallsColumns#NUMBER_MIN_MATCH} for the given number.
+     */
+    public static String computeNumberMinMatch(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return "";
+        }
+        final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+        return minMatch == null ? "" : minMatch;
+    }
+
+    /**
+     * Computes {@link CallsColumns#NUMBER_MIN_MATCH} for up to {@code batchSize} calls that do not
+     * have it yet: calls logged before the column was added, copied from another user, or whose
+     * number was changed.  Each batch is a separate transaction, so that the calls table is not
+     * locked for long.
+     *
+     * @return the number of calls updated; less than {@code batchSize} once there are none left
+     */
+    int updateMissingNumberMinMatches(int batchSize) {
+        final SQLiteDatabase db = getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try (Cursor cursor = db.query(Tables.CALLS, new String[] {Calls._ID, Calls.NUMBER},
+                CallsColumns.NUMBER_MIN_MATCH + " IS NULL", null, null, null, null,
+                String.valueOf(batchSize))) {
+            final SQLiteStatement update = db.compileStatement("UPDATE " + Tables.CALLS
+                    + " SET " + CallsColumns.NUMBER_MIN_MATCH + "=?"
+                    + " WHERE " + Calls._ID + "=?");
+            try {
+                while (cursor.moveToNext()) {
+                    update.bindString(1, computeNumberMinMatch(cursor.getString(1)));
+                    update.bindLong(2, cursor.getLong(0));
+                    update.execute();
+                    count++;
+                }
+            } finally {
+                update.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
     @VisibleForTesting
     static boolean tableExists(SQLiteDatabase db, String table) {
         return DatabaseUtils.longForQuery(db,
@@ -18,6 +18,8 @@ package com.android.providers.contacts;
 
 import android.content.ContentValues;
 
+import java.io.PrintWriter;
+
 /**
  * Helper class to be used when inserting values in the call log.
  */
@@ -26,4 +28,7 @@ public interface CallLogInsertionHelper {
     public void addComputedValues(ContentValues values);
     /** Returns the geocoded location for a given phone number. */
     public String getGeocodedLocationFor(String number, String countryIso);
+    /** Dumps the state of the helper, such as cache statistics. */
+    public default void dump(PrintWriter pw) {
+    }
 }
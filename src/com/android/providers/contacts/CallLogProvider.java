@@ -39,7 +39,9 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteTokenizer;
 import android.net.Uri;
 import android.os.Binder;
@@ -65,6 +67,7 @@ import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ProviderAccessStats;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallsColumns;
 import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
 import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.util.FileUtilities;
@@ -106,6 +109,17 @@ public class CallLogProvider extends ContentProvider {
     protected static final int BACKGROUND_TASK_INITIALIZE = 0;
     private static final int BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT = 1;
     private static final int BACKGROUND_TASK_MIGRATE_PHONE_ACCOUNT_HANDLES = 2;
+    @VisibleForTesting
+    protected static final int BACKGROUND_TASK_UPDATE_NUMBER_MIN_MATCHES = 3;
+
+    /** Number of calls whose min match is computed in one transaction. */
+    private static final int NUMBER_MIN_MATCH_BATCH_SIZE = 500;
+
+    /**
+     * Number of trailing digits {@link android.telephony.PhoneNumberUtils#toCallerIDMinMatch}
+     * keeps.  Numbers that compare equal with a shorter min match may have different keys.
+     */
+    private static final int NUMBER_MIN_MATCH_LENGTH = 7;
 
     /** Selection clause for selecting all calls that were made after a certain time */
     private static final String MORE_RECENT_THAN_SELECTION = Calls.DATE + "> ?";
@@ -171,6 +185,14 @@ public class CallLogProvider extends ContentProvider {
 
     static final String[] MINIMAL_PROJECTION = new String[] { Calls._ID };
 
+    /** Number of call log entries copied from another user in one transaction. */
+    @VisibleForTesting
+    static final int SYNC_BATCH_SIZE = 100;
+
+    private static final String SYNC_DUPLICATE_COUNT_SQL =
+            "SELECT COUNT(*) FROM " + Tables.CALLS
+            + " WHERE " + Calls.DATE + " = ? AND " + Calls.NUMBER + " = ?";
+
     private static final int CALLS = 1;
 
     private static final int CALLS_ID = 2;
@@ -305,6 +327,18 @@ public class CallLogProvider extends ContentProvider {
 
     private static Long sTimeForTestMillis;
 
+    /**
+     * Query parameter for paging through the call log: "date,_id" of the last call of the
+     * previous page.  Only calls that come after it in the default "date DESC, _id DESC" order
+     * are returned, so that a page costs the same no matter how deep it is, unlike with
+     * {@link Calls#OFFSET_PARAM_KEY}.  Combine it with {@link Calls#LIMIT_PARAM_KEY}.
+     */
+    @VisibleForTesting
+    static final String PARAM_KEY_PAGE_AFTER = "page_after";
+
+    /** Order of the calls when paging with {@link #PARAM_KEY_PAGE_AFTER}. */
+    private static final String PAGE_SORT_ORDER = Calls.DATE + " DESC, " + Calls._ID + " DESC";
+
     private ContactsTaskScheduler mTaskScheduler;
 
     @VisibleForTesting
@@ -510,6 +544,18 @@ public class CallLogProvider extends ContentProvider {
                 List<String> pathSegments = uri.getPathSegments();
                 String phoneNumber = pathSegments.size() >= 2 ? pathSegments.get(2) : null;
                 if (!TextUtils.isEmpty(phoneNumber)) {
+                    // Narrow down the calls with the min match index first.  Calls that do not
+                    // have a min match yet are compared as well.
+                    final String minMatch =
+                            CallLogDatabaseHelper.computeNumberMinMatch(phoneNumber);
+                    if (!minMatch.isEmpty() && (mUseStrictPhoneNumberComparation
+                            || mMinMatch >= NUMBER_MIN_MATCH_LENGTH)) {
+                        final StringBuilder sb = new StringBuilder();
+                        sb.append("(" + CallsColumns.NUMBER_MIN_MATCH + "=");
+                        DatabaseUtils.appendEscapedSQLString(sb, minMatch);
+                        sb.append(" OR " + CallsColumns.NUMBER_MIN_MATCH + " IS NULL) AND ");
+                        qb.appendWhere(sb);
+                    }
                     qb.appendWhere("PHONE_NUMBERS_EQUAL(number, ?");
                     qb.appendWhere(mUseStrictPhoneNumberComparation ? ", 1)"
                             : ", 0, " + mMinMatch + ")");
@@ -526,6 +572,18 @@ public class CallLogProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
+        final String pageAfter = uri.getQueryParameter(PARAM_KEY_PAGE_AFTER);
+        if (pageAfter != null) {
+            if (!TextUtils.isEmpty(sortOrder)
+                    && !sortOrder.equalsIgnoreCase(Calls.DEFAULT_SORT_ORDER)
+                    && !sortOrder.equalsIgnoreCase(PAGE_SORT_ORDER)) {
+                throw new IllegalArgumentException(
+                        "Sort order " + sortOrder + " cannot be used with " + PARAM_KEY_PAGE_AFTER);
+            }
+            selectionBuilder.addClause(getPageAfterClause(pageAfter));
+            sortOrder = PAGE_SORT_ORDER;
+        }
+
         final int limit = getIntParam(uri, Calls.LIMIT_PARAM_KEY, 0);
         final int offset = getIntParam(uri, Calls.OFFSET_PARAM_KEY, 0);
         String limitClause = null;
@@ -647,6 +705,30 @@ public class CallLogProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the selection for the calls after the given "date,_id" in {@link #PAGE_SORT_ORDER}.
+     * It is written so that it can be answered from the date index.
+     *
+     * @throws IllegalArgumentException when the value is not two comma-separated integers.
+     */
+    private static String getPageAfterClause(String pageAfter) {
+        final int comma = pageAfter.indexOf(',');
+        final long date;
+        final long id;
+        try {
+            if (comma < 0) {
+                throw new NumberFormatException();
+            }
+            date = Long.parseLong(pageAfter.substring(0, comma).trim());
+            id = Long.parseLong(pageAfter.substring(comma + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("\"date,_id\" required for " + PARAM_KEY_PAGE_AFTER
+                    + " parameter but value '" + pageAfter + "' was found instead.", e);
+        }
+        return Calls.DATE + "<=" + date
+                + " AND (" + Calls.DATE + "<" + date + " OR " + Calls._ID + "<" + id + ")";
+    }
+
     @Override
     public String getType(Uri uri) {
         int match = sURIMatcher.match(uri);
@@ -970,6 +1052,10 @@ public class CallLogProvider extends ContentProvider {
 
         int count = createDatabaseModifier(db, hasReadVoicemailPermission).update(uri, Tables.CALLS,
                 values, selectionBuilder.build(), selectionArgs);
+        if (count > 0 && values.containsKey(Calls.NUMBER)) {
+            // A trigger has reset the min match of the updated calls.
+            mTaskScheduler.scheduleTask(BACKGROUND_TASK_UPDATE_NUMBER_MIN_MATCHES, null);
+        }
 
         String logStr = String.format(Locale. getDefault(),
                 "update uid/pid=%d/%d, uri=%s, numChanged=%d",
@@ -1157,7 +1243,9 @@ public class CallLogProvider extends ContentProvider {
             return;
         }
         try {
-            newestTimeStamp = copyEntriesFromCursor(cursor, lastSyncTime, sourceIsShadow);
+            // Shadow entries are deleted as soon as they have been copied.
+            newestTimeStamp = copyEntriesFromCursor(cursor, lastSyncTime, sourceIsShadow,
+                    sourceIsShadow ? uri : null);
             Log.i(TAG,
                     String.format(Locale.getDefault(),
                             "syncEntriesFrom: fromUserId=%d, srcIsShadow=%b, forAllUsers=%b; "
@@ -1168,10 +1256,6 @@ public class CallLogProvider extends ContentProvider {
         } finally {
             cursor.close();
         }
-        if (sourceIsShadow) {
-            // delete all entries in shadow.
-            cr.delete(uri, Calls.DATE + "<= ?", new String[] {String.valueOf(newestTimeStamp)});
-        }
 
         try {
             syncCallComposerPics(sourceUserId, sourceIsShadow, forAllUsersOnly, lastSyncTime);
@@ -1279,56 +1363,156 @@ public class CallLogProvider extends ContentProvider {
      */
     @VisibleForTesting
     long copyEntriesFromCursor(Cursor cursor, long lastSyncTime, boolean forShadow) {
-        long latestTimestamp = 0;
-        final ContentValues values = new ContentValues();
+        return copyEntriesFromCursor(cursor, lastSyncTime, forShadow, null);
+    }
+
+    /**
+     * Copies the call log entries of a cursor sorted by date, in batches of about
+     * {@link #SYNC_BATCH_SIZE} entries.  Each batch is a transaction which also records the date
+     * of its last entry as the last sync time, so that an interrupted sync resumes after the last
+     * complete batch.  As the next sync starts after that date, a batch only ends between entries
+     * with different dates.  Read access is opened as soon as the first batch has been copied.
+     *
+     * @param cursor to copy call log entries from
+     * @param sourceUriToTrim if not null, the entries of each batch are deleted from it once
+     *     they have been copied
+     * @return the date of the last entry
+     */
+    private long copyEntriesFromCursor(Cursor cursor, long lastSyncTime, boolean forShadow,
+            Uri sourceUriToTrim) {
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
+        final String[] columns = cursor.getColumnNames();
+        final int dateIndex = cursor.getColumnIndex(Calls.DATE);
+        final int numberIndex = cursor.getColumnIndex(Calls.NUMBER);
+
+        final StringBuilder sql = new StringBuilder("INSERT INTO " + Tables.CALLS + " (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+
+        long latestTimestamp = 0;
+        long syncedTimestamp = lastSyncTime;
+        String batchStartTime = null;
+        int batchCount = 0;
+        boolean inTransaction = false;
+        final SQLiteStatement insert = db.compileStatement(sql.toString());
+        final SQLiteStatement duplicateCount = db.compileStatement(SYNC_DUPLICATE_COUNT_SQL);
         try {
-            final String[] args = new String[2];
             cursor.moveToPosition(-1);
             while (cursor.moveToNext()) {
-                values.clear();
-                DatabaseUtils.cursorRowToContentValues(cursor, values);
-
-                final String startTime = values.getAsString(Calls.DATE);
-                final String number = values.getAsString(Calls.NUMBER);
+                final String startTime = cursor.getString(dateIndex);
+                final String number = cursor.getString(numberIndex);
 
                 if (startTime == null || number == null) {
                     continue;
                 }
 
-                if (cursor.isLast()) {
-                    try {
-                        latestTimestamp = Long.valueOf(startTime);
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Call log entry does not contain valid start time: "
-                                + startTime);
-                    }
+                if (batchCount >= SYNC_BATCH_SIZE && !startTime.equals(batchStartTime)) {
+                    syncedTimestamp = finishSyncBatch(db, latestTimestamp, syncedTimestamp,
+                            forShadow, sourceUriToTrim);
+                    inTransaction = false;
+                    batchCount = 0;
+                }
+                if (!inTransaction) {
+                    db.beginTransaction();
+                    inTransaction = true;
+                }
+                batchStartTime = startTime;
+                batchCount++;
+
+                try {
+                    latestTimestamp = Long.parseLong(startTime);
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Call log entry does not contain valid start time: "
+                            + startTime);
                 }
 
                 // Avoid duplicating an already existing entry (which is uniquely identified by
                 // the number, and the start time)
-                args[0] = startTime;
-                args[1] = number;
-                if (DatabaseUtils.queryNumEntries(db, Tables.CALLS,
-                        Calls.DATE + " = ? AND " + Calls.NUMBER + " = ?", args) > 0) {
+                duplicateCount.bindString(1, startTime);
+                duplicateCount.bindString(2, number);
+                if (duplicateCount.simpleQueryForLong() > 0) {
                     continue;
                 }
 
-                db.insert(Tables.CALLS, null, values);
+                for (int i = 0; i < columns.length; i++) {
+                    bindCursorValue(insert, i + 1, cursor, i);
+                }
+                try {
+                    insert.executeInsert();
+                } catch (SQLiteException e) {
+                    // Skip the entry, so that it does not keep the rest from being copied.
+                    Log.e(TAG, "Error copying call log entry", e);
+                }
             }
 
-            if (latestTimestamp > lastSyncTime) {
-                setLastTimeSynced(latestTimestamp, forShadow);
+            if (inTransaction) {
+                finishSyncBatch(db, latestTimestamp, syncedTimestamp, forShadow,
+                        sourceUriToTrim);
+                inTransaction = false;
             }
-
-            db.setTransactionSuccessful();
         } finally {
-            db.endTransaction();
+            if (inTransaction) {
+                db.endTransaction();
+            }
+            insert.close();
+            duplicateCount.close();
         }
         return latestTimestamp;
     }
 
+    /**
+     * Commits a batch of copied call log entries along with its last sync time, then makes them
+     * visible and trims them from their source.
+     *
+     * @return the last sync time
+     */
+    private long finishSyncBatch(SQLiteDatabase db, long latestTimestamp, long syncedTimestamp,
+            boolean forShadow, Uri sourceUriToTrim) {
+        if (latestTimestamp > syncedTimestamp) {
+            setLastTimeSynced(latestTimestamp, forShadow);
+            syncedTimestamp = latestTimestamp;
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+
+        final CountDownLatch readAccessLatch = mReadAccessLatch;
+        if (readAccessLatch != null) {
+            readAccessLatch.countDown();
+        }
+        if (sourceUriToTrim != null) {
+            getContext().getContentResolver().delete(sourceUriToTrim, Calls.DATE + "<= ?",
+                    new String[] {String.valueOf(latestTimestamp)});
+        }
+        return syncedTimestamp;
+    }
+
+    private static void bindCursorValue(SQLiteStatement statement, int index, Cursor cursor,
+            int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                statement.bindNull(index);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                statement.bindLong(index, cursor.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                statement.bindDouble(index, cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                statement.bindBlob(index, cursor.getBlob(column));
+                break;
+            default:
+                statement.bindString(index, cursor.getString(column));
+                break;
+        }
+    }
+
     private static String getLastSyncTimePropertyName(boolean forShadow) {
         return forShadow
                 ? DbProperties.CALL_LOG_LAST_SYNCED_FOR_SHADOW
@@ -1377,6 +1561,10 @@ public class CallLogProvider extends ContentProvider {
             } finally {
                 mReadAccessLatch.countDown();
             }
+            // Calls logged before the min match column existed, or just synced from another user.
+            updateMissingNumberMinMatches();
+        } else if (task == BACKGROUND_TASK_UPDATE_NUMBER_MIN_MATCHES) {
+            updateMissingNumberMinMatches();
         } else if (task == BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT) {
             Log.i(TAG, "performBackgroundTask for unhide PhoneAccountHandles");
             adjustForNewPhoneAccountInternal((PhoneAccountHandle) arg);
@@ -1402,6 +1590,18 @@ public class CallLogProvider extends ContentProvider {
         }
     }
 
+    private void updateMissingNumberMinMatches() {
+        int total = 0;
+        int count;
+        do {
+            count = mDbHelper.updateMissingNumberMinMatches(NUMBER_MIN_MATCH_BATCH_SIZE);
+            total += count;
+        } while (count == NUMBER_MIN_MATCH_BATCH_SIZE);
+        if (total > 0) {
+            Log.i(TAG, "Computed the number min match of " + total + " calls");
+        }
+    }
+
     @Override
     public void shutdown() {
         mTaskScheduler.shutdownForTest();
@@ -1411,6 +1611,9 @@ public class CallLogProvider extends ContentProvider {
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         mStats.dump(writer, "  ");
         writer.println();
+        mCallLogInsertionHelper.dump(writer);
+        VoicemailBroadcastDispatcher.getInstance().dump(writer);
+        writer.println();
         writer.println("Latest call log activity:");
         mLocalLog.dump(writer);
     }
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers, for each caller, the search index rows that matched its last contact filter, so
+ * that the next keystroke of a type-ahead search is answered from them without a full-text
+ * query.  The filter of the next keystroke extends the last one, so its matches are a subset of
+ * those rows, which are matched again in memory the way the full-text query would.
+ * <p>
+ * Only filters that are neither email addresses nor phone numbers are handled.  A session
+ * expires after {@link #SESSION_TIMEOUT_MS}, and all sessions are dropped whenever the
+ * fast scrolling index cache is, and again once the transaction that changed the search index
+ * is committed.  Like {@link LookupKeyCache}, the cache has a generation that every invalidation
+ * bumps, so that a read of the database that started before a commit is not kept.
+ */
+public class ContactFilterSessionCache {
+    private static final int MAX_SESSIONS = 8;
+
+    // Filters matching more rows are not cached, as the first keystrokes of a search usually do.
+    @VisibleForTesting
+    static final int MAX_SESSION_ROWS = 1000;
+
+    @VisibleForTesting
+    static final long SESSION_TIMEOUT_MS = 10000;
+
+    private static final String[] EMPTY_TOKENS = new String[0];
+
+    private static final String ROWS_SQL = "SELECT "
+            + SearchIndexColumns.CONTACT_ID + ","
+            + SearchIndexColumns.CONTENT + ","
+            + SearchIndexColumns.NAME + ","
+            + SearchIndexColumns.TOKENS
+            + " FROM " + Tables.SEARCH_INDEX
+            + " WHERE " + Tables.SEARCH_INDEX + " MATCH ?"
+            // Omit results in "Other Contacts", like the filter query does.
+            + " AND " + SearchIndexColumns.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY
+            + " LIMIT " + (MAX_SESSION_ROWS + 1);
+
+    /** The FTS tokens of a search index row, with ASCII letters in lower case. */
+    private static final class Row {
+        final long contactId;
+        final String[] content;
+        final String[] name;
+        final String[] tokens;
+
+        Row(long contactId, String content, String name, String tokens) {
+            this.contactId = contactId;
+            this.content = splitIntoLowerCaseTokens(content);
+            this.name = splitIntoLowerCaseTokens(name);
+            this.tokens = splitIntoLowerCaseTokens(tokens);
+        }
+
+        /**
+         * Returns true if the row matches every term, like
+         * {@link SearchIndexManager.FtsQueryBuilder#SCOPED_NAME_NORMALIZING} does.
+         */
+        boolean matches(List<Term> terms) {
+            for (Term term : terms) {
+                if (!hasTokenWithPrefix(content, term.token)
+                        && (term.normalizedToken.isEmpty()
+                                || !hasTokenWithPrefix(name, term.normalizedToken))
+                        && !hasTokenWithPrefix(tokens, term.token)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** A token of a filter, and its normalized form, both with ASCII letters in lower case. */
+    private static final class Term {
+        final String token;
+        final String normalizedToken;
+
+        Term(String token) {
+            this.token = toLowerCaseAscii(token);
+            this.normalizedToken = toLowerCaseAscii(NameNormalizer.normalize(token));
+        }
+    }
+
+    private static final class Session {
+        final String filter;
+        final List<Term> terms;
+        final Row[] rows;
+        final long generation;
+        final long createdTime;
+
+        Session(String filter, List<Term> terms, Row[] rows, long generation, long createdTime) {
+            this.filter = filter;
+            this.terms = terms;
+            this.rows = rows;
+            this.generation = generation;
+            this.createdTime = createdTime;
+        }
+    }
+
+    @GuardedBy("this")
+    private final LruCache<Integer, Session> mSessions = new LruCache<>(MAX_SESSIONS);
+
+    @GuardedBy("this")
+    private long mGeneration;
+
+    @GuardedBy("this")
+    private boolean mEnabled = true;
+
+    @GuardedBy("this")
+    private int mHitCount;
+
+    @GuardedBy("this")
+    private int mMissCount;
+
+    /**
+     * Returns the IDs of the contacts matching the given name filter for the given caller, or
+     * null if there are too many of them, in which case the caller must run the full-text query
+     * itself.
+     *
+     * @param filter a trimmed filter made of name tokens only
+     */
+    public Set<Long> getContactIds(SQLiteDatabase db, int uid, String filter) {
+        final List<Term> terms = toTerms(filter);
+        final long generation;
+        synchronized (this) {
+            if (!mEnabled || terms.isEmpty()) {
+                return null;
+            }
+            final Session session = mSessions.get(uid);
+            if (session != null && session.generation == mGeneration
+                    && SystemClock.elapsedRealtime() - session.createdTime < SESSION_TIMEOUT_MS
+                    && narrows(session, filter, terms)) {
+                mHitCount++;
+                final ArrayList<Row> rows = new ArrayList<>();
+                for (Row row : session.rows) {
+                    if (row.matches(terms)) {
+                        rows.add(row);
+                    }
+                }
+                final Session narrowed = new Session(filter, terms, rows.toArray(new Row[0]),
+                        mGeneration, SystemClock.elapsedRealtime());
+                mSessions.put(uid, narrowed);
+                return getContactIds(narrowed.rows);
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+
+        final ArrayList<Row> rows = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(ROWS_SQL, new String[] {
+                SearchIndexManager.getFtsMatchQuery(filter,
+                        SearchIndexManager.FtsQueryBuilder.SCOPED_NAME_NORMALIZING)})) {
+            while (cursor.moveToNext()) {
+                rows.add(new Row(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3)));
+            }
+        }
+        if (rows.size() > MAX_SESSION_ROWS) {
+            synchronized (this) {
+                mSessions.remove(uid);
+            }
+            return null;
+        }
+
+        final Session session = new Session(filter, terms, rows.toArray(new Row[0]), generation,
+                SystemClock.elapsedRealtime());
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSessions.put(uid, session);
+            }
+        }
+        return getContactIds(session.rows);
+    }
+
+    /**
+     * Returns true if every row matching the given filter is one of the rows of the session,
+     * i.e. if each term of the session is the prefix of a term of the filter, both before and
+     * after normalization.
+     */
+    private static boolean narrows(Session session, String filter, List<Term> terms) {
+        if (!filter.startsWith(session.filter)) {
+            return false;
+        }
+        for (Term sessionTerm : session.terms) {
+            boolean found = false;
+            for (Term term : terms) {
+                if (term.token.startsWith(sessionTerm.token)
+                        && term.normalizedToken.startsWith(sessionTerm.normalizedToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops all sessions.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mSessions.evictAll();
+        }
+    }
+
+    /**
+     * Takes the invalidation recorded in the given transaction context.  The returned task, if
+     * any, must be run once the transaction is committed.
+     */
+    public Runnable takeInvalidation(TransactionContext txContext) {
+        final boolean stale = txContext.areFilterSessionsStale();
+        txContext.clearFilterSessionUpdates();
+        return stale ? this::invalidate : null;
+    }
+
+    @VisibleForTesting
+    void setEnabled(boolean enabled) {
+        synchronized (this) {
+            mEnabled = enabled;
+            mSessions.evictAll();
+        }
+    }
+
+    @VisibleForTesting
+    int getHitCount() {
+        synchronized (this) {
+            return mHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    int getMissCount() {
+        synchronized (this) {
+            return mMissCount;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.print("Contact filter session cache stats:\n");
+            pw.printf("  sessions=%d  hit=%d  miss=%d\n", mSessions.size(), mHitCount,
+                    mMissCount);
+        }
+    }
+
+    private static Set<Long> getContactIds(Row[] rows) {
+        final ArraySet<Long> contactIds = new ArraySet<>(rows.length);
+        for (Row row : rows) {
+            contactIds.add(row.contactId);
+        }
+        return contactIds;
+    }
+
+    private static List<Term> toTerms(String filter) {
+        final ArrayList<Term> terms = new ArrayList<>();
+        for (String token : SearchIndexManager.splitIntoFtsTokens(filter)) {
+            terms.add(new Term(token));
+        }
+        return terms;
+    }
+
+    private static boolean hasTokenWithPrefix(String[] tokens, String prefix) {
+        for (String token : tokens) {
+            if (token.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] splitIntoLowerCaseTokens(String s) {
+        if (s == null) {
+            return EMPTY_TOKENS;
+        }
+        final List<String> tokens = SearchIndexManager.splitIntoFtsTokens(s);
+        final String[] result = new String[tokens.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = toLowerCaseAscii(tokens.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Folds ASCII letters to lower case, which is all SQLite's "simple" tokenizer does.
+     */
+    private static String toLowerCaseAscii(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+}
@@ -416,7 +416,11 @@ public class ContactLocaleUtils {
             if (t == null) {
                 return null;
             }
-            final String romajiName = t.transliterate(name);
+            final String romajiName;
+            // Transliterators are not thread-safe.
+            synchronized (t) {
+                romajiName = t.transliterate(name);
+            }
             if (TextUtils.isEmpty(romajiName) ||
                     TextUtils.equals(name, romajiName)) {
                 return null;
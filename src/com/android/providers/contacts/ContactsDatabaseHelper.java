@@ -109,6 +109,7 @@ import java.io.PrintWriter;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -154,7 +155,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      *   1700-1799 V
      * </pre>
      */
-    static final int DATABASE_VERSION = 1701;
+    static final int DATABASE_VERSION = 1702;
     private static final int MINIMUM_SUPPORTED_VERSION = 700;
 
     @VisibleForTesting
@@ -195,6 +196,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String MIMETYPES = "mimetypes";
         public static final String PHONE_LOOKUP = "phone_lookup";
         public static final String NAME_LOOKUP = "name_lookup";
+        public static final String NAME_INFIX_LOOKUP = "name_infix_lookup";
         public static final String AGGREGATION_EXCEPTIONS = "agg_exceptions";
         public static final String SETTINGS = "settings";
         public static final String DATA = "data";
@@ -369,6 +371,9 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String LOCALE = "locale";
         String DATABASE_TIME_CREATED = "database_time_created";
         String KNOWN_DIRECTORY_PACKAGES = "knownDirectoryPackages";
+        String DEFERRED_AGGREGATION_CURSOR = "deferred_aggregation_cursor";
+        String LOCALE_REBUILD_TARGET = "locale_rebuild_target";
+        String LOCALE_REBUILD_CURSOR = "locale_rebuild_cursor";
     }
 
     public interface Clauses {
@@ -605,6 +610,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String NAME_TYPE = "name_type";
     }
 
+    public interface NameInfixLookupColumns {
+        public static final String RAW_CONTACT_ID = "raw_contact_id";
+        public static final String DATA_ID = "data_id";
+        public static final String NORMALIZED_INFIX = "normalized_infix";
+    }
+
     public interface PackagesColumns {
         public static final String _ID = BaseColumns._ID;
         public static final String PACKAGE = "package";
@@ -779,6 +790,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final int USAGE_TYPE_INT_SHORT_TEXT = 2;
     }
 
+    // Appended to the selections of the queries below to restrict them to a range of raw contacts.
+    private static final String RAW_CONTACT_RANGE_SELECTION =
+            " AND " + Data.RAW_CONTACT_ID + " BETWEEN ? AND ?";
+
     private  interface EmailQuery {
         public static final String TABLE = Tables.DATA;
 
@@ -829,7 +844,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private interface RawContactNameQuery {
-        public static final String RAW_SQL =
+        public static final String COLUMNS_SQL =
                 "SELECT "
                         + DataColumns.MIMETYPE_ID + ","
                         + Data.IS_PRIMARY + ","
@@ -843,14 +858,42 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                         + Data.DATA8 + ","
                         + Data.DATA9 + ","
                         + Data.DATA10 + ","
-                        + Data.DATA11 +
-                " FROM " + Tables.DATA +
+                        + Data.DATA11 + ","
+                        + Data.RAW_CONTACT_ID +
+                " FROM " + Tables.DATA;
+
+        public static final String NAME_SELECTION =
+                " AND (" + Data.DATA1 + " NOT NULL OR " +
+                        Data.DATA8 + " NOT NULL OR " +
+                        Data.DATA9 + " NOT NULL OR " +
+                        Data.DATA10 + " NOT NULL OR " +  // Phonetic name not empty
+                        Organization.TITLE + " NOT NULL)";
+
+        public static final String RAW_SQL =
+                COLUMNS_SQL +
                 " WHERE " + Data.RAW_CONTACT_ID + "=?" +
-                        " AND (" + Data.DATA1 + " NOT NULL OR " +
-                                Data.DATA8 + " NOT NULL OR " +
-                                Data.DATA9 + " NOT NULL OR " +
-                                Data.DATA10 + " NOT NULL OR " +  // Phonetic name not empty
-                                Organization.TITLE + " NOT NULL)";
+                NAME_SELECTION;
+
+        /**
+         * The name data of all raw contacts with IDs in a range, grouped by raw contact.
+         */
+        public static final String RAW_SQL_FOR_RANGE =
+                COLUMNS_SQL +
+                " WHERE " + Data.RAW_CONTACT_ID + " BETWEEN ? AND ?" +
+                NAME_SELECTION +
+                " ORDER BY " + Data.RAW_CONTACT_ID + "," + Data._ID;
+
+        /**
+         * The name data of the raw contacts whose IDs are appended, followed by
+         * {@link #RAW_SQL_FOR_IDS_SUFFIX}, grouped by raw contact.
+         */
+        public static final String RAW_SQL_FOR_IDS_PREFIX =
+                COLUMNS_SQL +
+                " WHERE " + Data.RAW_CONTACT_ID + " IN (";
+
+        public static final String RAW_SQL_FOR_IDS_SUFFIX =
+                ")" + NAME_SELECTION +
+                " ORDER BY " + Data.RAW_CONTACT_ID + "," + Data._ID;
 
         public static final int MIMETYPE = 0;
         public static final int IS_PRIMARY = 1;
@@ -868,7 +911,31 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final int FULL_NAME_STYLE = 11;                   // data10
         public static final int ORGANIZATION_PHONETIC_NAME_STYLE = 11;  // data10
         public static final int PHONETIC_NAME_STYLE = 12;               // data11
-    }
+        public static final int RAW_CONTACT_ID = 13;
+    }
+
+    private static final String RAW_CONTACT_DISPLAY_NAME_UPDATE_SQL =
+            "UPDATE " + Tables.RAW_CONTACTS +
+            " SET " +
+                    RawContacts.DISPLAY_NAME_SOURCE + "=?," +
+                    RawContacts.DISPLAY_NAME_PRIMARY + "=?," +
+                    RawContacts.DISPLAY_NAME_ALTERNATIVE + "=?," +
+                    RawContacts.PHONETIC_NAME + "=?," +
+                    RawContacts.PHONETIC_NAME_STYLE + "=?," +
+                    RawContacts.SORT_KEY_PRIMARY + "=?," +
+                    RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + "=?," +
+                    RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + "=?," +
+                    RawContacts.SORT_KEY_ALTERNATIVE + "=?," +
+                    RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=?," +
+                    RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=?" +
+            " WHERE " + RawContacts._ID + "=?";
+
+    private static final String NAME_INFIX_LOOKUP_INSERT_SQL =
+            "INSERT OR IGNORE INTO " + Tables.NAME_INFIX_LOOKUP + "("
+                    + NameInfixLookupColumns.RAW_CONTACT_ID + ","
+                    + NameInfixLookupColumns.DATA_ID + ","
+                    + NameInfixLookupColumns.NORMALIZED_INFIX
+            + ") VALUES (?,?,?)";
 
     public final static class NameLookupType {
         public static final int NAME_EXACT = 0;
@@ -889,12 +956,25 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private class StructuredNameLookupBuilder extends NameLookupBuilder {
         // NOTE(gilad): Is in intentional that we don't use the declaration on L960?
         private final SQLiteStatement mNameLookupInsert;
+        private final SQLiteStatement mNameInfixLookupInsert;
 
         public StructuredNameLookupBuilder(NameSplitter splitter,
-                SQLiteStatement nameLookupInsert) {
+                SQLiteStatement nameLookupInsert, SQLiteStatement nameInfixLookupInsert) {
 
             super(splitter);
             this.mNameLookupInsert = nameLookupInsert;
+            this.mNameInfixLookupInsert = nameInfixLookupInsert;
+        }
+
+        @Override
+        protected boolean hasNameInfixLookup() {
+            return true;
+        }
+
+        @Override
+        protected void insertNameInfixLookup(long rawContactId, long dataId,
+                String normalizedInfix) {
+            insertNameInfixLookup(mNameInfixLookupInsert, rawContactId, dataId, normalizedInfix);
         }
 
         @Override
@@ -912,12 +992,22 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "contacts2.db";
 
+    /** Number of raw contacts whose name data is read per query when updating display names. */
+    private static final int DISPLAY_NAME_UPDATE_BATCH_SIZE = 500;
+
+    /** Number of raw contacts whose locale-sensitive data is rebuilt per transaction. */
+    @VisibleForTesting
+    static final int LOCALE_REBUILD_BATCH_SIZE = 500;
+
     private static ContactsDatabaseHelper sSingleton = null;
 
     /** In-memory map of commonly found MIME-types to their ids in the MIMETYPES table */
     @VisibleForTesting
     final ArrayMap<String, Long> mCommonMimeTypeIdsCache = new ArrayMap<>();
 
+    /** Statements of the lookups and updates that run for each inserted or updated row. */
+    private final SqlStatementCache mStatementCache = new SqlStatementCache();
+
     @VisibleForTesting
     static final String[] COMMON_MIME_TYPES = {
             Email.CONTENT_ITEM_TYPE,
@@ -1099,6 +1189,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onOpen(SQLiteDatabase db) {
         Log.d(TAG, "WAL enabled for " + getDatabaseName() + ": " + db.isWriteAheadLoggingEnabled());
+        mStatementCache.invalidate();
         prepopulateCommonMimeTypes(db);
         mSyncState.onDatabaseOpened(db);
         // Deleting any state from the presence tables to mimic their behavior from the time they
@@ -1510,6 +1601,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 NameLookupColumns.RAW_CONTACT_ID +
         ");");
 
+        createNameInfixLookupTable(db);
+
         // Groups table.
         db.execSQL("CREATE TABLE " + Tables.GROUPS + " (" +
                 Groups._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -1692,6 +1785,24 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Creates the table of name infix lookups, which lets contact filters match names by the
+     * middle of a word with an index range scan, like {@link Tables#NAME_LOOKUP} does for the
+     * start of words.  Its index is created by {@link #createContactsIndexes}.
+     */
+    private void createNameInfixLookupTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.NAME_INFIX_LOOKUP + " (" +
+                NameInfixLookupColumns.DATA_ID
+                        + " INTEGER REFERENCES data(_id) NOT NULL," +
+                NameInfixLookupColumns.RAW_CONTACT_ID
+                        + " INTEGER REFERENCES raw_contacts(_id) NOT NULL," +
+                NameInfixLookupColumns.NORMALIZED_INFIX + " TEXT NOT NULL," +
+                "PRIMARY KEY ("
+                        + NameInfixLookupColumns.DATA_ID + ", "
+                        + NameInfixLookupColumns.NORMALIZED_INFIX + ")" +
+        ");");
+    }
+
     private void createContactsTriggers(SQLiteDatabase db) {
 
         // Automatically delete Data rows when a raw contact is deleted.
@@ -1764,6 +1875,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + "     WHERE " + StatusUpdatesColumns.DATA_ID + "=OLD." + Data._ID + ";"
                 + "   DELETE FROM " + Tables.NAME_LOOKUP
                 + "     WHERE " + NameLookupColumns.DATA_ID + "=OLD." + Data._ID + ";"
+                + "   DELETE FROM " + Tables.NAME_INFIX_LOOKUP
+                + "     WHERE " + NameInfixLookupColumns.DATA_ID + "=OLD." + Data._ID + ";"
                 + " END");
 
 
@@ -1825,6 +1938,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 NameLookupColumns.DATA_ID +
         ");");
 
+        db.execSQL("DROP INDEX IF EXISTS name_infix_lookup_index");
+        db.execSQL("CREATE INDEX name_infix_lookup_index ON " + Tables.NAME_INFIX_LOOKUP + " (" +
+                NameInfixLookupColumns.NORMALIZED_INFIX + "," +
+                NameInfixLookupColumns.RAW_CONTACT_ID +
+        ");");
+
         db.execSQL("DROP INDEX IF EXISTS raw_contact_sort_key1_index");
         db.execSQL("CREATE INDEX raw_contact_sort_key1_index ON " + Tables.RAW_CONTACTS + " (" +
                 RawContacts.SORT_KEY_PRIMARY +
@@ -2674,6 +2793,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 1701;
         }
 
+        if (isUpgradeRequired(oldVersion, newVersion, 1702)) {
+            createNameInfixLookupTable(db);
+            upgradeViewsAndTriggers = true;
+            upgradeNameLookup = true;
+            oldVersion = 1702;
+        }
+
         // We extracted "calls" and "voicemail_status" at this point, but we can't remove them here
         // yet, until CallLogDatabaseHelper moves the data.
 
@@ -2731,6 +2857,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     private void rebuildNameLookup(SQLiteDatabase db, boolean rebuildSqliteStats) {
         db.execSQL("DROP INDEX IF EXISTS name_lookup_index");
+        db.execSQL("DROP INDEX IF EXISTS name_infix_lookup_index");
         insertNameLookup(db);
         createContactsIndexes(db, rebuildSqliteStats);
     }
@@ -2742,13 +2869,22 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private void rebuildSearchIndex(SQLiteDatabase db, boolean rebuildSqliteStats) {
         createSearchIndexTable(db, rebuildSqliteStats);
         PropertyUtils.setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        PropertyUtils.setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, "0");
     }
 
     /**
      * Checks whether the current ICU code version matches that used to build
-     * the locale specific data in the ContactsDB.
+     * the locale specific data in the ContactsDB, and that no locale change is
+     * still in progress.
      */
     public boolean needsToUpdateLocaleData(LocaleSet locales) {
+        // A rebuild that was interrupted has left the data of some raw contacts for its target,
+        // even if the locale has been switched back since.
+        final String rebuildTarget = getProperty(DbProperties.LOCALE_REBUILD_TARGET, "");
+        if (!rebuildTarget.isEmpty()) {
+            Log.i(TAG, "Locale change to " + rebuildTarget + " was not finished");
+            return true;
+        }
         final String dbLocale = getProperty(DbProperties.LOCALE, "");
         if (!dbLocale.equals(locales.toString())) {
             return true;
@@ -2781,22 +2917,39 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP INDEX raw_contact_sort_key1_index");
         db.execSQL("DROP INDEX raw_contact_sort_key2_index");
         db.execSQL("DROP INDEX IF EXISTS name_lookup_index");
+        db.execSQL("DROP INDEX IF EXISTS name_infix_lookup_index");
 
         insertNameLookup(db);
         rebuildSortKeys(db);
         createContactsIndexes(db, rebuildSqliteStats);
 
+        finishLocaleRebuild(db, locales);
+    }
+
+    /**
+     * Records that the locale-sensitive data is up to date for the given locales and the current
+     * ICU version, and forgets about any partial rebuild.
+     */
+    private void finishLocaleRebuild(SQLiteDatabase db, LocaleSet locales) {
         FastScrollingIndexCache.getInstance(mContext).invalidate();
         // Update the ICU version used to generate the locale derived data
         // so we can tell when we need to rebuild with new ICU versions.
         PropertyUtils.setProperty(db, DbProperties.ICU_VERSION, getDeviceIcuVersion());
         PropertyUtils.setProperty(db, DbProperties.LOCALE, locales.toString());
+        PropertyUtils.setProperty(db, DbProperties.LOCALE_REBUILD_TARGET, "");
+        PropertyUtils.setProperty(db, DbProperties.LOCALE_REBUILD_CURSOR, "0");
     }
 
     /**
      * Regenerates all locale-sensitive data if needed:
      * nickname_lookup, name_lookup and sort keys. Invalidates the fast
      * scrolling index cache.
+     * <p>
+     * Raw contacts are processed in ID order, {@link #LOCALE_REBUILD_BATCH_SIZE} at a time, each
+     * batch in its own transaction, so other writers only ever wait for one batch.  Queries see the
+     * old data of a raw contact until its batch commits.  The last raw contact ID processed is
+     * stored in {@link DbProperties#LOCALE_REBUILD_CURSOR}, so if the process dies, the next call
+     * for the same locales and ICU version picks up where this one stopped.
      */
     public void setLocale(LocaleSet locales) {
         if (!needsToUpdateLocaleData(locales)) {
@@ -2808,28 +2961,111 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         final long start = SystemClock.elapsedRealtime();
         SQLiteDatabase db = getWritableDatabase();
         db.setLocale(locales.getPrimaryLocale());
+        long lastRawContactId = startLocaleRebuild(db, locales);
+        int batchCount = 0;
+        while (lastRawContactId >= 0) {
+            lastRawContactId = rebuildLocaleDataBatch(db, locales, lastRawContactId,
+                    LOCALE_REBUILD_BATCH_SIZE);
+            batchCount++;
+        }
+
+        Log.i(TAG, "Locale change completed in " + (SystemClock.elapsedRealtime() - start)
+                + "ms, " + batchCount + " batches");
+    }
+
+    private static String getLocaleRebuildTarget(LocaleSet locales) {
+        return locales.toString() + "/" + getDeviceIcuVersion();
+    }
+
+    /**
+     * Returns the ID of the last raw contact whose locale data has already been rebuilt for the
+     * given locales, or 0 if a new rebuild is started.
+     */
+    @VisibleForTesting
+    long startLocaleRebuild(SQLiteDatabase db, LocaleSet locales) {
+        final String target = getLocaleRebuildTarget(locales);
+        if (target.equals(getProperty(DbProperties.LOCALE_REBUILD_TARGET, ""))) {
+            final long lastRawContactId =
+                    Long.parseLong(getProperty(DbProperties.LOCALE_REBUILD_CURSOR, "0"));
+            Log.i(TAG, "Resuming locale change after raw contact " + lastRawContactId);
+            return lastRawContactId;
+        }
         db.beginTransaction();
         try {
-            rebuildLocaleData(db, locales, true);
+            PropertyUtils.setProperty(db, DbProperties.LOCALE_REBUILD_TARGET, target);
+            PropertyUtils.setProperty(db, DbProperties.LOCALE_REBUILD_CURSOR, "0");
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        return 0;
+    }
 
-        Log.i(TAG, "Locale change completed in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    /**
+     * Rebuilds the name lookup rows and display names of up to {@code batchSize} raw contacts
+     * with IDs greater than {@code lastRawContactId} in one transaction.  If there are none, marks
+     * the rebuild as finished.
+     * @return The ID of the last raw contact processed, or -1 if the rebuild is finished.
+     */
+    @VisibleForTesting
+    long rebuildLocaleDataBatch(SQLiteDatabase db, LocaleSet locales, long lastRawContactId,
+            int batchSize) {
+        final long[] rawContactIds = new long[batchSize];
+        int count = 0;
+        db.beginTransaction();
+        try {
+            final Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts._ID},
+                    RawContacts._ID + ">?", new String[] {String.valueOf(lastRawContactId)},
+                    null, null, RawContacts._ID, String.valueOf(batchSize));
+            try {
+                while (cursor.moveToNext()) {
+                    rawContactIds[count++] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (count == 0) {
+                finishLocaleRebuild(db, locales);
+                db.setTransactionSuccessful();
+                return -1;
+            }
+
+            // Also covers the rows of raw contacts deleted since the previous batch.
+            final long first = lastRawContactId + 1;
+            final long last = rawContactIds[count - 1];
+            insertNameLookup(db, first, last);
+            updateRawContactDisplayNames(db, rawContactIds, count);
+            PropertyUtils.setProperty(db, DbProperties.LOCALE_REBUILD_CURSOR,
+                    String.valueOf(last));
+            db.setTransactionSuccessful();
+            lastRawContactId = last;
+        } finally {
+            db.endTransaction();
+        }
+
+        // The counts per phonebook bucket have changed.
+        FastScrollingIndexCache.getInstance(mContext).invalidate();
+        return lastRawContactId;
     }
 
     /**
      * Regenerates sort keys for all contacts.
      */
     private void rebuildSortKeys(SQLiteDatabase db) {
+        final long[] rawContactIds = new long[LOCALE_REBUILD_BATCH_SIZE];
+        int count = 0;
         Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts._ID},
-                null, null, null, null, null);
+                null, null, null, null, RawContacts._ID);
         try {
             while (cursor.moveToNext()) {
-                long rawContactId = cursor.getLong(0);
-                updateRawContactDisplayName(db, rawContactId);
+                rawContactIds[count++] = cursor.getLong(0);
+                if (count == rawContactIds.length) {
+                    updateRawContactDisplayNames(db, rawContactIds, count);
+                    count = 0;
+                }
             }
+            updateRawContactDisplayNames(db, rawContactIds, count);
         } finally {
             cursor.close();
         }
@@ -2837,7 +3073,27 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     private void insertNameLookup(SQLiteDatabase db) {
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
+        db.execSQL("DELETE FROM " + Tables.NAME_INFIX_LOOKUP);
+        insertNameLookupForRange(db, 0, Long.MAX_VALUE);
+    }
 
+    /**
+     * Replaces the name lookup rows of the raw contacts with IDs between {@code firstRawContactId}
+     * and {@code lastRawContactId}, inclusive.
+     */
+    private void insertNameLookup(SQLiteDatabase db, long firstRawContactId,
+            long lastRawContactId) {
+        db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP
+                + " WHERE " + NameLookupColumns.RAW_CONTACT_ID + " BETWEEN ? AND ?",
+                new Object[] {firstRawContactId, lastRawContactId});
+        db.execSQL("DELETE FROM " + Tables.NAME_INFIX_LOOKUP
+                + " WHERE " + NameInfixLookupColumns.RAW_CONTACT_ID + " BETWEEN ? AND ?",
+                new Object[] {firstRawContactId, lastRawContactId});
+        insertNameLookupForRange(db, firstRawContactId, lastRawContactId);
+    }
+
+    private void insertNameLookupForRange(SQLiteDatabase db, long firstRawContactId,
+            long lastRawContactId) {
         final SQLiteStatement nameLookupInsert = db.compileStatement(
                 "INSERT OR IGNORE INTO " + Tables.NAME_LOOKUP + "("
                         + NameLookupColumns.RAW_CONTACT_ID + ","
@@ -2847,24 +3103,31 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 ") VALUES (?,?,?,?)");
 
         try {
-            insertStructuredNameLookup(db, nameLookupInsert);
-            insertEmailLookup(db, nameLookupInsert);
-            insertNicknameLookup(db, nameLookupInsert);
+            final String[] selectionArgs = new String[] {null,
+                    String.valueOf(firstRawContactId), String.valueOf(lastRawContactId)};
+            insertStructuredNameLookup(db, nameLookupInsert, selectionArgs);
+            insertEmailLookup(db, nameLookupInsert, selectionArgs);
+            insertNicknameLookup(db, nameLookupInsert, selectionArgs);
         } finally {
             nameLookupInsert.close();
         }
     }
 
     /**
-     * Inserts name lookup rows for all structured names in the database.
+     * Inserts name lookup rows for all structured names of the raw contacts in the range given
+     * by the last two selection arguments.
      */
-    private void insertStructuredNameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
+    private void insertStructuredNameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert,
+            String[] selectionArgs) {
         NameSplitter nameSplitter = createNameSplitter();
+        final SQLiteStatement nameInfixLookupInsert =
+                db.compileStatement(NAME_INFIX_LOOKUP_INSERT_SQL);
         NameLookupBuilder nameLookupBuilder = new StructuredNameLookupBuilder(
-                nameSplitter, nameLookupInsert);
+                nameSplitter, nameLookupInsert, nameInfixLookupInsert);
         final long mimeTypeId = lookupMimeTypeId(db, StructuredName.CONTENT_ITEM_TYPE);
+        selectionArgs[0] = String.valueOf(mimeTypeId);
         Cursor cursor = db.query(StructuredNameQuery.TABLE, StructuredNameQuery.COLUMNS,
-                StructuredNameQuery.SELECTION, new String[] {String.valueOf(mimeTypeId)},
+                StructuredNameQuery.SELECTION + RAW_CONTACT_RANGE_SELECTION, selectionArgs,
                 null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -2877,16 +3140,20 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             }
         } finally {
             cursor.close();
+            nameInfixLookupInsert.close();
         }
     }
 
     /**
-     * Inserts name lookup rows for all email addresses in the database.
+     * Inserts name lookup rows for all email addresses of the raw contacts in the range given by
+     * the last two selection arguments.
      */
-    private void insertEmailLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
+    private void insertEmailLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert,
+            String[] selectionArgs) {
         final long mimeTypeId = lookupMimeTypeId(db, Email.CONTENT_ITEM_TYPE);
+        selectionArgs[0] = String.valueOf(mimeTypeId);
         Cursor cursor = db.query(EmailQuery.TABLE, EmailQuery.COLUMNS,
-                EmailQuery.SELECTION, new String[] {String.valueOf(mimeTypeId)},
+                EmailQuery.SELECTION + RAW_CONTACT_RANGE_SELECTION, selectionArgs,
                 null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -2903,12 +3170,15 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Inserts name lookup rows for all nicknames in the database.
+     * Inserts name lookup rows for all nicknames of the raw contacts in the range given by the
+     * last two selection arguments.
      */
-    private void insertNicknameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
+    private void insertNicknameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert,
+            String[] selectionArgs) {
         final long mimeTypeId = lookupMimeTypeId(db, Nickname.CONTENT_ITEM_TYPE);
+        selectionArgs[0] = String.valueOf(mimeTypeId);
         Cursor cursor = db.query(NicknameQuery.TABLE, NicknameQuery.COLUMNS,
-                NicknameQuery.SELECTION, new String[]{String.valueOf(mimeTypeId)},
+                NicknameQuery.SELECTION + RAW_CONTACT_RANGE_SELECTION, selectionArgs,
                 null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -3641,7 +3911,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         final String insert = "INSERT INTO " + Tables.MIMETYPES + "("
                 + MimetypesColumns.MIMETYPE +
                 ") VALUES (?)";
-        long id = insertWithOneArgAndReturnId(db, insert, mimeType);
+        long id = insertWithOneArgAndReturnId(mStatementCache.get(db, insert), mimeType);
         if (id >= 0) {
             return id;
         }
@@ -3666,7 +3936,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 MimetypesColumns._ID + " FROM " + Tables.MIMETYPES + " WHERE "
                 + MimetypesColumns.MIMETYPE +
                 "=?";
-        id = queryIdWithOneArg(db, query, mimeType);
+        id = queryIdWithOneArg(mStatementCache.get(db, query), mimeType);
         if (id < 0) {
             Log.e(TAG, "Mimetype " + mimeType + " not found in the MIMETYPES table");
         }
@@ -3761,6 +4031,11 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             updateIndexStats(db, Tables.NAME_LOOKUP,
                     "sqlite_autoindex_name_lookup_1", "35000 3 2 1");
 
+            updateIndexStats(db, Tables.NAME_INFIX_LOOKUP,
+                    "name_infix_lookup_index", "100000 4 2");
+            updateIndexStats(db, Tables.NAME_INFIX_LOOKUP,
+                    "sqlite_autoindex_name_infix_lookup_1", "100000 10 1");
+
             updateIndexStats(db, Tables.PHONE_LOOKUP,
                     "phone_lookup_index", "3500 3 2 1");
             updateIndexStats(db, Tables.PHONE_LOOKUP,
@@ -3880,6 +4155,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.DATA + ";");
         db.execSQL("DELETE FROM " + Tables.PHONE_LOOKUP + ";");
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP + ";");
+        db.execSQL("DELETE FROM " + Tables.NAME_INFIX_LOOKUP + ";");
         db.execSQL("DELETE FROM " + Tables.GROUPS + ";");
         db.execSQL("DELETE FROM " + Tables.AGGREGATION_EXCEPTIONS + ";");
         db.execSQL("DELETE FROM " + Tables.DIRECTORIES + ";");
@@ -3924,32 +4200,40 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     static long queryIdWithOneArg(SQLiteDatabase db, String sql, String sqlArgument) {
         final SQLiteStatement query = db.compileStatement(sql);
         try {
-            bindString(query, 1, sqlArgument);
-            try {
-                return query.simpleQueryForLong();
-            } catch (SQLiteDoneException notFound) {
-                return -1;
-            }
+            return queryIdWithOneArg(query, sqlArgument);
         } finally {
             query.close();
         }
     }
 
+    private static long queryIdWithOneArg(SQLiteStatement query, String sqlArgument) {
+        bindString(query, 1, sqlArgument);
+        try {
+            return query.simpleQueryForLong();
+        } catch (SQLiteDoneException notFound) {
+            return -1;
+        }
+    }
+
     @VisibleForTesting
     static long insertWithOneArgAndReturnId(SQLiteDatabase db, String sql, String sqlArgument) {
         final SQLiteStatement insert = db.compileStatement(sql);
         try {
-            bindString(insert, 1, sqlArgument);
-            try {
-                return insert.executeInsert();
-            } catch (SQLiteConstraintException conflict) {
-                return -1;
-            }
+            return insertWithOneArgAndReturnId(insert, sqlArgument);
         } finally {
             insert.close();
         }
     }
 
+    private static long insertWithOneArgAndReturnId(SQLiteStatement insert, String sqlArgument) {
+        bindString(insert, 1, sqlArgument);
+        try {
+            return insert.executeInsert();
+        } catch (SQLiteConstraintException conflict) {
+            return -1;
+        }
+    }
+
     /**
      * Convert a package name into an integer, using {@link Tables#PACKAGES} for
      * lookups and possible allocation of new IDs as needed.
@@ -3966,16 +4250,16 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 ") VALUES (?)";
 
         SQLiteDatabase db = getWritableDatabase();
-        long id = queryIdWithOneArg(db, query, packageName);
+        long id = queryIdWithOneArg(mStatementCache.get(db, query), packageName);
         if (id >= 0) {
             return id;
         }
-        id = insertWithOneArgAndReturnId(db, insert, packageName);
+        id = insertWithOneArgAndReturnId(mStatementCache.get(db, insert), packageName);
         if (id >= 0) {
             return id;
         }
         // just in case there was a race while doing insert above
-        return queryIdWithOneArg(db, query, packageName);
+        return queryIdWithOneArg(mStatementCache.get(db, query), packageName);
     }
 
     /**
@@ -4057,7 +4341,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * Find the mimetype for the given {@link Data#_ID}.
      */
     public String getDataMimeType(long dataId) {
-        final SQLiteStatement dataMimetypeQuery = getWritableDatabase().compileStatement(
+        final SQLiteStatement dataMimetypeQuery = mStatementCache.get(getWritableDatabase(),
                     "SELECT " + MimetypesColumns.MIMETYPE +
                     " FROM " + Tables.DATA_JOIN_MIMETYPES +
                     " WHERE " + Tables.DATA + "." + Data._ID + "=?");
@@ -4395,7 +4679,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public boolean isContactInDefaultDirectory(SQLiteDatabase db, long contactId) {
-        final SQLiteStatement contactInDefaultDirectoryQuery = db.compileStatement(
+        final SQLiteStatement contactInDefaultDirectoryQuery = mStatementCache.get(db,
                     "SELECT EXISTS (" +
                             "SELECT 1 FROM " + Tables.DEFAULT_DIRECTORY +
                             " WHERE " + Contacts._ID + "=?)");
@@ -4480,7 +4764,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * Returns contact ID for the given contact or zero if it is NULL.
      */
     public long getContactId(long rawContactId) {
-        final SQLiteStatement contactIdQuery = getWritableDatabase().compileStatement(
+        final SQLiteStatement contactIdQuery = mStatementCache.get(getWritableDatabase(),
                     "SELECT " + RawContacts.CONTACT_ID +
                     " FROM " + Tables.RAW_CONTACTS +
                     " WHERE " + RawContacts._ID + "=?");
@@ -4493,7 +4777,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public int getAggregationMode(long rawContactId) {
-        final SQLiteStatement aggregationModeQuery = getWritableDatabase().compileStatement(
+        final SQLiteStatement aggregationModeQuery = mStatementCache.get(getWritableDatabase(),
                     "SELECT " + RawContacts.AGGREGATION_MODE +
                     " FROM " + Tables.RAW_CONTACTS +
                     " WHERE " + RawContacts._ID + "=?");
@@ -4518,6 +4802,61 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         qb.appendWhere(sb.toString());
     }
 
+    /**
+     * Phone lookup method for the rows of the phone lookup table that {@link PhoneLookupIndex}
+     * found for the number, see {@link #findPhoneLookupMatches}.  Each row is joined to its data
+     * row by ID, and the query selects the same columns as the regular lookup.
+     * @param qb The query builder.
+     * @param matches The matching rows, at least one.
+     */
+    public void buildPhoneLookupAndContactQuery(
+            SQLiteQueryBuilder qb, PhoneLookupIndex.Entry[] matches) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(Tables.RAW_CONTACTS + " JOIN " + Views.CONTACTS + " contacts_view"
+                + " ON (contacts_view._id = raw_contacts.contact_id)"
+                + ", (SELECT column1 AS data_id, column2 AS normalized_number,"
+                + " length(column2) AS len FROM (VALUES ");
+        for (int i = 0; i < matches.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('(').append(matches[i].dataId).append(',');
+            DatabaseUtils.appendEscapedSQLString(sb, matches[i].normalizedNumber);
+            sb.append(')');
+        }
+        sb.append(")) AS lookup, " + Tables.DATA);
+        qb.setTables(sb.toString());
+        qb.appendWhere("lookup.data_id=data._id AND data.raw_contact_id=raw_contacts._id");
+    }
+
+    /**
+     * Returns the given rows of the phone lookup table, which share the min match of the number,
+     * that the selection of {@link #buildPhoneLookupAndContactQuery} would match.  Must be kept
+     * in sync with {@link #appendPhoneLookupSelection}.
+     */
+    public PhoneLookupIndex.Entry[] findPhoneLookupMatches(PhoneLookupIndex.Entry[] candidates,
+            String number, String numberE164) {
+        final boolean hasNumberE164 = !TextUtils.isEmpty(numberE164);
+        final boolean hasNumber = !TextUtils.isEmpty(number);
+        if (!hasNumberE164 && !hasNumber) {
+            return candidates;
+        }
+        final ArrayList<PhoneLookupIndex.Entry> matches = new ArrayList<>(candidates.length);
+        for (PhoneLookupIndex.Entry candidate : candidates) {
+            final String normalizedNumber = candidate.normalizedNumber;
+            boolean match = hasNumberE164 && normalizedNumber.equals(numberE164);
+            if (!match && hasNumber && !mUseStrictPhoneNumberComparison) {
+                match = normalizedNumber.length() <= number.length()
+                        ? number.endsWith(normalizedNumber)
+                        : normalizedNumber.endsWith(number);
+            }
+            if (match) {
+                matches.add(candidate);
+            }
+        }
+        return matches.toArray(new PhoneLookupIndex.Entry[matches.size()]);
+    }
+
     /**
      * Phone lookup method that uses the custom SQLite function phone_number_compare_loose
      * that serves as a fallback in case the regular lookup does not return any results.
@@ -5356,7 +5695,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public void deleteStatusUpdate(long dataId) {
-        final SQLiteStatement statusUpdateDelete = getWritableDatabase().compileStatement(
+        final SQLiteStatement statusUpdateDelete = mStatementCache.get(getWritableDatabase(),
                     "DELETE FROM " + Tables.STATUS_UPDATES +
                     " WHERE " + StatusUpdatesColumns.DATA_ID + "=?");
         statusUpdateDelete.bindLong(1, dataId);
@@ -5365,7 +5704,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     public void replaceStatusUpdate(Long dataId, long timestamp, String status, String resPackage,
             Integer iconResource, Integer labelResource) {
-        final SQLiteStatement statusUpdateReplace = getWritableDatabase().compileStatement(
+        final SQLiteStatement statusUpdateReplace = mStatementCache.get(getWritableDatabase(),
                     "INSERT OR REPLACE INTO " + Tables.STATUS_UPDATES + "("
                             + StatusUpdatesColumns.DATA_ID + ", "
                             + StatusUpdates.STATUS_TIMESTAMP + ","
@@ -5385,7 +5724,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     public void insertStatusUpdate(Long dataId, String status, String resPackage,
             Integer iconResource, Integer labelResource) {
-        final SQLiteStatement statusUpdateInsert = getWritableDatabase().compileStatement(
+        final SQLiteStatement statusUpdateInsert = mStatementCache.get(getWritableDatabase(),
                     "INSERT INTO " + Tables.STATUS_UPDATES + "("
                             + StatusUpdatesColumns.DATA_ID + ", "
                             + StatusUpdates.STATUS + ","
@@ -5402,8 +5741,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             statusUpdateInsert.executeInsert();
         } catch (SQLiteConstraintException e) {
             // The row already exists - update it
-            final SQLiteStatement statusUpdateAutoTimestamp = getWritableDatabase()
-                    .compileStatement(
+            final SQLiteStatement statusUpdateAutoTimestamp = mStatementCache.get(
+                    getWritableDatabase(),
                         "UPDATE " + Tables.STATUS_UPDATES +
                         " SET " + StatusUpdates.STATUS_TIMESTAMP + "=?,"
                                 + StatusUpdates.STATUS + "=?" +
@@ -5417,7 +5756,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             bindString(statusUpdateAutoTimestamp, 4, status);
             statusUpdateAutoTimestamp.execute();
 
-            final SQLiteStatement statusAttributionUpdate = getWritableDatabase().compileStatement(
+            final SQLiteStatement statusAttributionUpdate = mStatementCache.get(
+                    getWritableDatabase(),
                         "UPDATE " + Tables.STATUS_UPDATES +
                         " SET " + StatusUpdates.STATUS_RES_PACKAGE + "=?,"
                                 + StatusUpdates.STATUS_ICON + "=?,"
@@ -5436,6 +5776,111 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * organization, email etc.
      */
     public void updateRawContactDisplayName(SQLiteDatabase db, long rawContactId) {
+        mSelectionArgs1[0] = String.valueOf(rawContactId);
+        final SQLiteStatement rawContactDisplayNameUpdate =
+                db.compileStatement(RAW_CONTACT_DISPLAY_NAME_UPDATE_SQL);
+        Cursor c = db.rawQuery(RawContactNameQuery.RAW_SQL, mSelectionArgs1);
+        try {
+            c.moveToFirst();
+            updateRawContactDisplayName(db, rawContactId, c, rawContactDisplayNameUpdate);
+        } finally {
+            c.close();
+            rawContactDisplayNameUpdate.close();
+        }
+    }
+
+    /**
+     * Updates the display names of the given raw contacts, which must be sorted by ID, reading
+     * the name data of all of them with one query rather than one query each.
+     */
+    private void updateRawContactDisplayNames(SQLiteDatabase db, long[] rawContactIds,
+            int count) {
+        if (count == 0) {
+            return;
+        }
+        final SQLiteStatement rawContactDisplayNameUpdate =
+                db.compileStatement(RAW_CONTACT_DISPLAY_NAME_UPDATE_SQL);
+        final Cursor c = db.rawQuery(RawContactNameQuery.RAW_SQL_FOR_RANGE, new String[] {
+                String.valueOf(rawContactIds[0]), String.valueOf(rawContactIds[count - 1])});
+        try {
+            updateRawContactDisplayNames(db, rawContactIds, 0, count, c,
+                    rawContactDisplayNameUpdate);
+        } finally {
+            c.close();
+            rawContactDisplayNameUpdate.close();
+        }
+    }
+
+    /**
+     * Updates the display names of the given raw contacts, e.g. the ones inserted in a
+     * transaction.  Same as calling {@link #updateRawContactDisplayName} for each of them, but
+     * with one query for the name data of up to {@link #DISPLAY_NAME_UPDATE_BATCH_SIZE} raw
+     * contacts, and a single compiled statement to write all the display names.
+     */
+    public void updateRawContactDisplayNames(SQLiteDatabase db, Set<Long> rawContactIds) {
+        if (rawContactIds.isEmpty()) {
+            return;
+        }
+        final long[] sortedIds = new long[rawContactIds.size()];
+        int count = 0;
+        for (long rawContactId : rawContactIds) {
+            sortedIds[count++] = rawContactId;
+        }
+        Arrays.sort(sortedIds);
+
+        final SQLiteStatement rawContactDisplayNameUpdate =
+                db.compileStatement(RAW_CONTACT_DISPLAY_NAME_UPDATE_SQL);
+        try {
+            final StringBuilder sb = new StringBuilder();
+            for (int start = 0; start < count; start += DISPLAY_NAME_UPDATE_BATCH_SIZE) {
+                final int end = Math.min(start + DISPLAY_NAME_UPDATE_BATCH_SIZE, count);
+                sb.setLength(0);
+                sb.append(RawContactNameQuery.RAW_SQL_FOR_IDS_PREFIX);
+                for (int i = start; i < end; i++) {
+                    if (i != start) {
+                        sb.append(',');
+                    }
+                    sb.append(sortedIds[i]);
+                }
+                sb.append(RawContactNameQuery.RAW_SQL_FOR_IDS_SUFFIX);
+                final Cursor c = db.rawQuery(sb.toString(), null);
+                try {
+                    updateRawContactDisplayNames(db, sortedIds, start, end, c,
+                            rawContactDisplayNameUpdate);
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            rawContactDisplayNameUpdate.close();
+        }
+    }
+
+    /**
+     * Updates the display names of {@code rawContactIds[start..end)}, which must be sorted by
+     * ID, from a {@link RawContactNameQuery} that is grouped by raw contact and covers them.
+     */
+    private void updateRawContactDisplayNames(SQLiteDatabase db, long[] rawContactIds,
+            int start, int end, Cursor c, SQLiteStatement rawContactDisplayNameUpdate) {
+        c.moveToFirst();
+        for (int i = start; i < end; i++) {
+            final long rawContactId = rawContactIds[i];
+            // Skip the data of raw contacts that are not in the list.
+            while (!c.isAfterLast()
+                    && c.getLong(RawContactNameQuery.RAW_CONTACT_ID) < rawContactId) {
+                c.moveToNext();
+            }
+            updateRawContactDisplayName(db, rawContactId, c, rawContactDisplayNameUpdate);
+        }
+    }
+
+    /**
+     * Computes the display name of a raw contact from the rows of a {@link RawContactNameQuery}
+     * starting at the current position of the cursor, and writes it with the given statement.
+     * Leaves the cursor on the first row of another raw contact, or after the last row.
+     */
+    private void updateRawContactDisplayName(SQLiteDatabase db, long rawContactId, Cursor c,
+            SQLiteStatement rawContactDisplayNameUpdate) {
         if (mNameSplitter == null) {
             createNameSplitter();
         }
@@ -5446,92 +5891,78 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String bestPhoneticName = null;
         int bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
 
-        mSelectionArgs1[0] = String.valueOf(rawContactId);
-        Cursor c = db.rawQuery(RawContactNameQuery.RAW_SQL, mSelectionArgs1);
-        try {
-            while (c.moveToNext()) {
-                int mimeType = c.getInt(RawContactNameQuery.MIMETYPE);
-                int source = getDisplayNameSourceForMimeTypeId(mimeType);
-
-                if (source == DisplayNameSources.STRUCTURED_NAME) {
-                    final String given = c.getString(RawContactNameQuery.GIVEN_NAME);
-                    final String middle = c.getString(RawContactNameQuery.MIDDLE_NAME);
-                    final String family = c.getString(RawContactNameQuery.FAMILY_NAME);
-                    final String suffix = c.getString(RawContactNameQuery.SUFFIX);
-                    final String prefix = c.getString(RawContactNameQuery.PREFIX);
-                    if (TextUtils.isEmpty(given) && TextUtils.isEmpty(middle)
-                            && TextUtils.isEmpty(family) && TextUtils.isEmpty(suffix)
-                            && TextUtils.isEmpty(prefix)) {
-                        // Every non-phonetic name component is empty. Therefore, lets lower the
-                        // source score to STRUCTURED_PHONETIC_NAME.
-                        source = DisplayNameSources.STRUCTURED_PHONETIC_NAME;
-                    }
+        for (; !c.isAfterLast(); c.moveToNext()) {
+            if (c.getLong(RawContactNameQuery.RAW_CONTACT_ID) != rawContactId) {
+                break;
+            }
+            int mimeType = c.getInt(RawContactNameQuery.MIMETYPE);
+            int source = getDisplayNameSourceForMimeTypeId(mimeType);
+
+            if (source == DisplayNameSources.STRUCTURED_NAME) {
+                final String given = c.getString(RawContactNameQuery.GIVEN_NAME);
+                final String middle = c.getString(RawContactNameQuery.MIDDLE_NAME);
+                final String family = c.getString(RawContactNameQuery.FAMILY_NAME);
+                final String suffix = c.getString(RawContactNameQuery.SUFFIX);
+                final String prefix = c.getString(RawContactNameQuery.PREFIX);
+                if (TextUtils.isEmpty(given) && TextUtils.isEmpty(middle)
+                        && TextUtils.isEmpty(family) && TextUtils.isEmpty(suffix)
+                        && TextUtils.isEmpty(prefix)) {
+                    // Every non-phonetic name component is empty. Therefore, lets lower the
+                    // source score to STRUCTURED_PHONETIC_NAME.
+                    source = DisplayNameSources.STRUCTURED_PHONETIC_NAME;
                 }
+            }
 
-                if (source < bestDisplayNameSource || source == DisplayNameSources.UNDEFINED) {
-                    continue;
-                }
+            if (source < bestDisplayNameSource || source == DisplayNameSources.UNDEFINED) {
+                continue;
+            }
 
-                if (source == bestDisplayNameSource
-                        && c.getInt(RawContactNameQuery.IS_PRIMARY) == 0) {
-                    continue;
-                }
+            if (source == bestDisplayNameSource
+                    && c.getInt(RawContactNameQuery.IS_PRIMARY) == 0) {
+                continue;
+            }
 
-                if (mimeType == getMimeTypeIdForStructuredName(db)) {
-                    NameSplitter.Name name;
-                    if (bestName != null) {
-                        name = new NameSplitter.Name();
-                    } else {
-                        name = mName;
-                        name.clear();
-                    }
-                    name.prefix = c.getString(RawContactNameQuery.PREFIX);
-                    name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
-                    name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
-                    name.familyName = c.getString(RawContactNameQuery.FAMILY_NAME);
-                    name.suffix = c.getString(RawContactNameQuery.SUFFIX);
-                    name.fullNameStyle = c.isNull(RawContactNameQuery.FULL_NAME_STYLE)
-                            ? FullNameStyle.UNDEFINED
-                            : c.getInt(RawContactNameQuery.FULL_NAME_STYLE);
-                    name.phoneticFamilyName = c.getString(RawContactNameQuery.PHONETIC_FAMILY_NAME);
-                    name.phoneticMiddleName = c.getString(RawContactNameQuery.PHONETIC_MIDDLE_NAME);
-                    name.phoneticGivenName = c.getString(RawContactNameQuery.PHONETIC_GIVEN_NAME);
-                    name.phoneticNameStyle = c.isNull(RawContactNameQuery.PHONETIC_NAME_STYLE)
-                            ? PhoneticNameStyle.UNDEFINED
-                            : c.getInt(RawContactNameQuery.PHONETIC_NAME_STYLE);
-                    if (!name.isEmpty()) {
-                        bestDisplayNameSource = source;
-                        bestName = name;
-                    }
-                } else if (mimeType == getMimeTypeIdForOrganization(db)) {
-                    mCharArrayBuffer.sizeCopied = 0;
-                    c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
-                    if (mCharArrayBuffer.sizeCopied != 0) {
-                        bestDisplayNameSource = source;
-                        bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                mCharArrayBuffer.sizeCopied);
-                        bestPhoneticName = c.getString(
-                                RawContactNameQuery.ORGANIZATION_PHONETIC_NAME);
-                        bestPhoneticNameStyle =
-                                c.isNull(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE)
-                                   ? PhoneticNameStyle.UNDEFINED
-                                   : c.getInt(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE);
-                    } else {
-                        c.copyStringToBuffer(RawContactNameQuery.TITLE, mCharArrayBuffer);
-                        if (mCharArrayBuffer.sizeCopied != 0) {
-                            bestDisplayNameSource = source;
-                            bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                    mCharArrayBuffer.sizeCopied);
-                            bestPhoneticName = null;
-                            bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-                        }
-                    }
+            if (mimeType == getMimeTypeIdForStructuredName(db)) {
+                NameSplitter.Name name;
+                if (bestName != null) {
+                    name = new NameSplitter.Name();
                 } else {
-                    // Display name is at DATA1 in all other types.
-                    // This is ensured in the constructor.
-
-                    mCharArrayBuffer.sizeCopied = 0;
-                    c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+                    name = mName;
+                    name.clear();
+                }
+                name.prefix = c.getString(RawContactNameQuery.PREFIX);
+                name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
+                name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
+                name.familyName = c.getString(RawContactNameQuery.FAMILY_NAME);
+                name.suffix = c.getString(RawContactNameQuery.SUFFIX);
+                name.fullNameStyle = c.isNull(RawContactNameQuery.FULL_NAME_STYLE)
+                        ? FullNameStyle.UNDEFINED
+                        : c.getInt(RawContactNameQuery.FULL_NAME_STYLE);
+                name.phoneticFamilyName = c.getString(RawContactNameQuery.PHONETIC_FAMILY_NAME);
+                name.phoneticMiddleName = c.getString(RawContactNameQuery.PHONETIC_MIDDLE_NAME);
+                name.phoneticGivenName = c.getString(RawContactNameQuery.PHONETIC_GIVEN_NAME);
+                name.phoneticNameStyle = c.isNull(RawContactNameQuery.PHONETIC_NAME_STYLE)
+                        ? PhoneticNameStyle.UNDEFINED
+                        : c.getInt(RawContactNameQuery.PHONETIC_NAME_STYLE);
+                if (!name.isEmpty()) {
+                    bestDisplayNameSource = source;
+                    bestName = name;
+                }
+            } else if (mimeType == getMimeTypeIdForOrganization(db)) {
+                mCharArrayBuffer.sizeCopied = 0;
+                c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+                if (mCharArrayBuffer.sizeCopied != 0) {
+                    bestDisplayNameSource = source;
+                    bestDisplayName = new String(mCharArrayBuffer.data, 0,
+                            mCharArrayBuffer.sizeCopied);
+                    bestPhoneticName = c.getString(
+                            RawContactNameQuery.ORGANIZATION_PHONETIC_NAME);
+                    bestPhoneticNameStyle =
+                            c.isNull(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE)
+                               ? PhoneticNameStyle.UNDEFINED
+                               : c.getInt(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE);
+                } else {
+                    c.copyStringToBuffer(RawContactNameQuery.TITLE, mCharArrayBuffer);
                     if (mCharArrayBuffer.sizeCopied != 0) {
                         bestDisplayNameSource = source;
                         bestDisplayName = new String(mCharArrayBuffer.data, 0,
@@ -5540,10 +5971,20 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                         bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
                     }
                 }
+            } else {
+                // Display name is at DATA1 in all other types.
+                // This is ensured in the constructor.
+
+                mCharArrayBuffer.sizeCopied = 0;
+                c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+                if (mCharArrayBuffer.sizeCopied != 0) {
+                    bestDisplayNameSource = source;
+                    bestDisplayName = new String(mCharArrayBuffer.data, 0,
+                            mCharArrayBuffer.sizeCopied);
+                    bestPhoneticName = null;
+                    bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+                }
             }
-
-        } finally {
-            c.close();
         }
 
         String displayNamePrimary;
@@ -5633,22 +6074,6 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 : localeUtils.getBucketIndex(sortKeyAlternative);
         String phonebookLabelAlternative = localeUtils.getBucketLabel(phonebookBucketAlternative);
 
-        final SQLiteStatement rawContactDisplayNameUpdate = db.compileStatement(
-                    "UPDATE " + Tables.RAW_CONTACTS +
-                    " SET " +
-                            RawContacts.DISPLAY_NAME_SOURCE + "=?," +
-                            RawContacts.DISPLAY_NAME_PRIMARY + "=?," +
-                            RawContacts.DISPLAY_NAME_ALTERNATIVE + "=?," +
-                            RawContacts.PHONETIC_NAME + "=?," +
-                            RawContacts.PHONETIC_NAME_STYLE + "=?," +
-                            RawContacts.SORT_KEY_PRIMARY + "=?," +
-                            RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + "=?," +
-                            RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + "=?," +
-                            RawContacts.SORT_KEY_ALTERNATIVE + "=?," +
-                            RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=?," +
-                            RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=?" +
-                    " WHERE " + RawContacts._ID + "=?");
-
         rawContactDisplayNameUpdate.bindLong(1, bestDisplayNameSource);
         bindString(rawContactDisplayNameUpdate, 2, displayNamePrimary);
         bindString(rawContactDisplayNameUpdate, 3, displayNameAlternative);
@@ -5745,7 +6170,25 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Deletes all {@link Tables#NAME_LOOKUP} table rows associated with the specified data element.
+     * Inserts a record in the {@link Tables#NAME_INFIX_LOOKUP} table.
+     */
+    public void insertNameInfixLookup(long rawContactId, long dataId, String normalizedInfix) {
+        insertNameInfixLookup(
+                mStatementCache.get(getWritableDatabase(), NAME_INFIX_LOOKUP_INSERT_SQL),
+                rawContactId, dataId, normalizedInfix);
+    }
+
+    private static void insertNameInfixLookup(SQLiteStatement stmt, long rawContactId,
+            long dataId, String normalizedInfix) {
+        stmt.bindLong(1, rawContactId);
+        stmt.bindLong(2, dataId);
+        stmt.bindString(3, normalizedInfix);
+        stmt.executeInsert();
+    }
+
+    /**
+     * Deletes all {@link Tables#NAME_LOOKUP} and {@link Tables#NAME_INFIX_LOOKUP} table rows
+     * associated with the specified data element.
      */
     public void deleteNameLookup(long dataId) {
         final SQLiteStatement nameLookupDelete = getWritableDatabase().compileStatement(
@@ -5753,6 +6196,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     " WHERE " + NameLookupColumns.DATA_ID + "=?");
         nameLookupDelete.bindLong(1, dataId);
         nameLookupDelete.execute();
+
+        final SQLiteStatement nameInfixLookupDelete = mStatementCache.get(getWritableDatabase(),
+                    "DELETE FROM " + Tables.NAME_INFIX_LOOKUP +
+                    " WHERE " + NameInfixLookupColumns.DATA_ID + "=?");
+        nameInfixLookupDelete.bindLong(1, dataId);
+        nameInfixLookupDelete.execute();
     }
 
     public String insertNameLookupForEmail(long rawContactId, long dataId, String email) {
@@ -5885,50 +6334,39 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * Ensure (a piece of) SQL is valid and doesn't contain disallowed tokens.
      */
     public void validateSql(String callerPackage, String sqlPiece) {
-        // TODO Replace the Runnable with a lambda -- which would crash right now due to an art bug?
-        runSqlValidation(callerPackage, new Runnable() {
-            @Override
-            public void run() {
-                ContactsDatabaseHelper.this.getSqlChecker().ensureNoInvalidTokens(sqlPiece);
-            }
-        });
+        try {
+            getSqlChecker().ensureNoInvalidTokens(sqlPiece);
+        } catch (InvalidSqlException e) {
+            reportInvalidSql(callerPackage, e);
+        }
     }
 
     /**
      * Ensure all keys in {@code values} are valid. (i.e. they're all single token.)
      */
     public void validateContentValues(String callerPackage, ContentValues values) {
-        // TODO Replace the Runnable with a lambda -- which would crash right now due to an art bug?
-        runSqlValidation(callerPackage, new Runnable() {
-            @Override
-            public void run() {
-                for (String key : values.keySet()) {
-                    ContactsDatabaseHelper.this.getSqlChecker().ensureSingleTokenOnly(key);
-                }
+        try {
+            final SqlChecker sqlChecker = getSqlChecker();
+            for (String key : values.keySet()) {
+                sqlChecker.ensureSingleTokenOnly(key);
             }
-        });
-   }
+        } catch (InvalidSqlException e) {
+            reportInvalidSql(callerPackage, e);
+        }
+    }
 
     /**
      * Ensure all column names in {@code projection} are valid. (i.e. they're all single token.)
      */
     public void validateProjection(String callerPackage, String[] projection) {
-        // TODO Replace the Runnable with a lambda -- which would crash right now due to an art bug?
-        if (projection != null) {
-            runSqlValidation(callerPackage, new Runnable() {
-                @Override
-                public void run() {
-                    for (String column : projection) {
-                        ContactsDatabaseHelper.this.getSqlChecker().ensureSingleTokenOnly(column);
-                    }
-                }
-            });
+        if (projection == null) {
+            return;
         }
-    }
-
-    private void runSqlValidation(String callerPackage, Runnable r) {
         try {
-            r.run();
+            final SqlChecker sqlChecker = getSqlChecker();
+            for (String column : projection) {
+                sqlChecker.ensureSingleTokenOnly(column);
+            }
         } catch (InvalidSqlException e) {
             reportInvalidSql(callerPackage, e);
         }
@@ -5983,6 +6421,17 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    @Override
+    public synchronized void close() {
+        mStatementCache.invalidate();
+        super.close();
+    }
+
+    @VisibleForTesting
+    SqlStatementCache getStatementCacheForTest() {
+        return mStatementCache;
+    }
+
     public void dump(PrintWriter pw) {
         pw.print("CountryISO: ");
         pw.println(getCurrentCountryIso());
@@ -5999,6 +6448,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         pw.print("UseStrictPhoneNumberComparisonKZ: ");
         pw.println(mUseStrictPhoneNumberComparisonForKazakhstan);
 
+        mStatementCache.dump(pw);
+
         pw.println();
     }
 }
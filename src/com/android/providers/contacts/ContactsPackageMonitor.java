@@ -126,7 +126,10 @@ public class ContactsPackageMonitor {
             }
             if (VERBOSE_LOGGING) Log.d(TAG, "onPackageChanged: Scanning package: " + packageName);
 
-            // First, tell CP2.
+            // Voicemail receivers may have been added or removed.
+            VoicemailBroadcastDispatcher.getInstance().onPackageChanged(packageName);
+
+            // Then, tell CP2.
             final ContactsProvider2 provider = getProvider(mContext, ContactsContract.AUTHORITY);
             if (provider != null) {
                 provider.onPackageChanged(packageName);
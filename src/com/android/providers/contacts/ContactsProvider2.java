@@ -78,6 +78,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.AutoCloseInputStream;
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
 import android.os.RemoteException;
 import android.os.StrictMode;
 import android.os.SystemClock;
@@ -157,6 +158,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.DataUsageStatColumn
 import com.android.providers.contacts.ContactsDatabaseHelper.DbProperties;
 import com.android.providers.contacts.ContactsDatabaseHelper.GroupsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Joins;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameInfixLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
 import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
@@ -199,15 +201,14 @@ import com.google.android.collect.Sets;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import libcore.io.IoUtils;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -225,6 +226,14 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Contacts content provider. The contract between this provider and applications
@@ -270,6 +279,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private static final int BACKGROUND_TASK_CLEANUP_DANGLING_CONTACTS = 13;
     @VisibleForTesting
     protected static final int BACKGROUND_TASK_MIGRATE_PHONE_ACCOUNT_HANDLES = 14;
+    private static final int BACKGROUND_TASK_AGGREGATE_DEFERRED = 15;
+    private static final int BACKGROUND_TASK_LOAD_PHONE_LOOKUP_INDEX = 16;
 
     protected static final int STATUS_NORMAL = 0;
     protected static final int STATUS_UPGRADING = 1;
@@ -279,6 +290,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
     /** Default for the maximum number of returned aggregation suggestions. */
     private static final int DEFAULT_MAX_SUGGESTIONS = 5;
 
+    /** Maximum number of work profile queries to run concurrently with personal ones. */
+    private static final int MAX_CORP_QUERY_THREADS = 4;
+
     /** Limit for the maximum number of social stream items to store under a raw contact. */
     private static final int MAX_STREAM_ITEMS_PER_RAW_CONTACT = 5;
 
@@ -317,6 +331,26 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private static final String PREF_LOCALE = "locale";
 
+    /**
+     * Query parameter that lets a sync adapter commit its changes without aggregating them.  The
+     * raw contacts it touched keep their current (or a new, single raw contact) contact until
+     * {@link #BACKGROUND_TASK_AGGREGATE_DEFERRED} aggregates them.
+     */
+    public static final String DEFER_AGGREGATION = "defer_aggregation";
+
+    /**
+     * Query parameter that makes the strequent filter also match contacts by the middle of a
+     * word of their name, e.g. "mit" matches "John Smith".
+     */
+    public static final String INFIX_MATCH = "infix_match";
+
+    /**
+     * Number of raw contacts aggregated by each transaction of
+     * {@link #BACKGROUND_TASK_AGGREGATE_DEFERRED}, which keeps the write lock free for other
+     * writers in between.
+     */
+    private static final int DEFERRED_AGGREGATION_BATCH_SIZE = 200;
+
     private static int PROPERTY_AGGREGATION_ALGORITHM_VERSION;
 
     private static final int AGGREGATION_ALGORITHM_OLD_VERSION = 4;
@@ -1432,6 +1466,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private final ThreadLocal<TransactionContext> mTransactionContext =
             new ThreadLocal<TransactionContext>();
 
+    private final LookupKeyCache mLookupKeyCache = new LookupKeyCache();
+
+    private final PhoneLookupIndex mPhoneLookupIndex = new PhoneLookupIndex();
+
+    private final ContactFilterSessionCache mContactFilterSessionCache =
+            new ContactFilterSessionCache();
+
+    // The cache invalidations of the contacts transaction this thread is committing, which can
+    // only be applied once the commit is done.
+    private final ThreadLocal<Runnable> mCommittedCacheInvalidation = new ThreadLocal<>();
+
+    // Runs the work profile side of the enterprise queries while the binder thread runs the
+    // personal side.  When all threads are busy, the binder thread runs both sides itself.
+    private final ThreadPoolExecutor mCorpQueryExecutor = createCorpQueryExecutor();
+
     // Random number generator.
     private final SecureRandom mRandom = new SecureRandom();
 
@@ -1440,6 +1489,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private PhotoStore mContactsPhotoStore;
     private PhotoStore mProfilePhotoStore;
 
+    // Processes the photos of a batch on worker threads before the batch opens its transaction.
+    private final PhotoProcessingPipeline mPhotoProcessingPipeline = new PhotoProcessingPipeline();
+
     private ContactsDatabaseHelper mContactsHelper;
     private ProfileDatabaseHelper mProfileHelper;
 
@@ -1673,6 +1725,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEAN_DELETE_LOG);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_DANGLING_CONTACTS);
+        scheduleBackgroundTask(BACKGROUND_TASK_AGGREGATE_DEFERRED);
 
         ContactsPackageMonitor.start(getContext());
 
@@ -1691,6 +1744,26 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 mContactsPhotoStore);
     }
 
+    @VisibleForTesting
+    public AbstractContactAggregator getContactAggregatorForTest() {
+        return mContactAggregator;
+    }
+
+    @VisibleForTesting
+    public LookupKeyCache getLookupKeyCacheForTest() {
+        return mLookupKeyCache;
+    }
+
+    @VisibleForTesting
+    public PhoneLookupIndex getPhoneLookupIndexForTest() {
+        return mPhoneLookupIndex;
+    }
+
+    @VisibleForTesting
+    public ContactFilterSessionCache getContactFilterSessionCacheForTest() {
+        return mContactFilterSessionCache;
+    }
+
     /**
      * (Re)allocates all locale-sensitive structures.
      */
@@ -1762,7 +1835,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         mGroupIdCache));
         handlerMap.put(Photo.CONTENT_ITEM_TYPE,
                 new DataRowHandlerForPhoto(context, dbHelper, contactAggregator, photoStore,
-                        getMaxDisplayPhotoDim(), getMaxThumbnailDim()));
+                        mPhotoProcessingPipeline, getMaxDisplayPhotoDim(), getMaxThumbnailDim()));
         handlerMap.put(Note.CONTENT_ITEM_TYPE,
                 new DataRowHandlerForNote(context, dbHelper, contactAggregator));
         handlerMap.put(Identity.CONTENT_ITEM_TYPE,
@@ -1875,6 +1948,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (isAggregationUpgradeNeeded()) {
                     upgradeAggregationAlgorithmInBackground();
                     invalidateFastScrollingIndexCache();
+                    mLookupKeyCache.invalidateAll();
                 }
                 break;
             }
@@ -1884,6 +1958,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 break;
             }
 
+            case BACKGROUND_TASK_AGGREGATE_DEFERRED: {
+                aggregateDeferredRawContactsInBackground();
+                break;
+            }
+
+            case BACKGROUND_TASK_LOAD_PHONE_LOOKUP_INDEX: {
+                mPhoneLookupIndex.load(mContactsHelper.getReadableDatabase());
+                break;
+            }
+
             case BACKGROUND_TASK_UPDATE_PROVIDER_STATUS: {
                 updateProviderStatus();
                 break;
@@ -1978,6 +2062,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         setProviderStatus(STATUS_CHANGING_LOCALE);
         mContactsHelper.setLocale(currentLocales);
         mProfileHelper.setLocale(currentLocales);
+        mContactAggregator.invalidateNameLookupIndex();
+        mLookupKeyCache.invalidateAll();
         mSearchIndexManager.updateIndex(true);
         prefs.edit().putString(PREF_LOCALE, currentLocales.toString()).commit();
         setProviderStatus(providerStatus);
@@ -2037,6 +2123,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mSearchIndexManager.updateIndex(false);
     }
 
+    /**
+     * Schedules an update of the stale parts of the search index, used when updating them
+     * within the current transaction would take too long.
+     */
+    void scheduleSearchIndexUpdate() {
+        scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_SEARCH_INDEX);
+    }
+
     protected void updateDirectoriesInBackground(boolean rescan) {
         mContactDirectoryManager.scanAllPackages(rescan);
     }
@@ -2249,6 +2343,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
     @NeededForTesting
     void wipeData() {
         invalidateFastScrollingIndexCache();
+        mLookupKeyCache.invalidateAll();
+        mPhoneLookupIndex.invalidateAll();
         mContactsHelper.wipeData();
         mProfileHelper.wipeData();
         mContactsPhotoStore.clear();
@@ -2727,7 +2823,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         waitForAccess(mWriteAccessLatch);
-        return super.applyBatch(operations);
+        submitPhotosForProcessing(operations);
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            mPhotoProcessingPipeline.clear();
+        }
     }
 
     @Override
@@ -2739,7 +2840,80 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     + "for the user");
             return 0;
         }
-        return super.bulkInsert(uri, values);
+        submitPhotosForProcessing(uri, values);
+        try {
+            return super.bulkInsert(uri, values);
+        } finally {
+            mPhotoProcessingPipeline.clear();
+        }
+    }
+
+    /**
+     * Starts processing the photos that the given operations insert or update, so that the work
+     * is done in parallel and mostly before the batch transaction is started.  The values of an
+     * operation are resolved against placeholder results; they are only used to find the photos.
+     */
+    private void submitPhotosForProcessing(ArrayList<ContentProviderOperation> operations) {
+        ContentProviderResult[] placeholderResults = null;
+        final int numOperations = operations.size();
+        for (int i = 0; i < numOperations; i++) {
+            final ContentProviderOperation operation = operations.get(i);
+            if (!operation.isInsert() && !operation.isUpdate()) {
+                continue;
+            }
+            if (placeholderResults == null) {
+                placeholderResults = new ContentProviderResult[numOperations];
+                Arrays.fill(placeholderResults,
+                        new ContentProviderResult(ContentUris.withAppendedId(Data.CONTENT_URI, 0)));
+            }
+            final ContentValues values;
+            try {
+                values = operation.resolveValueBackReferences(placeholderResults, i);
+            } catch (RuntimeException e) {
+                // The operation will fail the same way when it is applied.
+                continue;
+            }
+            if (values != null) {
+                submitPhotoForProcessing(operation.getUri(), values);
+            }
+        }
+    }
+
+    private void submitPhotosForProcessing(Uri uri, ContentValues[] values) {
+        for (ContentValues value : values) {
+            if (value != null) {
+                submitPhotoForProcessing(uri, value);
+            }
+        }
+    }
+
+    private void submitPhotoForProcessing(Uri uri, ContentValues values) {
+        if (values.containsKey(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY)) {
+            return;
+        }
+        final Object photo;
+        final boolean forceCropToSquare;
+        switch (sUriMatcher.match(uri)) {
+            case STREAM_ITEMS_PHOTOS:
+            case STREAM_ITEMS_ID_PHOTOS:
+            case STREAM_ITEMS_ID_PHOTOS_ID:
+                photo = values.get(StreamItemPhotos.PHOTO);
+                forceCropToSquare = true;
+                break;
+            default:
+                // Only photo rows are processed, but updates don't need to name the mimetype.
+                final String mimetype = values.getAsString(Data.MIMETYPE);
+                if (mimetype != null && !Photo.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                    return;
+                }
+                photo = values.get(Photo.PHOTO);
+                forceCropToSquare = false;
+                break;
+        }
+        if (photo instanceof byte[]) {
+            mPhotoProcessingPipeline.submit((byte[]) photo, getMaxDisplayPhotoDim(),
+                    getMaxThumbnailDim(), forceCropToSquare);
+        }
     }
 
     @Override
@@ -2752,14 +2926,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
             Log.i(TAG, "onBeginTransaction: " + (forProfile ? "profile" : "contacts"),
                     new RuntimeException("onBeginTransactionInternal"));
         }
+        // A yield begins a new transaction right after committing the previous one.
+        applyCommittedCacheInvalidation();
         if (forProfile) {
             switchToProfileMode();
             mProfileAggregator.clearPendingAggregations();
             mProfileTransactionContext.clearExceptSearchIndexUpdates();
+            mProfileTransactionContext.clearDeferredAggregation();
         } else {
             switchToContactMode();
             mContactAggregator.clearPendingAggregations();
             mContactTransactionContext.clearExceptSearchIndexUpdates();
+            mContactTransactionContext.clearDeferredAggregation();
         }
     }
 
@@ -2781,7 +2959,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         flushTransactionalChanges();
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
-        mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
+        final boolean deferAggregation =
+                mTransactionContext.get().isAggregationDeferred() && !forProfile;
+        mTransactionContext.get().clearDeferredAggregation();
+        mAggregator.get().updateNameLookupIndex(mTransactionContext.get(), db);
+        if (deferAggregation) {
+            // The marked raw contacts keep AGGREGATION_NEEDED=1, which is what the background
+            // task looks for.
+            mAggregator.get().clearPendingAggregations();
+            mContactsHelper.setProperty(DbProperties.DEFERRED_AGGREGATION_CURSOR, "0");
+        } else {
+            mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
+        }
         if (mVisibleTouched) {
             mVisibleTouched = false;
             mDbHelper.get().updateAllVisible();
@@ -2796,6 +2985,52 @@ public class ContactsProvider2 extends AbstractContactsProvider
             updateProviderStatus();
             mProviderStatusUpdateNeeded = false;
         }
+
+        if (deferAggregation) {
+            scheduleBackgroundTask(BACKGROUND_TASK_AGGREGATE_DEFERRED);
+        }
+
+        if (forProfile) {
+            // Lookups in the profile are not cached.
+            mTransactionContext.get().clearLookupKeyUpdates();
+            mTransactionContext.get().clearPhoneLookupUpdates();
+            mTransactionContext.get().clearFilterSessionUpdates();
+        } else {
+            applyCommittedCacheInvalidation();
+            final Runnable lookupKeyInvalidation =
+                    mLookupKeyCache.takeInvalidation(mTransactionContext.get());
+            final Runnable phoneLookupInvalidation =
+                    mPhoneLookupIndex.takeInvalidation(mTransactionContext.get());
+            final Runnable filterSessionInvalidation =
+                    mContactFilterSessionCache.takeInvalidation(mTransactionContext.get());
+            if (lookupKeyInvalidation != null || phoneLookupInvalidation != null
+                    || filterSessionInvalidation != null) {
+                mCommittedCacheInvalidation.set(() -> {
+                    if (lookupKeyInvalidation != null) {
+                        lookupKeyInvalidation.run();
+                    }
+                    if (phoneLookupInvalidation != null) {
+                        phoneLookupInvalidation.run();
+                    }
+                    if (filterSessionInvalidation != null) {
+                        filterSessionInvalidation.run();
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    protected void onEndTransaction() {
+        applyCommittedCacheInvalidation();
+    }
+
+    private void applyCommittedCacheInvalidation() {
+        final Runnable invalidation = mCommittedCacheInvalidation.get();
+        if (invalidation != null) {
+            mCommittedCacheInvalidation.set(null);
+            invalidation.run();
+        }
     }
 
     @Override
@@ -2813,6 +3048,70 @@ public class ContactsProvider2 extends AbstractContactsProvider
         } else {
             switchToContactMode();
         }
+
+        // The name lookup index may have been refreshed with rows that no longer exist.
+        mTransactionContext.get().clearNameLookupUpdates();
+        mAggregator.get().invalidateNameLookupIndex();
+        mTransactionContext.get().clearLookupKeyUpdates();
+        mTransactionContext.get().clearPhoneLookupUpdates();
+        mTransactionContext.get().clearFilterSessionUpdates();
+    }
+
+    /**
+     * Records whether the sync adapter asked for the aggregation of the current transaction to be
+     * deferred.  The parameter is ignored for other callers.
+     */
+    private void readDeferAggregationParameter(Uri uri, boolean callerIsSyncAdapter) {
+        if (callerIsSyncAdapter && readBooleanQueryParameter(uri, DEFER_AGGREGATION, false)) {
+            mTransactionContext.get().deferAggregation();
+        }
+    }
+
+    /**
+     * Aggregates the next {@link #DEFERRED_AGGREGATION_BATCH_SIZE} raw contacts whose aggregation
+     * was deferred, in a transaction of its own, and schedules itself again until none are left.
+     */
+    private void aggregateDeferredRawContactsInBackground() {
+        switchToContactMode();
+        final SQLiteDatabase db = mContactsHelper.getWritableDatabase();
+        final long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            final long fromRawContactId = Long.parseLong(mContactsHelper.getProperty(
+                    DbProperties.DEFERRED_AGGREGATION_CURSOR, "-1"));
+            if (fromRawContactId < 0) {
+                return;
+            }
+
+            mContactAggregator.clearPendingAggregations();
+            final long lastRawContactId = mContactAggregator.markNextForAggregation(db,
+                    fromRawContactId, DEFERRED_AGGREGATION_BATCH_SIZE);
+            if (lastRawContactId < 0) {
+                mContactsHelper.setProperty(DbProperties.DEFERRED_AGGREGATION_CURSOR, "-1");
+            } else {
+                count = mContactAggregator.getPendingAggregationCount();
+                mContactAggregator.aggregateInTransaction(mTransactionContext.get(), db);
+                updateSearchIndexInTransaction();
+                mContactsHelper.setProperty(DbProperties.DEFERRED_AGGREGATION_CURSOR,
+                        String.valueOf(lastRawContactId));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mTransactionContext.get().clearAll();
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            if (VERBOSE_LOGGING) {
+                Log.v(TAG, "Aggregated " + count + " deferred raw contacts in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+            invalidateFastScrollingIndexCache();
+            mLookupKeyCache.invalidateAll();
+            notifyChange(false);
+            scheduleBackgroundTask(BACKGROUND_TASK_AGGREGATE_DEFERRED);
+        }
     }
 
     private void updateSearchIndexInTransaction() {
@@ -2821,6 +3120,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (!staleContacts.isEmpty() || !staleRawContacts.isEmpty()) {
             mSearchIndexManager.updateIndexForRawContacts(staleContacts, staleRawContacts);
             mTransactionContext.get().clearSearchIndexUpdates();
+            mTransactionContext.get().invalidateFilterSessions();
         }
     }
 
@@ -2830,8 +3130,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
-        for (long rawContactId : mTransactionContext.get().getInsertedRawContactIds()) {
-            mDbHelper.get().updateRawContactDisplayName(db, rawContactId);
+        // The display names only depend on the data of each raw contact, so they can all be
+        // computed before aggregating the new raw contacts.
+        final Set<Long> insertedRawContacts =
+                mTransactionContext.get().getInsertedRawContactIds();
+        mDbHelper.get().updateRawContactDisplayNames(db, insertedRawContacts);
+        for (long rawContactId : insertedRawContacts) {
             mAggregator.get().onRawContactInsert(mTransactionContext.get(), db, rawContactId);
         }
 
@@ -2964,6 +3268,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         final boolean callerIsSyncAdapter =
                 readBooleanQueryParameter(uri, ContactsContract.CALLER_IS_SYNCADAPTER, false);
+        readDeferAggregationParameter(uri, callerIsSyncAdapter);
 
         final int match = sUriMatcher.match(uri);
         long id = 0;
@@ -3327,7 +3632,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // Process the photo and store it.
         IOException exception = null;
         try {
-            final PhotoProcessor processor = new PhotoProcessor(
+            final PhotoProcessor processor = mPhotoProcessingPipeline.take(
                     photoBytes, getMaxDisplayPhotoDim(), getMaxThumbnailDim(), true);
             long photoFileId = mPhotoStore.get().insert(processor, true);
             if (photoFileId != 0) {
@@ -3803,6 +4108,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         flushTransactionalChanges();
         final boolean callerIsSyncAdapter =
                 readBooleanQueryParameter(uri, ContactsContract.CALLER_IS_SYNCADAPTER, false);
+        readDeferAggregationParameter(uri, callerIsSyncAdapter);
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case SYNCSTATE:
@@ -4086,6 +4392,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mProviderStatusUpdateNeeded = true;
 
         int result = ContactsTableUtil.deleteContact(db, contactId);
+        mTransactionContext.get().invalidateLookupKeysForContact(contactId);
 
         // Now purge the local raw contacts
         deleteRawContactsImmediately(db, localRawContactIds);
@@ -4096,6 +4403,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     public int deleteRawContact(long rawContactId, long contactId, boolean callerIsSyncAdapter) {
         mAggregator.get().invalidateAggregationExceptionCache();
+        mTransactionContext.get().invalidateNameLookupForRawContact(rawContactId);
         mProviderStatusUpdateNeeded = true;
 
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
@@ -4131,6 +4439,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
         if (!contactIsSingleton) {
             mAggregator.get().updateAggregateData(mTransactionContext.get(), contactId);
+        } else {
+            mTransactionContext.get().invalidateLookupKeysForContact(contactId);
         }
         return count;
     }
@@ -4289,6 +4599,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         flushTransactionalChanges();
         final boolean callerIsSyncAdapter =
                 readBooleanQueryParameter(uri, ContactsContract.CALLER_IS_SYNCADAPTER, false);
+        readDeferAggregationParameter(uri, callerIsSyncAdapter);
         switch(match) {
             case SYNCSTATE:
             case PROFILE_SYNCSTATE:
@@ -4938,6 +5249,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
             if (values.containsKey(RawContacts.SOURCE_ID)) {
                 aggregator.updateLookupKeyForRawContact(db, rawContactId);
             }
+            if (values.containsKey(RawContacts.SOURCE_ID) || isAccountChanging) {
+                // The raw contact may now match the segments of other lookup keys.
+                mTransactionContext.get().invalidateAllLookupKeys();
+            }
             if (requestUndoDelete && previousDeleted == 1) {
                 // Note before the accounts refactoring, we used to use the *old* account here,
                 // which doesn't make sense, so now we pass the *new* account.
@@ -5397,6 +5712,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
             db.endTransaction();
         }
         mAccountWritability.clear();
+        if (!inProfileMode()) {
+            mLookupKeyCache.invalidateAll();
+            mPhoneLookupIndex.invalidateAll();
+        }
 
         updateContactsAccountCount(systemAccounts);
         updateProviderStatus();
@@ -5589,6 +5908,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         } finally {
             db.endTransaction();
         }
+        mLookupKeyCache.invalidateAll();
+        mPhoneLookupIndex.invalidateAll();
         switchToProfileMode();
         db.beginTransaction();
         try {
@@ -6049,6 +6370,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
     protected Cursor queryCorpContactsProvider(Uri localUri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder,
             CancellationSignal cancellationSignal) {
+        return queryCorpContactsProvider(localUri, projection, selection, selectionArgs,
+                sortOrder, cancellationSignal, getCallingPackage());
+    }
+
+    /**
+     * Same as above, for the given caller package, so that it can run off the binder thread.
+     */
+    private Cursor queryCorpContactsProvider(Uri localUri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder,
+            CancellationSignal cancellationSignal, String callingPackage) {
         final int corpUserId = UserUtils.getCorpUserId(getContext());
         if (corpUserId < 0) {
             return createEmptyCursor(localUri, projection);
@@ -6057,7 +6388,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         validateAuthority(localUri.getAuthority());
         // Add the "user-id @" to the URI, and also pass the caller package name.
         final Uri remoteUri = maybeAddUserId(localUri, corpUserId).buildUpon()
-                .appendQueryParameter(Directory.CALLER_PACKAGE_PARAM_KEY, getCallingPackage())
+                .appendQueryParameter(Directory.CALLER_PACKAGE_PARAM_KEY, callingPackage)
                 .build();
         Cursor cursor = getContext().getContentResolver().query(remoteUri, projection, selection,
                 selectionArgs, sortOrder, cancellationSignal);
@@ -6218,6 +6549,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Returns the rows of the phone lookup table that match the number according to
+     * {@link #mPhoneLookupIndex}, or null if the lookup has to query the table instead, i.e. in
+     * the profile, within a transaction, or until the index is loaded.
+     */
+    private PhoneLookupIndex.Entry[] findPhoneLookupMatches(SQLiteDatabase db,
+            String normalizedNumber, String numberE164) {
+        if (inProfileMode() || db.inTransaction()) {
+            return null;
+        }
+        final PhoneLookupIndex.Entry[] candidates = mPhoneLookupIndex.get(db,
+                PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+        if (candidates == null) {
+            if (mPhoneLookupIndex.scheduleLoad()) {
+                scheduleBackgroundTask(BACKGROUND_TASK_LOAD_PHONE_LOOKUP_INDEX);
+            }
+            return null;
+        }
+        return mDbHelper.get().findPhoneLookupMatches(candidates, normalizedNumber, numberE164);
+    }
+
     protected Cursor queryLocal(final Uri uri, final String[] projection, String selection,
             String[] selectionArgs, String sortOrder, final long directoryId,
             final CancellationSignal cancellationSignal) {
@@ -6392,6 +6744,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     filterParam = uri.getLastPathSegment();
                 }
 
+                final Set<Long> contactIds = getFilterSessionContactIds(db, projection, filterParam,
+                        directoryId);
+                if (contactIds != null) {
+                    setTablesAndProjectionMapForContactsWithIds(qb, projection, contactIds);
+                    break;
+                }
+
                 // If the query consists of a single word, we can do snippetizing after-the-fact for
                 // a performance boost. Otherwise, we can't defer.
                 snippetDeferred = isSingleWordQuery(filterParam)
@@ -6412,7 +6771,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     String filterParam = uri.getLastPathSegment();
                     StringBuilder sb = new StringBuilder();
                     sb.append(Contacts._ID + " IN ");
-                    appendContactFilterAsNestedQuery(sb, filterParam);
+                    appendContactFilterAsNestedQuery(sb, filterParam,
+                            readBooleanQueryParameter(uri, INFIX_MATCH, false));
                     selection = DbQueryUtils.concatenateClauses(selection, sb.toString());
                 }
 
@@ -7220,8 +7580,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     String numberE164 = PhoneNumberUtils.formatNumberToE164(
                             number, mDbHelper.get().getCurrentCountryIso());
                     String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-                    mDbHelper.get().buildPhoneLookupAndContactQuery(
-                            qb, normalizedNumber, numberE164);
+                    final PhoneLookupIndex.Entry[] matches =
+                            findPhoneLookupMatches(db, normalizedNumber, numberE164);
+                    if (matches == null) {
+                        mDbHelper.get().buildPhoneLookupAndContactQuery(
+                                qb, normalizedNumber, numberE164);
+                    } else if (matches.length > 0) {
+                        mDbHelper.get().buildPhoneLookupAndContactQuery(qb, matches);
+                    }
                     qb.setProjectionMap(sPhoneLookupProjectionMap);
 
                     // removeNonStarMatchesFromCursor() requires the cursor to contain
@@ -7240,11 +7606,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     // phone_number_compare_loose.
                     qb.setStrict(true);
                     boolean foundResult = false;
-                    Cursor cursor = doQuery(db, qb, projectionWithNumber, selection, selectionArgs,
-                            sortOrder, groupBy, null, limit, cancellationSignal);
+                    // If the index found no rows, neither would the query.
+                    Cursor cursor = matches != null && matches.length == 0 ? null
+                            : doQuery(db, qb, projectionWithNumber, selection, selectionArgs,
+                                    sortOrder, groupBy, null, limit, cancellationSignal);
 
                     try {
-                        if (cursor.getCount() > 0) {
+                        if (cursor != null && cursor.getCount() > 0) {
                             foundResult = true;
                             cursor = PhoneLookupWithStarPrefix
                                     .removeNonStarMatchesFromCursor(number, cursor);
@@ -7578,30 +7946,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private Cursor queryMergedDirectories(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
         final Uri localUri = Directory.CONTENT_URI;
-        final Cursor primaryCursor = queryLocal(localUri, projection, selection, selectionArgs,
-                sortOrder, Directory.DEFAULT, cancellationSignal);
-        Cursor corpCursor = null;
-        try {
-            corpCursor = queryCorpContactsProvider(localUri, projection, selection,
-                    selectionArgs, sortOrder, cancellationSignal);
-            if (corpCursor == null) {
-                // No corp results. Just return the local result.
-                return primaryCursor;
-            }
-            final Cursor[] cursorArray = new Cursor[] {
-                    primaryCursor, rewriteCorpDirectories(corpCursor)
-            };
-            return new MergeCursor(cursorArray);
-        } catch (Throwable th) {
-            if (primaryCursor != null) {
-                primaryCursor.close();
-            }
-            throw th;
-        } finally {
-            if (corpCursor != null) {
-                corpCursor.close();
-            }
-        }
+        if (UserUtils.getCorpUserId(getContext()) < 0) {
+            return queryLocal(localUri, projection, selection, selectionArgs, sortOrder,
+                    Directory.DEFAULT, cancellationSignal);
+        }
+        final String callingPackage = getCallingPackage();
+        return queryLocalAndCorp(
+                () -> queryLocal(localUri, projection, selection, selectionArgs, sortOrder,
+                        Directory.DEFAULT, cancellationSignal),
+                corpCancellationSignal -> {
+                    final Cursor corpCursor = queryCorpContactsProvider(localUri, projection,
+                            selection, selectionArgs, sortOrder, corpCancellationSignal,
+                            callingPackage);
+                    try {
+                        return rewriteCorpDirectories(corpCursor);
+                    } finally {
+                        if (corpCursor != null) {
+                            corpCursor.close();
+                        }
+                    }
+                },
+                sortOrder, cancellationSignal);
     }
 
     /**
@@ -7610,27 +7975,20 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private Cursor queryMergedContacts(String[] projection, String selection,
             String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
         final Uri localUri = Contacts.CONTENT_URI;
-        final Cursor primaryCursor = queryLocal(localUri, projection, selection, selectionArgs,
-                sortOrder, Directory.DEFAULT, cancellationSignal);
-        try {
-            final int managedUserId = UserUtils.getCorpUserId(getContext());
-            if (managedUserId < 0) {
-                // No managed profile or policy not allowed
-                return primaryCursor;
-            }
-            final Cursor managedCursor = queryCorpContacts(localUri, projection, selection,
-                    selectionArgs, sortOrder, new String[] {Contacts._ID},
-                    Directory.ENTERPRISE_DEFAULT, cancellationSignal);
-            final Cursor[] cursorArray = new Cursor[] {
-                    primaryCursor, managedCursor
-            };
-            return new MergeCursor(cursorArray);
-        } catch (Throwable th) {
-            if (primaryCursor != null) {
-                primaryCursor.close();
-            }
-            throw th;
-        }
+        final int managedUserId = UserUtils.getCorpUserId(getContext());
+        if (managedUserId < 0) {
+            // No managed profile or policy not allowed
+            return queryLocal(localUri, projection, selection, selectionArgs, sortOrder,
+                    Directory.DEFAULT, cancellationSignal);
+        }
+        final String callingPackage = getCallingPackage();
+        return queryLocalAndCorp(
+                () -> queryLocal(localUri, projection, selection, selectionArgs, sortOrder,
+                        Directory.DEFAULT, cancellationSignal),
+                corpCancellationSignal -> queryCorpContacts(localUri, projection, selection,
+                        selectionArgs, sortOrder, new String[] {Contacts._ID},
+                        Directory.ENTERPRISE_DEFAULT, corpCancellationSignal, callingPackage),
+                sortOrder, cancellationSignal);
     }
 
     /**
@@ -7653,22 +8011,70 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 (directory == null ? -1 :
                 (directory.equals("0") ? Directory.DEFAULT :
                 (directory.equals("1") ? Directory.LOCAL_INVISIBLE : Long.MIN_VALUE)));
-        final Cursor primaryCursor = queryLocal(localUri, projection, selection, selectionArgs,
-                sortOrder, directoryId, null);
+        final int corpUserId = UserUtils.getCorpUserId(getContext());
+        if (corpUserId < 0) {
+            // No Corp user or policy not allowed
+            return queryLocal(localUri, projection, selection, selectionArgs, sortOrder,
+                    directoryId, null);
+        }
+        final String callingPackage = getCallingPackage();
+        return queryLocalAndCorp(
+                () -> queryLocal(localUri, projection, selection, selectionArgs, sortOrder,
+                        directoryId, null),
+                corpCancellationSignal -> queryCorpContacts(localUri, projection, selection,
+                        selectionArgs, sortOrder, new String[] {RawContacts.CONTACT_ID}, null,
+                        corpCancellationSignal, callingPackage),
+                sortOrder, cancellationSignal);
+    }
+
+    /**
+     * Runs {@code corpQuery} on {@link #mCorpQueryExecutor} while {@code localQuery} runs on the
+     * calling thread, which keeps the calling identity, and merges the results, sorted by
+     * {@code sortOrder} if possible and local results first otherwise.  The work profile query
+     * gets its own {@link CancellationSignal}, which is cancelled if the local query fails or
+     * {@code cancellationSignal} is cancelled.
+     */
+    private Cursor queryLocalAndCorp(Supplier<Cursor> localQuery,
+            Function<CancellationSignal, Cursor> corpQuery, String sortOrder,
+            CancellationSignal cancellationSignal) {
+        final CancellationSignal corpCancellationSignal = new CancellationSignal();
+        final Future<Cursor> corpFuture =
+                mCorpQueryExecutor.submit(() -> corpQuery.apply(corpCancellationSignal));
+        final Cursor primaryCursor;
         try {
-            final int corpUserId = UserUtils.getCorpUserId(getContext());
-            if (corpUserId < 0) {
-                // No Corp user or policy not allowed
+            primaryCursor = localQuery.get();
+        } catch (Throwable th) {
+            corpCancellationSignal.cancel();
+            try {
+                MoreCloseables.closeQuietly(getCorpQueryResult(corpFuture));
+            } catch (RuntimeException e) {
+                // Most likely cancelled, and the local query failure is what matters.
+            }
+            throw th;
+        }
+        try {
+            // The local query is done with the signal, so it can be forwarded to the work
+            // profile query now.
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(corpCancellationSignal::cancel);
+            }
+            final Cursor corpCursor;
+            try {
+                corpCursor = getCorpQueryResult(corpFuture);
+            } finally {
+                if (cancellationSignal != null) {
+                    cancellationSignal.setOnCancelListener(null);
+                }
+            }
+            if (corpCursor == null) {
+                // No corp results. Just return the local result.
                 return primaryCursor;
             }
-
-            final Cursor managedCursor = queryCorpContacts(localUri, projection, selection,
-                    selectionArgs, sortOrder, new String[] {RawContacts.CONTACT_ID}, null,
-                    cancellationSignal);
             final Cursor[] cursorArray = new Cursor[] {
-                    primaryCursor, managedCursor
+                    primaryCursor, corpCursor
             };
-            return new MergeCursor(cursorArray);
+            final Cursor sortedCursor = SortedMergeCursor.create(cursorArray, sortOrder);
+            return sortedCursor != null ? sortedCursor : new MergeCursor(cursorArray);
         } catch (Throwable th) {
             if (primaryCursor != null) {
                 primaryCursor.close();
@@ -7677,6 +8083,29 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    private static ThreadPoolExecutor createCorpQueryExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CORP_QUERY_THREADS,
+                MAX_CORP_QUERY_THREADS, 10L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Cursor getCorpQueryResult(Future<Cursor> corpFuture) {
+        try {
+            return Uninterruptibles.getUninterruptibly(corpFuture);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
     private static String[] addContactIdColumnIfNotPresent(String[] projection,
                                                            String[] contactIdColumnNames) {
         if (projection == null) {
@@ -7700,6 +8129,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private Cursor queryCorpContacts(Uri localUri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder, String[] contactIdColumnNames,
             @Nullable Long directoryId, CancellationSignal cancellationSignal) {
+        return queryCorpContacts(localUri, projection, selection, selectionArgs, sortOrder,
+                contactIdColumnNames, directoryId, cancellationSignal, getCallingPackage());
+    }
+
+    private Cursor queryCorpContacts(Uri localUri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, String[] contactIdColumnNames,
+            @Nullable Long directoryId, CancellationSignal cancellationSignal,
+            String callingPackage) {
         // We need contactId in projection, if it doesn't have, we add it in projection as
         // workProjection, and we restore the actual projection in
         // EnterpriseContactsCursorWrapper
@@ -7708,7 +8145,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         final boolean isContactIdAdded = (projection == null) ? false
                 : (workProjection.length != projection.length);
         final Cursor managedCursor = queryCorpContactsProvider(localUri, workProjection,
-                selection, selectionArgs, sortOrder, cancellationSignal);
+                selection, selectionArgs, sortOrder, cancellationSignal, callingPackage);
         int[] columnIdIndices = getContactIdColumnIndices(managedCursor, contactIdColumnNames);
         if (columnIdIndices.length == 0) {
             throw new IllegalStateException("column id is missing in the returned cursor.");
@@ -7981,6 +8418,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private void invalidateFastScrollingIndexCache() {
         // FastScrollingIndexCache is thread-safe, no need to synchronize here.
         mFastScrollingIndexCache.invalidate();
+
+        // Filter sessions read before the change is committed are dropped again after the commit.
+        mContactFilterSessionCache.invalidate();
+        final TransactionContext transactionContext = mTransactionContext.get();
+        if (transactionContext != null) {
+            transactionContext.invalidateFilterSessions();
+        }
     }
 
     /**
@@ -8146,9 +8590,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
      * key.
      */
     public long lookupContactIdByLookupKey(SQLiteDatabase db, String lookupKey) {
+        // Lookups within a transaction may see changes that are not committed yet.
+        final boolean useCache = !inProfileMode() && !db.inTransaction();
+        final long generation = mLookupKeyCache.getGeneration();
+        if (useCache) {
+            final long contactId = mLookupKeyCache.get(lookupKey);
+            if (contactId != -1) {
+                return contactId;
+            }
+        }
+
         ContactLookupKey key = new ContactLookupKey();
         ArrayList<LookupKeySegment> segments = key.parse(lookupKey);
+        final long contactId = lookupContactIdBySegments(db, segments);
+        if (useCache) {
+            mLookupKeyCache.put(lookupKey, contactId, segments, generation);
+        }
+        return contactId;
+    }
 
+    private long lookupContactIdBySegments(SQLiteDatabase db,
+            ArrayList<LookupKeySegment> segments) {
         long contactId = -1;
         if (lookupKeyContainsType(segments, ContactLookupKey.LOOKUP_TYPE_PROFILE)) {
             // We should already be in a profile database context, so just look up a single contact.
@@ -8179,6 +8641,89 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return contactId;
     }
 
+    /**
+     * Returns the contact IDs for the contacts identified by the given lookup keys, or -1 for
+     * the keys that match no contact.  Same as {@link #lookupContactIdByLookupKey} for each key,
+     * but each step of the lookup runs one query for all the keys that need it.
+     */
+    @SuppressWarnings("unchecked")
+    private long[] lookupContactIdsByLookupKeys(SQLiteDatabase db, String[] lookupKeys) {
+        final boolean useCache = !inProfileMode() && !db.inTransaction();
+        final long generation = mLookupKeyCache.getGeneration();
+        final long[] contactIds = new long[lookupKeys.length];
+        final ArrayList<LookupKeySegment>[] segmentLists = new ArrayList[lookupKeys.length];
+
+        // The indices of the keys that are not resolved yet.
+        ArrayList<Integer> pending = new ArrayList<>();
+        final ContactLookupKey key = new ContactLookupKey();
+        for (int i = 0; i < lookupKeys.length; i++) {
+            contactIds[i] = useCache ? mLookupKeyCache.get(lookupKeys[i]) : -1;
+            if (contactIds[i] != -1) {
+                continue;
+            }
+            segmentLists[i] = key.parse(lookupKeys[i]);
+            if (lookupKeyContainsType(segmentLists[i], ContactLookupKey.LOOKUP_TYPE_PROFILE)) {
+                contactIds[i] = lookupContactIdBySegments(db, segmentLists[i]);
+            } else {
+                pending.add(i);
+            }
+        }
+
+        pending = lookupContactIdsBySegments(db, segmentLists, contactIds, pending,
+                ContactLookupKey.LOOKUP_TYPE_SOURCE_ID, -1,
+                (lists) -> matchSegmentsBySourceIds(db, lists));
+        pending = lookupContactIdsBySegments(db, segmentLists, contactIds, pending,
+                ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID, -1,
+                (lists) -> matchSegmentsByRawContactIds(db, lists));
+        lookupContactIdsBySegments(db, segmentLists, contactIds, pending,
+                ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID,
+                ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME,
+                (lists) -> matchSegmentsByDisplayNames(db, lists));
+
+        if (useCache) {
+            for (int i = 0; i < lookupKeys.length; i++) {
+                if (segmentLists[i] != null) {
+                    mLookupKeyCache.put(lookupKeys[i], contactIds[i], segmentLists[i],
+                            generation);
+                }
+            }
+        }
+        return contactIds;
+    }
+
+    /**
+     * Runs one step of {@link #lookupContactIdsByLookupKeys} for the pending keys that have
+     * segments of either of the given types, and returns the keys still pending after it.
+     */
+    private ArrayList<Integer> lookupContactIdsBySegments(SQLiteDatabase db,
+            ArrayList<LookupKeySegment>[] segmentLists, long[] contactIds,
+            ArrayList<Integer> pending, int lookupType, int otherLookupType,
+            Consumer<List<ArrayList<LookupKeySegment>>> matcher) {
+        final ArrayList<Integer> keys = new ArrayList<>();
+        final ArrayList<ArrayList<LookupKeySegment>> lists = new ArrayList<>();
+        final ArrayList<Integer> remaining = new ArrayList<>();
+        for (int i : pending) {
+            if (lookupKeyContainsType(segmentLists[i], lookupType)
+                    || lookupKeyContainsType(segmentLists[i], otherLookupType)) {
+                keys.add(i);
+                lists.add(segmentLists[i]);
+            } else {
+                remaining.add(i);
+            }
+        }
+        if (keys.isEmpty()) {
+            return remaining;
+        }
+        matcher.accept(lists);
+        for (int i : keys) {
+            contactIds[i] = getMostReferencedContactId(segmentLists[i]);
+            if (contactIds[i] == -1) {
+                remaining.add(i);
+            }
+        }
+        return remaining;
+    }
+
     private long lookupSingleContactId(SQLiteDatabase db) {
         Cursor c = db.query(
                 Tables.CONTACTS, new String[] {Contacts._ID}, null, null, null, null, null, "1");
@@ -8209,13 +8754,24 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private long lookupContactIdBySourceIds(
             SQLiteDatabase db, ArrayList<LookupKeySegment> segments) {
+        matchSegmentsBySourceIds(db, Collections.singletonList(segments));
+        return getMostReferencedContactId(segments);
+    }
+
+    /**
+     * Sets the contact ID of the source ID segments of the given lookup keys.
+     */
+    private void matchSegmentsBySourceIds(
+            SQLiteDatabase db, List<ArrayList<LookupKeySegment>> segmentLists) {
 
         StringBuilder sb = new StringBuilder();
         sb.append(RawContacts.SOURCE_ID + " IN (");
-        for (LookupKeySegment segment : segments) {
-            if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_SOURCE_ID) {
-                DatabaseUtils.appendEscapedSQLString(sb, segment.key);
-                sb.append(",");
+        for (ArrayList<LookupKeySegment> segments : segmentLists) {
+            for (LookupKeySegment segment : segments) {
+                if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_SOURCE_ID) {
+                    DatabaseUtils.appendEscapedSQLString(sb, segment.key);
+                    sb.append(",");
+                }
             }
         }
         sb.setLength(sb.length() - 1);  // Last comma.
@@ -8231,21 +8787,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 int accountHashCode =
                         ContactLookupKey.getAccountHashCode(accountTypeAndDataSet, accountName);
                 String sourceId = c.getString(LookupBySourceIdQuery.SOURCE_ID);
-                for (int i = 0; i < segments.size(); i++) {
-                    LookupKeySegment segment = segments.get(i);
-                    if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_SOURCE_ID
-                            && accountHashCode == segment.accountHashCode
-                            && segment.key.equals(sourceId)) {
-                        segment.contactId = c.getLong(LookupBySourceIdQuery.CONTACT_ID);
-                        break;
+                for (ArrayList<LookupKeySegment> segments : segmentLists) {
+                    for (int i = 0; i < segments.size(); i++) {
+                        LookupKeySegment segment = segments.get(i);
+                        if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_SOURCE_ID
+                                && accountHashCode == segment.accountHashCode
+                                && segment.key.equals(sourceId)) {
+                            segment.contactId = c.getLong(LookupBySourceIdQuery.CONTACT_ID);
+                            break;
+                        }
                     }
                 }
             }
         } finally {
             c.close();
         }
-
-        return getMostReferencedContactId(segments);
     }
 
     private interface LookupByRawContactIdQuery {
@@ -8266,12 +8822,23 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private long lookupContactIdByRawContactIds(SQLiteDatabase db,
             ArrayList<LookupKeySegment> segments) {
+        matchSegmentsByRawContactIds(db, Collections.singletonList(segments));
+        return getMostReferencedContactId(segments);
+    }
+
+    /**
+     * Sets the contact ID of the raw contact ID segments of the given lookup keys.
+     */
+    private void matchSegmentsByRawContactIds(SQLiteDatabase db,
+            List<ArrayList<LookupKeySegment>> segmentLists) {
         StringBuilder sb = new StringBuilder();
         sb.append(RawContacts._ID + " IN (");
-        for (LookupKeySegment segment : segments) {
-            if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID) {
-                sb.append(segment.rawContactId);
-                sb.append(",");
+        for (ArrayList<LookupKeySegment> segments : segmentLists) {
+            for (LookupKeySegment segment : segments) {
+                if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID) {
+                    sb.append(segment.rawContactId);
+                    sb.append(",");
+                }
             }
         }
         sb.setLength(sb.length() - 1);      // Last comma
@@ -8287,20 +8854,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 int accountHashCode =
                         ContactLookupKey.getAccountHashCode(accountTypeAndDataSet, accountName);
                 String rawContactId = c.getString(LookupByRawContactIdQuery.ID);
-                for (LookupKeySegment segment : segments) {
-                    if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID
-                            && accountHashCode == segment.accountHashCode
-                            && segment.rawContactId.equals(rawContactId)) {
-                        segment.contactId = c.getLong(LookupByRawContactIdQuery.CONTACT_ID);
-                        break;
+                for (ArrayList<LookupKeySegment> segments : segmentLists) {
+                    for (LookupKeySegment segment : segments) {
+                        if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID
+                                && accountHashCode == segment.accountHashCode
+                                && segment.rawContactId.equals(rawContactId)) {
+                            segment.contactId =
+                                    c.getLong(LookupByRawContactIdQuery.CONTACT_ID);
+                            break;
+                        }
                     }
                 }
             }
         } finally {
             c.close();
         }
-
-        return getMostReferencedContactId(segments);
     }
 
     private interface LookupByDisplayNameQuery {
@@ -8320,14 +8888,26 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private long lookupContactIdByDisplayNames(
             SQLiteDatabase db, ArrayList<LookupKeySegment> segments) {
+        matchSegmentsByDisplayNames(db, Collections.singletonList(segments));
+        return getMostReferencedContactId(segments);
+    }
+
+    /**
+     * Sets the contact ID of the display name and raw contact ID segments of the given lookup
+     * keys, by the names encoded in them.
+     */
+    private void matchSegmentsByDisplayNames(
+            SQLiteDatabase db, List<ArrayList<LookupKeySegment>> segmentLists) {
 
         StringBuilder sb = new StringBuilder();
         sb.append(NameLookupColumns.NORMALIZED_NAME + " IN (");
-        for (LookupKeySegment segment : segments) {
-            if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME
-                    || segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID) {
-                DatabaseUtils.appendEscapedSQLString(sb, segment.key);
-                sb.append(",");
+        for (ArrayList<LookupKeySegment> segments : segmentLists) {
+            for (LookupKeySegment segment : segments) {
+                if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME
+                        || segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID) {
+                    DatabaseUtils.appendEscapedSQLString(sb, segment.key);
+                    sb.append(",");
+                }
             }
         }
         sb.setLength(sb.length() - 1);  // Last comma.
@@ -8344,21 +8924,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 int accountHashCode =
                         ContactLookupKey.getAccountHashCode(accountTypeAndDataSet, accountName);
                 String name = c.getString(LookupByDisplayNameQuery.NORMALIZED_NAME);
-                for (LookupKeySegment segment : segments) {
-                    if ((segment.lookupType == ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME
-                            || segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID)
-                            && accountHashCode == segment.accountHashCode
-                            && segment.key.equals(name)) {
-                        segment.contactId = c.getLong(LookupByDisplayNameQuery.CONTACT_ID);
-                        break;
+                for (ArrayList<LookupKeySegment> segments : segmentLists) {
+                    for (LookupKeySegment segment : segments) {
+                        if ((segment.lookupType == ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME
+                                || segment.lookupType
+                                        == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID)
+                                && accountHashCode == segment.accountHashCode
+                                && segment.key.equals(name)) {
+                            segment.contactId = c.getLong(LookupByDisplayNameQuery.CONTACT_ID);
+                            break;
+                        }
                     }
                 }
             }
         } finally {
             c.close();
         }
-
-        return getMostReferencedContactId(segments);
     }
 
     private boolean lookupKeyContainsType(ArrayList<LookupKeySegment> segments, int lookupType) {
@@ -8440,6 +9021,40 @@ public class ContactsProvider2 extends AbstractContactsProvider
         qb.setProjectionMap(sContactsProjectionMap);
     }
 
+    /**
+     * Returns the IDs of the contacts matching a contact filter from the filter session of the
+     * caller, see {@link ContactFilterSessionCache}, or null if the filter query must be run.
+     * Sessions are used for name filters of the default directory without snippets, and only
+     * when the database is neither the profile one nor in a transaction.
+     */
+    private Set<Long> getFilterSessionContactIds(SQLiteDatabase db, String[] projection,
+            String filter, long directoryId) {
+        if (filter == null || inProfileMode() || db.inTransaction() || snippetNeeded(projection)
+                || (directoryId != -1 && directoryId != Directory.DEFAULT)) {
+            return null;
+        }
+        filter = filter.trim();
+        if (TextUtils.isEmpty(filter) || filter.indexOf('@') != -1 || isPhoneNumber(filter)) {
+            return null;
+        }
+        return mContactFilterSessionCache.getContactIds(db, Binder.getCallingUid(), filter);
+    }
+
+    /**
+     * Like {@link #setTablesAndProjectionMapForContactsWithSnippet}, for the contacts with the
+     * given IDs instead of those matching a filter, and without snippets.
+     */
+    private void setTablesAndProjectionMapForContactsWithIds(SQLiteQueryBuilder qb,
+            String[] projection, Set<Long> contactIds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Views.CONTACTS);
+        appendContactPresenceJoin(sb, projection, Contacts._ID);
+        appendContactStatusUpdateJoin(sb, projection, ContactsColumns.LAST_STATUS_UPDATE_ID);
+        qb.setTables(sb.toString());
+        qb.setProjectionMap(sContactsProjectionWithSnippetMap);
+        qb.appendWhere(Contacts._ID + " IN (" + TextUtils.join(",", contactIds) + ")");
+    }
+
     /**
      * Finds name lookup records matching the supplied filter, picks one arbitrary match per
      * contact and joins that with other contacts tables.
@@ -9268,11 +9883,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     throw new IllegalArgumentException("Write is not supported.");
                 }
                 // When opening a contact as file, we pass back contents as a
-                // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
-                outputRawContactsAsVCard(uri, localStream, null, null);
-                return buildAssetFileDescriptor(localStream);
+                // vCard-encoded stream, written into a pipe as the caller reads it.
+                return openVCardPipe(uri, null);
             }
 
             case CONTACTS_AS_VCARD: {
@@ -9280,11 +9892,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     throw new IllegalArgumentException("Write is not supported.");
                 }
                 // When opening a contact as file, we pass back contents as a
-                // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
-                outputRawContactsAsVCard(uri, localStream, null, null);
-                return buildAssetFileDescriptor(localStream);
+                // vCard-encoded stream, written into a pipe as the caller reads it.
+                return openVCardPipe(uri, null);
             }
 
             case CONTACTS_AS_MULTI_VCARD: {
@@ -9293,31 +9902,25 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 }
                 final String lookupKeys = uri.getPathSegments().get(2);
                 final String[] lookupKeyList = lookupKeys.split(":");
-                final StringBuilder inBuilder = new StringBuilder();
-                Uri queryUri = Contacts.CONTENT_URI;
+                for (int i = 0; i < lookupKeyList.length; i++) {
+                    lookupKeyList[i] = Uri.decode(lookupKeyList[i]);
+                }
 
                 // SQLite has limits on how many parameters can be used
                 // so the IDs are concatenated to a query string here instead
-                int index = 0;
-                for (final String encodedLookupKey : lookupKeyList) {
-                    final String lookupKey = Uri.decode(encodedLookupKey);
-                    inBuilder.append(index == 0 ? "(" : ",");
-
-                    // TODO: Figure out what to do if the profile contact is in the list.
-                    long contactId = lookupContactIdByLookupKey(db, lookupKey);
-                    inBuilder.append(contactId);
-                    index++;
+                // TODO: Figure out what to do if the profile contact is in the list.
+                final long[] contactIds = lookupContactIdsByLookupKeys(db, lookupKeyList);
+                final StringBuilder inBuilder = new StringBuilder();
+                for (int i = 0; i < contactIds.length; i++) {
+                    inBuilder.append(i == 0 ? "(" : ",");
+                    inBuilder.append(contactIds[i]);
                 }
-
                 inBuilder.append(')');
                 final String selection = Contacts._ID + " IN " + inBuilder.toString();
 
                 // When opening a contact as file, we pass back contents as a
-                // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
-                outputRawContactsAsVCard(queryUri, localStream, selection, null);
-                return buildAssetFileDescriptor(localStream);
+                // vCard-encoded stream, written into a pipe as the caller reads it.
+                return openVCardPipe(Contacts.CONTENT_URI, selection);
             }
 
             case CONTACTS_ID_PHOTO_CORP: {
@@ -9584,25 +10187,26 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     /**
-     * Returns an {@link AssetFileDescriptor} backed by the
-     * contents of the given {@link ByteArrayOutputStream}.
+     * Returns an {@link AssetFileDescriptor} for the read end of a pipe, into which a background
+     * task writes the contacts matching the given selection in the vCard format.  Entries are
+     * composed one at a time and the task blocks while the pipe is full, so memory use does not
+     * grow with the number of contacts.  The task stops when the reader closes the pipe.
      */
-    private AssetFileDescriptor buildAssetFileDescriptor(ByteArrayOutputStream stream) {
+    private AssetFileDescriptor openVCardPipe(Uri uri, String selection) {
+        final VCardComposer composer = createVCardComposer(uri, selection, null);
         try {
-            stream.flush();
-
             final ParcelFileDescriptor[] fds = ParcelFileDescriptor.createPipe();
-            final FileDescriptor outFd = fds[1].getFileDescriptor();
 
             AsyncTask<Object, Object, Object> task = new AsyncTask<Object, Object, Object>() {
                 @Override
                 protected Object doInBackground(Object... params) {
-                    try (FileOutputStream fout = new FileOutputStream(outFd)) {
-                        fout.write(stream.toByteArray());
-                    } catch (IOException|RuntimeException e) {
-                        Log.w(TAG, "Failure closing pipe", e);
+                    try {
+                        outputRawContactsAsVCard(composer, new AutoCloseOutputStream(fds[1]));
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Failure writing vCard into pipe", e);
+                    } finally {
+                        IoUtils.closeQuietly(fds[1]);
                     }
-                    IoUtils.closeQuietly(outFd);
                     return null;
                 }
             };
@@ -9610,7 +10214,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             return makeAssetFileDescriptor(fds[0]);
         } catch (IOException e) {
-            Log.w(TAG, "Problem writing stream into an ParcelFileDescriptor: " + e.toString());
+            Log.w(TAG, "Problem creating a pipe for a vCard: " + e.toString());
+            if (composer != null) {
+                composer.terminate();
+            }
             return null;
         }
     }
@@ -9624,12 +10231,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     /**
-     * Output {@link RawContacts} matching the requested selection in the vCard
-     * format to the given {@link OutputStream}. This method returns silently if
-     * any errors encountered.
+     * Returns a {@link VCardComposer} for the {@link RawContacts} matching the requested
+     * selection, or null if it could not be initialized.  The contacts are queried right away,
+     * with the calling identity; their entries are queried as they are composed.
      */
-    private void outputRawContactsAsVCard(
-            Uri uri, OutputStream stream, String selection, String[] selectionArgs) {
+    private VCardComposer createVCardComposer(
+            Uri uri, String selection, String[] selectionArgs) {
 
         final Context context = this.getContext();
         int vcardconfig = VCardConfig.VCARD_TYPE_DEFAULT;
@@ -9637,7 +10244,6 @@ public class ContactsProvider2 extends AbstractContactsProvider
             vcardconfig |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
         }
         final VCardComposer composer = new VCardComposer(context, vcardconfig, false);
-        Writer writer = null;
         final Uri rawContactsUri;
         if (mapsToProfileDb(uri)) {
             // Pre-authorize the URI, since the caller would have already gone through the
@@ -9648,10 +10254,24 @@ public class ContactsProvider2 extends AbstractContactsProvider
             rawContactsUri = RawContactsEntity.CONTENT_URI;
         }
 
+        if (!composer.init(uri, selection, selectionArgs, null, rawContactsUri)) {
+            Log.w(TAG, "Failed to init VCardComposer");
+            composer.terminate();
+            return null;
+        }
+        return composer;
+    }
+
+    /**
+     * Output the entries of the given {@link VCardComposer}, if any, in the vCard
+     * format to the given {@link OutputStream}, and terminates the composer. This
+     * method returns silently if any errors encountered.
+     */
+    private void outputRawContactsAsVCard(VCardComposer composer, OutputStream stream) {
+        Writer writer = null;
         try {
             writer = new BufferedWriter(new OutputStreamWriter(stream));
-            if (!composer.init(uri, selection, selectionArgs, null, rawContactsUri)) {
-                Log.w(TAG, "Failed to init VCardComposer");
+            if (composer == null) {
                 return;
             }
 
@@ -9661,7 +10281,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
         } catch (IOException e) {
             Log.e(TAG, "IOException: " + e);
         } finally {
-            composer.terminate();
+            if (composer != null) {
+                composer.terminate();
+            }
             if (writer != null) {
                 try {
                     writer.close();
@@ -9853,9 +10475,31 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 String name) {
             mDbHelper.get().insertNameLookup(rawContactId, dataId, lookupType, name);
         }
+
+        @Override
+        protected boolean hasNameInfixLookup() {
+            return true;
+        }
+
+        @Override
+        protected void insertNameInfixLookup(long rawContactId, long dataId,
+                String normalizedInfix) {
+            mDbHelper.get().insertNameInfixLookup(rawContactId, dataId, normalizedInfix);
+        }
     }
 
     public void appendContactFilterAsNestedQuery(StringBuilder sb, String filterParam) {
+        appendContactFilterAsNestedQuery(sb, filterParam, false);
+    }
+
+    /**
+     * Appends a nested query for the IDs of the contacts with a name, nickname or email handle
+     * starting with the filter.  If {@code infixMatch} is true, contacts with a structured name
+     * word that contains the filter also match.  Both are answered by index range scans.
+     */
+    public void appendContactFilterAsNestedQuery(StringBuilder sb, String filterParam,
+            boolean infixMatch) {
+        final String normalizedFilter = NameNormalizer.normalize(filterParam);
         sb.append("(" +
                 "SELECT DISTINCT " + RawContacts.CONTACT_ID +
                 " FROM " + Tables.RAW_CONTACTS +
@@ -9863,9 +10507,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 " ON(" + RawContactsColumns.CONCRETE_ID + "="
                         + NameLookupColumns.RAW_CONTACT_ID + ")" +
                 " WHERE normalized_name GLOB '");
-        sb.append(NameNormalizer.normalize(filterParam));
+        sb.append(normalizedFilter);
         sb.append("*' AND " + NameLookupColumns.NAME_TYPE +
-                    " IN(" + CONTACT_LOOKUP_NAME_TYPES + "))");
+                    " IN(" + CONTACT_LOOKUP_NAME_TYPES + ")");
+        if (infixMatch) {
+            sb.append(" UNION" +
+                    " SELECT " + RawContacts.CONTACT_ID +
+                    " FROM " + Tables.RAW_CONTACTS +
+                    " JOIN " + Tables.NAME_INFIX_LOOKUP +
+                    " ON(" + RawContactsColumns.CONCRETE_ID + "="
+                            + Tables.NAME_INFIX_LOOKUP + "."
+                            + NameInfixLookupColumns.RAW_CONTACT_ID + ")" +
+                    " WHERE " + NameInfixLookupColumns.NORMALIZED_INFIX + " GLOB '");
+            sb.append(normalizedFilter);
+            sb.append("*'");
+        }
+        sb.append(')');
     }
 
     private boolean isPhoneNumber(String query) {
@@ -10361,8 +11018,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (mContactAggregator != null) {
             pw.println();
             pw.print("Contact aggregator type: " + mContactAggregator.getClass() + "\n");
+            mContactAggregator.dump(pw);
         }
         pw.println();
+        mLookupKeyCache.dump(pw);
+        pw.println();
+        mPhoneLookupIndex.dump(pw);
+        pw.println();
+        mContactFilterSessionCache.dump(pw);
+        pw.println();
         pw.print("FastScrollingIndex stats:\n");
         pw.printf("  request=%d  miss=%d (%d%%)  avg time=%dms\n",
                 mFastScrollingIndexCacheRequestCount,
@@ -10372,6 +11036,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 safeDiv(mTotalTimeFastScrollingIndexGenerate, mFastScrollingIndexCacheMissCount));
         pw.println();
 
+        if (mSearchIndexManager != null) {
+            mSearchIndexManager.dump(pw);
+            pw.println();
+        }
+
         if (mContactsHelper != null) {
             mContactsHelper.dump(pw);
         }
@@ -10458,4 +11127,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
     void setSearchIndexMaxUpdateFilterContacts(int maxUpdateFilterContacts) {
         mSearchIndexManager.setMaxUpdateFilterContacts(maxUpdateFilterContacts);
     }
+
+    /** Should be only used in tests. */
+    @NeededForTesting
+    void setSearchIndexRebuildChunkSize(int rebuildChunkSize) {
+        mSearchIndexManager.setRebuildChunkSize(rebuildChunkSize);
+    }
+
+    /** Should be only used in tests. */
+    @NeededForTesting
+    void setSearchIndexRebuildParallelism(int rebuildParallelism) {
+        mSearchIndexManager.setRebuildParallelism(rebuildParallelism);
+    }
+
+    /** Should be only used in tests. */
+    @NeededForTesting
+    void setSearchIndexParallelBatchSize(int parallelBatchSize) {
+        mSearchIndexManager.setParallelBatchSize(parallelBatchSize);
+    }
+
+    @VisibleForTesting
+    SearchIndexManager getSearchIndexManagerForTest() {
+        return mSearchIndexManager;
+    }
 }
@@ -99,6 +99,11 @@ public abstract class ContactsTaskScheduler {
     /** Schedule a task with an argument. */
     @VisibleForTesting
     public void scheduleTask(int taskId, Object arg) {
+        scheduleTask(taskId, arg, 0);
+    }
+
+    /** Schedule a task with an argument, to run after the given delay. */
+    public void scheduleTask(int taskId, Object arg, long delayMillis) {
         synchronized (mLock) {
             if (!isRunning()) {
                 mThread = new HandlerThread("Worker-" + mThreadSequenceNumber.incrementAndGet());
@@ -110,14 +115,14 @@ public abstract class ContactsTaskScheduler {
                 }
             }
             if (arg == null) {
-                mHandler.sendEmptyMessage(taskId);
+                mHandler.sendEmptyMessageDelayed(taskId, delayMillis);
             } else {
-                mHandler.sendMessage(mHandler.obtainMessage(taskId, arg));
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(taskId, arg), delayMillis);
             }
 
             // Schedule thread shutdown.
             mHandler.removeCallbacks(mQuitter);
-            mHandler.postDelayed(mQuitter, mShutdownTimeoutSeconds * 1000);
+            mHandler.postDelayed(mQuitter, mShutdownTimeoutSeconds * 1000 + delayMillis);
         }
     }
 
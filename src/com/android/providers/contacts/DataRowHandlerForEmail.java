@@ -48,6 +48,7 @@ public class DataRowHandlerForEmail extends DataRowHandlerForCommonDataKind {
 
         fixRawContactDisplayName(db, txContext, rawContactId);
         String address = mDbHelper.insertNameLookupForEmail(rawContactId, dataId, email);
+        txContext.invalidateNameLookupForRawContact(rawContactId);
         if (address != null) {
             triggerAggregation(txContext, rawContactId);
         }
@@ -69,6 +70,7 @@ public class DataRowHandlerForEmail extends DataRowHandlerForCommonDataKind {
             String address = values.getAsString(Email.DATA);
             mDbHelper.deleteNameLookup(dataId);
             mDbHelper.insertNameLookupForEmail(rawContactId, dataId, address);
+            txContext.invalidateNameLookupForRawContact(rawContactId);
             fixRawContactDisplayName(db, txContext, rawContactId);
             triggerAggregation(txContext, rawContactId);
         }
@@ -84,6 +86,7 @@ public class DataRowHandlerForEmail extends DataRowHandlerForCommonDataKind {
         int count = super.delete(db, txContext, c);
 
         mDbHelper.deleteNameLookup(dataId);
+        txContext.invalidateNameLookupForRawContact(rawContactId);
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
         return count;
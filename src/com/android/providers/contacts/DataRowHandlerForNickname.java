@@ -50,6 +50,7 @@ public class DataRowHandlerForNickname extends DataRowHandlerForCommonDataKind {
         if (!TextUtils.isEmpty(nickname)) {
             fixRawContactDisplayName(db, txContext, rawContactId);
             mDbHelper.insertNameLookupForNickname(rawContactId, dataId, nickname);
+            txContext.invalidateNameLookupForRawContact(rawContactId);
             triggerAggregation(txContext, rawContactId);
         }
         return dataId;
@@ -70,6 +71,7 @@ public class DataRowHandlerForNickname extends DataRowHandlerForCommonDataKind {
             String nickname = values.getAsString(Nickname.NAME);
             mDbHelper.deleteNameLookup(dataId);
             mDbHelper.insertNameLookupForNickname(rawContactId, dataId, nickname);
+            txContext.invalidateNameLookupForRawContact(rawContactId);
             fixRawContactDisplayName(db, txContext, rawContactId);
             triggerAggregation(txContext, rawContactId);
         }
@@ -85,6 +87,7 @@ public class DataRowHandlerForNickname extends DataRowHandlerForCommonDataKind {
         int count = super.delete(db, txContext, c);
 
         mDbHelper.deleteNameLookup(dataId);
+        txContext.invalidateNameLookupForRawContact(rawContactId);
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
         return count;
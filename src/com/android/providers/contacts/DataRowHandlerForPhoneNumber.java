@@ -54,7 +54,7 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
         if (values.containsKey(Phone.NUMBER)) {
             final String number = values.getAsString(Phone.NUMBER);
             final String normalizedNumber = values.getAsString(Phone.NORMALIZED_NUMBER);
-            updatePhoneLookup(db, rawContactId, dataId, number, normalizedNumber);
+            updatePhoneLookup(db, txContext, rawContactId, dataId, number, normalizedNumber);
             mContactAggregator.updateHasPhoneNumber(db, rawContactId);
             fixRawContactDisplayName(db, txContext, rawContactId);
 
@@ -76,7 +76,8 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
         if (values.containsKey(Phone.NUMBER)) {
             long dataId = c.getLong(DataUpdateQuery._ID);
             long rawContactId = c.getLong(DataUpdateQuery.RAW_CONTACT_ID);
-            updatePhoneLookup(db, rawContactId, dataId,
+            invalidatePhoneLookup(db, txContext, dataId);
+            updatePhoneLookup(db, txContext, rawContactId, dataId,
                     values.getAsString(Phone.NUMBER),
                     values.getAsString(Phone.NORMALIZED_NUMBER));
             mContactAggregator.updateHasPhoneNumber(db, rawContactId);
@@ -110,17 +111,34 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
         long dataId = c.getLong(DataDeleteQuery._ID);
         long rawContactId = c.getLong(DataDeleteQuery.RAW_CONTACT_ID);
 
+        invalidatePhoneLookup(db, txContext, dataId);
         int count = super.delete(db, txContext, c);
 
-        updatePhoneLookup(db, rawContactId, dataId, null, null);
+        updatePhoneLookup(db, txContext, rawContactId, dataId, null, null);
         mContactAggregator.updateHasPhoneNumber(db, rawContactId);
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
         return count;
     }
 
-    private void updatePhoneLookup(SQLiteDatabase db, long rawContactId, long dataId,
-            String number, String numberE164) {
+    /**
+     * Records the min matches of the phone lookup rows of the given data row, which are about to
+     * be replaced or deleted, for {@link PhoneLookupIndex}.
+     */
+    private void invalidatePhoneLookup(SQLiteDatabase db, TransactionContext txContext,
+            long dataId) {
+        mSelectionArgs1[0] = String.valueOf(dataId);
+        try (Cursor cursor = db.query(Tables.PHONE_LOOKUP,
+                new String[] {PhoneLookupColumns.MIN_MATCH},
+                PhoneLookupColumns.DATA_ID + "=?", mSelectionArgs1, null, null, null)) {
+            while (cursor.moveToNext()) {
+                txContext.invalidatePhoneLookupMinMatch(cursor.getString(0));
+            }
+        }
+    }
+
+    private void updatePhoneLookup(SQLiteDatabase db, TransactionContext txContext,
+            long rawContactId, long dataId, String number, String numberE164) {
         mSelectionArgs1[0] = String.valueOf(dataId);
         db.delete(Tables.PHONE_LOOKUP, PhoneLookupColumns.DATA_ID + "=?", mSelectionArgs1);
         if (number != null) {
@@ -130,15 +148,17 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
                 phoneValues.put(PhoneLookupColumns.RAW_CONTACT_ID, rawContactId);
                 phoneValues.put(PhoneLookupColumns.DATA_ID, dataId);
                 phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, normalizedNumber);
-                phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                        PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+                String minMatch = PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber);
+                phoneValues.put(PhoneLookupColumns.MIN_MATCH, minMatch);
                 db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+                txContext.invalidatePhoneLookupMinMatch(minMatch);
 
                 if (numberE164 != null && !numberE164.equals(normalizedNumber)) {
+                    minMatch = PhoneNumberUtils.toCallerIDMinMatch(numberE164);
                     phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, numberE164);
-                    phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                            PhoneNumberUtils.toCallerIDMinMatch(numberE164));
+                    phoneValues.put(PhoneLookupColumns.MIN_MATCH, minMatch);
                     db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+                    txContext.invalidatePhoneLookupMinMatch(minMatch);
                 }
             }
         }
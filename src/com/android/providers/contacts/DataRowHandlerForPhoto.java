@@ -34,6 +34,7 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
     private static final String TAG = "DataRowHandlerForPhoto";
 
     private final PhotoStore mPhotoStore;
+    private final PhotoProcessingPipeline mPhotoProcessingPipeline;
     private final int mMaxDisplayPhotoDim;
     private final int mMaxThumbnailPhotoDim;
 
@@ -47,9 +48,11 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
 
     public DataRowHandlerForPhoto(
             Context context, ContactsDatabaseHelper dbHelper, AbstractContactAggregator aggregator,
-            PhotoStore photoStore, int maxDisplayPhotoDim, int maxThumbnailPhotoDim) {
+            PhotoStore photoStore, PhotoProcessingPipeline photoProcessingPipeline,
+            int maxDisplayPhotoDim, int maxThumbnailPhotoDim) {
         super(context, dbHelper, aggregator, Photo.CONTENT_ITEM_TYPE);
         mPhotoStore = photoStore;
+        mPhotoProcessingPipeline = photoProcessingPipeline;
         mMaxDisplayPhotoDim = maxDisplayPhotoDim;
         mMaxThumbnailPhotoDim = maxThumbnailPhotoDim;
     }
@@ -138,7 +141,8 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
     /**
      * Reads the photo out of the given values object and processes it, placing the processed
      * photos (a photo store file ID and a compressed thumbnail) back into the ContentValues
-     * object.
+     * object.  If the batch handed the photo to the processing pipeline before it started its
+     * transaction, this only picks up the result.
      * @param values The values being inserted or updated - assumed to contain a photo BLOB.
      * @return Whether an image was successfully decoded and processed.
      */
@@ -146,8 +150,8 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
         byte[] originalPhoto = values.getAsByteArray(Photo.PHOTO);
         if (originalPhoto != null) {
             try {
-                PhotoProcessor processor = new PhotoProcessor(
-                        originalPhoto, mMaxDisplayPhotoDim, mMaxThumbnailPhotoDim);
+                PhotoProcessor processor = mPhotoProcessingPipeline.take(
+                        originalPhoto, mMaxDisplayPhotoDim, mMaxThumbnailPhotoDim, false);
                 long photoFileId = mPhotoStore.insert(processor);
                 if (photoFileId != 0) {
                     values.put(Photo.PHOTO_FILE_ID, photoFileId);
@@ -34,7 +34,6 @@ import com.android.providers.contacts.aggregation.AbstractContactAggregator;
 public class DataRowHandlerForStructuredName extends DataRowHandler {
     private final NameSplitter mSplitter;
     private final NameLookupBuilder mNameLookupBuilder;
-    private final StringBuilder mSb = new StringBuilder();
 
     public DataRowHandlerForStructuredName(Context context, ContactsDatabaseHelper dbHelper,
             AbstractContactAggregator aggregator, NameSplitter splitter,
@@ -71,6 +70,7 @@ public class DataRowHandlerForStructuredName extends DataRowHandler {
                 fullNameStyle != null
                         ? mSplitter.getAdjustedFullNameStyle(fullNameStyle)
                         : FullNameStyle.UNDEFINED);
+        txContext.invalidateNameLookupForRawContact(rawContactId);
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
         return dataId;
@@ -100,6 +100,7 @@ public class DataRowHandlerForStructuredName extends DataRowHandler {
                     fullNameStyle != null
                             ? mSplitter.getAdjustedFullNameStyle(fullNameStyle)
                             : FullNameStyle.UNDEFINED);
+            txContext.invalidateNameLookupForRawContact(rawContactId);
         }
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
@@ -114,6 +115,7 @@ public class DataRowHandlerForStructuredName extends DataRowHandler {
         int count = super.delete(db, txContext, c);
 
         mDbHelper.deleteNameLookup(dataId);
+        txContext.invalidateNameLookupForRawContact(rawContactId);
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
         return count;
@@ -210,20 +212,21 @@ public class DataRowHandlerForStructuredName extends DataRowHandler {
         // Phonetic name is often spelled without spaces
         if (!TextUtils.isEmpty(phoneticFamily) || !TextUtils.isEmpty(phoneticMiddle)
                 || !TextUtils.isEmpty(phoneticGiven)) {
-            mSb.setLength(0);
+            // Local builder, as the search index may be built on several threads at once.
+            final StringBuilder sb = new StringBuilder();
             if (!TextUtils.isEmpty(phoneticFamily)) {
                 builder.appendName(phoneticFamily);
-                mSb.append(phoneticFamily);
+                sb.append(phoneticFamily);
             }
             if (!TextUtils.isEmpty(phoneticMiddle)) {
                 builder.appendName(phoneticMiddle);
-                mSb.append(phoneticMiddle);
+                sb.append(phoneticMiddle);
             }
             if (!TextUtils.isEmpty(phoneticGiven)) {
                 builder.appendName(phoneticGiven);
-                mSb.append(phoneticGiven);
+                sb.append(phoneticGiven);
             }
-            final String phoneticName = mSb.toString().trim();
+            final String phoneticName = sb.toString().trim();
             int phoneticNameStyle = builder.getInt(StructuredName.PHONETIC_NAME_STYLE);
             if (phoneticNameStyle == PhoneticNameStyle.UNDEFINED) {
                 phoneticNameStyle = mSplitter.guessPhoneticNameStyle(phoneticName);
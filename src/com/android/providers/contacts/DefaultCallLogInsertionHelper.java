@@ -21,36 +21,64 @@ import android.content.Context;
 import android.provider.CallLog.Calls;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.i18n.phonenumbers.NumberParseException;
 import com.android.i18n.phonenumbers.PhoneNumberUtil;
+import com.android.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 import com.android.i18n.phonenumbers.Phonenumber.PhoneNumber;
 import com.android.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallsColumns;
 
 import com.google.android.collect.Sets;
 
+import java.io.PrintWriter;
 import java.util.Locale;
 import java.util.Set;
 
 /**
  * Default implementation of {@link CallLogInsertionHelper}.
  * <p>
- * It added the country ISO abbreviation and the geocoded location.
+ * It added the country ISO abbreviation, the geocoded location and the number min match.
  * It checks for legacy unknown numbers and updates number presentation.
  * <p>
  * It uses {@link PhoneNumberOfflineGeocoder} to compute the geocoded location of a phone number.
+ * As most calls are from a small set of numbers, the values computed from a number are cached.
  */
 /*package*/ class DefaultCallLogInsertionHelper implements CallLogInsertionHelper {
     private static DefaultCallLogInsertionHelper sInstance;
 
     private static final Set<String> LEGACY_UNKNOWN_NUMBERS = Sets.newHashSet("-1", "-2", "-3");
 
+    /** Number of numbers whose computed values are cached. */
+    private static final int NUMBER_INFO_CACHE_SIZE = 200;
+
+    /**
+     * The values computed from a number in a given country.  They all require parsing the number,
+     * which costs more than the insert itself.
+     */
+    private static final class NumberInfo {
+        static final NumberInfo EMPTY = new NumberInfo(null, null);
+
+        final String geocodedLocation;
+        final String normalizedNumber;
+
+        NumberInfo(String geocodedLocation, String normalizedNumber) {
+            this.geocodedLocation = geocodedLocation;
+            this.normalizedNumber = normalizedNumber;
+        }
+    }
+
     private final CountryMonitor mCountryMonitor;
     private PhoneNumberUtil mPhoneNumberUtil;
     private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
     private final Locale mLocale;
 
+    // Keyed by country ISO and number; the locale of the geocoded locations does not change for
+    // the lifetime of the helper.  Null if caching is disabled.
+    private final LruCache<String, NumberInfo> mNumberInfoCache;
+
     public static synchronized DefaultCallLogInsertionHelper getInstance(Context context) {
         if (sInstance == null) {
             sInstance = new DefaultCallLogInsertionHelper(context);
@@ -61,18 +89,29 @@ import java.util.Set;
     @VisibleForTesting
     public static DefaultCallLogInsertionHelper getTestInstance(Context context,
             CountryMonitor countryMonitor) {
-        return new DefaultCallLogInsertionHelper(context, countryMonitor);
+        return new DefaultCallLogInsertionHelper(context, countryMonitor, NUMBER_INFO_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize the number of numbers whose computed values are cached, or 0 to disable
+     *     caching
+     */
+    @VisibleForTesting
+    public static DefaultCallLogInsertionHelper getTestInstance(Context context,
+            CountryMonitor countryMonitor, int cacheSize) {
+        return new DefaultCallLogInsertionHelper(context, countryMonitor, cacheSize);
     }
 
 
     private DefaultCallLogInsertionHelper(Context context) {
-        mCountryMonitor = new CountryMonitor(context);
-        mLocale = context.getResources().getConfiguration().locale;
+        this(context, new CountryMonitor(context), NUMBER_INFO_CACHE_SIZE);
     }
 
-    private DefaultCallLogInsertionHelper(Context context, CountryMonitor countryMonitor) {
+    private DefaultCallLogInsertionHelper(Context context, CountryMonitor countryMonitor,
+            int cacheSize) {
         mCountryMonitor = countryMonitor;
         mLocale = context.getResources().getConfiguration().locale;
+        mNumberInfoCache = cacheSize > 0 ? new LruCache<>(cacheSize) : null;
     }
 
     @Override
@@ -80,11 +119,12 @@ import java.util.Set;
         // Insert the current country code, so we know the country the number belongs to.
         String countryIso = getCurrentCountryIso();
         values.put(Calls.COUNTRY_ISO, countryIso);
-        // Insert the geocoded location, so that we do not need to compute it on the fly.
-        values.put(Calls.GEOCODED_LOCATION,
-                getGeocodedLocationFor(values.getAsString(Calls.NUMBER), countryIso));
 
         final String number = values.getAsString(Calls.NUMBER);
+        final NumberInfo numberInfo = getNumberInfo(number, countryIso);
+        // Insert the geocoded location, so that we do not need to compute it on the fly.
+        values.put(Calls.GEOCODED_LOCATION, numberInfo.geocodedLocation);
+
         if (LEGACY_UNKNOWN_NUMBERS.contains(number)) {
             values.put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_UNKNOWN);
             values.put(Calls.NUMBER, "");
@@ -93,11 +133,48 @@ import java.util.Set;
         // Check for a normalized number; if not present attempt to determine one now.
         if (!values.containsKey(Calls.CACHED_NORMALIZED_NUMBER) &&
                 !TextUtils.isEmpty(number)) {
-            String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            String normalizedNumber = numberInfo.normalizedNumber;
             if (!TextUtils.isEmpty(normalizedNumber)) {
                 values.put(Calls.CACHED_NORMALIZED_NUMBER, normalizedNumber);
             }
         }
+
+        // Insert the min match, so that the calls from a number can be looked up in an index.
+        values.put(CallsColumns.NUMBER_MIN_MATCH,
+                CallLogDatabaseHelper.computeNumberMinMatch(values.getAsString(Calls.NUMBER)));
+    }
+
+    private NumberInfo getNumberInfo(String number, String countryIso) {
+        if (TextUtils.isEmpty(number)) {
+            return NumberInfo.EMPTY;
+        }
+        if (mNumberInfoCache == null) {
+            return computeNumberInfo(number, countryIso);
+        }
+        final String key = countryIso + '|' + number;
+        NumberInfo numberInfo = mNumberInfoCache.get(key);
+        if (numberInfo == null) {
+            numberInfo = computeNumberInfo(number, countryIso);
+            mNumberInfoCache.put(key, numberInfo);
+        }
+        return numberInfo;
+    }
+
+    /**
+     * Parses the number once for both the geocoded location and the normalized number, the
+     * latter the same way {@link PhoneNumberUtils#formatNumberToE164} does.
+     */
+    private NumberInfo computeNumberInfo(String number, String countryIso) {
+        final PhoneNumber phoneNumber = parsePhoneNumber(number, countryIso);
+        if (phoneNumber == null) {
+            return NumberInfo.EMPTY;
+        }
+        final String geocodedLocation = getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
+                phoneNumber, mLocale);
+        final PhoneNumberUtil phoneNumberUtil = getPhoneNumberUtil();
+        final String normalizedNumber = phoneNumberUtil.isValidNumber(phoneNumber)
+                ? phoneNumberUtil.format(phoneNumber, PhoneNumberFormat.E164) : null;
+        return new NumberInfo(geocodedLocation, normalizedNumber);
     }
 
     private String getCurrentCountryIso() {
@@ -128,12 +205,26 @@ import java.util.Set;
 
     @Override
     public String getGeocodedLocationFor(String number, String countryIso) {
-        PhoneNumber structuredPhoneNumber = parsePhoneNumber(number, countryIso);
-        if (structuredPhoneNumber != null) {
-            return getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
-                    structuredPhoneNumber, mLocale);
-        } else {
-            return null;
+        return getNumberInfo(number, countryIso).geocodedLocation;
+    }
+
+    @Override
+    public void dump(PrintWriter pw) {
+        if (mNumberInfoCache == null) {
+            return;
         }
+        pw.println("Number info cache: size=" + mNumberInfoCache.size()
+                + " hits=" + mNumberInfoCache.hitCount()
+                + " misses=" + mNumberInfoCache.missCount());
+    }
+
+    @VisibleForTesting
+    int getNumberInfoCacheHitCount() {
+        return mNumberInfoCache == null ? 0 : mNumberInfoCache.hitCount();
+    }
+
+    @VisibleForTesting
+    int getNumberInfoCacheMissCount() {
+        return mNumberInfoCache == null ? 0 : mNumberInfoCache.missCount();
     }
 }
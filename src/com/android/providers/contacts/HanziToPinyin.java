@@ -34,6 +34,7 @@ public class HanziToPinyin {
     private static final String TAG = "HanziToPinyin";
 
     private static HanziToPinyin sInstance;
+    // Transliterators are not thread-safe, so each is only used while holding its lock.
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
@@ -109,12 +110,12 @@ public class HanziToPinyin {
         if (character < 0x250 || (0x1e00 <= character && character < 0x1eff)) {
             token.type = Token.LATIN;
             token.target = mAsciiTransliterator == null ? token.source :
-                mAsciiTransliterator.transliterate(token.source);
+                transliterate(mAsciiTransliterator, token.source);
             return;
         }
 
         token.type = Token.PINYIN;
-        token.target = mPinyinTransliterator.transliterate(token.source);
+        token.target = transliterate(mPinyinTransliterator, token.source);
         if (TextUtils.isEmpty(token.target) ||
             TextUtils.equals(token.source, token.target)) {
             token.type = Token.UNKNOWN;
@@ -126,7 +127,13 @@ public class HanziToPinyin {
         if (!hasChineseTransliterator() || TextUtils.isEmpty(input)) {
             return null;
         }
-        return mPinyinTransliterator.transliterate(input);
+        return transliterate(mPinyinTransliterator, input);
+    }
+
+    private static String transliterate(Transliterator transliterator, String input) {
+        synchronized (transliterator) {
+            return transliterator.transliterate(input);
+        }
     }
 
     /**
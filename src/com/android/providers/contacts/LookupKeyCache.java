@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactLookupKey.LookupKeySegment;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the contact each recently used lookup key resolved to.
+ * <p>
+ * A lookup key is resolved by a vote of the raw contacts its segments match, so the answer only
+ * changes when one of those raw contacts moves to another contact, or when the segments start
+ * matching other raw contacts.  The former is tracked precisely: each entry keeps the contacts
+ * that got a vote, and is dropped when the aggregation of any of them changes.  The latter, i.e.
+ * a raw contact being inserted or changing its source ID, account or names, drops all entries.
+ * <p>
+ * Invalidation must happen after the change is committed.  To keep a lookup that read the
+ * database before then from caching its stale answer, {@link #put} is given the
+ * {@link #getGeneration generation} read before the lookup, and ignores the answer if any
+ * invalidation happened since.
+ */
+public class LookupKeyCache {
+    private static final int DEFAULT_SIZE = 200;
+
+    private static final class Entry {
+        final long contactId;
+
+        // Sorted IDs of the contacts the segments of the lookup key matched.
+        final long[] matchedContactIds;
+
+        Entry(long contactId, long[] matchedContactIds) {
+            this.contactId = contactId;
+            this.matchedContactIds = matchedContactIds;
+        }
+
+        boolean matchesAny(Set<Long> contactIds) {
+            for (long contactId : matchedContactIds) {
+                if (contactIds.contains(contactId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries;
+
+    private long mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+    private int mInvalidatedCount;
+
+    public LookupKeyCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    @VisibleForTesting
+    LookupKeyCache(int size) {
+        mEntries = new LruCache<>(size);
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put} for a lookup starting now.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the ID of the contact the lookup key resolved to, or -1 if it is not cached.
+     */
+    public synchronized long get(String lookupKey) {
+        final Entry entry = mEntries.get(lookupKey);
+        if (entry == null) {
+            mMissCount++;
+            return -1;
+        }
+        mHitCount++;
+        return entry.contactId;
+    }
+
+    /**
+     * Caches the contact a lookup key resolved to, unless the cache was invalidated since the
+     * given generation.
+     *
+     * @param segments the parsed lookup key, with the contacts matched by the lookup
+     */
+    public synchronized void put(String lookupKey, long contactId,
+            ArrayList<LookupKeySegment> segments, long generation) {
+        if (generation != mGeneration || contactId == -1) {
+            return;
+        }
+        final long[] matchedContactIds = new long[segments.size()];
+        int count = 0;
+        for (LookupKeySegment segment : segments) {
+            if (segment.contactId != -1) {
+                matchedContactIds[count++] = segment.contactId;
+            }
+        }
+        Arrays.sort(matchedContactIds, 0, count);
+        mEntries.put(lookupKey, new Entry(contactId, Arrays.copyOf(matchedContactIds, count)));
+    }
+
+    /**
+     * Drops the lookup keys that matched any of the given contacts.
+     */
+    public synchronized void invalidateContacts(Set<Long> contactIds) {
+        mGeneration++;
+        for (Map.Entry<String, Entry> entry : mEntries.snapshot().entrySet()) {
+            if (entry.getValue().matchesAny(contactIds)) {
+                mEntries.remove(entry.getKey());
+                mInvalidatedCount++;
+            }
+        }
+    }
+
+    /**
+     * Takes the invalidations recorded in the given transaction context.  The returned task, if
+     * any, must be run once the transaction is committed.
+     */
+    public Runnable takeInvalidation(TransactionContext txContext) {
+        final boolean all = txContext.areAllLookupKeysStale();
+        final Set<Long> contactIds = txContext.getStaleLookupKeyContactIds();
+        txContext.clearLookupKeyUpdates();
+        if (all) {
+            return this::invalidateAll;
+        }
+        if (contactIds.isEmpty()) {
+            return null;
+        }
+        return () -> invalidateContacts(contactIds);
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidatedCount += mEntries.size();
+        mEntries.evictAll();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("Lookup key cache stats:\n");
+        pw.printf("  size=%d  hit=%d  miss=%d  invalidated=%d\n",
+                mEntries.size(), mHitCount, mMissCount, mInvalidatedCount);
+    }
+
+    @VisibleForTesting
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    @VisibleForTesting
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+}
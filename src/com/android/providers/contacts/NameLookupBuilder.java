@@ -32,6 +32,9 @@ public abstract class NameLookupBuilder {
 
     private static final int MAX_NAME_TOKENS = 4;
 
+    // Longer tokens only get infix lookup records for their first characters.
+    private static final int MAX_INFIX_TOKEN_LENGTH = 20;
+
     private final NameSplitter mSplitter;
     private String[][] mNicknameClusters = new String[MAX_NAME_TOKENS][];
     private StringBuilder mStringBuilder = new StringBuilder();
@@ -82,6 +85,21 @@ public abstract class NameLookupBuilder {
     protected abstract void insertNameLookup(long rawContactId, long dataId, int lookupType,
             String string);
 
+    /**
+     * Returns true if the builder keeps infix lookup records, see
+     * {@link #insertNameInfixLookup}.
+     */
+    protected boolean hasNameInfixLookup() {
+        return false;
+    }
+
+    /**
+     * Inserts an infix lookup record, i.e. the normalized end of a name token, starting after
+     * its first character.  Only called if {@link #hasNameInfixLookup} returns true.
+     */
+    protected void insertNameInfixLookup(long rawContactId, long dataId, String normalizedInfix) {
+    }
+
     /**
      * Inserts name lookup records for the given structured name.
      */
@@ -91,7 +109,11 @@ public abstract class NameLookupBuilder {
             return;
         }
 
+        final boolean hasNameInfixLookup = hasNameInfixLookup();
         for (int i = 0; i < tokenCount; i++) {
+            if (hasNameInfixLookup) {
+                insertNameInfixes(rawContactId, dataId, mNames[i]);
+            }
             mNames[i] = normalizeName(mNames[i]);
         }
 
@@ -122,14 +144,20 @@ public abstract class NameLookupBuilder {
         insertNameVariants(rawContactId, dataId, 0, tokenCount, !tooManyTokens, true);
     }
 
+    /**
+     * Appends the name tokens and lookup keys of a name to the search index.  Unlike
+     * {@link #insertNameLookup}, this does not use any shared state, so that the search index can
+     * be built on several threads at once.
+     */
     public void appendToSearchIndex(IndexBuilder builder, String name, int fullNameStyle) {
-        int tokenCount = mSplitter.tokenize(mNames, name);
+        final String[] names = new String[NameSplitter.MAX_TOKENS];
+        int tokenCount = mSplitter.tokenize(names, name);
         if (tokenCount == 0) {
             return;
         }
 
         for (int i = 0; i < tokenCount; i++) {
-            builder.appendName(mNames[i]);
+            builder.appendName(names[i]);
         }
 
         appendNameShorthandLookup(builder, name, fullNameStyle);
@@ -161,7 +189,7 @@ public abstract class NameLookupBuilder {
         int character;
 
         final int stringLength = name.length();
-        mStringBuilder.setLength(0);
+        final StringBuilder sb = new StringBuilder();
         do {
             character = name.codePointAt(position++);
             if ((character == 0x20) || (character == 0x2c) || (character == 0x2E)) {
@@ -194,14 +222,14 @@ public abstract class NameLookupBuilder {
                     break;
                 }
             }
-            mStringBuilder.appendCodePoint(character);
+            sb.appendCodePoint(character);
             consonantLength++;
         } while (position < stringLength);
 
         // At least, insert consonants when Korean characters are two or more.
         // Only one character cases are covered by NAME_COLLATION_KEY
         if (consonantLength > 1) {
-            builder.appendName(mStringBuilder.toString());
+            builder.appendName(sb.toString());
         }
     }
 
@@ -209,6 +237,23 @@ public abstract class NameLookupBuilder {
         return NameNormalizer.normalize(name);
     }
 
+    /**
+     * Inserts an infix lookup record for each letter or digit of the given token but the first,
+     * so that a prefix match on the records finds the token by any part of it.
+     */
+    private void insertNameInfixes(long rawContactId, long dataId, String token) {
+        final int length = Math.min(token.length(), MAX_INFIX_TOKEN_LENGTH);
+        for (int i = 1; i < length; i++) {
+            if (!Character.isLetterOrDigit(token.charAt(i))) {
+                continue;
+            }
+            final String infix = normalizeName(token.substring(i));
+            if (!infix.isEmpty()) {
+                insertNameInfixLookup(rawContactId, dataId, infix);
+            }
+        }
+    }
+
     /**
      * Inserts all name variants based on permutations of tokens between
      * fromIndex and toIndex
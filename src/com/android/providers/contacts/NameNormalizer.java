@@ -29,45 +29,50 @@ import java.util.Locale;
  */
 public class NameNormalizer {
 
-    private static final Object sCollatorLock = new Object();
+    /**
+     * Collators for a locale.  A collator is not thread-safe, so each thread has its own, which
+     * lets the search index be built on several threads at once.
+     */
+    private static final class Collators {
+        final Locale locale;
+        final RuleBasedCollator compressingCollator;
+        final RuleBasedCollator complexityCollator;
+
+        Collators(Locale locale) {
+            this.locale = locale;
 
-    private static Locale sCollatorLocale;
+            compressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
+            compressingCollator.setStrength(Collator.PRIMARY);
+            compressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+
+            complexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
+            complexityCollator.setStrength(Collator.SECONDARY);
+        }
+    }
 
-    private static RuleBasedCollator sCachedCompressingCollator;
-    private static RuleBasedCollator sCachedComplexityCollator;
+    private static final ThreadLocal<Collators> sCachedCollators = new ThreadLocal<>();
 
     /**
-     * Ensure that the cached collators are for the current locale.
+     * Returns the collators of the calling thread, ensuring that they are for the current locale.
      */
-    private static void ensureCollators() {
+    private static Collators getCollators() {
         final Locale locale = Locale.getDefault();
-        if (locale.equals(sCollatorLocale)) {
-            return;
+        Collators collators = sCachedCollators.get();
+        if (collators == null || !locale.equals(collators.locale)) {
+            collators = new Collators(locale);
+            sCachedCollators.set(collators);
         }
-        sCollatorLocale = locale;
-
-        sCachedCompressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedCompressingCollator.setStrength(Collator.PRIMARY);
-        sCachedCompressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
-
-        sCachedComplexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedComplexityCollator.setStrength(Collator.SECONDARY);
+        return collators;
     }
 
     @VisibleForTesting
     static RuleBasedCollator getCompressingCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedCompressingCollator;
-        }
+        return getCollators().compressingCollator;
     }
 
     @VisibleForTesting
     static RuleBasedCollator getComplexityCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedComplexityCollator;
-        }
+        return getCollators().complexityCollator;
     }
 
     /**
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * In-memory copy of the phone lookup table of the contacts database, so that caller ID lookups
+ * can find the data rows whose number may match without reading the table.
+ * <p>
+ * The copy is loaded in the background by {@link #load}, and lookups use SQL until then.  Rows
+ * added or removed by {@link DataRowHandlerForPhoneNumber} are recorded, by min match, in the
+ * transaction context, and those min matches are read again from the database the next time
+ * they are looked up once the transaction is committed.  Rows removed along with their data
+ * rows are not recorded: lookups join the data table, whose IDs are never reused, so those
+ * entries match nothing.
+ * <p>
+ * Like {@link LookupKeyCache}, the index has a generation that every invalidation bumps, so
+ * that a read of the database that started before a commit does not overwrite its invalidation.
+ */
+public class PhoneLookupIndex {
+
+    /** A row of the phone lookup table. */
+    public static final class Entry {
+        public final long dataId;
+        public final String normalizedNumber;
+
+        public Entry(long dataId, String normalizedNumber) {
+            this.dataId = dataId;
+            this.normalizedNumber = normalizedNumber;
+        }
+    }
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private static final String LOAD_SQL = "SELECT "
+            + PhoneLookupColumns.MIN_MATCH + ","
+            + PhoneLookupColumns.DATA_ID + ","
+            + PhoneLookupColumns.NORMALIZED_NUMBER
+            + " FROM " + Tables.PHONE_LOOKUP
+            + " ORDER BY " + PhoneLookupColumns.MIN_MATCH;
+
+    private static final String MIN_MATCH_SQL = "SELECT "
+            + PhoneLookupColumns.DATA_ID + ","
+            + PhoneLookupColumns.NORMALIZED_NUMBER
+            + " FROM " + Tables.PHONE_LOOKUP
+            + " WHERE " + PhoneLookupColumns.MIN_MATCH + "=?";
+
+    private final Object mLock = new Object();
+
+    // The rows of the phone lookup table by min match, or null if not loaded.
+    @GuardedBy("mLock")
+    private ArrayMap<String, Entry[]> mEntries;
+
+    // Min matches whose rows changed since they were read.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mStaleMinMatches = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    @GuardedBy("mLock")
+    private boolean mLoadScheduled;
+
+    @GuardedBy("mLock")
+    private int mHitCount;
+
+    @GuardedBy("mLock")
+    private int mReloadCount;
+
+    /**
+     * Returns true if the index is neither loaded nor being loaded, in which case the caller
+     * must call {@link #load}, e.g. from a background task.
+     */
+    public boolean scheduleLoad() {
+        synchronized (mLock) {
+            if (mEntries != null || mLoadScheduled) {
+                return false;
+            }
+            mLoadScheduled = true;
+            return true;
+        }
+    }
+
+    /**
+     * Reads the whole phone lookup table.  The result is dropped if the index is invalidated
+     * meanwhile, and loading has to be scheduled again.
+     */
+    public void load(SQLiteDatabase db) {
+        final long generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        final ArrayMap<String, Entry[]> entries = new ArrayMap<>();
+        try (Cursor cursor = db.rawQuery(LOAD_SQL, null)) {
+            final ArrayList<Entry> minMatchEntries = new ArrayList<>();
+            String minMatch = null;
+            while (cursor.moveToNext()) {
+                final String rowMinMatch = cursor.getString(0);
+                if (minMatch != null && !minMatch.equals(rowMinMatch)) {
+                    entries.put(minMatch, minMatchEntries.toArray(EMPTY));
+                    minMatchEntries.clear();
+                }
+                minMatch = rowMinMatch;
+                minMatchEntries.add(new Entry(cursor.getLong(1), cursor.getString(2)));
+            }
+            if (minMatch != null) {
+                entries.put(minMatch, minMatchEntries.toArray(EMPTY));
+            }
+        } finally {
+            synchronized (mLock) {
+                mLoadScheduled = false;
+                if (generation == mGeneration) {
+                    mEntries = entries;
+                    mStaleMinMatches.clear();
+                }
+            }
+        }
+    }
+
+    public boolean isLoaded() {
+        synchronized (mLock) {
+            return mEntries != null;
+        }
+    }
+
+    /**
+     * Returns the rows of the phone lookup table with the given min match, or null if the index
+     * is not loaded.  The rows of stale min matches are read from the given database first.
+     */
+    public Entry[] get(SQLiteDatabase db, String minMatch) {
+        final long generation;
+        synchronized (mLock) {
+            if (mEntries == null) {
+                return null;
+            }
+            if (!mStaleMinMatches.contains(minMatch)) {
+                mHitCount++;
+                final Entry[] entries = mEntries.get(minMatch);
+                return entries != null ? entries : EMPTY;
+            }
+            generation = mGeneration;
+        }
+
+        final ArrayList<Entry> entries = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(MIN_MATCH_SQL, new String[] {minMatch})) {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1)));
+            }
+        }
+        final Entry[] result = entries.toArray(EMPTY);
+        synchronized (mLock) {
+            mReloadCount++;
+            if (generation == mGeneration && mEntries != null) {
+                if (result.length == 0) {
+                    mEntries.remove(minMatch);
+                } else {
+                    mEntries.put(minMatch, result);
+                }
+                mStaleMinMatches.remove(minMatch);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Marks the given min matches as changed.
+     */
+    public void invalidateMinMatches(Set<String> minMatches) {
+        synchronized (mLock) {
+            mGeneration++;
+            if (mEntries != null) {
+                mStaleMinMatches.addAll(minMatches);
+            }
+        }
+    }
+
+    /**
+     * Takes the invalidations recorded in the given transaction context.  The returned task, if
+     * any, must be run once the transaction is committed.
+     */
+    public Runnable takeInvalidation(TransactionContext txContext) {
+        final Set<String> minMatches = txContext.getStalePhoneLookupMinMatches();
+        txContext.clearPhoneLookupUpdates();
+        if (minMatches.isEmpty()) {
+            return null;
+        }
+        return () -> invalidateMinMatches(minMatches);
+    }
+
+    /**
+     * Drops the whole index, which has to be loaded again.
+     */
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries = null;
+            mStaleMinMatches.clear();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("Phone lookup index stats:\n");
+            pw.printf("  loaded=%b  size=%d  stale=%d  hit=%d  reload=%d\n",
+                    mEntries != null, mEntries != null ? mEntries.size() : 0,
+                    mStaleMinMatches.size(), mHitCount, mReloadCount);
+        }
+    }
+
+    @VisibleForTesting
+    int getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    int getReloadCount() {
+        synchronized (mLock) {
+            return mReloadCount;
+        }
+    }
+}
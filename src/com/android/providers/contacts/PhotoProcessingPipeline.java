@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes, scales and compresses photos on a small pool of worker threads, so that a batch can
+ * start processing all of its photos before it opens its transaction, instead of processing them
+ * one by one while holding the database lock.
+ * <p>
+ * A batch {@link #submit}s the photos it is about to write and then {@link #take}s the processed
+ * result of each one when it gets to it.  Photos are matched by identity, i.e. the array that
+ * ends up in the values handed to the data row handler must be the one that was submitted.
+ * Photos that were not submitted, or were submitted with other dimensions, are processed on the
+ * calling thread.  To bound memory use, only a limited number of photos per batch are processed
+ * ahead of the one being written.  Pending photos are tracked per thread, as each batch runs on
+ * its own binder thread.
+ */
+/* package */ final class PhotoProcessingPipeline {
+    private static final String TAG = "PhotoProcessingPipeline";
+
+    /** Maximum number of photos a single batch processes ahead of the one it is writing. */
+    @VisibleForTesting
+    static final int MAX_PENDING_PHOTOS_PER_THREAD = 32;
+
+    private static final int MAX_THREADS = 4;
+
+    private static final class PendingPhoto {
+        final byte[] photo;
+        final int maxDisplayPhotoDim;
+        final int maxThumbnailPhotoDim;
+        final boolean forceCropToSquare;
+
+        // Null while the photo waits for a slot in the pipeline.
+        Future<PhotoProcessor> future;
+
+        PendingPhoto(byte[] photo, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
+                boolean forceCropToSquare) {
+            this.photo = photo;
+            this.maxDisplayPhotoDim = maxDisplayPhotoDim;
+            this.maxThumbnailPhotoDim = maxThumbnailPhotoDim;
+            this.forceCropToSquare = forceCropToSquare;
+        }
+    }
+
+    /**
+     * The photos submitted by one thread: those being processed, and those waiting for one of
+     * them to be taken.
+     */
+    private static final class PendingPhotos {
+        final IdentityHashMap<byte[], PendingPhoto> photos = new IdentityHashMap<>();
+        final ArrayDeque<PendingPhoto> waiting = new ArrayDeque<>();
+        int processingCount;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final ThreadLocal<PendingPhotos> mPendingPhotos = new ThreadLocal<PendingPhotos>() {
+        @Override
+        protected PendingPhotos initialValue() {
+            return new PendingPhotos();
+        }
+    };
+
+    public PhotoProcessingPipeline() {
+        // Leave a core for the thread that runs the batch.
+        final int threadCount = Math.max(1,
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 10L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the given photo for processing on the worker pool.  At most
+     * {@link #MAX_PENDING_PHOTOS_PER_THREAD} photos of the calling thread are processed ahead of
+     * time; the others start as soon as earlier ones are taken.
+     * @return Whether the photo was queued.
+     */
+    public boolean submit(byte[] photo, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
+            boolean forceCropToSquare) {
+        if (photo == null || photo.length == 0) {
+            return false;
+        }
+        final PendingPhotos pendingPhotos = mPendingPhotos.get();
+        if (pendingPhotos.photos.containsKey(photo)) {
+            return false;
+        }
+        final PendingPhoto pendingPhoto = new PendingPhoto(photo, maxDisplayPhotoDim,
+                maxThumbnailPhotoDim, forceCropToSquare);
+        pendingPhotos.photos.put(photo, pendingPhoto);
+        pendingPhotos.waiting.add(pendingPhoto);
+        startWaitingPhotos(pendingPhotos);
+        return true;
+    }
+
+    private void startWaitingPhotos(PendingPhotos pendingPhotos) {
+        while (pendingPhotos.processingCount < MAX_PENDING_PHOTOS_PER_THREAD
+                && !pendingPhotos.waiting.isEmpty()) {
+            final PendingPhoto pendingPhoto = pendingPhotos.waiting.poll();
+            pendingPhoto.future = mExecutor.submit(new Callable<PhotoProcessor>() {
+                @Override
+                public PhotoProcessor call() throws IOException {
+                    final PhotoProcessor processor = new PhotoProcessor(pendingPhoto.photo,
+                            pendingPhoto.maxDisplayPhotoDim, pendingPhoto.maxThumbnailPhotoDim,
+                            pendingPhoto.forceCropToSquare);
+                    // Only keep the compressed photos around until the batch gets to them.
+                    processor.compressPhotos();
+                    return processor;
+                }
+            });
+            pendingPhotos.processingCount++;
+        }
+    }
+
+    /**
+     * Returns the processed photo, waiting for the worker pool if the photo was submitted by the
+     * calling thread, and processing it right away otherwise.
+     * @throws IOException If the photo could not be decoded, scaled or compressed.
+     */
+    public PhotoProcessor take(byte[] photo, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
+            boolean forceCropToSquare) throws IOException {
+        final PendingPhotos pendingPhotos = mPendingPhotos.get();
+        final PendingPhoto pendingPhoto = pendingPhotos.photos.remove(photo);
+        if (pendingPhoto != null) {
+            if (pendingPhoto.future == null) {
+                // Taken before its turn came; process it right here.
+                pendingPhotos.waiting.remove(pendingPhoto);
+            } else {
+                pendingPhotos.processingCount--;
+                startWaitingPhotos(pendingPhotos);
+            }
+        }
+        if (pendingPhoto != null && pendingPhoto.future != null
+                && pendingPhoto.maxDisplayPhotoDim == maxDisplayPhotoDim
+                && pendingPhoto.maxThumbnailPhotoDim == maxThumbnailPhotoDim
+                && pendingPhoto.forceCropToSquare == forceCropToSquare) {
+            try {
+                return pendingPhoto.future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                Log.w(TAG, "Photo processing failed on the worker pool, retrying", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                // Fall through and process it here.
+            }
+        } else if (pendingPhoto != null && pendingPhoto.future != null) {
+            pendingPhoto.future.cancel(false);
+        }
+        return new PhotoProcessor(photo, maxDisplayPhotoDim, maxThumbnailPhotoDim,
+                forceCropToSquare);
+    }
+
+    /**
+     * Forgets the photos submitted by the calling thread that were never taken, e.g. because their
+     * operation failed.  To be called when a batch ends.
+     */
+    public void clear() {
+        final PendingPhotos pendingPhotos = mPendingPhotos.get();
+        if (pendingPhotos.photos.isEmpty()) {
+            return;
+        }
+        for (PendingPhoto pendingPhoto : pendingPhotos.photos.values()) {
+            if (pendingPhoto.future != null) {
+                pendingPhoto.future.cancel(false);
+            }
+        }
+        pendingPhotos.photos.clear();
+        pendingPhotos.waiting.clear();
+        pendingPhotos.processingCount = 0;
+    }
+
+    /**
+     * Returns the number of photos the calling thread submitted and has not taken yet.
+     */
+    @VisibleForTesting
+    int getPendingPhotoCount() {
+        return mPendingPhotos.get().photos.size();
+    }
+
+    /**
+     * Returns the number of photos of the calling thread that are being processed, or have been.
+     */
+    @VisibleForTesting
+    int getProcessingPhotoCount() {
+        return mPendingPhotos.get().processingCount;
+    }
+}
@@ -99,9 +99,46 @@ import java.io.IOException;
     private final int mMaxDisplayPhotoDim;
     private final int mMaxThumbnailPhotoDim;
     private final boolean mForceCropToSquare;
-    private final Bitmap mOriginal;
+    private Bitmap mOriginal;
     private Bitmap mDisplayPhoto;
     private Bitmap mThumbnailPhoto;
+    private int mDisplayPhotoWidth;
+    private int mDisplayPhotoHeight;
+    private boolean mHasDisplayPhoto;
+    private byte[] mDisplayPhotoBytes;
+    private byte[] mThumbnailPhotoBytes;
+
+    /**
+     * Buffers reused by the processors running on a thread: the decoder's temporary storage and
+     * the stream the photos are compressed into.
+     */
+    private static final class Buffers {
+        final byte[] decodeStorage = new byte[16 * 1024];
+        final ReusableByteArrayOutputStream compressStream = new ReusableByteArrayOutputStream();
+    }
+
+    private static final ThreadLocal<Buffers> sBuffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        // Don't hold on to the buffer of an unusually large photo.
+        private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+        ReusableByteArrayOutputStream() {
+            super(32 * 1024);
+        }
+
+        void recycle() {
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[32 * 1024];
+            }
+            reset();
+        }
+    }
 
     /**
      * Initializes a photo processor for the given bitmap.
@@ -124,8 +161,7 @@ import java.io.IOException;
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim)
             throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
-                maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
+        this(originalBytes, maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
     }
 
     /**
@@ -161,8 +197,50 @@ import java.io.IOException;
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
             boolean forceCropToSquare) throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
-                maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare);
+        mOriginal = decodeSampledBitmap(originalBytes, maxDisplayPhotoDim, forceCropToSquare);
+        mMaxDisplayPhotoDim = maxDisplayPhotoDim;
+        mMaxThumbnailPhotoDim = maxThumbnailPhotoDim;
+        mForceCropToSquare = forceCropToSquare;
+        process();
+
+        // Nobody else has a reference to the bitmap we decoded, so we can free it right away
+        // unless it is used as is for the display photo.
+        if (mOriginal != mDisplayPhoto) {
+            mOriginal.recycle();
+        }
+        mOriginal = null;
+    }
+
+    /**
+     * Decodes the given image, skipping as many pixels as possible while still leaving enough
+     * of them for a display photo of the given size.  Large camera pictures are thus never decoded
+     * at full resolution.
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    @VisibleForTesting
+    static Bitmap decodeSampledBitmap(byte[] bytes, int maxDisplayPhotoDim,
+            boolean forceCropToSquare) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = sBuffers.get().decodeStorage;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // The display photo is scaled so that its longer side (or, if we crop, its shorter side)
+        // fits.  Only power of two sample sizes are exact for all decoders.
+        final int dim = forceCropToSquare
+                ? Math.min(options.outWidth, options.outHeight)
+                : Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (dim / (sampleSize * 2) >= maxDisplayPhotoDim) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
     /**
@@ -174,7 +252,16 @@ import java.io.IOException;
             throw new IOException("Invalid image file");
         }
         mDisplayPhoto = getNormalizedBitmap(mOriginal, mMaxDisplayPhotoDim, mForceCropToSquare);
-        mThumbnailPhoto = getNormalizedBitmap(mOriginal,mMaxThumbnailPhotoDim, mForceCropToSquare);
+        // The display photo is already cropped and no larger than the original, so it is the
+        // cheaper source for the thumbnail.
+        mThumbnailPhoto = getNormalizedBitmap(mDisplayPhoto, mMaxThumbnailPhotoDim, false);
+        mDisplayPhotoWidth = mDisplayPhoto.getWidth();
+        mDisplayPhotoHeight = mDisplayPhoto.getHeight();
+
+        // If there is a higher-resolution picture, we can assume we won't need to upscale the
+        // thumbnail often, so we can compress stronger
+        mHasDisplayPhoto = mDisplayPhotoWidth > mThumbnailPhoto.getWidth()
+                || mDisplayPhotoHeight > mThumbnailPhoto.getHeight();
     }
 
     /**
@@ -243,16 +330,29 @@ import java.io.IOException;
      * Helper method to compress the given bitmap as a JPEG and return the resulting byte array.
      */
     private byte[] getCompressedBytes(Bitmap b, int quality) throws IOException {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        final boolean compressed = b.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-        baos.flush();
-        baos.close();
-        byte[] result = baos.toByteArray();
-
-        if (!compressed) {
-            throw new IOException("Unable to compress image");
+        final ReusableByteArrayOutputStream baos = sBuffers.get().compressStream;
+        try {
+            final boolean compressed = b.compress(Bitmap.CompressFormat.JPEG, quality, baos);
+            if (!compressed) {
+                throw new IOException("Unable to compress image");
+            }
+            return baos.toByteArray();
+        } finally {
+            baos.recycle();
         }
-        return result;
+    }
+
+    /**
+     * Compresses both photos now, so that the getXxxPhotoBytes methods return right away, and
+     * lets go of the bitmaps.  After this, {@link #getDisplayPhoto} and {@link #getThumbnailPhoto}
+     * return null.
+     * @throws IOException If compression fails.
+     */
+    public void compressPhotos() throws IOException {
+        getDisplayPhotoBytes();
+        getThumbnailPhotoBytes();
+        mDisplayPhoto = null;
+        mThumbnailPhoto = null;
     }
 
     /**
@@ -269,24 +369,39 @@ import java.io.IOException;
         return mThumbnailPhoto;
     }
 
+    /**
+     * Retrieves the width (in pixels) of the display photo.
+     */
+    public int getDisplayPhotoWidth() {
+        return mDisplayPhotoWidth;
+    }
+
+    /**
+     * Retrieves the height (in pixels) of the display photo.
+     */
+    public int getDisplayPhotoHeight() {
+        return mDisplayPhotoHeight;
+    }
+
     /**
      * Retrieves the compressed display photo as a byte array.
      */
     public byte[] getDisplayPhotoBytes() throws IOException {
-        return getCompressedBytes(mDisplayPhoto, COMPRESSION_DISPLAY_PHOTO);
+        if (mDisplayPhotoBytes == null) {
+            mDisplayPhotoBytes = getCompressedBytes(mDisplayPhoto, COMPRESSION_DISPLAY_PHOTO);
+        }
+        return mDisplayPhotoBytes;
     }
 
     /**
      * Retrieves the compressed thumbnail photo as a byte array.
      */
     public byte[] getThumbnailPhotoBytes() throws IOException {
-        // If there is a higher-resolution picture, we can assume we won't need to upscale the
-        // thumbnail often, so we can compress stronger
-        final boolean hasDisplayPhoto = mDisplayPhoto != null &&
-                (mDisplayPhoto.getWidth() > mThumbnailPhoto.getWidth() ||
-                mDisplayPhoto.getHeight() > mThumbnailPhoto.getHeight());
-        return getCompressedBytes(mThumbnailPhoto,
-                hasDisplayPhoto ? COMPRESSION_THUMBNAIL_LOW : COMPRESSION_THUMBNAIL_HIGH);
+        if (mThumbnailPhotoBytes == null) {
+            mThumbnailPhotoBytes = getCompressedBytes(mThumbnailPhoto,
+                    mHasDisplayPhoto ? COMPRESSION_THUMBNAIL_LOW : COMPRESSION_THUMBNAIL_HIGH);
+        }
+        return mThumbnailPhotoBytes;
     }
 
     /**
@@ -16,9 +16,12 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.graphics.Bitmap;
 import android.provider.ContactsContract.PhotoFiles;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
@@ -29,14 +32,33 @@ import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ * <p>
+ * Files are spread over {@link #SHARD_COUNT} subdirectories by photo file ID, and each
+ * subdirectory is only listed the first time one of its photos is needed.  {@link #insert}
+ * creates the {@link Tables#PHOTO_FILES} row in the caller's transaction, and writes the photo to
+ * a temp file named after the row's ID before it returns.  A background thread then fsyncs the
+ * temp files of all pending inserts, renames them into their subdirectories and fsyncs those, in
+ * one batch.  Methods that need a photo wait for its pending rename.
+ * <p>
+ * If the process dies before a temp file has been renamed, {@link #initialize} renames it if its
+ * row was committed and it is complete, and deletes it otherwise; a committed row left without
+ * its file is then reported by {@link #cleanup}.  If a transaction is rolled back after a photo
+ * has been renamed, the file is not referenced by any row until {@link #cleanup} deletes it.
  */
 public class PhotoStore {
 
@@ -47,21 +69,62 @@ public class PhotoStore {
     // Directory name under the root directory for photo storage.
     private final String DIRECTORY = "photos";
 
-    /** Map of keys to entries in the directory. */
-    private final Map<Long, Entry> mEntries;
+    // Directory under the photo storage directory for files that are being written.
+    private static final String TEMP_DIRECTORY = "tmp";
 
-    /** Total amount of space currently used by the photo store in bytes. */
-    private long mTotalSize = 0;
+    // Prefix of temp files, followed by the photo file ID and TEMP_FILE_ID_SEPARATOR.
+    private static final String TEMP_FILE_PREFIX = "img";
+    private static final char TEMP_FILE_ID_SEPARATOR = '_';
+
+    /** Number of subdirectories photo files are spread over. */
+    @VisibleForTesting
+    static final int SHARD_COUNT = 256;
+
+    /** The subdirectories of the store, indexed by {@link #getShardIndex}. */
+    private final Shard[] mShards = new Shard[SHARD_COUNT];
 
     /** The file path for photo storage. */
     private final File mStorePath;
 
+    /** The directory photo files are written to before they are renamed into their shard. */
+    private final File mTempPath;
+
     /** The database helper. */
     private final ContactsDatabaseHelper mDatabaseHelper;
 
     /** The database to use for storing metadata for the photo files. */
     private SQLiteDatabase mDb;
 
+    /** Temp files of photos that have been inserted but not renamed into place yet, by ID. */
+    private final LinkedHashMap<Long, File> mPendingWrites = new LinkedHashMap<>();
+
+    /** Whether a batch of renames has been handed to the writer thread.  Guarded by itself. */
+    private boolean mWriterScheduled;
+
+    private final ThreadPoolExecutor mWriter =
+            new ThreadPoolExecutor(0, 1, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    /**
+     * The entries of one subdirectory of the store.
+     */
+    private static class Shard {
+        /** The subdirectory. */
+        final File path;
+
+        /** Map of keys to entries in the subdirectory, once it has been listed. */
+        final Map<Long, Entry> entries = new ArrayMap<Long, Entry>();
+
+        /** Whether the subdirectory has been listed into {@link #entries}. */
+        boolean indexed;
+
+        /** Total amount of space used by the entries in bytes. */
+        long size;
+
+        Shard(File path) {
+            this.path = path;
+        }
+    }
+
     /**
      * Constructs an instance of the PhotoStore under the specified directory.
      * @param rootDirectory The root directory of the storage.
@@ -69,16 +132,20 @@ public class PhotoStore {
      */
     public PhotoStore(File rootDirectory, ContactsDatabaseHelper databaseHelper) {
         mStorePath = new File(rootDirectory, DIRECTORY);
+        mTempPath = new File(mStorePath, TEMP_DIRECTORY);
         synchronized (MKDIRS_LOCK) {
-            if (!mStorePath.exists()) {
-                if (!mStorePath.mkdirs()) {
+            if (!mTempPath.exists()) {
+                if (!mTempPath.mkdirs()) {
                     throw new RuntimeException("Unable to create photo storage directory "
-                            + mStorePath.getPath());
+                            + mTempPath.getPath());
                 }
             }
         }
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            mShards[i] = new Shard(new File(mStorePath, String.format("%02x", i)));
+        }
         mDatabaseHelper = databaseHelper;
-        mEntries = new ArrayMap<Long, Entry>();
+        mWriter.allowCoreThreadTimeOut(true);
         initialize();
     }
 
@@ -86,53 +153,134 @@ public class PhotoStore {
      * Clears the photo storage. Deletes all files from disk.
      */
     public void clear() {
-        File[] files = mStorePath.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                cleanupFile(file);
+        flushPendingWrites();
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                File[] files = shard.path.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        cleanupFile(file);
+                    }
+                }
+                shard.entries.clear();
+                shard.size = 0;
+                shard.indexed = true;
             }
         }
         if (mDb == null) {
             mDb = mDatabaseHelper.getWritableDatabase();
         }
         mDb.delete(Tables.PHOTO_FILES, null, null);
-        mEntries.clear();
-        mTotalSize = 0;
     }
 
     @VisibleForTesting
     public long getTotalSize() {
-        return mTotalSize;
+        flushPendingWrites();
+        long totalSize = 0;
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                ensureIndexed(shard);
+                totalSize += shard.size;
+            }
+        }
+        return totalSize;
     }
 
     /**
      * Returns the entry with the specified key if it exists, null otherwise.
      */
     public Entry get(long key) {
-        return mEntries.get(key);
+        awaitPendingWrite(key);
+        final Shard shard = mShards[getShardIndex(key)];
+        synchronized (shard) {
+            ensureIndexed(shard);
+            return shard.entries.get(key);
+        }
     }
 
     /**
-     * Initializes the PhotoStore by scanning for all files currently in the
-     * specified root directory.
+     * Initializes the PhotoStore.  Renames the temp files of committed photos that were not
+     * renamed into place yet, deletes the other temp files, and moves photo files stored
+     * directly in the root directory, as older versions did, into their subdirectories.  The
+     * subdirectories themselves are listed when they are first needed.
      */
     public final void initialize() {
+        flushPendingWrites();
+
+        // Get a reference to the database.
+        mDb = mDatabaseHelper.getWritableDatabase();
+
+        File[] tempFiles = mTempPath.listFiles();
+        if (tempFiles != null) {
+            // If a rolled back photo ID was reused, the newest temp file is the committed one.
+            Arrays.sort(tempFiles, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            for (File file : tempFiles) {
+                recoverTempFile(file);
+            }
+        }
+
         File[] files = mStorePath.listFiles();
-        if (files == null) {
-            return;
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    continue;
+                }
+                try {
+                    long id = Long.parseLong(file.getName());
+                    File target = getFileForPhotoFileId(id);
+                    if (!ensureShardDirectory(target) || !file.renameTo(target)) {
+                        Log.w(TAG, "Unable to move photo file " + file.getName());
+                    }
+                } catch (NumberFormatException nfe) {
+                    // Not a valid photo store entry - delete the file.
+                    cleanupFile(file);
+                }
+            }
         }
-        for (File file : files) {
-            try {
-                Entry entry = new Entry(file);
-                putEntry(entry.id, entry);
-            } catch (NumberFormatException nfe) {
-                // Not a valid photo store entry - delete the file.
-                cleanupFile(file);
+
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                shard.entries.clear();
+                shard.size = 0;
+                shard.indexed = false;
             }
         }
+    }
 
-        // Get a reference to the database.
-        mDb = mDatabaseHelper.getWritableDatabase();
+    /**
+     * Renames the given temp file into place if it belongs to a committed photo whose file is
+     * missing, and deletes it otherwise.  The temp file may not have been fsynced before the
+     * process died, so it is only used if it has the size recorded for the photo.
+     */
+    private void recoverTempFile(File file) {
+        final long id = getPhotoFileIdForTempFile(file);
+        if (id > 0 && file.length() == getCommittedFileSize(id)) {
+            final File target = getFileForPhotoFileId(id);
+            if (!target.exists()) {
+                if (sync(file) && ensureShardDirectory(target) && file.renameTo(target)) {
+                    sync(target.getParentFile());
+                } else {
+                    Log.w(TAG, "Unable to move photo file " + id);
+                }
+                return;
+            }
+        }
+        cleanupFile(file);
+    }
+
+    /**
+     * Returns the file size recorded for the photo with the given ID, or -1 if there is no such
+     * photo.
+     */
+    private long getCommittedFileSize(long id) {
+        final Cursor c = mDb.query(Tables.PHOTO_FILES, new String[] {PhotoFiles.FILESIZE},
+                PhotoFilesColumns.CONCRETE_ID + "=?", new String[]{String.valueOf(id)},
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
     }
 
     /**
@@ -147,8 +295,18 @@ public class PhotoStore {
      * @return The set of the keys in use that refer to non-existent entries.
      */
     public Set<Long> cleanup(Set<Long> keysInUse) {
+        flushPendingWrites();
+
+        Set<Long> keys = new ArraySet<>();
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                ensureIndexed(shard);
+                keys.addAll(shard.entries.keySet());
+            }
+        }
+
         Set<Long> keysToRemove = new ArraySet<>();
-        keysToRemove.addAll(mEntries.keySet());
+        keysToRemove.addAll(keys);
         keysToRemove.removeAll(keysInUse);
         if (!keysToRemove.isEmpty()) {
             Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries");
@@ -159,7 +317,7 @@ public class PhotoStore {
 
         Set<Long> missingKeys = new ArraySet<>();
         missingKeys.addAll(keysInUse);
-        missingKeys.removeAll(mEntries.keySet());
+        missingKeys.removeAll(keys);
         return missingKeys;
     }
 
@@ -185,49 +343,221 @@ public class PhotoStore {
      *     is thumbnail-sized or smaller and allowSmallImageStorage is false.
      */
     public long insert(PhotoProcessor photoProcessor, boolean allowSmallImageStorage) {
-        Bitmap displayPhoto = photoProcessor.getDisplayPhoto();
-        int width = displayPhoto.getWidth();
-        int height = displayPhoto.getHeight();
+        int width = photoProcessor.getDisplayPhotoWidth();
+        int height = photoProcessor.getDisplayPhotoHeight();
         int thumbnailDim = photoProcessor.getMaxThumbnailPhotoDim();
         if (allowSmallImageStorage || width > thumbnailDim || height > thumbnailDim) {
-            // Write the photo to a temp file, create the DB record for tracking it, and rename the
-            // temp file to match.
-            File file = null;
+            // Create the DB record for tracking the photo, write the photo to a temp file named
+            // after the record's ID, and hand the file to the writer thread to be renamed.
+            final byte[] photoBytes;
             try {
-                // Write the display photo to a temp file.
-                byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
-                file = File.createTempFile("img", null, mStorePath);
-                FileOutputStream fos = new FileOutputStream(file);
-                fos.write(photoBytes);
-                fos.close();
-
-                // Create the DB entry.
-                ContentValues values = new ContentValues();
-                values.put(PhotoFiles.HEIGHT, height);
-                values.put(PhotoFiles.WIDTH, width);
-                values.put(PhotoFiles.FILESIZE, photoBytes.length);
-                long id = mDb.insert(Tables.PHOTO_FILES, null, values);
-                if (id != 0) {
-                    // Rename the temp file.
-                    File target = getFileForPhotoFileId(id);
-                    if (file.renameTo(target)) {
-                        Entry entry = new Entry(target);
-                        putEntry(entry.id, entry);
-                        return id;
-                    }
-                }
+                photoBytes = photoProcessor.getDisplayPhotoBytes();
             } catch (IOException e) {
-                // Write failed - will delete the file below.
+                return 0;
             }
 
-            // If anything went wrong, clean up the file before returning.
-            if (file != null) {
-                cleanupFile(file);
+            ContentValues values = new ContentValues();
+            values.put(PhotoFiles.HEIGHT, height);
+            values.put(PhotoFiles.WIDTH, width);
+            values.put(PhotoFiles.FILESIZE, photoBytes.length);
+            long id = mDb.insert(Tables.PHOTO_FILES, null, values);
+            if (id > 0) {
+                final File tempFile = writeTempFile(id, photoBytes);
+                if (tempFile != null) {
+                    scheduleRename(id, tempFile);
+                    return id;
+                }
+                mDb.delete(Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
+                        new String[]{String.valueOf(id)});
             }
         }
         return 0;
     }
 
+    /**
+     * Writes the photo with the given ID to a new temp file.  The file is fsynced by the writer
+     * thread, so that this does not block the caller's transaction.
+     * @return The temp file, or null if it could not be written.
+     */
+    private File writeTempFile(long id, byte[] photoBytes) {
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try {
+            tempFile = File.createTempFile(getTempFilePrefix(id), null, mTempPath);
+            stream = new FileOutputStream(tempFile);
+            stream.write(photoBytes);
+            stream.close();
+            return tempFile;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write photo file " + id, e);
+            closeQuietly(stream);
+            if (tempFile != null) {
+                cleanupFile(tempFile);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the prefix of the names of temp files for the given photo file ID.
+     */
+    @VisibleForTesting
+    static String getTempFilePrefix(long id) {
+        return TEMP_FILE_PREFIX + id + TEMP_FILE_ID_SEPARATOR;
+    }
+
+    /**
+     * Returns the photo file ID the given temp file was written for, or 0 if it is not a
+     * photo temp file.
+     */
+    private static long getPhotoFileIdForTempFile(File file) {
+        final String name = file.getName();
+        final int separator = name.indexOf(TEMP_FILE_ID_SEPARATOR);
+        if (!name.startsWith(TEMP_FILE_PREFIX) || separator < 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(TEMP_FILE_PREFIX.length(), separator));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Queues the temp file of the photo with the given ID to be renamed into place by the writer
+     * thread.  If the ID is already pending, e.g. because the transaction that inserted it was
+     * rolled back and the ID was reused, the newer photo replaces it.
+     */
+    private void scheduleRename(long id, File tempFile) {
+        synchronized (mPendingWrites) {
+            final File replaced = mPendingWrites.put(id, tempFile);
+            if (replaced != null) {
+                cleanupFile(replaced);
+            }
+            if (!mWriterScheduled) {
+                mWriterScheduled = true;
+                mWriter.execute(this::renamePendingPhotos);
+            }
+        }
+    }
+
+    /**
+     * Fsyncs the temp files of all pending photos, renames them into place and then fsyncs the
+     * subdirectories they were renamed into, one batch at a time, so that the photos survive a
+     * crash.  A temp file that cannot be renamed is left for {@link #initialize} to retry.
+     */
+    private void renamePendingPhotos() {
+        while (true) {
+            final ArrayList<Long> ids = new ArrayList<>();
+            final ArrayList<File> tempFiles = new ArrayList<>();
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.isEmpty()) {
+                    mWriterScheduled = false;
+                    return;
+                }
+                for (Map.Entry<Long, File> pending : mPendingWrites.entrySet()) {
+                    ids.add(pending.getKey());
+                    tempFiles.add(pending.getValue());
+                }
+            }
+
+            try {
+                for (File tempFile : tempFiles) {
+                    sync(tempFile);
+                }
+                final Set<Shard> renamedShards = new ArraySet<>();
+                for (int i = 0; i < ids.size(); i++) {
+                    final long id = ids.get(i);
+                    final File target = getFileForPhotoFileId(id);
+                    final Shard shard = mShards[getShardIndex(id)];
+                    synchronized (shard) {
+                        if (ensureShardDirectory(target) && tempFiles.get(i).renameTo(target)) {
+                            renamedShards.add(shard);
+                            if (shard.indexed) {
+                                putEntry(shard, new Entry(target));
+                            }
+                        } else {
+                            Log.w(TAG, "Unable to move photo file " + id);
+                        }
+                    }
+                }
+                for (Shard shard : renamedShards) {
+                    sync(shard.path);
+                }
+            } finally {
+                synchronized (mPendingWrites) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        // Keep the photo pending if it has been replaced in the meantime.
+                        if (mPendingWrites.get(ids.get(i)) == tempFiles.get(i)) {
+                            mPendingWrites.remove(ids.get(i));
+                        }
+                    }
+                    mPendingWrites.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fsyncs the given file, or directory, which makes the files renamed into it durable.
+     * @return Whether the file could be synced.
+     */
+    private boolean sync(File file) {
+        try {
+            final FileDescriptor fd = Os.open(file.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Unable to sync photo file " + file.getName(), e);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(FileOutputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Waits until the photo with the given ID, if it is pending, has been renamed into place.
+     */
+    private void awaitPendingWrite(long id) {
+        synchronized (mPendingWrites) {
+            while (mPendingWrites.containsKey(id)) {
+                waitForWriter();
+            }
+        }
+    }
+
+    /**
+     * Waits until all pending photos have been renamed into place.
+     */
+    @VisibleForTesting
+    void flushPendingWrites() {
+        synchronized (mPendingWrites) {
+            while (!mPendingWrites.isEmpty()) {
+                waitForWriter();
+            }
+        }
+    }
+
+    private void waitForWriter() {
+        try {
+            mPendingWrites.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for photo renames", e);
+        }
+    }
+
     private void cleanupFile(File file) {
         boolean deleted = file.delete();
         if (!deleted) {
@@ -239,30 +569,66 @@ public class PhotoStore {
      * Removes the specified photo file from the store if it exists.
      */
     public void remove(long id) {
+        awaitPendingWrite(id);
         cleanupFile(getFileForPhotoFileId(id));
         removeEntry(id);
     }
 
+    /**
+     * Returns the index of the subdirectory for the given photo file ID.  IDs are assigned
+     * sequentially, so their lowest bits spread the files evenly.
+     */
+    private static int getShardIndex(long id) {
+        return (int) (id & (SHARD_COUNT - 1));
+    }
+
     /**
      * Returns a file object for the given photo file ID.
      */
     private File getFileForPhotoFileId(long id) {
-        return new File(mStorePath, String.valueOf(id));
+        return new File(mShards[getShardIndex(id)].path, String.valueOf(id));
     }
 
     /**
-     * Puts the entry with the specified photo file ID into the store.
-     * @param id The photo file ID to identify the entry by.
-     * @param entry The entry to store.
+     * Creates the subdirectory for the given photo file if needed.
      */
-    private void putEntry(long id, Entry entry) {
-        if (!mEntries.containsKey(id)) {
-            mTotalSize += entry.size;
-        } else {
-            Entry oldEntry = mEntries.get(id);
-            mTotalSize += (entry.size - oldEntry.size);
+    private boolean ensureShardDirectory(File file) {
+        final File directory = file.getParentFile();
+        synchronized (MKDIRS_LOCK) {
+            return directory.isDirectory() || directory.mkdirs();
         }
-        mEntries.put(id, entry);
+    }
+
+    /**
+     * Lists the files of the given shard into its entries if that has not been done yet.  Must
+     * be called with the shard locked.
+     */
+    private void ensureIndexed(Shard shard) {
+        if (shard.indexed) {
+            return;
+        }
+        File[] files = shard.path.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    putEntry(shard, new Entry(file));
+                } catch (NumberFormatException nfe) {
+                    // Not a valid photo store entry - delete the file.
+                    cleanupFile(file);
+                }
+            }
+        }
+        shard.indexed = true;
+    }
+
+    /**
+     * Puts the entry into the given shard, which must be locked.
+     * @param shard The shard of the entry's photo file ID.
+     * @param entry The entry to store.
+     */
+    private void putEntry(Shard shard, Entry entry) {
+        Entry oldEntry = shard.entries.put(entry.id, entry);
+        shard.size += entry.size - (oldEntry != null ? oldEntry.size : 0);
     }
 
     /**
@@ -270,10 +636,12 @@ public class PhotoStore {
      * the associated photo file entry from the database.
      */
     private void removeEntry(long id) {
-        Entry entry = mEntries.get(id);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(id);
+        final Shard shard = mShards[getShardIndex(id)];
+        synchronized (shard) {
+            Entry entry = shard.entries.remove(id);
+            if (entry != null) {
+                shard.size -= entry.size;
+            }
         }
         mDb.delete(ContactsDatabaseHelper.Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
                 new String[]{String.valueOf(id)});
@@ -17,17 +17,20 @@ package com.android.providers.contacts;
 
 import static com.android.providers.contacts.flags.Flags.cp2SyncSearchIndexFlag;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 
@@ -41,9 +44,18 @@ import com.android.providers.contacts.util.CappedStringBuilder;
 import com.google.android.collect.Lists;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -57,10 +69,27 @@ public class SearchIndexManager {
     public static final int MAX_UPDATE_FILTER_CONTACTS = 5000;
     private static final int MAX_STRING_BUILDER_SIZE = 1024 * 10;
 
+    public static final int REBUILD_CHUNK_SIZE = 500;
+
     public static final String PROPERTY_SEARCH_INDEX_VERSION = "search_index";
+    /** Last contact ID re-indexed by an unfinished rebuild, or 0 if no rebuild is pending. */
+    public static final String PROPERTY_SEARCH_INDEX_REBUILD_CURSOR = "search_index_cursor";
     private static final String ROW_ID_KEY = "rowid";
     private static final int SEARCH_INDEX_VERSION = 2;
 
+    /** Number of contacts handed to a worker thread at once during a parallel rebuild. */
+    private static final int PARALLEL_BATCH_SIZE = 64;
+
+    private static final String INSERT_INDEX_ROW_SQL = "INSERT INTO " + Tables.SEARCH_INDEX + "("
+            + SearchIndexColumns.CONTACT_ID + ","
+            + SearchIndexColumns.CONTENT + ","
+            + SearchIndexColumns.NAME + ","
+            + SearchIndexColumns.TOKENS + ","
+            + ROW_ID_KEY + ") VALUES (?,?,?,?,?)";
+
+    private static final String DELETE_INDEX_ROW_SQL = "DELETE FROM " + Tables.SEARCH_INDEX
+            + " WHERE " + ROW_ID_KEY + "=?";
+
     private static final class ContactIndexQuery {
         public static final String[] COLUMNS = {
                 Data.CONTACT_ID,
@@ -71,6 +100,18 @@ public class SearchIndexManager {
         };
 
         public static final int MIMETYPE = 1;
+
+        private static final ArrayMap<String, Integer> COLUMN_INDEXES = new ArrayMap<>();
+        static {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                COLUMN_INDEXES.put(COLUMNS[i], i);
+            }
+        }
+
+        public static int getColumnIndex(String columnName) {
+            final Integer index = COLUMN_INDEXES.get(columnName);
+            return index != null ? index : -1;
+        }
     }
 
     public static class IndexBuilder {
@@ -86,9 +127,20 @@ public class SearchIndexManager {
                 MAX_STRING_BUILDER_SIZE);
         private ArraySet<String> mUniqueElements = new ArraySet<>();
         private Cursor mCursor;
+        private String[] mRow;
 
         void setCursor(Cursor cursor) {
             this.mCursor = cursor;
+            this.mRow = null;
+        }
+
+        /**
+         * Reads column values from a row snapshot in {@link ContactIndexQuery#COLUMNS} order
+         * instead of a cursor, so that the builder can be used off the thread owning the cursor.
+         */
+        void setRow(String[] row) {
+            this.mRow = row;
+            this.mCursor = null;
         }
 
         void reset() {
@@ -112,10 +164,25 @@ public class SearchIndexManager {
         }
 
         public String getString(String columnName) {
+            if (mRow != null) {
+                return mRow[ContactIndexQuery.getColumnIndex(columnName)];
+            }
             return mCursor.getString(mCursor.getColumnIndex(columnName));
         }
 
         public int getInt(String columnName) {
+            if (mRow != null) {
+                // Same semantics as Cursor.getInt(): null and non-numeric values are 0.
+                final String value = mRow[ContactIndexQuery.getColumnIndex(columnName)];
+                if (value == null) {
+                    return 0;
+                }
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
             return mCursor.getInt(mCursor.getColumnIndex(columnName));
         }
 
@@ -243,56 +310,274 @@ public class SearchIndexManager {
         }
     }
 
+    /**
+     * Contacts and data rows of those contacts read by the calling thread, to be turned into
+     * index rows by a worker thread.
+     */
+    private static final class ContactRows {
+        final long contactId;
+        final ArrayList<String[]> rows = new ArrayList<>();
+        final ArrayList<DataRowHandler> handlers = new ArrayList<>();
+
+        ContactRows(long contactId) {
+            this.contactId = contactId;
+        }
+    }
+
+    /**
+     * Columns of a search index row, either built by a worker thread and inserted by the thread
+     * that owns the transaction, or read back from the index by {@link IndexWriter}.
+     */
+    private static final class IndexRow {
+        final long contactId;
+        final String content;
+        final String name;
+        final String tokens;
+
+        IndexRow(long contactId, IndexBuilder builder) {
+            this(contactId, builder.getContent(), builder.getName(), builder.getTokens());
+        }
+
+        IndexRow(long contactId, String content, String name, String tokens) {
+            this.contactId = contactId;
+            this.content = content;
+            this.name = name;
+            this.tokens = tokens;
+        }
+
+        boolean hasColumns(String content, String name, String tokens) {
+            return TextUtils.equals(this.content, content) && TextUtils.equals(this.name, name)
+                    && TextUtils.equals(this.tokens, tokens);
+        }
+    }
+
+    /**
+     * Writes the index rows of a set of contacts, skipping rows whose content did not change.
+     *
+     * <p>Rewriting an FTS row is much more expensive than reading it, so the rows that exist
+     * for the contacts being updated are loaded up front.  A new row with the same columns as
+     * the existing one is not written at all.  Existing rows that are not written
+     * again belong to contacts that are gone or no longer have searchable data, and are
+     * deleted by {@link #finish()}.
+     */
+    private final class IndexWriter {
+        private final SQLiteStatement mInsert;
+        private final SQLiteStatement mDelete;
+        private final HashMap<Long, IndexRow> mExistingRows = new HashMap<>();
+
+        /**
+         * @param existingRowsSelection selection on the search index table matching all rows
+         *         that may be replaced by this writer
+         */
+        IndexWriter(SQLiteDatabase db, String existingRowsSelection) {
+            final Cursor cursor = db.query(Tables.SEARCH_INDEX, ExistingIndexQuery.COLUMNS,
+                    existingRowsSelection, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(ExistingIndexQuery.ROW_ID);
+                    mExistingRows.put(contactId, new IndexRow(contactId,
+                            cursor.getString(ExistingIndexQuery.CONTENT),
+                            cursor.getString(ExistingIndexQuery.NAME),
+                            cursor.getString(ExistingIndexQuery.TOKENS)));
+                }
+            } finally {
+                cursor.close();
+            }
+            mInsert = db.compileStatement(INSERT_INDEX_ROW_SQL);
+            mDelete = db.compileStatement(DELETE_INDEX_ROW_SQL);
+        }
+
+        void write(long contactId, String content, String name, String tokens) {
+            final IndexRow existingRow = mExistingRows.remove(contactId);
+            if (existingRow != null) {
+                if (existingRow.hasColumns(content, name, tokens)) {
+                    mSkippedRowCount++;
+                    return;
+                }
+                delete(contactId);
+            }
+            DatabaseUtils.bindObjectToProgram(mInsert, 1, contactId);
+            DatabaseUtils.bindObjectToProgram(mInsert, 2, content);
+            DatabaseUtils.bindObjectToProgram(mInsert, 3, name);
+            DatabaseUtils.bindObjectToProgram(mInsert, 4, tokens);
+            DatabaseUtils.bindObjectToProgram(mInsert, 5, contactId);
+            mInsert.executeInsert();
+            mRewrittenRowCount++;
+        }
+
+        private void delete(long contactId) {
+            mDelete.bindLong(1, contactId);
+            mDelete.executeUpdateDelete();
+        }
+
+        /**
+         * Deletes the existing rows that were not written again, and releases the statements.
+         */
+        void finish() {
+            for (Long contactId : mExistingRows.keySet()) {
+                delete(contactId);
+                mDeletedRowCount++;
+            }
+            mExistingRows.clear();
+            close();
+        }
+
+        void close() {
+            mInsert.close();
+            mDelete.close();
+        }
+    }
+
+    private static final class ExistingIndexQuery {
+        public static final String[] COLUMNS = {
+                ROW_ID_KEY,
+                SearchIndexColumns.CONTENT,
+                SearchIndexColumns.NAME,
+                SearchIndexColumns.TOKENS,
+        };
+
+        public static final int ROW_ID = 0;
+        public static final int CONTENT = 1;
+        public static final int NAME = 2;
+        public static final int TOKENS = 3;
+    }
+
+    private static final ThreadLocal<IndexBuilder> sWorkerIndexBuilder =
+            ThreadLocal.withInitial(IndexBuilder::new);
+
     private final ContactsProvider2 mContactsProvider;
     private final ContactsDatabaseHelper mDbHelper;
     private StringBuilder mSb = new StringBuilder();
     private IndexBuilder mIndexBuilder = new IndexBuilder();
-    private ContentValues mValues = new ContentValues();
     private String[] mSelectionArgs1 = new String[1];
     private int mMaxUpdateFilterContacts = MAX_UPDATE_FILTER_CONTACTS;
+    private int mRebuildChunkSize = REBUILD_CHUNK_SIZE;
+    private int mRebuildParallelism =
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int mParallelBatchSize = PARALLEL_BATCH_SIZE;
+    private ThreadPoolExecutor mIndexBuilderExecutor;
+
+    // Stats, only accessed on threads that hold the database write lock.
+    private long mSkippedRowCount;
+    private long mRewrittenRowCount;
+    private long mDeletedRowCount;
+    private long mCatchUpCount;
 
     public SearchIndexManager(ContactsProvider2 contactsProvider) {
         this.mContactsProvider = contactsProvider;
         mDbHelper = (ContactsDatabaseHelper) mContactsProvider.getDatabaseHelper();
     }
 
+    /**
+     * Rebuilds the search index if it is out of date, or unconditionally if {@code force} is set.
+     *
+     * <p>The rebuild walks the contacts table in ranges of {@link #mRebuildChunkSize} contact IDs.
+     * Each range is re-indexed in its own transaction, which also records the last contact ID
+     * processed in {@link #PROPERTY_SEARCH_INDEX_REBUILD_CURSOR}, so the write lock is released
+     * between ranges and an interrupted rebuild resumes where it stopped instead of starting
+     * over.
+     *
+     * <p>The search index stays queryable while a rebuild is in progress. Contacts that have
+     * not been reached yet keep their previous index rows, which may be stale (e.g. normalized
+     * for the old locale). If the table was recreated before the rebuild (see
+     * {@link ContactsDatabaseHelper#rebuildSearchIndex()}), those contacts simply do not match
+     * filter queries until their range has been processed.  Contacts modified during the
+     * rebuild are always indexed by {@link #updateIndexForRawContacts} as usual.
+     */
     public void updateIndex(boolean force) {
         if (force) {
             setSearchIndexVersion(0);
+            setRebuildCursor(0);
         } else {
             if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
                 return;
             }
         }
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
+        rebuildIndex();
+    }
+
+    private void rebuildIndex() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final long start = SystemClock.elapsedRealtime();
+        final long startCursor = getRebuildCursor();
+        int count = 0;
+        int chunks = 0;
+        boolean done = false;
         try {
-            // We do a version check again, because the version might have been modified after
-            // the first check.  We need to do the check again in a transaction to make sure.
-            if (getSearchIndexVersion() != SEARCH_INDEX_VERSION) {
-                rebuildIndex(db);
-                setSearchIndexVersion(SEARCH_INDEX_VERSION);
-                db.setTransactionSuccessful();
+            while (!done) {
+                db.beginTransaction();
+                try {
+                    // We do a version check again, because the version might have been modified
+                    // after the first check.  We need to do the check again in a transaction to
+                    // make sure.
+                    if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
+                        done = true;
+                        return;
+                    }
+                    final long fromContactId = getRebuildCursor();
+                    final long toContactId = getRebuildChunkUpperBound(db, fromContactId);
+                    count += rebuildIndexChunk(db, fromContactId, toContactId);
+                    chunks++;
+                    if (toContactId == Long.MAX_VALUE) {
+                        setSearchIndexVersion(SEARCH_INDEX_VERSION);
+                        setRebuildCursor(0);
+                        done = true;
+                    } else {
+                        setRebuildCursor(toContactId);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
             }
         } finally {
-            db.endTransaction();
+            final long end = SystemClock.elapsedRealtime();
+            Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
+                    + count + " contacts, " + chunks + " chunks"
+                    + (startCursor != 0 ? ", resumed after contact " + startCursor : "")
+                    + (done ? "" : ", incomplete"));
         }
     }
 
-    private void rebuildIndex(SQLiteDatabase db) {
-        mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_UPGRADING);
-        final long start = SystemClock.elapsedRealtime();
-        int count = 0;
+    /**
+     * Returns the largest contact ID of the next chunk starting after {@code fromContactId},
+     * or {@link Long#MAX_VALUE} if the remaining contacts fit into a single chunk.
+     */
+    private long getRebuildChunkUpperBound(SQLiteDatabase db, long fromContactId) {
+        mSelectionArgs1[0] = String.valueOf(fromContactId);
+        final Cursor cursor = db.rawQuery("SELECT " + Contacts._ID + " FROM " + Tables.CONTACTS
+                + " WHERE " + Contacts._ID + ">?"
+                + " ORDER BY " + Contacts._ID
+                + " LIMIT 1 OFFSET " + (mRebuildChunkSize - 1), mSelectionArgs1);
         try {
-            mDbHelper.createSearchIndexTable(db, true);
-            count = buildAndInsertIndex(db, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : Long.MAX_VALUE;
         } finally {
-            mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_NORMAL);
+            cursor.close();
+        }
+    }
 
-            final long end = SystemClock.elapsedRealtime();
-            Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
-                    + count + " contacts");
+    /**
+     * Rebuilds the index rows of all contacts with IDs in ({@code fromContactId},
+     * {@code toContactId}].  Rows of contacts that no longer exist in that range are dropped.
+     */
+    private int rebuildIndexChunk(SQLiteDatabase db, long fromContactId, long toContactId) {
+        final IndexWriter writer = new IndexWriter(db, ROW_ID_KEY + ">" + fromContactId
+                + " AND " + ROW_ID_KEY + "<=" + toContactId);
+        final String selection = RawContacts.CONTACT_ID + ">" + fromContactId
+                + " AND " + RawContacts.CONTACT_ID + "<=" + toContactId;
+        final int count;
+        try {
+            if (mRebuildParallelism > 1) {
+                count = buildAndInsertIndexInParallel(db, selection, writer);
+            } else {
+                count = buildAndInsertIndex(db, selection, writer);
+            }
+        } catch (RuntimeException e) {
+            writer.close();
+            throw e;
         }
+        writer.finish();
+        return count;
     }
 
     public void updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds) {
@@ -303,77 +588,82 @@ public class SearchIndexManager {
 
         final long contactsCount = contactIds.size() + rawContactIds.size();
 
-        StringBuilder sb = new StringBuilder();
-        if (!cp2SyncSearchIndexFlag() || contactsCount <= mMaxUpdateFilterContacts) {
-            sb.append("(");
-            if (!contactIds.isEmpty()) {
-                // Select all raw contacts that belong to all contacts in contactIds
-                sb.append(RawContacts.CONTACT_ID + " IN (");
-                sb.append(TextUtils.join(",", contactIds));
-                sb.append(')');
-            }
-            if (!rawContactIds.isEmpty()) {
-                if (!contactIds.isEmpty()) {
-                    sb.append(" OR ");
-                }
-                // Select all raw contacts that belong to the same contact as all raw contacts
-                // in rawContactIds. For every raw contact in rawContactIds that we are updating
-                // the index for, we need to rebuild the search index for all raw contacts belonging
-                // to the same contact, because we can only update the search index on a per-contact
-                // basis.
-                sb.append(RawContacts.CONTACT_ID + " IN "
-                        + "(SELECT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS
-                        + " WHERE " + RawContactsColumns.CONCRETE_ID + " IN (");
-                sb.append(TextUtils.join(",", rawContactIds));
-                sb.append("))");
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (cp2SyncSearchIndexFlag() && contactsCount > mMaxUpdateFilterContacts) {
+            // Too many contacts to update within this transaction.  Rather than wiping the
+            // whole index, mark it stale in this transaction and let a background rebuild catch
+            // up.  The rebuild only rewrites rows that actually changed.
+            setSearchIndexVersion(0);
+            setRebuildCursor(0);
+            mCatchUpCount++;
+            if (VERBOSE_LOGGING) {
+                Log.v(TAG, "Deferring search index update for " + contactsCount + " contacts");
             }
-            sb.append(")");
+            mContactsProvider.scheduleSearchIndexUpdate();
+            return;
         }
 
-        // The selection to select raw_contacts. If the selection string is empty
-        // the entire search index table will be rebuilt.
-        String rawContactsSelection = sb.toString();
-
-        // Remove affected search_index rows.
-        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        if (cp2SyncSearchIndexFlag()) {
-            // If the amount of contacts which need to be re-synced in the search index
-            // surpasses the limit, then simply clear the entire search index table and
-            // and rebuild it.
-            String whereClause = null;
-            if (contactsCount <= mMaxUpdateFilterContacts) {
-                // Only remove the provided contacts
-                whereClause =
-                    "rowid IN ("
-                        + TextUtils.join(",", contactIds)
-                    + """
-                    ) OR rowid IN (
-                        SELECT contact_id
-                        FROM raw_contacts
-                        WHERE raw_contacts._id IN ("""
-                            + TextUtils.join(",", rawContactIds)
-                    + "))";
+        StringBuilder sb = new StringBuilder();
+        sb.append("(");
+        if (!contactIds.isEmpty()) {
+            // Select all raw contacts that belong to all contacts in contactIds
+            sb.append(RawContacts.CONTACT_ID + " IN (");
+            sb.append(TextUtils.join(",", contactIds));
+            sb.append(')');
+        }
+        if (!rawContactIds.isEmpty()) {
+            if (!contactIds.isEmpty()) {
+                sb.append(" OR ");
             }
-            db.delete(Tables.SEARCH_INDEX, whereClause, null);
-        } else {
-            db.delete(Tables.SEARCH_INDEX,
-                    ROW_ID_KEY + " IN (SELECT "
-                        + RawContacts.CONTACT_ID
-                        + " FROM " + Tables.RAW_CONTACTS
-                        + " WHERE " + rawContactsSelection
-                        + ")",
-                    null);
+            // Select all raw contacts that belong to the same contact as all raw contacts
+            // in rawContactIds. For every raw contact in rawContactIds that we are updating
+            // the index for, we need to rebuild the search index for all raw contacts belonging
+            // to the same contact, because we can only update the search index on a per-contact
+            // basis.
+            sb.append(RawContacts.CONTACT_ID + " IN "
+                    + "(SELECT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS
+                    + " WHERE " + RawContactsColumns.CONCRETE_ID + " IN (");
+            sb.append(TextUtils.join(",", rawContactIds));
+            sb.append("))");
         }
+        sb.append(")");
+
+        // The selection to select raw_contacts.
+        final String rawContactsSelection = sb.toString();
+
+        // The affected search_index rows.  Rows of the contacts in contactIds are included even if
+        // those contacts no longer have any raw contacts, so that they get removed.
+        sb.setLength(0);
+        if (!contactIds.isEmpty()) {
+            sb.append(ROW_ID_KEY + " IN (");
+            sb.append(TextUtils.join(",", contactIds));
+            sb.append(") OR ");
+        }
+        sb.append(ROW_ID_KEY + " IN (SELECT " + RawContacts.CONTACT_ID
+                + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + rawContactsSelection + ")");
 
-        // Then rebuild index for them.
-        final int count = buildAndInsertIndex(db, rawContactsSelection);
+        // Then rebuild index for them, only writing the rows that changed.
+        final IndexWriter writer = new IndexWriter(db, sb.toString());
+        final int count;
+        try {
+            count = buildAndInsertIndex(db, rawContactsSelection, writer);
+        } catch (RuntimeException e) {
+            writer.close();
+            throw e;
+        }
+        writer.finish();
 
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updated search index for " + count + " contacts");
         }
     }
 
-    private int buildAndInsertIndex(SQLiteDatabase db, String selection) {
+    /**
+     * Returns the sort order for the data rows of a contact, which determines the order of
+     * elements in the index row.
+     */
+    private String buildIndexQueryOrderBy() {
         mSb.setLength(0);
         mSb.append(Data.CONTACT_ID + ", ");
         mSb.append("(CASE WHEN " + DataColumns.MIMETYPE_ID + "=");
@@ -390,10 +680,13 @@ public class SearchIndexManager {
         mSb.append(" THEN -1");
         mSb.append(" ELSE " + DataColumns.MIMETYPE_ID);
         mSb.append(" END), " + Data.IS_SUPER_PRIMARY + ", " + DataColumns.CONCRETE_ID);
+        return mSb.toString();
+    }
 
+    private int buildAndInsertIndex(SQLiteDatabase db, String selection, IndexWriter writer) {
         int count = 0;
         Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS, ContactIndexQuery.COLUMNS,
-                selection, null, null, null, mSb.toString());
+                selection, null, null, null, buildIndexQueryOrderBy());
         mIndexBuilder.setCursor(cursor);
         mIndexBuilder.reset();
         try {
@@ -402,7 +695,7 @@ public class SearchIndexManager {
                 long contactId = cursor.getLong(0);
                 if (contactId != currentContactId) {
                     if (currentContactId != -1) {
-                        insertIndexRow(db, currentContactId, mIndexBuilder);
+                        writeIndexRow(writer, currentContactId, mIndexBuilder);
                         count++;
                     }
                     currentContactId = contactId;
@@ -416,7 +709,7 @@ public class SearchIndexManager {
                 }
             }
             if (currentContactId != -1) {
-                insertIndexRow(db, currentContactId, mIndexBuilder);
+                writeIndexRow(writer, currentContactId, mIndexBuilder);
                 count++;
             }
         } finally {
@@ -425,14 +718,141 @@ public class SearchIndexManager {
         return count;
     }
 
-    private void insertIndexRow(SQLiteDatabase db, long contactId, IndexBuilder builder) {
-        mValues.clear();
-        mValues.put(SearchIndexColumns.CONTENT, builder.getContent());
-        mValues.put(SearchIndexColumns.NAME, builder.getName());
-        mValues.put(SearchIndexColumns.TOKENS, builder.getTokens());
-        mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
-        mValues.put(ROW_ID_KEY, contactId);
-        db.insert(Tables.SEARCH_INDEX, null, mValues);
+    /**
+     * Same as {@link #buildAndInsertIndex}, but spreads the work over
+     * {@link #mRebuildParallelism} threads.
+     *
+     * <p>The calling thread reads the data rows and groups them by contact, worker threads run
+     * {@link DataRowHandler#appendSearchableData} and name normalization, each with its own
+     * {@link IndexBuilder}, and the calling thread writes the results in order through the
+     * {@link IndexWriter}.  Reads and writes have to stay on the calling thread, because it owns
+     * the transaction.  At most two batches per worker are in flight at any time.
+     */
+    private int buildAndInsertIndexInParallel(SQLiteDatabase db, String selection,
+            IndexWriter writer) {
+        final ThreadPoolExecutor executor = getIndexBuilderExecutor();
+        final ArrayDeque<Future<List<IndexRow>>> pending = new ArrayDeque<>();
+        final int maxPending = mRebuildParallelism * 2;
+
+        int count = 0;
+        final Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS,
+                ContactIndexQuery.COLUMNS, selection, null, null, null, buildIndexQueryOrderBy());
+        try {
+            final int columnCount = ContactIndexQuery.COLUMNS.length;
+            ArrayList<ContactRows> batch = new ArrayList<>(mParallelBatchSize);
+            ContactRows current = null;
+            while (cursor.moveToNext()) {
+                long contactId = cursor.getLong(0);
+                if (current == null || current.contactId != contactId) {
+                    if (batch.size() == mParallelBatchSize) {
+                        if (pending.size() == maxPending) {
+                            count += writeIndexRows(writer, pending.poll());
+                        }
+                        pending.add(executor.submit(newIndexBuilderTask(batch)));
+                        batch = new ArrayList<>(mParallelBatchSize);
+                    }
+                    current = new ContactRows(contactId);
+                    batch.add(current);
+                }
+                String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
+                DataRowHandler dataRowHandler = mContactsProvider.getDataRowHandler(mimetype);
+                if (dataRowHandler.hasSearchableData()) {
+                    final String[] row = new String[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        row[i] = cursor.getString(i);
+                    }
+                    current.rows.add(row);
+                    current.handlers.add(dataRowHandler);
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.add(executor.submit(newIndexBuilderTask(batch)));
+            }
+            while (!pending.isEmpty()) {
+                count += writeIndexRows(writer, pending.poll());
+            }
+        } finally {
+            for (Future<List<IndexRow>> future : pending) {
+                future.cancel(true);
+            }
+            cursor.close();
+        }
+        return count;
+    }
+
+    private static Callable<List<IndexRow>> newIndexBuilderTask(List<ContactRows> batch) {
+        return () -> {
+            final IndexBuilder builder = sWorkerIndexBuilder.get();
+            final ArrayList<IndexRow> result = new ArrayList<>(batch.size());
+            try {
+                for (ContactRows contact : batch) {
+                    builder.reset();
+                    for (int i = 0; i < contact.rows.size(); i++) {
+                        builder.setRow(contact.rows.get(i));
+                        contact.handlers.get(i).appendSearchableData(builder);
+                        builder.commit();
+                    }
+                    result.add(new IndexRow(contact.contactId, builder));
+                }
+            } finally {
+                builder.setRow(null);
+            }
+            return result;
+        };
+    }
+
+    private int writeIndexRows(IndexWriter writer, Future<List<IndexRow>> future) {
+        final List<IndexRow> rows;
+        try {
+            rows = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building search index", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Failed to build search index", cause);
+        }
+        for (IndexRow row : rows) {
+            writer.write(row.contactId, row.content, row.name, row.tokens);
+        }
+        return rows.size();
+    }
+
+    private synchronized ThreadPoolExecutor getIndexBuilderExecutor() {
+        if (mIndexBuilderExecutor == null
+                || mIndexBuilderExecutor.getMaximumPoolSize() != mRebuildParallelism) {
+            if (mIndexBuilderExecutor != null) {
+                mIndexBuilderExecutor.shutdown();
+            }
+            // Threads only live while a rebuild is running.
+            mIndexBuilderExecutor = new ThreadPoolExecutor(mRebuildParallelism,
+                    mRebuildParallelism, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            mIndexBuilderExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mIndexBuilderExecutor;
+    }
+
+    private void writeIndexRow(IndexWriter writer, long contactId, IndexBuilder builder) {
+        writer.write(contactId, builder.getContent(), builder.getName(), builder.getTokens());
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("Search index stats:\n");
+        pw.printf("  rewritten=%d  skipped=%d  deleted=%d  deferred updates=%d\n",
+                mRewrittenRowCount, mSkippedRowCount, mDeletedRowCount, mCatchUpCount);
+    }
+
+    @VisibleForTesting
+    long getSkippedRowCount() {
+        return mSkippedRowCount;
+    }
+
+    @VisibleForTesting
+    long getRewrittenRowCount() {
+        return mRewrittenRowCount;
     }
 
     private int getSearchIndexVersion() {
@@ -443,11 +863,34 @@ public class SearchIndexManager {
         mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_VERSION, String.valueOf(version));
     }
 
+    private long getRebuildCursor() {
+        return Long.parseLong(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, "0"));
+    }
+
+    private void setRebuildCursor(long contactId) {
+        mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, String.valueOf(contactId));
+    }
+
     @VisibleForTesting
     void setMaxUpdateFilterContacts(int maxUpdateFilterContacts) {
         mMaxUpdateFilterContacts = maxUpdateFilterContacts;
     }
 
+    @VisibleForTesting
+    void setRebuildChunkSize(int rebuildChunkSize) {
+        mRebuildChunkSize = rebuildChunkSize;
+    }
+
+    @VisibleForTesting
+    void setRebuildParallelism(int rebuildParallelism) {
+        mRebuildParallelism = rebuildParallelism;
+    }
+
+    @VisibleForTesting
+    void setParallelBatchSize(int parallelBatchSize) {
+        mParallelBatchSize = parallelBatchSize;
+    }
+
     /**
      * Token separator that matches SQLite's "simple" tokenizer.
      * - Unicode codepoints >= 128: Everything
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.text.TextUtils;
+import android.util.ArraySet;
+
+import java.text.Collator;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges cursors that are each sorted by the same sort order into a single sorted cursor, e.g.
+ * the results of the personal and work profiles.  Rows that compare equal keep the order of the
+ * cursors.
+ * <p>
+ * Only sort orders on the columns clients commonly sort contacts by are supported, see
+ * {@link #create}.  Text is compared with the collator of the default locale unless the sort
+ * order asks for the {@code BINARY} or {@code NOCASE} collation, which is close to, but not
+ * always the same as, the order SQLite returned each cursor in.
+ */
+public class SortedMergeCursor extends AbstractCursor {
+
+    private static final ArraySet<String> SORTABLE_COLUMNS = new ArraySet<>(new String[] {
+            Contacts.DISPLAY_NAME_PRIMARY,
+            Contacts.DISPLAY_NAME_ALTERNATIVE,
+            Contacts.SORT_KEY_PRIMARY,
+            Contacts.SORT_KEY_ALTERNATIVE,
+            Contacts.TIMES_CONTACTED,
+            Contacts.LAST_TIME_CONTACTED,
+            Data.TIMES_USED,
+            Data.LAST_TIME_USED,
+    });
+
+    // Columns whose schema collation is PHONEBOOK, which they are sorted by by default.
+    private static final ArraySet<String> COLLATED_COLUMNS = new ArraySet<>(new String[] {
+            Contacts.SORT_KEY_PRIMARY,
+            Contacts.SORT_KEY_ALTERNATIVE,
+    });
+
+    private static final Pattern SORT_TERM_PATTERN = Pattern.compile(
+            "(?:\\w+\\.)?(\\w+)(?:\\s+COLLATE\\s+(\\w+))?(?:\\s+(ASC|DESC))?",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final int COLLATION_BINARY = 0;
+    private static final int COLLATION_NOCASE = 1;
+    private static final int COLLATION_LOCALIZED = 2;
+
+    private static final class SortTerm {
+        final int column;
+        final int collation;
+        final boolean descending;
+
+        SortTerm(int column, int collation, boolean descending) {
+            this.column = column;
+            this.collation = collation;
+            this.descending = descending;
+        }
+    }
+
+    private final Cursor[] mCursors;
+    private final String[] mColumnNames;
+
+    // The cursor and position within it of each row.
+    private final int[] mCursorIndices;
+    private final int[] mCursorPositions;
+
+    private Cursor mCursor;
+
+    /**
+     * Returns a cursor with the rows of the given cursors, merged according to
+     * {@code sortOrder}, or null if the sort order is not supported.  Sort orders are supported
+     * if they only use display names, sort keys and usage counts and times, which must be in
+     * the projection.  The cursors must have the same columns, and are closed with the returned
+     * cursor.
+     */
+    public static SortedMergeCursor create(Cursor[] cursors, String sortOrder) {
+        final SortTerm[] sortTerms = parseSortOrder(cursors[0], sortOrder);
+        if (sortTerms == null) {
+            return null;
+        }
+        return new SortedMergeCursor(cursors, sortTerms);
+    }
+
+    private static SortTerm[] parseSortOrder(Cursor cursor, String sortOrder) {
+        if (TextUtils.isEmpty(sortOrder)) {
+            return null;
+        }
+        final String[] terms = sortOrder.trim().split("\\s*,\\s*");
+        final SortTerm[] sortTerms = new SortTerm[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            final Matcher matcher = SORT_TERM_PATTERN.matcher(terms[i]);
+            if (!matcher.matches()) {
+                return null;
+            }
+            final String columnName = matcher.group(1);
+            final int column = cursor.getColumnIndex(columnName);
+            if (!SORTABLE_COLUMNS.contains(columnName) || column < 0) {
+                return null;
+            }
+            final String collation = matcher.group(2);
+            final int collationType;
+            if (collation == null) {
+                collationType = COLLATED_COLUMNS.contains(columnName)
+                        ? COLLATION_LOCALIZED : COLLATION_BINARY;
+            } else if (collation.equalsIgnoreCase("BINARY")) {
+                collationType = COLLATION_BINARY;
+            } else if (collation.equalsIgnoreCase("NOCASE")) {
+                collationType = COLLATION_NOCASE;
+            } else if (collation.equalsIgnoreCase("LOCALIZED")
+                    || collation.equalsIgnoreCase(ContactsProvider2.PHONEBOOK_COLLATOR_NAME)) {
+                collationType = COLLATION_LOCALIZED;
+            } else {
+                return null;
+            }
+            sortTerms[i] = new SortTerm(column, collationType,
+                    "DESC".equalsIgnoreCase(matcher.group(3)));
+        }
+        return sortTerms;
+    }
+
+    private SortedMergeCursor(Cursor[] cursors, SortTerm[] sortTerms) {
+        mCursors = cursors;
+        mColumnNames = cursors[0].getColumnNames();
+
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            count += cursor.getCount();
+        }
+        mCursorIndices = new int[count];
+        mCursorPositions = new int[count];
+
+        final Collator collator = Collator.getInstance(Locale.getDefault());
+        // The sort keys of the current row of each cursor, or null once it has no more rows.
+        final Object[][] heads = new Object[cursors.length][];
+        for (int i = 0; i < cursors.length; i++) {
+            heads[i] = readSortKeys(cursors[i], 0, sortTerms, collator);
+        }
+        for (int row = 0; row < count; row++) {
+            int next = -1;
+            for (int i = 0; i < cursors.length; i++) {
+                if (heads[i] != null
+                        && (next == -1 || compare(heads[i], heads[next], sortTerms) < 0)) {
+                    next = i;
+                }
+            }
+            mCursorIndices[row] = next;
+            mCursorPositions[row] = cursors[next].getPosition();
+            heads[next] = readSortKeys(cursors[next], cursors[next].getPosition() + 1,
+                    sortTerms, collator);
+        }
+    }
+
+    private static Object[] readSortKeys(Cursor cursor, int position, SortTerm[] sortTerms,
+            Collator collator) {
+        if (!cursor.moveToPosition(position)) {
+            return null;
+        }
+        final Object[] keys = new Object[sortTerms.length];
+        for (int i = 0; i < sortTerms.length; i++) {
+            final SortTerm sortTerm = sortTerms[i];
+            switch (cursor.getType(sortTerm.column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    keys[i] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    keys[i] = cursor.getLong(sortTerm.column);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    keys[i] = cursor.getDouble(sortTerm.column);
+                    break;
+                default:
+                    final String value = cursor.getString(sortTerm.column);
+                    if (sortTerm.collation == COLLATION_LOCALIZED) {
+                        keys[i] = collator.getCollationKey(value);
+                    } else if (sortTerm.collation == COLLATION_NOCASE) {
+                        keys[i] = value.toLowerCase(Locale.ROOT);
+                    } else {
+                        keys[i] = value;
+                    }
+                    break;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Compares sort keys the way SQLite does: nulls first, then numbers, then text.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Object[] keys1, Object[] keys2, SortTerm[] sortTerms) {
+        for (int i = 0; i < sortTerms.length; i++) {
+            final Object key1 = keys1[i];
+            final Object key2 = keys2[i];
+            final int rank1 = getTypeRank(key1);
+            final int rank2 = getTypeRank(key2);
+            int result;
+            if (rank1 != rank2) {
+                result = rank1 - rank2;
+            } else if (rank1 == 0) {
+                result = 0;
+            } else if (key1 instanceof Long && key2 instanceof Long) {
+                result = Long.compare((Long) key1, (Long) key2);
+            } else if (rank1 == 1) {
+                result = Double.compare(((Number) key1).doubleValue(),
+                        ((Number) key2).doubleValue());
+            } else {
+                result = ((Comparable<Object>) key1).compareTo(key2);
+            }
+            if (result != 0) {
+                return sortTerms[i].descending ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    private static int getTypeRank(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        return key instanceof Number ? 1 : 2;
+    }
+
+    @Override
+    public int getCount() {
+        return mCursorIndices.length;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mCursor = mCursors[mCursorIndices[newPosition]];
+        return mCursor.moveToPosition(mCursorPositions[newPosition]);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor cursor : mCursors) {
+            cursor.deactivate();
+        }
+        super.deactivate();
+    }
+
+    @Override
+    public void close() {
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+        super.close();
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        for (Cursor cursor : mCursors) {
+            cursor.registerContentObserver(observer);
+        }
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        for (Cursor cursor : mCursors) {
+            cursor.unregisterContentObserver(observer);
+        }
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        for (Cursor cursor : mCursors) {
+            cursor.registerDataSetObserver(observer);
+        }
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        for (Cursor cursor : mCursors) {
+            cursor.unregisterDataSetObserver(observer);
+        }
+    }
+}
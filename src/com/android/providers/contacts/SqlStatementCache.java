@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the statements compiled by the methods of a {@link ContactsDatabaseHelper} that run for
+ * every row inserted or updated, so that they are not compiled again on every call.  The contacts
+ * and profile databases have their own helper, and thus their own cache.
+ * <p>
+ * Statements must not be used by several threads at once, so each thread has its own, which it
+ * must not keep beyond the call that got them.  They are dropped once the database they were
+ * compiled for is closed or reopened, see {@link #invalidate}.
+ */
+public class SqlStatementCache {
+    private static final int MAX_STATEMENTS_PER_THREAD = 32;
+
+    /** The statements of one thread. */
+    private static final class ThreadStatements {
+        final LruCache<String, SQLiteStatement> statements =
+                new LruCache<String, SQLiteStatement>(MAX_STATEMENTS_PER_THREAD) {
+                    @Override
+                    protected void entryRemoved(boolean evicted, String sql,
+                            SQLiteStatement oldValue, SQLiteStatement newValue) {
+                        oldValue.close();
+                    }
+                };
+
+        // The database the statements were compiled for, and the generation of the cache then.
+        SQLiteDatabase db;
+        int generation;
+    }
+
+    private final ThreadLocal<ThreadStatements> mThreadStatements =
+            ThreadLocal.withInitial(ThreadStatements::new);
+
+    private volatile int mGeneration;
+
+    private final AtomicInteger mCompileCount = new AtomicInteger();
+    private final AtomicInteger mReuseCount = new AtomicInteger();
+
+    /**
+     * Returns the statement for the given SQL, compiled for the given database by the calling
+     * thread, with no bound arguments.  The statement belongs to the cache and must not be
+     * closed.
+     */
+    public SQLiteStatement get(SQLiteDatabase db, String sql) {
+        final ThreadStatements threadStatements = mThreadStatements.get();
+        final int generation = mGeneration;
+        if (threadStatements.db != db || threadStatements.generation != generation) {
+            threadStatements.statements.evictAll();
+            threadStatements.db = db;
+            threadStatements.generation = generation;
+        }
+        SQLiteStatement statement = threadStatements.statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            threadStatements.statements.put(sql, statement);
+            mCompileCount.incrementAndGet();
+        } else {
+            statement.clearBindings();
+            mReuseCount.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * Drops the statements of all threads, e.g. because the database is being closed.  Each
+     * thread closes its own the next time it uses the cache.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+        }
+        // The statements of the calling thread can be closed right away.
+        final ThreadStatements threadStatements = mThreadStatements.get();
+        threadStatements.statements.evictAll();
+        threadStatements.db = null;
+    }
+
+    @VisibleForTesting
+    int getCompileCount() {
+        return mCompileCount.get();
+    }
+
+    @VisibleForTesting
+    int getReuseCount() {
+        return mReuseCount.get();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("Statement cache: compiled=");
+        pw.print(mCompileCount.get());
+        pw.print(" reused=");
+        pw.println(mReuseCount.get());
+    }
+}
@@ -44,6 +44,17 @@ public class TransactionContext  {
     private ArraySet<Long> mChangedRawContacts;
     private ArraySet<Long> mStaleSearchIndexRawContacts;
     private ArraySet<Long> mStaleSearchIndexContacts;
+    private ArraySet<Long> mStaleNameLookupRawContacts;
+    // Contacts whose lookup keys may resolve differently.  Unlike the other changes, these are
+    // only applied once the transaction is committed, so they are kept until then.
+    private ArraySet<Long> mStaleLookupKeyContacts;
+    private boolean mAllLookupKeysStale;
+    // Min match keys of the phone lookup rows that were added or removed, also kept until the
+    // transaction is committed.
+    private ArraySet<String> mStalePhoneLookupMinMatches;
+    private boolean mFilterSessionsStale;
+    // Whether a sync adapter asked for the aggregation of this transaction to be deferred.
+    private boolean mAggregationDeferred;
     private ArrayMap<Long, Object> mUpdatedSyncStates;
 
     public TransactionContext(boolean forProfile) {
@@ -57,6 +68,8 @@ public class TransactionContext  {
     public void rawContactInserted(long rawContactId, long accountId) {
         if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = new ArrayMap<>();
         mInsertedRawContactsAccounts.put(rawContactId, accountId);
+        // The new raw contact may match the segments of any lookup key.
+        invalidateAllLookupKeys();
 
         markRawContactChangedOrDeletedOrInserted(rawContactId);
     }
@@ -99,6 +112,35 @@ public class TransactionContext  {
         mStaleSearchIndexContacts.add(contactId);
     }
 
+    public void invalidateNameLookupForRawContact(long rawContactId) {
+        if (mStaleNameLookupRawContacts == null) mStaleNameLookupRawContacts = new ArraySet<>();
+        mStaleNameLookupRawContacts.add(rawContactId);
+        // Lookup keys fall back to display names.
+        invalidateAllLookupKeys();
+    }
+
+    public void invalidateLookupKeysForContact(long contactId) {
+        if (mStaleLookupKeyContacts == null) mStaleLookupKeyContacts = new ArraySet<>();
+        mStaleLookupKeyContacts.add(contactId);
+    }
+
+    public void invalidateAllLookupKeys() {
+        mAllLookupKeysStale = true;
+    }
+
+    public void invalidatePhoneLookupMinMatch(String minMatch) {
+        if (mStalePhoneLookupMinMatches == null) mStalePhoneLookupMinMatches = new ArraySet<>();
+        mStalePhoneLookupMinMatches.add(minMatch);
+    }
+
+    public void invalidateFilterSessions() {
+        mFilterSessionsStale = true;
+    }
+
+    public void deferAggregation() {
+        mAggregationDeferred = true;
+    }
+
     public Set<Long> getInsertedRawContactIds() {
         if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = new ArrayMap<>();
         return mInsertedRawContactsAccounts.keySet();
@@ -129,6 +171,33 @@ public class TransactionContext  {
         return mStaleSearchIndexContacts;
     }
 
+    public Set<Long> getStaleNameLookupRawContactIds() {
+        if (mStaleNameLookupRawContacts == null) mStaleNameLookupRawContacts = new ArraySet<>();
+        return mStaleNameLookupRawContacts;
+    }
+
+    public Set<Long> getStaleLookupKeyContactIds() {
+        if (mStaleLookupKeyContacts == null) mStaleLookupKeyContacts = new ArraySet<>();
+        return mStaleLookupKeyContacts;
+    }
+
+    public boolean areAllLookupKeysStale() {
+        return mAllLookupKeysStale;
+    }
+
+    public Set<String> getStalePhoneLookupMinMatches() {
+        if (mStalePhoneLookupMinMatches == null) mStalePhoneLookupMinMatches = new ArraySet<>();
+        return mStalePhoneLookupMinMatches;
+    }
+
+    public boolean areFilterSessionsStale() {
+        return mFilterSessionsStale;
+    }
+
+    public boolean isAggregationDeferred() {
+        return mAggregationDeferred;
+    }
+
     public Set<Entry<Long, Object>> getUpdatedSyncStates() {
         if (mUpdatedSyncStates == null) mUpdatedSyncStates = new ArrayMap<>();
         return mUpdatedSyncStates.entrySet();
@@ -158,8 +227,34 @@ public class TransactionContext  {
         mStaleSearchIndexContacts = null;
     }
 
+    public void clearNameLookupUpdates() {
+        mStaleNameLookupRawContacts = null;
+    }
+
+    public void clearLookupKeyUpdates() {
+        mStaleLookupKeyContacts = null;
+        mAllLookupKeysStale = false;
+    }
+
+    public void clearPhoneLookupUpdates() {
+        mStalePhoneLookupMinMatches = null;
+    }
+
+    public void clearFilterSessionUpdates() {
+        mFilterSessionsStale = false;
+    }
+
+    public void clearDeferredAggregation() {
+        mAggregationDeferred = false;
+    }
+
     public void clearAll() {
         clearExceptSearchIndexUpdates();
         clearSearchIndexUpdates();
+        clearNameLookupUpdates();
+        clearLookupKeyUpdates();
+        clearPhoneLookupUpdates();
+        clearFilterSessionUpdates();
+        clearDeferredAggregation();
     }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.VoicemailContract;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Sends the broadcasts of {@link VoicemailNotifier}.
+ * <p>
+ * A visual voicemail client can change hundreds of voicemails in quick succession, each of which
+ * would otherwise be broadcast to every interested receiver.  The first broadcast of an action to
+ * a receiver is sent right away, but further ones within {@link #COALESCING_WINDOW_MILLIS} are
+ * merged into a single broadcast, sent at the end of the window.  The receivers of each action are
+ * resolved once, and cached until a package changes.
+ */
+public class VoicemailBroadcastDispatcher {
+    private static final String TAG = "VoicemailBroadcastDispatcher";
+
+    @VisibleForTesting
+    static final long COALESCING_WINDOW_MILLIS = 1000;
+
+    private static final int BACKGROUND_TASK_SEND_PENDING_BROADCAST = 0;
+
+    private static VoicemailBroadcastDispatcher sInstance;
+
+    /** The broadcasts of an action to one receiver. */
+    private static final class ReceiverState {
+        long lastSentTime;
+
+        // The broadcast to send at the end of the current window, if any, and what to send it
+        // with.
+        Intent pendingIntent;
+        Context pendingContext;
+        String pendingReceiverPermission;
+        Bundle pendingOptions;
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, List<ComponentName>> mReceivers = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ReceiverState> mReceiverStates = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private int mSentCount;
+
+    @GuardedBy("mLock")
+    private int mCoalescedCount;
+
+    private final ContactsTaskScheduler mTaskScheduler;
+
+    public static synchronized VoicemailBroadcastDispatcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new VoicemailBroadcastDispatcher();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    VoicemailBroadcastDispatcher() {
+        mTaskScheduler = new ContactsTaskScheduler(getClass().getSimpleName()) {
+            @Override
+            public void onPerformTask(int taskId, Object arg) {
+                if (taskId == BACKGROUND_TASK_SEND_PENDING_BROADCAST) {
+                    sendPendingBroadcast((String) arg);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the components that can receive the given intent action for the given uri.
+     */
+    public List<ComponentName> getReceivers(Context context, String intentAction, Uri uri) {
+        final String key = getReceiversKey(intentAction, uri);
+        synchronized (mLock) {
+            final List<ComponentName> receivers = mReceivers.get(key);
+            if (receivers != null) {
+                return receivers;
+            }
+        }
+
+        final Intent intent = new Intent(intentAction, uri);
+        final List<ComponentName> receivers = new ArrayList<>();
+        // For broadcast receivers ResolveInfo.activityInfo is the one that is populated.
+        for (ResolveInfo resolveInfo :
+                context.getPackageManager().queryBroadcastReceivers(intent, 0)) {
+            ActivityInfo activityInfo = resolveInfo.activityInfo;
+            receivers.add(new ComponentName(activityInfo.packageName, activityInfo.name));
+        }
+        final List<ComponentName> result = Collections.unmodifiableList(receivers);
+        synchronized (mLock) {
+            mReceivers.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Receivers match on the action, the uri and its MIME type.  The latter only depends on
+     * whether the uri is for a single item, so those are cached regardless of their ID.
+     */
+    private static String getReceiversKey(String intentAction, Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty() || !TextUtils.isDigitsOnly(segments.get(segments.size() - 1))) {
+            return intentAction + '|' + uri;
+        }
+        final Uri.Builder builder = uri.buildUpon().path(null);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return intentAction + '|' + builder.build() + "/#";
+    }
+
+    /**
+     * Forgets the cached receivers, as the given package may have added or removed some.
+     */
+    public void onPackageChanged(String packageName) {
+        synchronized (mLock) {
+            mReceivers.clear();
+        }
+    }
+
+    /**
+     * Sends a broadcast to the component of the given intent, or merges it with the broadcast
+     * pending for that component, action and base uri if one was sent less than
+     * {@link #COALESCING_WINDOW_MILLIS} ago.  Changes to different tables are never merged.
+     *
+     * @param baseUri the uri of the table that changed, which is broadcast if the merged
+     *         broadcasts are for different uris
+     * @param receiverPermission the permission receivers need, or null
+     * @param options the {@link android.app.BroadcastOptions} bundle, or null
+     */
+    public void sendBroadcast(Context context, Intent intent, Uri baseUri,
+            String receiverPermission, Bundle options) {
+        final String key = intent.getAction() + '|' + intent.getComponent().flattenToString()
+                + '|' + baseUri;
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mLock) {
+            ReceiverState state = mReceiverStates.get(key);
+            if (state == null) {
+                state = new ReceiverState();
+                mReceiverStates.put(key, state);
+            } else if (state.pendingIntent != null) {
+                mergeIntent(state.pendingIntent, intent, baseUri);
+                state.pendingContext = context;
+                state.pendingReceiverPermission = receiverPermission;
+                state.pendingOptions = options;
+                mCoalescedCount++;
+                return;
+            } else if (now - state.lastSentTime < COALESCING_WINDOW_MILLIS) {
+                state.pendingIntent = new Intent(intent);
+                state.pendingContext = context;
+                state.pendingReceiverPermission = receiverPermission;
+                state.pendingOptions = options;
+                mTaskScheduler.scheduleTask(BACKGROUND_TASK_SEND_PENDING_BROADCAST, key,
+                        state.lastSentTime + COALESCING_WINDOW_MILLIS - now);
+                return;
+            }
+            state.lastSentTime = now;
+            mSentCount++;
+        }
+        send(context, intent, receiverPermission, options);
+    }
+
+    /**
+     * Merges a broadcast into the pending one: a single voicemail if both are for the same one,
+     * and a self change only if both are.
+     */
+    private static void mergeIntent(Intent pendingIntent, Intent intent, Uri baseUri) {
+        if (!Objects.equals(pendingIntent.getData(), intent.getData())) {
+            pendingIntent.setData(baseUri);
+        }
+        if (pendingIntent.hasExtra(VoicemailContract.EXTRA_SELF_CHANGE)) {
+            if (!intent.hasExtra(VoicemailContract.EXTRA_SELF_CHANGE)) {
+                pendingIntent.removeExtra(VoicemailContract.EXTRA_SELF_CHANGE);
+            } else if (!intent.getBooleanExtra(VoicemailContract.EXTRA_SELF_CHANGE, false)) {
+                pendingIntent.putExtra(VoicemailContract.EXTRA_SELF_CHANGE, false);
+            }
+        }
+    }
+
+    private void sendPendingBroadcast(String key) {
+        final Intent intent;
+        final Context context;
+        final String receiverPermission;
+        final Bundle options;
+        synchronized (mLock) {
+            final ReceiverState state = mReceiverStates.get(key);
+            if (state == null || state.pendingIntent == null) {
+                return;
+            }
+            intent = state.pendingIntent;
+            context = state.pendingContext;
+            receiverPermission = state.pendingReceiverPermission;
+            options = state.pendingOptions;
+            state.pendingIntent = null;
+            state.pendingContext = null;
+            state.pendingReceiverPermission = null;
+            state.pendingOptions = null;
+            state.lastSentTime = SystemClock.uptimeMillis();
+            mSentCount++;
+        }
+        send(context, intent, receiverPermission, options);
+    }
+
+    private static void send(Context context, Intent intent, String receiverPermission,
+            Bundle options) {
+        if (options != null) {
+            context.sendBroadcast(intent, receiverPermission, options);
+        } else if (receiverPermission != null) {
+            context.sendBroadcast(intent, receiverPermission);
+        } else {
+            context.sendBroadcast(intent);
+        }
+        Log.v(TAG, String.format("Sent intent. act:%s, url:%s, comp:%s, self_change:%s",
+                intent.getAction(), intent.getData(), intent.getComponent().getClassName(),
+                intent.hasExtra(VoicemailContract.EXTRA_SELF_CHANGE)
+                        ? intent.getBooleanExtra(VoicemailContract.EXTRA_SELF_CHANGE, false)
+                        : null));
+    }
+
+    @VisibleForTesting
+    int getSentCount() {
+        synchronized (mLock) {
+            return mSentCount;
+        }
+    }
+
+    @VisibleForTesting
+    int getCoalescedCount() {
+        synchronized (mLock) {
+            return mCoalescedCount;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Voicemail broadcasts: sent=" + mSentCount + " coalesced=" + mCoalescedCount
+                    + " cachedReceiverLists=" + mReceivers.size());
+        }
+    }
+}
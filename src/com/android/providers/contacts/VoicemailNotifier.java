@@ -4,8 +4,6 @@ import android.app.BroadcastOptions;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
-import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.provider.VoicemailContract;
@@ -14,7 +12,6 @@ import android.util.Log;
 
 import com.google.android.collect.Lists;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -22,7 +19,8 @@ import java.util.Set;
 /**
  * Aggregates voicemail broadcasts from multiple operations in to a single one. The URIs will be
  * {@link VoicemailContract.Voicemails#DIR_TYPE} instead of {@link
- * VoicemailContract.Voicemails#ITEM_TYPE} if multiple URIs is notified.
+ * VoicemailContract.Voicemails#ITEM_TYPE} if multiple URIs is notified. The broadcasts are sent
+ * through {@link VoicemailBroadcastDispatcher}, which also coalesces them across operations.
  */
 public class VoicemailNotifier {
 
@@ -38,6 +36,7 @@ public class VoicemailNotifier {
     private final Uri mBaseUri;
 
     private final VoicemailPermissions mVoicemailPermissions;
+    private final VoicemailBroadcastDispatcher mDispatcher;
 
     private final Set<String> mIntentActions = new ArraySet<>();
     private final Set<String> mModifiedPackages = new ArraySet<>();
@@ -47,6 +46,7 @@ public class VoicemailNotifier {
         mContext = context;
         mBaseUri = baseUri;
         mVoicemailPermissions = new VoicemailPermissions(mContext);
+        mDispatcher = VoicemailBroadcastDispatcher.getInstance();
     }
 
     public void addIntentActions(String action) {
@@ -69,10 +69,10 @@ public class VoicemailNotifier {
         for (String intentAction : mIntentActions) {
             // self_change extra should be included only for provider_changed events.
             boolean includeSelfChangeExtra = intentAction.equals(Intent.ACTION_PROVIDER_CHANGED);
-            Log.i(TAG, "receivers for " + intentAction + " :" + getBroadcastReceiverComponents(
-                    intentAction, uri));
-            for (ComponentName component :
-                    getBroadcastReceiverComponents(intentAction, uri)) {
+            final List<ComponentName> receivers =
+                    mDispatcher.getReceivers(mContext, intentAction, uri);
+            Log.i(TAG, "receivers for " + intentAction + " :" + receivers);
+            for (ComponentName component : receivers) {
                 boolean hasFullReadAccess =
                         mVoicemailPermissions.packageHasReadAccess(component.getPackageName());
                 boolean hasOwnAccess =
@@ -97,18 +97,11 @@ public class VoicemailNotifier {
                     bopts.setTemporaryAppWhitelistDuration(VOICEMAIL_ALLOW_LIST_DURATION_MILLIS);
                     Log.i(TAG, String.format("sendNotification: allowMillis=%d, pkg=%s",
                             VOICEMAIL_ALLOW_LIST_DURATION_MILLIS, component.getPackageName()));
-                    mContext.sendBroadcast(intent, android.Manifest.permission.READ_VOICEMAIL,
-                            bopts.toBundle());
+                    mDispatcher.sendBroadcast(mContext, intent, mBaseUri,
+                            android.Manifest.permission.READ_VOICEMAIL, bopts.toBundle());
                 } else {
-                    mContext.sendBroadcast(intent);
+                    mDispatcher.sendBroadcast(mContext, intent, mBaseUri, null, null);
                 }
-
-                Log.v(TAG, String.format("Sent intent. act:%s, url:%s, comp:%s," +
-                                " self_change:%s", intent.getAction(), intent.getData(),
-                        component.getClassName(),
-                        intent.hasExtra(VoicemailContract.EXTRA_SELF_CHANGE) ?
-                                intent.getBooleanExtra(VoicemailContract.EXTRA_SELF_CHANGE, false) :
-                                null));
             }
         }
         mIntentActions.clear();
@@ -127,19 +120,4 @@ public class VoicemailNotifier {
         }
         return Lists.newArrayList(mContext.getPackageManager().getPackagesForUid(caller));
     }
-
-    /**
-     * Determines the components that can possibly receive the specified intent.
-     */
-    private List<ComponentName> getBroadcastReceiverComponents(String intentAction, Uri uri) {
-        Intent intent = new Intent(intentAction, uri);
-        List<ComponentName> receiverComponents = new ArrayList<ComponentName>();
-        // For broadcast receivers ResolveInfo.activityInfo is the one that is populated.
-        for (ResolveInfo resolveInfo :
-                mContext.getPackageManager().queryBroadcastReceivers(intent, 0)) {
-            ActivityInfo activityInfo = resolveInfo.activityInfo;
-            receiverComponents.add(new ComponentName(activityInfo.packageName, activityInfo.name));
-        }
-        return receiverComponents;
-    }
 }
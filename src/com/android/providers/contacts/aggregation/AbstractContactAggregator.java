@@ -73,6 +73,7 @@ import android.util.EventLog;
 import android.util.Log;
 import android.util.Slog;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -479,9 +480,16 @@ public abstract class AbstractContactAggregator {
             Log.d(TAG, "aggregateInTransaction: initial query done.");
         }
 
-        for (int i = 0; i < actualCount; i++) {
-            aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
-                    mCandidates);
+        beginBatchAggregation(db, rawContactIds, actualCount);
+        try {
+            for (int i = 0; i < actualCount; i++) {
+                // The raw contact may leave its contact.
+                txContext.invalidateLookupKeysForContact(contactIds[i]);
+                aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
+                        mCandidates);
+            }
+        } finally {
+            endBatchAggregation(db);
         }
 
         long elapsedTime = System.currentTimeMillis() - start;
@@ -494,6 +502,38 @@ public abstract class AbstractContactAggregator {
         }
     }
 
+    /**
+     * Brings in-memory data derived from the name lookup table up to date with the raw contacts
+     * whose name lookup rows changed in the transaction.  Call before aggregating.
+     */
+    public void updateNameLookupIndex(TransactionContext txContext, SQLiteDatabase db) {
+        txContext.clearNameLookupUpdates();
+    }
+
+    /**
+     * Drops in-memory data derived from the name lookup table, e.g. after it has been rebuilt or
+     * a transaction that changed it has been rolled back.
+     */
+    public void invalidateNameLookupIndex() {
+    }
+
+    public void dump(PrintWriter pw) {
+    }
+
+    /**
+     * Called by {@link #aggregateInTransaction} before the marked raw contacts are aggregated one
+     * by one.  Subclasses may use it to load data for the whole set up front.
+     */
+    protected void beginBatchAggregation(SQLiteDatabase db, long[] rawContactIds, int count) {
+    }
+
+    /**
+     * Called by {@link #aggregateInTransaction} after all marked raw contacts have been
+     * aggregated, even if aggregation failed.
+     */
+    protected void endBatchAggregation(SQLiteDatabase db) {
+    }
+
     @SuppressWarnings("deprecation")
     public final void triggerAggregation(TransactionContext txContext, long rawContactId) {
         if (!mEnabled) {
@@ -631,6 +671,39 @@ public abstract class AbstractContactAggregator {
         return count;
     }
 
+    /**
+     * Marks for aggregation up to {@code limit} raw contacts that still have
+     * {@link RawContactsColumns#AGGREGATION_NEEDED} set and an ID greater than
+     * {@code fromRawContactId}, in ID order, with their own aggregation mode.
+     *
+     * @return the ID of the last raw contact marked, or -1 if none was found
+     */
+    public final long markNextForAggregation(SQLiteDatabase db, long fromRawContactId,
+            int limit) {
+        long lastRawContactId = -1;
+        final Cursor cursor = db.rawQuery("SELECT " + RawContacts._ID + ","
+                + RawContacts.AGGREGATION_MODE +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContactsColumns.AGGREGATION_NEEDED + "=1 AND " +
+                RawContacts.DELETED + "=0 AND " +
+                RawContacts._ID + ">?" +
+                " ORDER BY " + RawContacts._ID +
+                " LIMIT " + limit, new String[] {String.valueOf(fromRawContactId)});
+        try {
+            while (cursor.moveToNext()) {
+                lastRawContactId = cursor.getLong(0);
+                mRawContactsMarkedForAggregation.put(lastRawContactId, cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return lastRawContactId;
+    }
+
+    public final int getPendingAggregationCount() {
+        return mRawContactsMarkedForAggregation.size();
+    }
+
     /**
      * Creates a new contact based on the given raw contact.  Does not perform aggregation.  Returns
      * the ID of the contact that was created.
@@ -688,6 +761,7 @@ public abstract class AbstractContactAggregator {
             cursor.close();
         }
 
+        txContext.invalidateLookupKeysForContact(contactId);
         aggregateContact(txContext, db, rawContactId, accountId, contactId,
                 candidates);
     }
@@ -701,6 +775,7 @@ public abstract class AbstractContactAggregator {
         computeAggregateData(db, contactId, mContactUpdate);
         mContactUpdate.bindLong(ContactReplaceSqlStatement.CONTACT_ID, contactId);
         mContactUpdate.execute();
+        txContext.invalidateLookupKeysForContact(contactId);
 
         mDbHelper.updateContactVisible(txContext, contactId);
         updateAggregatedStatusUpdate(contactId);
@@ -220,6 +220,7 @@ public class ContactAggregator extends AbstractContactAggregator {
 
                 mAggregatedPresenceDelete.bindLong(1, currentContactId);
                 mAggregatedPresenceDelete.execute();
+                txContext.invalidateLookupKeysForContact(currentContactId);
             }
 
             clearSuperPrimarySetting(db, contactId, rawContactId);
@@ -227,6 +228,7 @@ public class ContactAggregator extends AbstractContactAggregator {
             computeAggregateData(db, contactId, mContactUpdate);
             mContactUpdate.bindLong(ContactReplaceSqlStatement.CONTACT_ID, contactId);
             mContactUpdate.execute();
+            txContext.invalidateLookupKeysForContact(contactId);
             mDbHelper.updateContactVisible(txContext, contactId);
             updateAggregatedStatusUpdate(contactId);
             // Make sure the raw contact does not contribute to the current contact
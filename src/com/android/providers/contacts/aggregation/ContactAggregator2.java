@@ -23,6 +23,7 @@ import static com.android.providers.contacts.aggregation.util.RawContactMatcher.
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Identity;
@@ -33,9 +34,11 @@ import android.provider.ContactsContract.FullNameStyle;
 import android.provider.ContactsContract.PhotoFiles;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.providers.contacts.ContactsDatabaseHelper;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
@@ -49,6 +52,8 @@ import com.android.providers.contacts.PhotoPriorityResolver;
 import com.android.providers.contacts.TransactionContext;
 import com.android.providers.contacts.aggregation.util.ContactAggregatorHelper;
 import com.android.providers.contacts.aggregation.util.MatchScore;
+import com.android.providers.contacts.aggregation.util.NameLookupIndex;
+import com.android.providers.contacts.aggregation.util.NameLookupIndex.RawContactNames;
 import com.android.providers.contacts.aggregation.util.RawContactMatcher;
 import com.android.providers.contacts.aggregation.util.RawContactMatchingCandidates;
 import com.android.providers.contacts.database.ContactsTableUtil;
@@ -57,7 +62,9 @@ import com.google.android.collect.Sets;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -74,8 +81,32 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     private static final int KEEP_INTACT = 0;
     private static final int RE_AGGREGATE = -1;
 
+    // If at least this many raw contacts are marked for aggregation in a transaction, their
+    // candidate matches are loaded with a few bulk joins up front instead of one set of queries
+    // per raw contact.
+    private static final int DEFAULT_BATCH_AGGREGATION_THRESHOLD = 50;
+
     private final RawContactMatcher mMatcher = new RawContactMatcher();
 
+    // Matchers reused by aggregateContact() for the raw contact being aggregated and for the
+    // candidates it transitively matches, so that their scores are pooled across raw contacts.
+    private final RawContactMatcher mAggregationMatcher = new RawContactMatcher();
+    private final RawContactMatcher mTransitiveMatcher = new RawContactMatcher();
+
+    private final NameLookupIndex mNameLookupIndex =
+            new NameLookupIndex(NameLookupIndex.DEFAULT_MAX_ROW_COUNT);
+
+    private int mBatchAggregationThreshold = DEFAULT_BATCH_AGGREGATION_THRESHOLD;
+
+    // Raw contacts whose candidate matches are in the batch tables, or null outside of batch
+    // aggregation.  The tables are temporary, so only mBatchThread, which owns the transaction
+    // and its connection, may read them.
+    private Set<Long> mBatchRawContactIds;
+    private Thread mBatchThread;
+
+    // Raw contacts in mBatchRawContactIds without a structured name.
+    private Set<Long> mBatchRawContactIdsWithoutName;
+
     /**
      * Constructor.
      */
@@ -85,6 +116,216 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         super(contactsProvider, contactsDatabaseHelper, photoPriorityResolver, nameSplitter);
     }
 
+    @VisibleForTesting
+    void setBatchAggregationThreshold(int threshold) {
+        mBatchAggregationThreshold = threshold;
+    }
+
+    @VisibleForTesting
+    NameLookupIndex getNameLookupIndex() {
+        return mNameLookupIndex;
+    }
+
+    @Override
+    public void updateNameLookupIndex(TransactionContext txContext, SQLiteDatabase db) {
+        final Set<Long> rawContactIds = txContext.getStaleNameLookupRawContactIds();
+        if (!rawContactIds.isEmpty()) {
+            mNameLookupIndex.refreshRawContacts(db, rawContactIds);
+            txContext.clearNameLookupUpdates();
+        }
+    }
+
+    @Override
+    public void invalidateNameLookupIndex() {
+        mNameLookupIndex.invalidate();
+    }
+
+    @Override
+    public void dump(PrintWriter pw) {
+        mNameLookupIndex.dump(pw);
+    }
+
+    /**
+     * Loads name, identity, email and phone matches of all raw contacts marked for aggregation
+     * into temporary tables with one join each.  The matches are stored without the current
+     * contact ID of the matching raw contacts, which changes as the batch is aggregated, so
+     * {@link #aggregateContact} still resolves it when scoring each raw contact and gets the same
+     * result as the per raw contact queries.
+     * <p>
+     * Like those queries, only the first {@link #PRIMARY_HIT_LIMIT} name matches and
+     * {@link #SECONDARY_HIT_LIMIT} email and phone matches of each raw contact are kept, in the
+     * order {@link #mNameLookupIndex} and the table scans return them.  Matching raw contacts that
+     * are neither visible nor part of the batch are left out before counting, as they can't
+     * become visible while the batch is aggregated unless their contact changes.
+     */
+    @Override
+    protected void beginBatchAggregation(SQLiteDatabase db, long[] rawContactIds, int count) {
+        if (count < mBatchAggregationThreshold) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        dropBatchTables(db);
+        db.execSQL("CREATE TEMP TABLE " + BatchTables.RAW_CONTACT_IDS + " ("
+                + RawContacts._ID + " INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TEMP TABLE " + BatchTables.NAME_MATCHES + " ("
+                + BatchColumns.RAW_CONTACT_ID + " INTEGER NOT NULL,"
+                + BatchColumns.MATCH_RAW_CONTACT_ID + " INTEGER NOT NULL,"
+                + NameLookupColumns.NORMALIZED_NAME + " TEXT,"
+                + BatchColumns.NAME_TYPE + " INTEGER,"
+                + BatchColumns.MATCH_NAME_TYPE + " INTEGER,"
+                + BatchColumns.HIT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TEMP TABLE " + BatchTables.DATA_MATCHES + " ("
+                + BatchColumns.RAW_CONTACT_ID + " INTEGER NOT NULL,"
+                + BatchColumns.MATCH_RAW_CONTACT_ID + " INTEGER NOT NULL,"
+                + BatchColumns.MATCH_TYPE + " INTEGER NOT NULL,"
+                + BatchColumns.HIT + " INTEGER NOT NULL)");
+
+        final Set<Long> batchRawContactIds = new HashSet<>(count);
+        final SQLiteStatement insert = db.compileStatement(
+                "INSERT OR IGNORE INTO " + BatchTables.RAW_CONTACT_IDS + " VALUES (?)");
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindLong(1, rawContactIds[i]);
+                insert.executeInsert();
+                batchRawContactIds.add(rawContactIds[i]);
+            }
+        } finally {
+            insert.close();
+        }
+
+        // Name matches are counted per name of the raw contact and then per matching row, the
+        // same way updateMatchScoresBasedOnIndexedNameMatches() walks the index.
+        db.execSQL("INSERT INTO " + BatchTables.NAME_MATCHES
+                + " SELECT * FROM (SELECT nameA." + NameLookupColumns.RAW_CONTACT_ID
+                + ", nameB." + NameLookupColumns.RAW_CONTACT_ID
+                + " AS " + BatchColumns.MATCH_RAW_CONTACT_ID
+                + ", nameA." + NameLookupColumns.NORMALIZED_NAME
+                + ", nameA." + NameLookupColumns.NAME_TYPE
+                + ", nameB." + NameLookupColumns.NAME_TYPE
+                + " AS " + BatchColumns.MATCH_NAME_TYPE
+                + ", ROW_NUMBER() OVER (PARTITION BY nameA." + NameLookupColumns.RAW_CONTACT_ID
+                + " ORDER BY nameA.rowid, nameB.rowid) AS " + BatchColumns.HIT
+                + " FROM " + NameLookupMatchQuery.TABLE
+                + " WHERE nameA." + NameLookupColumns.RAW_CONTACT_ID
+                + " IN " + BatchTables.RAW_CONTACT_ID_SELECT
+                + " AND nameA." + NameLookupColumns.NAME_TYPE
+                + " IN " + NameLookupIndex.INDEXED_NAME_TYPES
+                + " AND nameB." + NameLookupColumns.NAME_TYPE
+                + " IN " + NameLookupIndex.INDEXED_NAME_TYPES
+                + " AND " + BatchTables.MAY_BE_VISIBLE_SELECTION + ")"
+                + " WHERE " + BatchColumns.HIT + "<=" + PRIMARY_HIT_LIMIT);
+
+        final String[] mimeTypeArgs = new String[1];
+        mimeTypeArgs[0] = String.valueOf(mMimeTypeIdIdentity);
+        // Identity matches are not limited, like in IdentityLookupMatchQuery.
+        db.execSQL(buildBatchDataMatchInsertSql(IdentityLookupMatchQuery.TABLE,
+                BatchMatchType.IDENTITY, "dataA." + DataColumns.MIMETYPE_ID + "=?1"
+                        + " AND dataA." + Identity.NAMESPACE + " NOT NULL"
+                        + " AND dataA." + Identity.IDENTITY + " NOT NULL"
+                        + " AND dataB." + DataColumns.MIMETYPE_ID + "=?1", 0), mimeTypeArgs);
+        mimeTypeArgs[0] = String.valueOf(mMimeTypeIdEmail);
+        db.execSQL(buildBatchDataMatchInsertSql(EmailLookupQuery.TABLE,
+                BatchMatchType.EMAIL, "dataA." + DataColumns.MIMETYPE_ID + "=?1"
+                        + " AND dataA." + Email.DATA + " NOT NULL"
+                        + " AND dataB." + DataColumns.MIMETYPE_ID + "=?1",
+                SECONDARY_HIT_LIMIT), mimeTypeArgs);
+
+        final String useStrictPhoneNumberComparison =
+                mDbHelper.getUseStrictPhoneNumberComparisonParameter();
+        if (useStrictPhoneNumberComparison.equals("1")) {
+            db.execSQL(buildBatchDataMatchInsertSql(PhoneLookupQuery.TABLE, BatchMatchType.PHONE,
+                    "PHONE_NUMBERS_EQUAL(dataA." + Phone.NUMBER + ", dataB." + Phone.NUMBER
+                            + ",?)", SECONDARY_HIT_LIMIT),
+                    new String[] {useStrictPhoneNumberComparison});
+        } else {
+            db.execSQL(buildBatchDataMatchInsertSql(PhoneLookupQuery.TABLE, BatchMatchType.PHONE,
+                    "PHONE_NUMBERS_EQUAL(dataA." + Phone.NUMBER + ", dataB." + Phone.NUMBER
+                            + ",?,?)", SECONDARY_HIT_LIMIT),
+                    new String[] {useStrictPhoneNumberComparison,
+                            mDbHelper.getMinMatchParameter()});
+        }
+
+        db.execSQL("CREATE INDEX " + BatchTables.NAME_MATCHES + "_index ON "
+                + BatchTables.NAME_MATCHES + " (" + BatchColumns.RAW_CONTACT_ID + ","
+                + BatchColumns.HIT + ")");
+        db.execSQL("CREATE INDEX " + BatchTables.DATA_MATCHES + "_index ON "
+                + BatchTables.DATA_MATCHES + " (" + BatchColumns.RAW_CONTACT_ID + ","
+                + BatchColumns.MATCH_TYPE + "," + BatchColumns.HIT + ")");
+
+        // Same as rawContactWithoutName(): only the first name lookup row of each raw contact
+        // is considered.
+        final Set<Long> seenRawContactIds = new HashSet<>(count);
+        final Set<Long> rawContactIdsWithoutName = new HashSet<>();
+        final Cursor c = db.query(NullNameRawContactsIdsQuery.TABLE,
+                NullNameRawContactsIdsQuery.COLUMNS,
+                RawContacts._ID + " IN " + BatchTables.RAW_CONTACT_ID_SELECT,
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final long rawContactId = c.getLong(NullNameRawContactsIdsQuery.RAW_CONTACT_ID);
+                if (seenRawContactIds.add(rawContactId)
+                        && TextUtils.isEmpty(c.getString(NullNameRawContactsIdsQuery.NAME))) {
+                    rawContactIdsWithoutName.add(rawContactId);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        mBatchRawContactIds = batchRawContactIds;
+        mBatchRawContactIdsWithoutName = rawContactIdsWithoutName;
+        mBatchThread = Thread.currentThread();
+
+        if (DEBUG_LOGGING) {
+            Log.d(TAG, "beginBatchAggregation: loaded matches for " + count + " raw contacts in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    @Override
+    protected void endBatchAggregation(SQLiteDatabase db) {
+        if (mBatchRawContactIds == null) {
+            return;
+        }
+        mBatchRawContactIds = null;
+        mBatchRawContactIdsWithoutName = null;
+        mBatchThread = null;
+        dropBatchTables(db);
+    }
+
+    /**
+     * Returns the statement inserting the matches of the given type into
+     * {@link BatchTables#DATA_MATCHES}, keeping at most {@code hitLimit} of them per raw contact
+     * unless it is 0.
+     */
+    private static String buildBatchDataMatchInsertSql(String table, int matchType,
+            String selection, int hitLimit) {
+        return "INSERT INTO " + BatchTables.DATA_MATCHES
+                + " SELECT * FROM (SELECT dataA." + Data.RAW_CONTACT_ID
+                + ", " + Tables.RAW_CONTACTS + "." + RawContacts._ID
+                + ", " + matchType
+                + ", ROW_NUMBER() OVER (PARTITION BY dataA." + Data.RAW_CONTACT_ID
+                + " ORDER BY dataA." + Data._ID + ", dataB." + Data._ID
+                + ") AS " + BatchColumns.HIT
+                + " FROM " + table
+                + " WHERE dataA." + Data.RAW_CONTACT_ID + " IN " + BatchTables.RAW_CONTACT_ID_SELECT
+                + " AND " + BatchTables.MAY_BE_VISIBLE_SELECTION
+                + " AND " + selection + ")"
+                + (hitLimit > 0 ? " WHERE " + BatchColumns.HIT + "<=" + hitLimit : "");
+    }
+
+    private static void dropBatchTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + BatchTables.RAW_CONTACT_IDS);
+        db.execSQL("DROP TABLE IF EXISTS " + BatchTables.NAME_MATCHES);
+        db.execSQL("DROP TABLE IF EXISTS " + BatchTables.DATA_MATCHES);
+    }
+
+    private boolean isInAggregationBatch(long rawContactId) {
+        return mBatchThread == Thread.currentThread()
+                && mBatchRawContactIds.contains(rawContactId);
+    }
+
     /**
      * Given a specific raw contact, finds all matching raw contacts and re-aggregate them
      * based on the matching connectivity.
@@ -100,6 +341,10 @@ public class ContactAggregator2 extends AbstractContactAggregator {
              return;
          }
 
+         // Raw contacts with AGGREGATION_MODE_IMMEDIATE are aggregated before the transaction
+         // commits, so pick up the name changes made so far.
+         updateNameLookupIndex(txContext, db);
+
          if (VERBOSE_LOGGING) {
             Log.v(TAG, "aggregateContact: rid=" + rawContactId + " cid=" + currentContactId);
         }
@@ -111,7 +356,8 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             aggregationMode = aggModeObject;
         }
 
-        RawContactMatcher matcher = new RawContactMatcher();
+        RawContactMatcher matcher = mAggregationMatcher;
+        matcher.clear();
         RawContactMatchingCandidates matchingCandidates = new RawContactMatchingCandidates();
         if (aggregationMode == RawContacts.AGGREGATION_MODE_DEFAULT) {
             // If this is a newly inserted contact or a visible contact, look for
@@ -222,15 +468,18 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             }
             final Set<Long> tmpIdSet = new ArraySet<>();
             for (long rId : newIds) {
-                final RawContactMatcher rMatcher = new RawContactMatcher();
-                updateMatchScores(db, rId, new MatchCandidateList(),
-                        rMatcher);
+                final RawContactMatcher rMatcher = mTransitiveMatcher;
+                rMatcher.clear();
+                updateMatchScores(db, rId, candidates, rMatcher);
                 List<MatchScore> newMatches = rMatcher.pickBestMatches();
                 for (MatchScore newMatch : newMatches) {
                     final long newRawContactId = newMatch.getRawContactId();
                     if (!matchingCandidates.getRawContactIdSet().contains(newRawContactId)) {
                         tmpIdSet.add(newRawContactId);
-                        matchingCandidates.add(newMatch);
+                        // The matcher's scores are reused for the next raw contact, so keep a
+                        // copy.
+                        matchingCandidates.add(new MatchScore(newRawContactId,
+                                newMatch.getContactId(), newMatch.getAccountId()));
                     }
                 }
             }
@@ -388,6 +637,7 @@ public class ContactAggregator2 extends AbstractContactAggregator {
                     ContactsTableUtil.deleteContact(db, cid);
                     mAggregatedPresenceDelete.bindLong(1, cid);
                     mAggregatedPresenceDelete.execute();
+                    txContext.invalidateLookupKeysForContact(cid);
                     if (cp2SyncSearchIndexFlag()) {
                         // Make sure we remove the obsolete contact id from search index
                         txContext.invalidateSearchIndexForContact(cid);
@@ -563,10 +813,18 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     private void updateMatchScoresBasedOnIdentityMatch(SQLiteDatabase db, long rawContactId,
             RawContactMatcher matcher) {
         mSelectionArgs2[0] = String.valueOf(rawContactId);
-        mSelectionArgs2[1] = String.valueOf(mMimeTypeIdIdentity);
-        Cursor c = db.query(IdentityLookupMatchQuery.TABLE, IdentityLookupMatchQuery.COLUMNS,
-                IdentityLookupMatchQuery.SELECTION,
-                mSelectionArgs2, RawContacts.CONTACT_ID, null, null);
+        Cursor c;
+        if (isInAggregationBatch(rawContactId)) {
+            mSelectionArgs2[1] = String.valueOf(BatchMatchType.IDENTITY);
+            c = db.query(BatchDataMatchQuery.TABLE, BatchDataMatchQuery.COLUMNS,
+                    BatchDataMatchQuery.SELECTION,
+                    mSelectionArgs2, RawContacts.CONTACT_ID, null, null);
+        } else {
+            mSelectionArgs2[1] = String.valueOf(mMimeTypeIdIdentity);
+            c = db.query(IdentityLookupMatchQuery.TABLE, IdentityLookupMatchQuery.COLUMNS,
+                    IdentityLookupMatchQuery.SELECTION,
+                    mSelectionArgs2, RawContacts.CONTACT_ID, null, null);
+        }
         try {
             while (c.moveToNext()) {
                 final long rId = c.getLong(IdentityLookupMatchQuery.RAW_CONTACT_ID);
@@ -588,9 +846,16 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     private void updateMatchScoresBasedOnNameMatches(SQLiteDatabase db, long rawContactId,
             RawContactMatcher matcher) {
         mSelectionArgs1[0] = String.valueOf(rawContactId);
-        Cursor c = db.query(NameLookupMatchQuery.TABLE, NameLookupMatchQuery.COLUMNS,
-                NameLookupMatchQuery.SELECTION,
-                mSelectionArgs1, null, null, null, PRIMARY_HIT_LIMIT_STRING);
+        Cursor c;
+        if (isInAggregationBatch(rawContactId)) {
+            c = db.query(BatchNameMatchQuery.TABLE, BatchNameMatchQuery.COLUMNS,
+                    BatchNameMatchQuery.SELECTION,
+                    mSelectionArgs1, null, null, BatchColumns.HIT, PRIMARY_HIT_LIMIT_STRING);
+        } else {
+            c = db.query(NameLookupMatchQuery.TABLE, NameLookupMatchQuery.COLUMNS,
+                    NameLookupMatchQuery.SELECTION,
+                    mSelectionArgs1, null, null, null, PRIMARY_HIT_LIMIT_STRING);
+        }
         try {
             while (c.moveToNext()) {
                 long rId =  c.getLong(NameLookupMatchQuery.RAW_CONTACT_ID);
@@ -614,13 +879,101 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         }
     }
 
+    /**
+     * Same as {@link #updateMatchScoresBasedOnNameMatches(SQLiteDatabase, long,
+     * RawContactMatcher)}, but finds the raw contacts with matching names in
+     * {@link #mNameLookupIndex}, so only their contact IDs need to be queried.  Returns false if
+     * the index can't be used, in which case nothing is done.
+     */
+    private boolean updateMatchScoresBasedOnIndexedNameMatches(SQLiteDatabase db,
+            long rawContactId, RawContactMatcher matcher) {
+        // Raw contacts loaded for batch aggregation already have their matches at hand.
+        if (isInAggregationBatch(rawContactId) || !mNameLookupIndex.ensureLoaded(db)) {
+            return false;
+        }
+
+        final RawContactNames names = mNameLookupIndex.getNames(rawContactId);
+        if (names == null) {
+            return true;
+        }
+
+        final long[][] rowsByName = new long[names.getCount()][];
+        final ArraySet<Long> matchingRawContactIds = new ArraySet<>();
+        for (int i = 0; i < names.getCount(); i++) {
+            rowsByName[i] = mNameLookupIndex.getRows(names.getName(i));
+            for (long row : rowsByName[i]) {
+                matchingRawContactIds.add(NameLookupIndex.getRawContactId(row));
+            }
+        }
+
+        // Resolve the current contacts of the matching raw contacts, keeping only the visible
+        // ones like NameLookupMatchQuery does.
+        final StringBuilder sb = new StringBuilder();
+        sb.append(RawContacts._ID).append(" IN (");
+        for (int i = 0; i < matchingRawContactIds.size(); i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(matchingRawContactIds.valueAt(i));
+        }
+        sb.append(") AND ").append(RawContacts.CONTACT_ID).append(" IN ")
+                .append(Tables.DEFAULT_DIRECTORY);
+        final ArrayMap<Long, long[]> contactAndAccountIds = new ArrayMap<>();
+        final Cursor c = db.query(RawContactIdAndContactQuery.TABLE,
+                RawContactIdAndContactQuery.COLUMNS, sb.toString(), null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                contactAndAccountIds.put(c.getLong(RawContactIdAndContactQuery.RAW_CONTACT_ID),
+                        new long[] {c.getLong(RawContactIdAndContactQuery.CONTACT_ID),
+                                c.getLong(RawContactIdAndContactQuery.ACCOUNT_ID)});
+            }
+        } finally {
+            c.close();
+        }
+
+        int hitCount = 0;
+        for (int i = 0; i < names.getCount() && hitCount < PRIMARY_HIT_LIMIT; i++) {
+            final String name = names.getName(i);
+            final int nameTypeA = names.getNameType(i);
+            for (long row : rowsByName[i]) {
+                final long rId = NameLookupIndex.getRawContactId(row);
+                final long[] ids = contactAndAccountIds.get(rId);
+                if (ids == null) {
+                    continue;
+                }
+                if (++hitCount > PRIMARY_HIT_LIMIT) {
+                    break;
+                }
+                if (rId == rawContactId) {
+                    continue;
+                }
+                final int nameTypeB = NameLookupIndex.getNameType(row);
+                matcher.matchName(rId, ids[0], ids[1], nameTypeA, name,
+                        nameTypeB, name, RawContactMatcher.MATCHING_ALGORITHM_EXACT);
+                if (nameTypeA == NameLookupType.NICKNAME &&
+                        nameTypeB == NameLookupType.NICKNAME) {
+                    matcher.updateScoreWithNicknameMatch(rId, ids[0], ids[1]);
+                }
+            }
+        }
+        return true;
+    }
+
     private void updateMatchScoresBasedOnEmailMatches(SQLiteDatabase db, long rawContactId,
             RawContactMatcher matcher) {
         mSelectionArgs2[0] = String.valueOf(rawContactId);
-        mSelectionArgs2[1] = String.valueOf(mMimeTypeIdEmail);
-        Cursor c = db.query(EmailLookupQuery.TABLE, EmailLookupQuery.COLUMNS,
-                EmailLookupQuery.SELECTION,
-                mSelectionArgs2, null, null, null, SECONDARY_HIT_LIMIT_STRING);
+        Cursor c;
+        if (isInAggregationBatch(rawContactId)) {
+            mSelectionArgs2[1] = String.valueOf(BatchMatchType.EMAIL);
+            c = db.query(BatchDataMatchQuery.TABLE, BatchDataMatchQuery.COLUMNS,
+                    BatchDataMatchQuery.SELECTION,
+                    mSelectionArgs2, null, null, BatchColumns.HIT, SECONDARY_HIT_LIMIT_STRING);
+        } else {
+            mSelectionArgs2[1] = String.valueOf(mMimeTypeIdEmail);
+            c = db.query(EmailLookupQuery.TABLE, EmailLookupQuery.COLUMNS,
+                    EmailLookupQuery.SELECTION,
+                    mSelectionArgs2, null, null, null, SECONDARY_HIT_LIMIT_STRING);
+        }
         try {
             while (c.moveToNext()) {
                 long rId = c.getLong(EmailLookupQuery.RAW_CONTACT_ID);
@@ -677,7 +1030,13 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         String useStrictPhoneNumberComparison =
                 mDbHelper.getUseStrictPhoneNumberComparisonParameter();
 
-        if (useStrictPhoneNumberComparison.equals("1")) {
+        if (isInAggregationBatch(rawContactId)) {
+            mSelectionArgs2[0] = String.valueOf(rawContactId);
+            mSelectionArgs2[1] = String.valueOf(BatchMatchType.PHONE);
+            c = db.query(BatchDataMatchQuery.TABLE, BatchDataMatchQuery.COLUMNS,
+                    BatchDataMatchQuery.SELECTION,
+                    mSelectionArgs2, null, null, BatchColumns.HIT, SECONDARY_HIT_LIMIT_STRING);
+        } else if (useStrictPhoneNumberComparison.equals("1")) {
             mSelectionArgs2[0] = String.valueOf(rawContactId);
             mSelectionArgs2[1] = useStrictPhoneNumberComparison;
             c = db.query(PhoneLookupQuery.TABLE, PhoneLookupQuery.COLUMNS,
@@ -878,7 +1237,9 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             MatchCandidateList candidates, RawContactMatcher matcher) {
         //update primary score
         updateMatchScoresBasedOnExceptions(db, rawContactId, matcher);
-        updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
+        if (!updateMatchScoresBasedOnIndexedNameMatches(db, rawContactId, matcher)) {
+            updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
+        }
         // update scores only if the raw contact doesn't have structured name
         if (rawContactWithoutName(db, rawContactId)) {
             updateMatchScoresBasedOnIdentityMatch(db, rawContactId, matcher);
@@ -905,6 +1266,9 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     }
 
     private boolean rawContactWithoutName(SQLiteDatabase db, long rawContactId) {
+        if (isInAggregationBatch(rawContactId)) {
+            return mBatchRawContactIdsWithoutName.contains(rawContactId);
+        }
         String selection = RawContacts._ID + " =" + rawContactId;
         final Cursor c = db.query(NullNameRawContactsIdsQuery.TABLE,
                 NullNameRawContactsIdsQuery.COLUMNS, selection, null, null, null, null);
@@ -1067,6 +1431,18 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         int ACCOUNT_ID = 2;
     }
 
+    private interface RawContactIdAndContactQuery {
+        String TABLE = Tables.RAW_CONTACTS;
+
+        String[] COLUMNS = new String[] {
+                RawContacts._ID, RawContacts.CONTACT_ID, RawContactsColumns.ACCOUNT_ID
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int CONTACT_ID = 1;
+        int ACCOUNT_ID = 2;
+    }
+
     protected interface NullNameRawContactsIdsQuery {
         final String TABLE =  Tables.RAW_CONTACTS + " LEFT OUTER JOIN " +  Tables.NAME_LOOKUP
                 + " ON "+ RawContacts._ID + " = " + NameLookupColumns.RAW_CONTACT_ID
@@ -1081,4 +1457,79 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         int ACCOUNT_ID = 2;
         int NAME = 3;
     }
+
+    /**
+     * Temporary tables holding the candidate matches of the raw contacts aggregated in one batch.
+     */
+    private interface BatchTables {
+        String RAW_CONTACT_IDS = "agg_batch_raw_contacts";
+        String NAME_MATCHES = "agg_batch_name_matches";
+        String DATA_MATCHES = "agg_batch_data_matches";
+
+        String RAW_CONTACT_ID_SELECT =
+                "(SELECT " + RawContacts._ID + " FROM " + RAW_CONTACT_IDS + ")";
+
+        // Matching raw contacts that are visible now or may become visible once aggregated.
+        String MAY_BE_VISIBLE_SELECTION = "(" + RawContacts.CONTACT_ID
+                + " IN " + Tables.DEFAULT_DIRECTORY
+                + " OR " + Tables.RAW_CONTACTS + "." + RawContacts._ID
+                + " IN " + RAW_CONTACT_ID_SELECT + ")";
+    }
+
+    private interface BatchColumns {
+        String RAW_CONTACT_ID = "raw_contact_id";
+        String MATCH_RAW_CONTACT_ID = "match_raw_contact_id";
+        String NAME_TYPE = "name_type";
+        String MATCH_NAME_TYPE = "match_name_type";
+        String MATCH_TYPE = "match_type";
+        String HIT = "hit";
+    }
+
+    private interface BatchMatchType {
+        int IDENTITY = 0;
+        int EMAIL = 1;
+        int PHONE = 2;
+    }
+
+    /**
+     * Same columns as {@link NameLookupMatchQuery}, read from {@link BatchTables#NAME_MATCHES}.
+     */
+    private interface BatchNameMatchQuery {
+        String TABLE = BatchTables.NAME_MATCHES
+                + " JOIN " + Tables.RAW_CONTACTS
+                + " ON (" + BatchTables.NAME_MATCHES + "." + BatchColumns.MATCH_RAW_CONTACT_ID
+                + " = " + Tables.RAW_CONTACTS + "." + RawContacts._ID + ")";
+
+        String SELECTION = BatchTables.NAME_MATCHES + "." + BatchColumns.RAW_CONTACT_ID + "=?"
+                + " AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        String[] COLUMNS = new String[] {
+                Tables.RAW_CONTACTS + "." + RawContacts._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID,
+                NameLookupColumns.NORMALIZED_NAME,
+                BatchColumns.NAME_TYPE,
+                BatchColumns.MATCH_NAME_TYPE,
+        };
+    }
+
+    /**
+     * Same columns as {@link EmailLookupQuery}, read from {@link BatchTables#DATA_MATCHES}.
+     */
+    private interface BatchDataMatchQuery {
+        String TABLE = BatchTables.DATA_MATCHES
+                + " JOIN " + Tables.RAW_CONTACTS
+                + " ON (" + BatchTables.DATA_MATCHES + "." + BatchColumns.MATCH_RAW_CONTACT_ID
+                + " = " + Tables.RAW_CONTACTS + "." + RawContacts._ID + ")";
+
+        String SELECTION = BatchTables.DATA_MATCHES + "." + BatchColumns.RAW_CONTACT_ID + "=?1"
+                + " AND " + BatchColumns.MATCH_TYPE + "=?2"
+                + " AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        String[] COLUMNS = new String[] {
+                Tables.RAW_CONTACTS + "." + RawContacts._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID
+        };
+    }
 }
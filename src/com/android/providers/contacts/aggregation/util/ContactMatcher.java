@@ -16,13 +16,10 @@
 package com.android.providers.contacts.aggregation.util;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
-import com.android.providers.contacts.util.Hex;
 
-import android.util.ArrayMap;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -151,25 +148,18 @@ public class ContactMatcher {
         return sMaxScore[index];
     }
 
-    private final ArrayMap<Long, MatchScore> mScores = new ArrayMap<>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
-    private int mScoreCount = 0;
+    private final MatchScoreTable mScores = new MatchScoreTable();
 
-    private final NameDistance mNameDistanceConservative = new NameDistance();
-    private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
+    private final NameDistanceCache mNameDistanceConservative =
+            new NameDistanceCache(new NameDistance());
+    private final NameDistanceCache mNameDistanceApproximate =
+            new NameDistanceCache(new NameDistance(MAX_MATCHED_NAME_LENGTH));
 
     private MatchScore getMatchingScore(long contactId) {
         MatchScore matchingScore = mScores.get(contactId);
         if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(contactId);
-            } else {
-                matchingScore = new MatchScore(contactId);
-                mScoreList.add(matchingScore);
-            }
-            mScoreCount++;
-            mScores.put(contactId, matchingScore);
+            matchingScore = mScores.add(contactId);
+            matchingScore.reset(contactId);
         }
         return matchingScore;
     }
@@ -209,27 +199,26 @@ public class ContactMatcher {
             return;
         }
 
-        final byte[] decodedCandidateName;
-        final byte[] decodedName;
+        boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
+                || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
+        float threshold = emailBased
+                ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
+                : APPROXIMATE_MATCH_THRESHOLD;
+
+        NameDistanceCache nameDistance = algorithm == MATCHING_ALGORITHM_CONSERVATIVE ?
+                mNameDistanceConservative : mNameDistanceApproximate;
+
+        final float distance;
         try {
-            decodedCandidateName = Hex.decodeHex(candidateName);
-            decodedName = Hex.decodeHex(name);
+            // Distances that are not over the threshold are not computed exactly.
+            distance = nameDistance.getDistance(candidateName, name, threshold);
         } catch (RuntimeException e) {
             // How could this happen??  See bug 6827136
             Log.e(TAG, "Failed to decode normalized name.  Skipping.", e);
             return;
         }
 
-        NameDistance nameDistance = algorithm == MATCHING_ALGORITHM_CONSERVATIVE ?
-                mNameDistanceConservative : mNameDistanceApproximate;
-
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
-        boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
-                || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
-        float threshold = emailBased
-                ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
-                : APPROXIMATE_MATCH_THRESHOLD;
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -269,7 +258,6 @@ public class ContactMatcher {
 
     public void clear() {
         mScores.clear();
-        mScoreCount = 0;
     }
 
     /**
@@ -282,8 +270,8 @@ public class ContactMatcher {
     public List<Long> prepareSecondaryMatchCandidates(int threshold) {
         ArrayList<Long> contactIds = null;
 
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -309,8 +297,8 @@ public class ContactMatcher {
     public long pickBestMatch(int threshold, boolean allowMultipleMatches) {
         long contactId = -1;
         int maxScore = 0;
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -340,27 +328,15 @@ public class ContactMatcher {
     }
 
     /**
-     * Returns matches in the order of descending score.
+     * Returns matches in the order of descending score.  The returned list is only valid until
+     * the matcher is changed.
      */
     public List<MatchScore> pickBestMatches(int threshold) {
-        int scaledThreshold = threshold * MatchScore.SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
-        Collections.sort(matches);
-        int count = 0;
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore matchScore = matches.get(i);
-            if (matchScore.getScore() >= scaledThreshold) {
-                count++;
-            } else {
-                break;
-            }
-        }
-
-        return matches.subList(0, count);
+        return mScores.pickBestMatches(threshold * MatchScore.SCORE_SCALE);
     }
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        return mScores.toString();
     }
 }
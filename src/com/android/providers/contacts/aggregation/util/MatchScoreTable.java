@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The match scores accumulated by {@link RawContactMatcher} and {@link ContactMatcher}, keyed by
+ * raw contact or contact ID.
+ * <p>
+ * Keys are kept in an open-addressing hash table of primitive longs, and {@link MatchScore}
+ * objects are pooled, so that once the table has grown to the size of a typical match no further
+ * objects are allocated when it is cleared and refilled.  Scores are returned in the order they
+ * were added, except after {@link #pickBestMatches}, which reorders them.
+ */
+public class MatchScoreTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Slot in mSlots that holds no score.
+    private static final int EMPTY = -1;
+
+    // Open-addressing table: each slot holds EMPTY or the index in mScores of the score with the
+    // key at the same position in mSlotKeys.  Its size is a power of two, at least twice the
+    // score count.
+    private long[] mSlotKeys = new long[INITIAL_CAPACITY];
+    private int[] mSlots = new int[INITIAL_CAPACITY];
+
+    // Scores in use come first, followed by pooled ones.  mKeys holds the key of each score in
+    // use.
+    private MatchScore[] mScores = new MatchScore[INITIAL_CAPACITY / 2];
+    private long[] mKeys = new long[INITIAL_CAPACITY / 2];
+    private int mCount;
+    private int mAllocatedCount;
+
+    private final List<MatchScore> mBestMatches = new BestMatchList();
+    private int mBestMatchCount;
+
+    public MatchScoreTable() {
+        Arrays.fill(mSlots, EMPTY);
+    }
+
+    private static int hash(long key) {
+        // Raw contact and contact IDs are mostly sequential, so spread them before masking.
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the score with the given key, or null if none has been added since the last
+     * {@link #clear}.
+     */
+    public MatchScore get(long key) {
+        final int mask = mSlots.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            final int index = mSlots[i];
+            if (index == EMPTY) {
+                return null;
+            }
+            if (mSlotKeys[i] == key) {
+                return mScores[index];
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Adds a score with the given key, which must not be in the table yet, and returns it.  The
+     * returned object may have been used before, so the caller should reset it.
+     */
+    public MatchScore add(long key) {
+        if (mCount == mScores.length) {
+            mScores = Arrays.copyOf(mScores, mCount * 2);
+            mKeys = Arrays.copyOf(mKeys, mCount * 2);
+            resize(mSlots.length * 2);
+        }
+
+        MatchScore score = mScores[mCount];
+        if (score == null) {
+            score = new MatchScore(0);
+            mScores[mCount] = score;
+            mAllocatedCount++;
+        }
+        mKeys[mCount] = key;
+        insert(key, mCount);
+        mCount++;
+        return score;
+    }
+
+    private void insert(long key, int index) {
+        final int mask = mSlots.length - 1;
+        int i = hash(key) & mask;
+        while (mSlots[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        mSlotKeys[i] = key;
+        mSlots[i] = index;
+    }
+
+    private void resize(int capacity) {
+        mSlotKeys = new long[capacity];
+        mSlots = new int[capacity];
+        reindex();
+    }
+
+    /**
+     * Rebuilds the hash table from mKeys, after it has been resized or the scores reordered.
+     */
+    private void reindex() {
+        Arrays.fill(mSlots, EMPTY);
+        for (int i = 0; i < mCount; i++) {
+            insert(mKeys[i], i);
+        }
+    }
+
+    /**
+     * Returns the number of scores in the table.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the score at the given position, between 0 and {@link #size()} - 1.
+     */
+    public MatchScore getAt(int index) {
+        return mScores[index];
+    }
+
+    /**
+     * Removes all scores, keeping their objects for reuse.
+     */
+    public void clear() {
+        if (mCount == 0) {
+            return;
+        }
+        Arrays.fill(mSlots, EMPTY);
+        mCount = 0;
+        mBestMatchCount = 0;
+    }
+
+    /**
+     * Returns the number of {@link MatchScore} objects created by this table so far.
+     */
+    @VisibleForTesting
+    public int getAllocatedScoreCount() {
+        return mAllocatedCount;
+    }
+
+    /**
+     * Returns the scores that are at least {@code scaledThreshold} (see
+     * {@link MatchScore#getScore()}), in the order of descending score.  Scores that are equal
+     * keep the order in which they were added.
+     * <p>
+     * Only the matching scores are sorted, which is usually a handful out of many candidates.  The
+     * returned list is a view that stays valid until the table is changed.
+     */
+    public List<MatchScore> pickBestMatches(int scaledThreshold) {
+        // Move the matching scores to the front, keeping their relative order.
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mScores[i].getScore() >= scaledThreshold) {
+                if (i != count) {
+                    swap(i, count);
+                }
+                count++;
+            }
+        }
+
+        // Insertion sort, which is stable and allocation free.
+        for (int i = 1; i < count; i++) {
+            final MatchScore score = mScores[i];
+            final long key = mKeys[i];
+            int j = i - 1;
+            while (j >= 0 && mScores[j].compareTo(score) > 0) {
+                mScores[j + 1] = mScores[j];
+                mKeys[j + 1] = mKeys[j];
+                j--;
+            }
+            mScores[j + 1] = score;
+            mKeys[j + 1] = key;
+        }
+
+        if (count > 0) {
+            reindex();
+        }
+        mBestMatchCount = count;
+        return mBestMatches;
+    }
+
+    private void swap(int i, int j) {
+        final MatchScore score = mScores[i];
+        mScores[i] = mScores[j];
+        mScores[j] = score;
+        final long key = mKeys[i];
+        mKeys[i] = mKeys[j];
+        mKeys[j] = key;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.asList(mScores).subList(0, mCount).toString();
+    }
+
+    /**
+     * Read-only view of the first {@link #mBestMatchCount} scores.
+     */
+    private class BestMatchList extends AbstractList<MatchScore> {
+        @Override
+        public MatchScore get(int index) {
+            if (index >= mBestMatchCount) {
+                throw new IndexOutOfBoundsException(
+                        "Index " + index + ", size " + mBestMatchCount);
+            }
+            return mScores[index];
+        }
+
+        @Override
+        public int size() {
+            return mBestMatchCount;
+        }
+    }
+}
@@ -32,10 +32,15 @@ public class NameDistance {
     private static final float WINKLER_BONUS_THRESHOLD = 0.7f;
     private static final int MIN_EXACT_PREFIX_LENGTH = 3;
 
+    // Number of distinct byte values, for counting the characters of a name.
+    private static final int BYTE_VALUE_COUNT = 256;
+
     private final int mMaxLength;
     private final boolean mPrefixOnly;
     private final boolean[] mMatchFlags1;
     private final boolean[] mMatchFlags2;
+    private final int[] mByteCounts;
+    private final int[] mRemainingByteCounts;
 
     /**
      * Constructor.
@@ -47,6 +52,8 @@ public class NameDistance {
         mPrefixOnly = false;
         mMatchFlags1 = new boolean[maxLength];
         mMatchFlags2 = new boolean[maxLength];
+        mByteCounts = new int[BYTE_VALUE_COUNT];
+        mRemainingByteCounts = new int[BYTE_VALUE_COUNT];
     }
 
     /**
@@ -56,6 +63,119 @@ public class NameDistance {
         mPrefixOnly = true;
         mMaxLength = 0;
         mMatchFlags1 = mMatchFlags2 = null;
+        mByteCounts = mRemainingByteCounts = null;
+    }
+
+    /**
+     * Returns true if the shorter of the two strings is at least {@link #MIN_EXACT_PREFIX_LENGTH}
+     * long and a prefix of the other one, in which case their distance is 1.
+     */
+    private static boolean isExactPrefix(byte[] bytes1, byte[] bytes2) {
+        final int length = Math.min(bytes1.length, bytes2.length);
+        if (length < MIN_EXACT_PREFIX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes1[i] != bytes2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link #getDistance(byte[], byte[])}, but skips the full comparison if the distance
+     * cannot be greater than {@code threshold}.  Returns the exact distance if it is greater than
+     * {@code threshold}, or some value not greater than {@code threshold} otherwise.
+     */
+    public float getDistance(byte[] bytes1, byte[] bytes2, float threshold) {
+        if (isExactPrefix(bytes1, bytes2)) {
+            return 1.0f;
+        }
+        if (mPrefixOnly) {
+            return 0;
+        }
+
+        countBytes(bytes1, mByteCounts);
+        if (getMaxDistance(bytes1, bytes2, mByteCounts) <= threshold) {
+            return 0;
+        }
+        return getDistance(bytes1, bytes2);
+    }
+
+    /**
+     * Computes the distances between {@code name} and each of the first {@code count}
+     * {@code names}, as {@link #getDistance(byte[], byte[], float)} would, and stores them in
+     * {@code distances}.  The characters of {@code name} are only counted once for all names.
+     */
+    public void getDistances(byte[] name, byte[][] names, int count, float threshold,
+            float[] distances) {
+        if (!mPrefixOnly) {
+            countBytes(name, mByteCounts);
+        }
+        for (int i = 0; i < count; i++) {
+            final byte[] other = names[i];
+            if (isExactPrefix(name, other)) {
+                distances[i] = 1.0f;
+            } else if (mPrefixOnly || getMaxDistance(name, other, mByteCounts) <= threshold) {
+                distances[i] = 0;
+            } else {
+                distances[i] = getDistance(name, other);
+            }
+        }
+    }
+
+    /**
+     * Counts the occurrences of each byte value among the bytes of {@code bytes} that are
+     * considered by {@link #getDistance(byte[], byte[])}.
+     */
+    private void countBytes(byte[] bytes, int[] counts) {
+        Arrays.fill(counts, 0);
+        final int length = Math.min(bytes.length, mMaxLength);
+        for (int i = 0; i < length; i++) {
+            counts[bytes[i] & 0xFF]++;
+        }
+    }
+
+    /**
+     * Returns an upper bound for the distance between two strings that are not an exact prefix of
+     * one another, using the character counts of the first one.
+     * <p>
+     * The number of Jaro matches cannot exceed the number of characters the two strings have in
+     * common, regardless of their order, and the Jaro and Winkler scores only grow with it.
+     */
+    private float getMaxDistance(byte[] bytes1, byte[] bytes2, int[] counts1) {
+        final int length1 = Math.min(Math.min(bytes1.length, bytes2.length), mMaxLength);
+        final int length2 = Math.min(Math.max(bytes1.length, bytes2.length), mMaxLength);
+        final int otherLength = Math.min(bytes2.length, mMaxLength);
+
+        System.arraycopy(counts1, 0, mRemainingByteCounts, 0, BYTE_VALUE_COUNT);
+        int common = 0;
+        for (int i = 0; i < otherLength; i++) {
+            final int b = bytes2[i] & 0xFF;
+            if (mRemainingByteCounts[b] > 0) {
+                mRemainingByteCounts[b]--;
+                common++;
+            }
+        }
+        if (common == 0) {
+            return 0f;
+        }
+
+        final float m = Math.min(common, length1);
+        final float jaro = (m / length1 + m / length2 + 1) / 3;
+        if (jaro < WINKLER_BONUS_THRESHOLD) {
+            return jaro;
+        }
+
+        int prefix = 0;
+        for (int i = 0; i < length1; i++) {
+            if (bytes1[i] != bytes2[i]) {
+                break;
+            }
+            prefix++;
+        }
+        return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
     }
 
     /**
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.util.Hex;
+
+/**
+ * Remembers the distances most recently computed by a {@link NameDistance} for pairs of
+ * hex-encoded normalized names.
+ * <p>
+ * The aggregator compares the same names over and over while it aggregates a batch of raw
+ * contacts, e.g. when it follows matches transitively.  The distance only depends on the two
+ * names, so entries never become stale; they are simply replaced by more recent pairs.
+ */
+public class NameDistanceCache {
+    private static final int DEFAULT_SIZE = 256;
+
+    private final NameDistance mNameDistance;
+    private final int mMask;
+
+    // A direct-mapped cache: each pair of names can only be stored at one position.  If
+    // mExact is false, mDistances holds an upper bound of the distance instead.
+    private final String[] mNames1;
+    private final String[] mNames2;
+    private final float[] mDistances;
+    private final boolean[] mExact;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public NameDistanceCache(NameDistance nameDistance) {
+        this(nameDistance, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the number of pairs kept, which must be a power of two
+     */
+    public NameDistanceCache(NameDistance nameDistance, int size) {
+        mNameDistance = nameDistance;
+        mMask = size - 1;
+        mNames1 = new String[size];
+        mNames2 = new String[size];
+        mDistances = new float[size];
+        mExact = new boolean[size];
+    }
+
+    /**
+     * Returns the distance between two hex-encoded normalized names if it is greater than
+     * {@code threshold}, or some value not greater than {@code threshold} otherwise.
+     *
+     * @throws RuntimeException if either name is not valid hex
+     */
+    public float getDistance(String name1, String name2, float threshold) {
+        final int index = (name1.hashCode() * 31 + name2.hashCode()) & mMask;
+        if (name1.equals(mNames1[index]) && name2.equals(mNames2[index])) {
+            if (mExact[index]) {
+                mHitCount++;
+                return mDistances[index];
+            }
+            if (mDistances[index] <= threshold) {
+                mHitCount++;
+                return 0;
+            }
+        }
+        mMissCount++;
+
+        final float distance = mNameDistance.getDistance(
+                Hex.decodeHex(name1), Hex.decodeHex(name2), threshold);
+        mNames1[index] = name1;
+        mNames2[index] = name2;
+        if (distance > threshold) {
+            mDistances[index] = distance;
+            mExact[index] = true;
+        } else {
+            mDistances[index] = threshold;
+            mExact[index] = false;
+        }
+        return distance;
+    }
+
+    @VisibleForTesting
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    @VisibleForTesting
+    int getMissCount() {
+        return mMissCount;
+    }
+}
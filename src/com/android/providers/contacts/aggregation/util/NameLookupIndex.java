@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * In-memory copy of the {@link Tables#NAME_LOOKUP} rows used by the aggregator to find raw
+ * contacts with matching names, so that name matches do not need a self-join of the table.
+ * <p>
+ * The index is loaded lazily and kept for as long as the name lookup rows it was loaded from
+ * stay unchanged; raw contacts whose rows change are reloaded with {@link #refreshRawContacts}.
+ * Only the name types that can contribute to a match score are kept, and the index is disabled
+ * entirely if it would hold more than a given number of rows.
+ */
+public class NameLookupIndex {
+    private static final String TAG = "NameLookupIndex";
+
+    /** Default maximum number of name lookup rows kept in memory. */
+    public static final int DEFAULT_MAX_ROW_COUNT = 100000;
+
+    // Each row packs a raw contact ID and a name type into a long, leaving NAME_TYPE_BITS for the
+    // latter.
+    private static final int NAME_TYPE_BITS = 3;
+    private static final long NAME_TYPE_MASK = (1 << NAME_TYPE_BITS) - 1;
+
+    private static final long[] EMPTY_ROWS = new long[0];
+
+    /**
+     * The name types kept in the index, i.e. those for which RawContactMatcher has a non-zero
+     * score, as a list for an IN clause.
+     */
+    public static final String INDEXED_NAME_TYPES = "("
+            + NameLookupType.NAME_EXACT + ","
+            + NameLookupType.NAME_COLLATION_KEY + ","
+            + NameLookupType.NICKNAME + ","
+            + NameLookupType.EMAIL_BASED_NICKNAME + ")";
+
+    private interface NameLookupQuery {
+        String TABLE = Tables.NAME_LOOKUP;
+
+        String[] COLUMNS = new String[] {
+                NameLookupColumns.RAW_CONTACT_ID,
+                NameLookupColumns.NORMALIZED_NAME,
+                NameLookupColumns.NAME_TYPE
+        };
+
+        String SELECTION = NameLookupColumns.NAME_TYPE + " IN " + INDEXED_NAME_TYPES;
+
+        int RAW_CONTACT_ID = 0;
+        int NORMALIZED_NAME = 1;
+        int NAME_TYPE = 2;
+    }
+
+    /**
+     * The indexed names of one raw contact.  Instances are never modified once they have been
+     * returned by {@link #getNames}.
+     */
+    public static class RawContactNames {
+        private String[] mNames = new String[2];
+        private int[] mNameTypes = new int[2];
+        private int mCount;
+
+        private void add(String name, int nameType) {
+            if (mCount == mNames.length) {
+                mNames = Arrays.copyOf(mNames, mCount * 2);
+                mNameTypes = Arrays.copyOf(mNameTypes, mCount * 2);
+            }
+            mNames[mCount] = name;
+            mNameTypes[mCount] = nameType;
+            mCount++;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public String getName(int index) {
+            return mNames[index];
+        }
+
+        public int getNameType(int index) {
+            return mNameTypes[index];
+        }
+    }
+
+    private final int mMaxRowCount;
+
+    // Normalized name -> packed raw contact ID and name type of every row with that name.  The
+    // arrays are replaced rather than modified, so callers may keep the ones they get.
+    private final HashMap<String, long[]> mRowsByName = new HashMap<>();
+    private final HashMap<Long, RawContactNames> mNamesByRawContactId = new HashMap<>();
+
+    private boolean mLoaded;
+    private boolean mTooLarge;
+    private int mRowCount;
+    private long mNameCharCount;
+
+    private int mLoadCount;
+    private int mRefreshCount;
+    private int mLookupCount;
+    private int mFallbackCount;
+
+    public NameLookupIndex(int maxRowCount) {
+        mMaxRowCount = maxRowCount;
+    }
+
+    public static long getRawContactId(long row) {
+        return row >>> NAME_TYPE_BITS;
+    }
+
+    public static int getNameType(long row) {
+        return (int) (row & NAME_TYPE_MASK);
+    }
+
+    private static long packRow(long rawContactId, int nameType) {
+        return (rawContactId << NAME_TYPE_BITS) | nameType;
+    }
+
+    /**
+     * Loads the index if it is not loaded yet.  Returns false if the name lookup table is too
+     * large to be indexed, in which case the caller should query the database instead.
+     */
+    public synchronized boolean ensureLoaded(SQLiteDatabase db) {
+        if (mLoaded) {
+            mLookupCount++;
+            return true;
+        }
+        if (mTooLarge) {
+            mFallbackCount++;
+            return false;
+        }
+
+        final long rowCount = DatabaseUtils.queryNumEntries(db, NameLookupQuery.TABLE,
+                NameLookupQuery.SELECTION);
+        if (rowCount > mMaxRowCount) {
+            Log.i(TAG, "Not indexing " + rowCount + " name lookup rows");
+            mTooLarge = true;
+            mFallbackCount++;
+            return false;
+        }
+
+        final long start = System.currentTimeMillis();
+        loadRows(db, NameLookupQuery.SELECTION);
+        mLoaded = true;
+        mLoadCount++;
+        mLookupCount++;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Loaded " + mRowCount + " name lookup rows in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return true;
+    }
+
+    /**
+     * Reloads the rows of the given raw contacts, whose name lookup rows have changed.
+     */
+    public synchronized void refreshRawContacts(SQLiteDatabase db, Set<Long> rawContactIds) {
+        if (!mLoaded || rawContactIds.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(NameLookupQuery.SELECTION);
+        sb.append(" AND ").append(NameLookupColumns.RAW_CONTACT_ID).append(" IN (");
+        boolean first = true;
+        for (long rawContactId : rawContactIds) {
+            removeRawContact(rawContactId);
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(rawContactId);
+            first = false;
+        }
+        sb.append(')');
+        loadRows(db, sb.toString());
+        mRefreshCount++;
+
+        if (mRowCount > mMaxRowCount) {
+            Log.i(TAG, "Name lookup index exceeded " + mMaxRowCount + " rows, dropping it");
+            clear();
+            mTooLarge = true;
+        }
+    }
+
+    /**
+     * Drops the index, e.g. because the name lookup table has been rebuilt.  It will be reloaded
+     * the next time it is needed.
+     */
+    public synchronized void invalidate() {
+        clear();
+        mTooLarge = false;
+    }
+
+    /**
+     * Returns the indexed names of the given raw contact, or null if it has none.
+     */
+    public synchronized RawContactNames getNames(long rawContactId) {
+        return mNamesByRawContactId.get(rawContactId);
+    }
+
+    /**
+     * Returns the rows with the given normalized name.  Use {@link #getRawContactId} and
+     * {@link #getNameType} to unpack them.
+     */
+    public synchronized long[] getRows(String normalizedName) {
+        final long[] rows = mRowsByName.get(normalizedName);
+        return rows != null ? rows : EMPTY_ROWS;
+    }
+
+    private void loadRows(SQLiteDatabase db, String selection) {
+        final Cursor c = db.query(NameLookupQuery.TABLE, NameLookupQuery.COLUMNS, selection,
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String name = c.getString(NameLookupQuery.NORMALIZED_NAME);
+                if (name == null) {
+                    continue;
+                }
+                addRow(c.getLong(NameLookupQuery.RAW_CONTACT_ID), name,
+                        c.getInt(NameLookupQuery.NAME_TYPE));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void addRow(long rawContactId, String name, int nameType) {
+        final long[] rows = mRowsByName.get(name);
+        final long[] newRows;
+        if (rows == null) {
+            newRows = new long[1];
+            mNameCharCount += name.length();
+        } else {
+            newRows = Arrays.copyOf(rows, rows.length + 1);
+        }
+        newRows[newRows.length - 1] = packRow(rawContactId, nameType);
+        mRowsByName.put(name, newRows);
+
+        RawContactNames names = mNamesByRawContactId.get(rawContactId);
+        if (names == null) {
+            names = new RawContactNames();
+            mNamesByRawContactId.put(rawContactId, names);
+        }
+        names.add(name, nameType);
+        mRowCount++;
+    }
+
+    private void removeRawContact(long rawContactId) {
+        final RawContactNames names = mNamesByRawContactId.remove(rawContactId);
+        if (names == null) {
+            return;
+        }
+
+        for (int i = 0; i < names.mCount; i++) {
+            final String name = names.mNames[i];
+            final long[] rows = mRowsByName.get(name);
+            if (rows == null) {
+                // Already removed for an earlier row with the same name.
+                continue;
+            }
+            final long[] newRows = new long[rows.length];
+            int count = 0;
+            for (long row : rows) {
+                if (getRawContactId(row) != rawContactId) {
+                    newRows[count++] = row;
+                }
+            }
+            mRowCount -= rows.length - count;
+            if (count == 0) {
+                mRowsByName.remove(name);
+                mNameCharCount -= name.length();
+            } else {
+                mRowsByName.put(name, Arrays.copyOf(newRows, count));
+            }
+        }
+    }
+
+    private void clear() {
+        mRowsByName.clear();
+        mNamesByRawContactId.clear();
+        mRowCount = 0;
+        mNameCharCount = 0;
+        mLoaded = false;
+    }
+
+    /**
+     * Returns a rough estimate of the memory used by the index, in bytes.
+     */
+    public synchronized long getEstimatedSizeBytes() {
+        // Packed rows and their per raw contact copies, the name strings, their row arrays and
+        // hash map entries, and the per raw contact entries.
+        return mRowCount * 24L
+                + mNameCharCount * 2 + mRowsByName.size() * 88L
+                + mNamesByRawContactId.size() * 96L;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("Name lookup index:\n");
+        pw.printf("  loaded=%b  tooLarge=%b  rows=%d (max %d)  names=%d  rawContacts=%d"
+                        + "  size=~%dKB\n",
+                mLoaded, mTooLarge, mRowCount, mMaxRowCount, mRowsByName.size(),
+                mNamesByRawContactId.size(), getEstimatedSizeBytes() / 1024);
+        pw.printf("  loads=%d  refreshes=%d  lookups=%d  fallbacks=%d\n",
+                mLoadCount, mRefreshCount, mLookupCount, mFallbackCount);
+    }
+}
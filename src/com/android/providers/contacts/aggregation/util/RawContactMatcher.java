@@ -15,13 +15,11 @@
  */
 package com.android.providers.contacts.aggregation.util;
 
-import android.util.ArrayMap;
 import android.util.Log;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
-import com.android.providers.contacts.util.Hex;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -156,25 +154,18 @@ public class RawContactMatcher {
         return sMaxScore[index];
     }
 
-    private final ArrayMap<Long, MatchScore> mScores = new ArrayMap<>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
-    private int mScoreCount = 0;
+    private final MatchScoreTable mScores = new MatchScoreTable();
 
-    private final NameDistance mNameDistanceConservative = new NameDistance();
-    private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
+    private final NameDistanceCache mNameDistanceConservative =
+            new NameDistanceCache(new NameDistance());
+    private final NameDistanceCache mNameDistanceApproximate =
+            new NameDistanceCache(new NameDistance(MAX_MATCHED_NAME_LENGTH));
 
     private MatchScore getMatchingScore(long rawContactId, long contactId, long accountId) {
         MatchScore matchingScore = mScores.get(rawContactId);
         if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(rawContactId, contactId, accountId);
-            } else {
-                matchingScore = new MatchScore(rawContactId, contactId, accountId);
-                mScoreList.add(matchingScore);
-            }
-            mScoreCount++;
-            mScores.put(rawContactId, matchingScore);
+            matchingScore = mScores.add(rawContactId);
+            matchingScore.reset(rawContactId, contactId, accountId);
         }
         return matchingScore;
     }
@@ -207,27 +198,26 @@ public class RawContactMatcher {
             return;
         }
 
-        final byte[] decodedCandidateName;
-        final byte[] decodedName;
+        boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
+                || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
+        float threshold = emailBased
+                ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
+                : APPROXIMATE_MATCH_THRESHOLD;
+
+        NameDistanceCache nameDistance = algorithm == MATCHING_ALGORITHM_CONSERVATIVE ?
+                mNameDistanceConservative : mNameDistanceApproximate;
+
+        final float distance;
         try {
-            decodedCandidateName = Hex.decodeHex(candidateName);
-            decodedName = Hex.decodeHex(name);
+            // Distances that are not over the threshold are not computed exactly.
+            distance = nameDistance.getDistance(candidateName, name, threshold);
         } catch (RuntimeException e) {
             // How could this happen??  See bug 6827136
             Log.e(TAG, "Failed to decode normalized name.  Skipping.", e);
             return;
         }
 
-        NameDistance nameDistance = algorithm == MATCHING_ALGORITHM_CONSERVATIVE ?
-                mNameDistanceConservative : mNameDistanceApproximate;
-
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
-        boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
-                || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
-        float threshold = emailBased
-                ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
-                : APPROXIMATE_MATCH_THRESHOLD;
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -272,7 +262,6 @@ public class RawContactMatcher {
 
     public void clear() {
         mScores.clear();
-        mScoreCount = 0;
     }
     /**
      * Returns a list of IDs for raw contacts that are only matched on secondary data elements
@@ -284,8 +273,8 @@ public class RawContactMatcher {
     public List<Long> prepareSecondaryMatchCandidates() {
         ArrayList<Long> rawContactIds = null;
 
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut() ||  score.getPrimaryScore() > SCORE_THRESHOLD_PRIMARY){
                 continue;
             }
@@ -306,8 +295,8 @@ public class RawContactMatcher {
      */
     public List<MatchScore> pickBestMatches() {
         final List<MatchScore> matches = new ArrayList<>();
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -327,28 +316,24 @@ public class RawContactMatcher {
     }
 
     /**
-     * Returns matches in the order of descending score.
+     * Returns matches in the order of descending score.  The returned list is only valid until
+     * the matcher is changed.
      */
     public List<MatchScore> pickBestMatches(int threshold) {
-        int scaledThreshold = threshold * SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
-        Collections.sort(matches);
-        int count = 0;
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore matchScore = matches.get(i);
-            if (matchScore.getScore() >= scaledThreshold) {
-                count++;
-            } else {
-                break;
-            }
-        }
+        return mScores.pickBestMatches(threshold * SCORE_SCALE);
+    }
 
-        return matches.subList(0, count);
+    /**
+     * Returns the number of {@link MatchScore} objects allocated by this matcher so far.
+     */
+    @VisibleForTesting
+    int getAllocatedScoreCount() {
+        return mScores.getAllocatedScoreCount();
     }
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        return mScores.toString();
     }
 
     public void matchNoName(Long rawContactId, Long contactId, Long accountId) {
@@ -18,7 +18,6 @@ package com.android.providers.contacts.enterprise;
 
 import android.annotation.Nullable;
 import android.content.ContentProvider;
-import android.content.ContentUris;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.CursorWrapper;
@@ -35,8 +34,14 @@ import android.util.Log;
 import com.android.internal.util.ArrayUtils;
 import com.android.providers.contacts.ContactsProvider2;
 
+import java.util.Arrays;
+
 /**
  * Wrap cursor returned from work-side ContactsProvider in order to rewrite values in some colums
+ * <p>
+ * How each column is rewritten is worked out once, when the wrapper is created, and the rewritten
+ * strings of the current row are kept until the cursor moves to another row, as pickers read the
+ * same row several times while binding it.
  */
 public class EnterpriseContactsCursorWrapper extends CursorWrapper {
 
@@ -45,6 +50,17 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
 
     private static final UriMatcher sUriMatcher = ContactsProvider2.sUriMatcher;
 
+    private static final String CORP_CONTACT_URI_PREFIX = Contacts.CORP_CONTENT_URI + "/";
+
+    // How columns are rewritten.
+    private static final int COLUMN_UNCHANGED = 0;
+    private static final int COLUMN_CONTACT_ID = 1;
+    private static final int COLUMN_PHOTO_ID = 2;
+    private static final int COLUMN_PHOTO_THUMBNAIL_URI = 3;
+    private static final int COLUMN_PHOTO_URI = 4;
+    private static final int COLUMN_CUSTOM_RINGTONE = 5;
+    private static final int COLUMN_LOOKUP_KEY = 6;
+
     // As some of the columns like PHOTO_URI requires contact id, but original projection may not
     // have it, so caller may use a work projection instead of original project to make the
     // query. Hence, we need also to restore the cursor to the origianl projection.
@@ -55,6 +71,13 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
     private final boolean mIsDirectoryRemote;
     private final String[] originalColumnNames;
 
+    // How each column of the wrapped cursor is rewritten, one of the COLUMN_ constants.
+    private final int[] mColumnTypes;
+
+    // The rewritten strings, and the position of the row they were rewritten for, or -1.
+    private final String[] mRewrittenStrings;
+    private final int[] mRewrittenPositions;
+
     public EnterpriseContactsCursorWrapper(Cursor cursor, String[] originalColumnNames,
             int[] contactIdIndices, @Nullable Long directoryId) {
         super(cursor);
@@ -63,6 +86,34 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
         this.mDirectoryId = directoryId;
         this.mIsDirectoryRemote = directoryId != null
                 && Directory.isRemoteDirectoryId(directoryId);
+
+        final String[] columnNames = cursor.getColumnNames();
+        mColumnTypes = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            mColumnTypes[i] = ArrayUtils.contains(contactIdIndices, i)
+                    ? COLUMN_CONTACT_ID : getColumnType(columnNames[i]);
+        }
+        mRewrittenStrings = new String[columnNames.length];
+        mRewrittenPositions = new int[columnNames.length];
+        Arrays.fill(mRewrittenPositions, -1);
+    }
+
+    private static int getColumnType(String columnName) {
+        switch (columnName) {
+            case Contacts.PHOTO_THUMBNAIL_URI:
+                return COLUMN_PHOTO_THUMBNAIL_URI;
+            case Contacts.PHOTO_URI:
+                return COLUMN_PHOTO_URI;
+            case Data.PHOTO_FILE_ID:
+            case Data.PHOTO_ID:
+                return COLUMN_PHOTO_ID;
+            case Data.CUSTOM_RINGTONE:
+                return COLUMN_CUSTOM_RINGTONE;
+            case Contacts.LOOKUP_KEY:
+                return COLUMN_LOOKUP_KEY;
+            default:
+                return COLUMN_UNCHANGED;
+        }
     }
 
     @Override
@@ -77,27 +128,39 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
 
     @Override
     public String getString(int columnIndex) {
+        switch (mColumnTypes[columnIndex]) {
+            case COLUMN_UNCHANGED:
+            case COLUMN_CONTACT_ID:
+                return super.getString(columnIndex);
+            case COLUMN_PHOTO_ID:
+                return null;
+            default:
+                final int position = getPosition();
+                if (mRewrittenPositions[columnIndex] != position) {
+                    mRewrittenStrings[columnIndex] = rewriteString(columnIndex);
+                    mRewrittenPositions[columnIndex] = position;
+                }
+                return mRewrittenStrings[columnIndex];
+        }
+    }
+
+    private String rewriteString(int columnIndex) {
         final String result = super.getString(columnIndex);
-        final String columnName = super.getColumnName(columnIndex);
-        final long contactId = super.getLong(contactIdIndices[0]);
-        switch (columnName) {
-            case Contacts.PHOTO_THUMBNAIL_URI:
+        switch (mColumnTypes[columnIndex]) {
+            case COLUMN_PHOTO_THUMBNAIL_URI:
                 if(mIsDirectoryRemote) {
                     return getRemoteDirectoryFileUri(result);
                 } else {
-                    return getCorpThumbnailUri(contactId, getWrappedCursor());
+                    return getCorpThumbnailUri(super.getLong(contactIdIndices[0]), result);
                 }
-            case Contacts.PHOTO_URI:
+            case COLUMN_PHOTO_URI:
                 if(mIsDirectoryRemote) {
                     return getRemoteDirectoryFileUri(result);
                 } else {
-                    return getCorpDisplayPhotoUri(contactId, getWrappedCursor());
+                    return getCorpDisplayPhotoUri(super.getLong(contactIdIndices[0]), result);
                 }
-            case Data.PHOTO_FILE_ID:
-            case Data.PHOTO_ID:
-                return null;
-            case Data.CUSTOM_RINGTONE:
-                String ringtoneUri = super.getString(columnIndex);
+            case COLUMN_CUSTOM_RINGTONE:
+                String ringtoneUri = result;
                 // TODO: Remove this conditional block once accessing sounds in corp
                 // profile becomes possible.
                 if (ringtoneUri != null
@@ -106,12 +169,11 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
                     ringtoneUri = null;
                 }
                 return ringtoneUri;
-            case Contacts.LOOKUP_KEY:
-                final String lookupKey = super.getString(columnIndex);
-                if (TextUtils.isEmpty(lookupKey)) {
+            case COLUMN_LOOKUP_KEY:
+                if (TextUtils.isEmpty(result)) {
                     return null;
                 } else {
-                    return Contacts.ENTERPRISE_CONTACT_LOOKUP_PREFIX + lookupKey;
+                    return Contacts.ENTERPRISE_CONTACT_LOOKUP_PREFIX + result;
                 }
             default:
                 return result;
@@ -125,21 +187,22 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
 
     @Override
     public long getLong(int column) {
-        long result = super.getLong(column);
-        if (ArrayUtils.contains(contactIdIndices, column)) {
-            return result + Contacts.ENTERPRISE_CONTACT_ID_BASE;
-        } else {
-            final String columnName = getColumnName(column);
-            switch (columnName) {
-                case Data.PHOTO_FILE_ID:
-                case Data.PHOTO_ID:
-                    return 0;
-                default:
-                    return result;
-            }
+        switch (mColumnTypes[column]) {
+            case COLUMN_CONTACT_ID:
+                return super.getLong(column) + Contacts.ENTERPRISE_CONTACT_ID_BASE;
+            case COLUMN_PHOTO_ID:
+                return 0;
+            default:
+                return super.getLong(column);
         }
     }
 
+    @Override
+    public boolean requery() {
+        Arrays.fill(mRewrittenPositions, -1);
+        return super.requery();
+    }
+
     private String getRemoteDirectoryFileUri(final String photoUriString) {
         if (photoUriString == null) {
             return null;
@@ -165,9 +228,7 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
      *
      * {@link ContentProvider#openAssetFile} knows how to fetch from this URI.
      */
-    private static String getCorpThumbnailUri(long contactId, Cursor originalCursor) {
-        final int thumbnailUriIndex = originalCursor.getColumnIndex(Contacts.PHOTO_THUMBNAIL_URI);
-        final String thumbnailUri = originalCursor.getString(thumbnailUriIndex);
+    private static String getCorpThumbnailUri(long contactId, String thumbnailUri) {
         if (thumbnailUri == null) {
             // No thumbnail. Just return null.
             return null;
@@ -175,8 +236,7 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
 
         final int uriCode = sUriMatcher.match(Uri.parse(thumbnailUri));
         if (uriCode == ContactsProvider2.CONTACTS_ID_PHOTO) {
-            return ContentUris.appendId(Contacts.CORP_CONTENT_URI.buildUpon(), contactId)
-                    .appendPath(Contacts.Photo.CONTENT_DIRECTORY).build().toString();
+            return getCorpContactUri(contactId, Contacts.Photo.CONTENT_DIRECTORY);
         } else {
             Log.e(TAG, "EnterpriseContactsCursorWrapper contains invalid PHOTO_THUMBNAIL_URI");
             return null;
@@ -191,24 +251,28 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
      *
      * {@link ContentProvider#openAssetFile} knows how to fetch from this URI.
      */
-    private static String getCorpDisplayPhotoUri(long contactId, Cursor originalCursor) {
-        final int photoUriIndex = originalCursor.getColumnIndex(Contacts.PHOTO_URI);
-        final String photoUri = originalCursor.getString(photoUriIndex);
+    private static String getCorpDisplayPhotoUri(long contactId, String photoUri) {
         if (photoUri == null) {
             return null;
         }
 
         final int uriCode = sUriMatcher.match(Uri.parse(photoUri));
         if (uriCode == ContactsProvider2.CONTACTS_ID_PHOTO) {
-            return ContentUris.appendId(Contacts.CORP_CONTENT_URI.buildUpon(), contactId)
-                    .appendPath(Contacts.Photo.CONTENT_DIRECTORY).build().toString();
+            return getCorpContactUri(contactId, Contacts.Photo.CONTENT_DIRECTORY);
         } else if (uriCode == ContactsProvider2.CONTACTS_ID_DISPLAY_PHOTO
                 || uriCode == ContactsProvider2.DISPLAY_PHOTO_ID) {
-            return ContentUris.appendId(Contacts.CORP_CONTENT_URI.buildUpon(), contactId)
-                    .appendPath(Contacts.Photo.DISPLAY_PHOTO).build().toString();
+            return getCorpContactUri(contactId, Contacts.Photo.DISPLAY_PHOTO);
         } else {
             Log.e(TAG, "EnterpriseContactsCursorWrapper contains invalid PHOTO_URI");
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Same as appending the ID and path to {@link Contacts#CORP_CONTENT_URI} with a
+     * {@link Uri.Builder}, which is not worth it for a number and a constant.
+     */
+    private static String getCorpContactUri(long contactId, String path) {
+        return CORP_CONTACT_URI_PREFIX + contactId + "/" + path;
+    }
+}
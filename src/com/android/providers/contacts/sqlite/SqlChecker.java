@@ -16,8 +16,8 @@
 package com.android.providers.contacts.sqlite;
 
 import android.annotation.Nullable;
-import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.providers.contacts.AbstractContactsProvider;
 
@@ -29,6 +29,9 @@ import java.util.function.Consumer;
 
 /**
  * Simple SQL validator to detect uses of hidden tables / columns as well as invalid SQLs.
+ *
+ * Apps send the same selections and column names over and over, so the ones found valid are
+ * remembered, up to {@link #MAX_VALIDATED_SQL} of each kind.
  */
 public class SqlChecker {
     private static final String TAG = "SqlChecker";
@@ -37,22 +40,89 @@ public class SqlChecker {
 
     private static final boolean VERBOSE_LOGGING = AbstractContactsProvider.VERBOSE_LOGGING;
 
-    private final ArraySet<String> mInvalidTokens;
+    private static final int MAX_VALIDATED_SQL = 256;
+
+    // Longer SQL is validated every time rather than kept.
+    private static final int MAX_VALIDATED_SQL_LENGTH = 1024;
+
+    /**
+     * Receives the tokens found by {@link #findTokens}, as the range of {@code source} between
+     * {@code start} and {@code end}.  {@code source} is {@code sql}, unless the token had to be
+     * unquoted.
+     */
+    private interface TokenVisitor {
+        void visit(String sql, String source, int start, int end);
+    }
+
+    // Open addressing hash table of the lower case invalid tokens, so that a token can be
+    // looked up without extracting it from the SQL or changing its case.
+    private final String[] mInvalidTokens;
+
+    private final TokenVisitor mInvalidTokenVisitor = this::throwIfContainsToken;
+
+    // SQL and column names found valid, or null if not remembered.
+    private final LruCache<String, Boolean> mValidatedSql;
+    private final LruCache<String, Boolean> mValidatedColumns;
 
     /**
      * Create a new instance with given invalid tokens.
      */
     public SqlChecker(List<String> invalidTokens) {
-        mInvalidTokens = new ArraySet<>(invalidTokens.size());
+        this(invalidTokens, /* memoize= */ true);
+    }
+
+    @VisibleForTesting
+    SqlChecker(List<String> invalidTokens, boolean memoize) {
+        int capacity = 2;
+        while (capacity < invalidTokens.size() * 2) {
+            capacity <<= 1;
+        }
+        mInvalidTokens = new String[capacity];
 
         for (int i = invalidTokens.size() - 1; i >= 0; i--) {
-            mInvalidTokens.add(invalidTokens.get(i).toLowerCase());
+            final String token = invalidTokens.get(i).toLowerCase();
+            if (!containsInvalidToken(token, 0, token.length())) {
+                int index = hashIgnoreCase(token, 0, token.length()) & (capacity - 1);
+                while (mInvalidTokens[index] != null) {
+                    index = (index + 1) & (capacity - 1);
+                }
+                mInvalidTokens[index] = token;
+            }
         }
+        mValidatedSql = memoize ? new LruCache<>(MAX_VALIDATED_SQL) : null;
+        mValidatedColumns = memoize ? new LruCache<>(MAX_VALIDATED_SQL) : null;
         if (VERBOSE_LOGGING) {
             Log.d(TAG, "Initialized with invalid tokens: " + invalidTokens);
         }
     }
 
+    private static char foldCase(char ch) {
+        // Same as String.regionMatches(true, ...).
+        return Character.toLowerCase(Character.toUpperCase(ch));
+    }
+
+    private static int hashIgnoreCase(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + foldCase(s.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean containsInvalidToken(String source, int start, int end) {
+        final int length = end - start;
+        final int mask = mInvalidTokens.length - 1;
+        int index = hashIgnoreCase(source, start, end) & mask;
+        String token;
+        while ((token = mInvalidTokens[index]) != null) {
+            if (token.length() == length && token.regionMatches(true, 0, source, start, length)) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
     private static boolean isAlpha(char ch) {
         return ('a' <= ch && ch <= 'z') || ('A' <= ch && ch <= 'Z') || (ch == '_');
     }
@@ -83,10 +153,23 @@ public class SqlChecker {
         throw new InvalidSqlException(message + " in '" + sql + "'");
     }
 
-    private void throwIfContainsToken(String token, String sql) {
-        final String lower = token.toLowerCase();
-        if (mInvalidTokens.contains(lower) || lower.startsWith(PRIVATE_PREFIX)) {
-            throw genException("Detected disallowed token: " + token, sql);
+    private void throwIfContainsToken(String sql, String source, int start, int end) {
+        final int length = end - start;
+        if (containsInvalidToken(source, start, end)
+                || (length >= PRIVATE_PREFIX.length() && source.regionMatches(
+                        true, start, PRIVATE_PREFIX, 0, PRIVATE_PREFIX.length()))) {
+            throw genException("Detected disallowed token: " + source.substring(start, end),
+                    sql);
+        }
+    }
+
+    private static boolean isValidated(LruCache<String, Boolean> validated, String sql) {
+        return validated != null && validated.get(sql) != null;
+    }
+
+    private static void setValidated(LruCache<String, Boolean> validated, String sql) {
+        if (validated != null && sql.length() <= MAX_VALIDATED_SQL_LENGTH) {
+            validated.put(sql, Boolean.TRUE);
         }
     }
 
@@ -94,7 +177,11 @@ public class SqlChecker {
      * Ensure {@code sql} is valid and doesn't contain invalid tokens.
      */
     public void ensureNoInvalidTokens(@Nullable String sql) {
-        findTokens(sql, OPTION_NONE, token -> throwIfContainsToken(token, sql));
+        if (sql == null || isValidated(mValidatedSql, sql)) {
+            return;
+        }
+        findTokens(sql, OPTION_NONE, mInvalidTokenVisitor);
+        setValidated(mValidatedSql, sql);
     }
 
     /**
@@ -102,18 +189,42 @@ public class SqlChecker {
      * in {@link android.content.ContentValues}.
      */
     public void ensureSingleTokenOnly(@Nullable String sql) {
-        final AtomicBoolean tokenFound = new AtomicBoolean();
+        if (sql != null && isValidated(mValidatedColumns, sql)) {
+            return;
+        }
+        if (sql != null && isIdentifier(sql)) {
+            // The usual case, which needs no tokenizing.
+            throwIfContainsToken(sql, sql, 0, sql.length());
+        } else {
+            final AtomicBoolean tokenFound = new AtomicBoolean();
+
+            findTokens(sql, OPTION_TOKEN_ONLY, (s, source, start, end) -> {
+                if (tokenFound.get()) {
+                    throw genException("Multiple tokens detected", sql);
+                }
+                tokenFound.set(true);
+                throwIfContainsToken(s, source, start, end);
+            });
+            if (!tokenFound.get()) {
+                throw genException("Token not found", sql);
+            }
+        }
+        setValidated(mValidatedColumns, sql);
+    }
 
-        findTokens(sql, OPTION_TOKEN_ONLY, token -> {
-            if (tokenFound.get()) {
-                throw genException("Multiple tokens detected", sql);
+    /**
+     * Returns true if {@code s} is a single regular token, see {@link #findTokens}.
+     */
+    private static boolean isIdentifier(String s) {
+        if (s.isEmpty() || !isAlpha(s.charAt(0))) {
+            return false;
+        }
+        for (int i = s.length() - 1; i > 0; i--) {
+            if (!isAlNum(s.charAt(i))) {
+                return false;
             }
-            tokenFound.set(true);
-            throwIfContainsToken(token, sql);
-        });
-        if (!tokenFound.get()) {
-            throw genException("Token not found", sql);
         }
+        return true;
     }
 
     @VisibleForTesting
@@ -138,6 +249,11 @@ public class SqlChecker {
      */
     @VisibleForTesting
     static void findTokens(@Nullable String sql, int options, Consumer<String> checker) {
+        findTokens(sql, options,
+                (s, source, start, end) -> checker.accept(source.substring(start, end)));
+    }
+
+    private static void findTokens(@Nullable String sql, int options, TokenVisitor visitor) {
         if (sql == null) {
             return;
         }
@@ -155,8 +271,7 @@ public class SqlChecker {
                 }
                 final int end = pos;
 
-                final String token = sql.substring(start, end);
-                checker.accept(token);
+                visitor.visit(sql, sql, start, end);
 
                 continue;
             }
@@ -181,19 +296,15 @@ public class SqlChecker {
                 pos++;
 
                 if (ch != '\'') {
-                    // Extract the token
-                    final String tokenUnquoted = sql.substring(quoteStart + 1, quoteEnd);
-
-                    final String token;
-
                     // Unquote if needed. i.e. "aa""bb" -> aa"bb
-                    if (tokenUnquoted.indexOf(ch) >= 0) {
-                        token = tokenUnquoted.replaceAll(
+                    final int escapedQuote = sql.indexOf(ch, quoteStart + 1);
+                    if (escapedQuote >= 0 && escapedQuote < quoteEnd) {
+                        final String token = sql.substring(quoteStart + 1, quoteEnd).replaceAll(
                                 String.valueOf(ch) + ch, String.valueOf(ch));
+                        visitor.visit(sql, token, 0, token.length());
                     } else {
-                        token = tokenUnquoted;
+                        visitor.visit(sql, sql, quoteStart + 1, quoteEnd);
                     }
-                    checker.accept(token);
                 } else {
                     if ((options &= OPTION_TOKEN_ONLY) != 0) {
                         throw genException("Non-token detected", sql);
@@ -213,9 +324,7 @@ public class SqlChecker {
                 final int quoteEnd = pos;
                 pos++;
 
-                final String token = sql.substring(quoteStart + 1, quoteEnd);
-
-                checker.accept(token);
+                visitor.visit(sql, sql, quoteStart + 1, quoteEnd);
                 continue;
             }
             if ((options &= OPTION_TOKEN_ONLY) != 0) {
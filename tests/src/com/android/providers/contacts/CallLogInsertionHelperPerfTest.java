@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.provider.CallLog.Calls;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import java.util.Random;
+
+/**
+ * Benchmark for {@link DefaultCallLogInsertionHelper#addComputedValues} over a bulk import of
+ * call log rows, most of which are from a small set of repeat numbers.  Compares the helper
+ * with and without its number cache; the time per row is logged under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.CallLogInsertionHelperPerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class CallLogInsertionHelperPerfTest extends FixedAndroidTestCase {
+    private static final String TAG = "CallLogInsertionHelperPerfTest";
+
+    private static final int ROW_COUNT = 10000;
+    private static final int REPEAT_NUMBER_COUNT = 50;
+
+    private String[] mNumbers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // Nine calls out of ten are from a few dozen numbers, the others from one-off numbers.
+        final Random random = new Random(42);
+        mNumbers = new String[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            final int line = random.nextInt(10) < 9
+                    ? random.nextInt(REPEAT_NUMBER_COUNT) : 1000 + random.nextInt(9000);
+            mNumbers[i] = String.format("650-555-%04d", line);
+        }
+    }
+
+    public void testBulkImport() {
+        final DefaultCallLogInsertionHelper uncached =
+                DefaultCallLogInsertionHelper.getTestInstance(getTestContext(),
+                        new MockCountryMonitor(getTestContext()), 0);
+        final DefaultCallLogInsertionHelper cached =
+                DefaultCallLogInsertionHelper.getTestInstance(getTestContext(),
+                        new MockCountryMonitor(getTestContext()));
+
+        // Warm up libphonenumber and the geocoder.
+        importRows(uncached, 100);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        final ContentValues[] uncachedRows = importRows(uncached, ROW_COUNT);
+        final long uncachedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        final ContentValues[] cachedRows = importRows(cached, ROW_COUNT);
+        final long cachedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, String.format("Uncached: %d ns per row", uncachedNanos / ROW_COUNT));
+        Log.i(TAG, String.format("Cached: %d ns per row, %d hits, %d misses",
+                cachedNanos / ROW_COUNT, cached.getNumberInfoCacheHitCount(),
+                cached.getNumberInfoCacheMissCount()));
+
+        for (int i = 0; i < ROW_COUNT; i++) {
+            assertEquals(uncachedRows[i], cachedRows[i]);
+        }
+    }
+
+    private ContentValues[] importRows(CallLogInsertionHelper helper, int count) {
+        final ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(Calls.NUMBER, mNumbers[i]);
+            rows[i].put(Calls.DATE, i);
+            helper.addComputedValues(rows[i]);
+        }
+        return rows;
+    }
+}
@@ -55,6 +55,53 @@ public class CallLogInsertionHelperTest extends FixedAndroidTestCase {
         checkNormalization("test@sip.org", null);
     }
 
+    /**
+     * Tests that the values computed from a number are cached per number and country.
+     */
+    public void testNumberInfoCache() {
+        DefaultCallLogInsertionHelper helper = DefaultCallLogInsertionHelper.getTestInstance(
+                getTestContext(), new MockCountryMonitor(getTestContext()));
+        ContentValues first = new ContentValues();
+        first.put(Calls.NUMBER, "650-555-1212");
+        helper.addComputedValues(first);
+        assertEquals(0, helper.getNumberInfoCacheHitCount());
+        assertEquals(1, helper.getNumberInfoCacheMissCount());
+
+        ContentValues second = new ContentValues();
+        second.put(Calls.NUMBER, "650-555-1212");
+        helper.addComputedValues(second);
+        assertEquals(1, helper.getNumberInfoCacheHitCount());
+        assertEquals("+16505551212", second.getAsString(Calls.CACHED_NORMALIZED_NUMBER));
+        assertEquals(first.getAsString(Calls.GEOCODED_LOCATION),
+                second.getAsString(Calls.GEOCODED_LOCATION));
+
+        assertEquals(first.getAsString(Calls.GEOCODED_LOCATION),
+                helper.getGeocodedLocationFor("650-555-1212", "US"));
+        assertEquals(2, helper.getNumberInfoCacheHitCount());
+        helper.getGeocodedLocationFor("650-555-1212", "GB");
+        assertEquals(2, helper.getNumberInfoCacheMissCount());
+    }
+
+    /**
+     * Tests that the min match is added for every number, including invalid ones.
+     */
+    public void testNumberMinMatch() {
+        checkMinMatch("650-555-1212", "2121555");
+        checkMinMatch("+1 650-555-1212", "2121555");
+        checkMinMatch("555-1212", "2121555");
+        checkMinMatch("911", "119");
+        checkMinMatch("", "");
+        checkMinMatch("test@sip.org", "");
+    }
+
+    private void checkMinMatch(String number, String expectedMinMatch) {
+        ContentValues values = new ContentValues();
+        values.put(Calls.NUMBER, number);
+        mInsertionHelper.addComputedValues(values);
+        assertEquals(expectedMinMatch,
+                values.getAsString(CallLogDatabaseHelper.CallsColumns.NUMBER_MIN_MATCH));
+    }
+
     /**
      * Runs the DefaultCallLogInsertionHelper to determine if it produces the correct normalized
      * phone number.
@@ -434,6 +434,43 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         c.close();
     }
 
+    public void testCallLogFilter_NumberMinMatch() {
+        ContentValues values = getDefaultCallValues();
+        Uri uri = mResolver.insert(Calls.CONTENT_URI, values);
+        final SQLiteDatabase db =
+                mCallLogProvider.getCallLogDatabaseHelperForTest().getReadableDatabase();
+
+        // The test insertion helper does not compute the min match; calls without one are still
+        // found.
+        Uri filterUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "1-800-4664-411");
+        assertEquals(1, getCount(filterUri, null, null));
+
+        mCallLogProvider.performBackgroundTask(
+                CallLogProvider.BACKGROUND_TASK_UPDATE_NUMBER_MIN_MATCHES, null);
+        assertEquals("1144664", getNumberMinMatch(db, uri));
+        assertEquals(1, getCount(filterUri, null, null));
+        assertEquals(0, getCount(Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "1-888-4664-412"),
+                null, null));
+
+        // Changing the number recomputes the min match.
+        values.clear();
+        values.put(Calls.NUMBER, "1-888-4664-412");
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        mCallLogProvider.performBackgroundTask(
+                CallLogProvider.BACKGROUND_TASK_UPDATE_NUMBER_MIN_MATCHES, null);
+        assertEquals("2144664", getNumberMinMatch(db, uri));
+        assertEquals(0, getCount(filterUri, null, null));
+        assertEquals(1, getCount(Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "1-888-4664-412"),
+                null, null));
+    }
+
+    private static String getNumberMinMatch(SQLiteDatabase db, Uri uri) {
+        return DatabaseUtils.stringForQuery(db, "SELECT "
+                + CallLogDatabaseHelper.CallsColumns.NUMBER_MIN_MATCH + " FROM "
+                + CallLogDatabaseHelper.Tables.CALLS + " WHERE " + Calls._ID + "="
+                + ContentUris.parseId(uri), null);
+    }
+
     public void testAddCall() {
         CallerInfo ci = new CallerInfo();
         ci.setName("1-800-GOOG-411");
@@ -530,6 +567,66 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         }
     }
 
+    public void testPageAfterParamReturnsCorrectEntries() {
+        // Two calls share every date, so that the _id breaks the ties.
+        for (int i = 0; i < 10; i++) {
+            ContentValues values = getDefaultCallValues();
+            values.put(Calls.DATE, 1000 + i / 2);
+            mResolver.insert(Calls.CONTENT_URI, values);
+        }
+        final String[] projection = new String[] {Calls._ID, Calls.DATE};
+        final String sortOrder = Calls.DATE + " DESC, " + Calls._ID + " DESC";
+
+        // Page through the calls three at a time; the pages must add up to the whole call log.
+        final List<Long> pagedIds = new ArrayList<>();
+        String pageAfter = null;
+        while (true) {
+            Uri.Builder builder = Calls.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "3");
+            if (pageAfter != null) {
+                builder.appendQueryParameter(CallLogProvider.PARAM_KEY_PAGE_AFTER, pageAfter);
+            }
+            Cursor c = mResolver.query(builder.build(), projection, null, null, sortOrder);
+            try {
+                if (!c.moveToFirst()) {
+                    break;
+                }
+                do {
+                    pagedIds.add(c.getLong(0));
+                    pageAfter = c.getLong(1) + "," + c.getLong(0);
+                } while (c.moveToNext());
+            } finally {
+                c.close();
+            }
+        }
+
+        final List<Long> expectedIds = new ArrayList<>();
+        Cursor c = mResolver.query(Calls.CONTENT_URI, projection, null, null, sortOrder);
+        try {
+            while (c.moveToNext()) {
+                expectedIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(10, expectedIds.size());
+        assertEquals(expectedIds, pagedIds);
+    }
+
+    public void testUriWithBadPageAfterParamThrowsException() {
+        assertParamThrowsIllegalArgumentException(CallLogProvider.PARAM_KEY_PAGE_AFTER, "1000");
+        assertParamThrowsIllegalArgumentException(CallLogProvider.PARAM_KEY_PAGE_AFTER, "a,b");
+
+        Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CallLogProvider.PARAM_KEY_PAGE_AFTER, "1000,1")
+                .build();
+        try {
+            mResolver.query(uri, null, null, null, Calls.NUMBER);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     /**
      * Tests scenario where an app gives {@link ContentResolver} a file to open that is not in the
      * Call Log Provider directory.
@@ -739,6 +836,75 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertEquals(10, mCallLogProvider.getLastSyncTime(/* forShadow =*/ false));
     }
 
+    public void testCopyEntriesFromCursor_InvalidEntrySkipped() {
+        final ContentValues invalidValues = getTestCallLogValues(1);
+        invalidValues.putNull(Calls.FEATURES);
+        final MatrixCursor cursor = new MatrixCursor(CallLogProvider.CALL_LOG_SYNC_PROJECTION);
+        for (ContentValues values : new ContentValues[] {
+                getTestCallLogValues(2), invalidValues, getTestCallLogValues(0)}) {
+            cursor.addRow(CommonDatabaseUtils.getArrayFromContentValues(values,
+                    CallLogProvider.CALL_LOG_SYNC_PROJECTION));
+        }
+
+        assertEquals(10, mCallLogProvider.copyEntriesFromCursor(
+                cursor, 0, /* forShadow =*/ false));
+
+        assertStoredValues(Calls.CONTENT_URI,
+                getTestCallLogValues(2),
+                getTestCallLogValues(0));
+        assertEquals(10, mCallLogProvider.getLastSyncTime(/* forShadow =*/ false));
+    }
+
+    public void testCopyEntriesFromCursor_CopiesInBatches() throws Exception {
+        // Two entries per date, so that the first batch has to end between equal dates.
+        final int count = CallLogProvider.SYNC_BATCH_SIZE * 2 + 50;
+        final int failAt = CallLogProvider.SYNC_BATCH_SIZE + 50;
+        mCallLogProvider.mReadAccessLatch = new CountDownLatch(1);
+        try {
+            mCallLogProvider.copyEntriesFromCursor(
+                    getSyncCursor(count, failAt), 0, /* forShadow =*/ false);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        // Only the first batch was committed, and it already opened read access.
+        final long firstBatchDate = 1 + (CallLogProvider.SYNC_BATCH_SIZE - 1) / 2;
+        assertEquals(CallLogProvider.SYNC_BATCH_SIZE, getCount(Calls.CONTENT_URI, null, null));
+        assertEquals(firstBatchDate, mCallLogProvider.getLastSyncTime(/* forShadow =*/ false));
+        assertTrue(mCallLogProvider.mReadAccessLatch.await(0, TimeUnit.MILLISECONDS));
+
+        // Resuming copies the rest without duplicates.
+        assertEquals(1 + (count - 1) / 2, mCallLogProvider.copyEntriesFromCursor(
+                getSyncCursor(count, -1), firstBatchDate, /* forShadow =*/ false));
+        assertEquals(count, getCount(Calls.CONTENT_URI, null, null));
+        assertEquals(1 + (count - 1) / 2,
+                mCallLogProvider.getLastSyncTime(/* forShadow =*/ false));
+    }
+
+    /**
+     * Returns a cursor of {@code count} entries to sync, two per date, which fails when it is
+     * moved to position {@code failAt}.
+     */
+    private Cursor getSyncCursor(int count, final int failAt) {
+        final MatrixCursor cursor = new MatrixCursor(CallLogProvider.CALL_LOG_SYNC_PROJECTION) {
+            @Override
+            public boolean onMove(int oldPosition, int newPosition) {
+                if (newPosition == failAt) {
+                    throw new IllegalStateException();
+                }
+                return super.onMove(oldPosition, newPosition);
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            final ContentValues values = getTestCallLogValues(0);
+            values.put(Calls.NUMBER, String.valueOf(5550000 + i));
+            values.put(Calls.DATE, 1 + i / 2);
+            cursor.addRow(CommonDatabaseUtils.getArrayFromContentValues(values,
+                    CallLogProvider.CALL_LOG_SYNC_PROJECTION));
+        }
+        return cursor;
+    }
+
     public void testNullSubscriptionInfo() {
         PhoneAccountHandle handle = new PhoneAccountHandle(new ComponentName(
                 TELEPHONY_PACKAGE, TELEPHONY_CLASS), TEST_PHONE_ACCOUNT_HANDLE_SUB_ID);
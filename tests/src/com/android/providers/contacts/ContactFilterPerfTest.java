@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Benchmark for the strequent and contact filters, typing a name one character at a time against
+ * about 50000 name lookup rows, the way a dialer or a contact picker does while the user types.
+ * Logs the time per keystroke of prefix matching and of infix matching, see
+ * {@link ContactsProvider2#INFIX_MATCH}, and the median and 99th percentile time per keystroke
+ * of the contact filter with and without {@link ContactFilterSessionCache}, under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.ContactFilterPerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class ContactFilterPerfTest extends BaseContactsProvider2Test {
+    private static final String TAG = "ContactFilterPerfTest";
+
+    // Each raw contact with a given and a family name has four name lookup rows.  Every tenth
+    // is starred, and thus found by the strequent filter.
+    private static final int RAW_CONTACT_COUNT = 12500;
+    private static final int RAW_CONTACTS_PER_BATCH = 100;
+    private static final int ITERATIONS = 20;
+
+    private static final String[] CONTACT_FILTER_PROJECTION = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY, Contacts.PHOTO_THUMBNAIL_URI};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (int i = 0; i < RAW_CONTACT_COUNT; i += RAW_CONTACTS_PER_BATCH) {
+            ops.clear();
+            for (int j = i; j < i + RAW_CONTACTS_PER_BATCH; j++) {
+                final int backReference = ops.size();
+                ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                        .withValue(RawContacts.ACCOUNT_NAME, "account")
+                        .withValue(RawContacts.ACCOUNT_TYPE, "type")
+                        .withValue(RawContacts.SOURCE_ID, "source" + j)
+                        .withValue(RawContacts.STARRED, j % 10 == 0 ? 1 : 0)
+                        .build());
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                        .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                        .withValue(StructuredName.GIVEN_NAME, "Given" + j)
+                        .withValue(StructuredName.FAMILY_NAME, "Family" + (j % 100))
+                        .build());
+            }
+            mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        }
+    }
+
+    public void testTypeAhead() {
+        final String name = "Family40";
+        final long prefixElapsed = typeAhead(name, false);
+        final long infixElapsed = typeAhead(name.substring(2), true);
+        Log.i(TAG, String.format("%d us per keystroke with prefix matching,"
+                + " %d us per keystroke with infix matching",
+                prefixElapsed * 1000 / (ITERATIONS * name.length()),
+                infixElapsed * 1000 / (ITERATIONS * (name.length() - 2))));
+    }
+
+    /**
+     * Runs a strequent filter query for each prefix of the given text, and returns the elapsed
+     * time in milliseconds.
+     */
+    private long typeAhead(String text, boolean infixMatch) {
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (int j = 1; j <= text.length(); j++) {
+                final Uri uri = Uri.withAppendedPath(Contacts.CONTENT_STREQUENT_FILTER_URI,
+                        text.substring(0, j)).buildUpon()
+                        .appendQueryParameter(ContactsProvider2.INFIX_MATCH,
+                                String.valueOf(infixMatch))
+                        .build();
+                try (Cursor cursor = mResolver.query(uri, new String[] {Contacts._ID}, null,
+                        null, null)) {
+                    assertTrue(cursor.getCount() > 0);
+                }
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    public void testContactFilterTypeAhead() {
+        final ContactFilterSessionCache cache = getContactsProvider()
+                .getContactFilterSessionCacheForTest();
+        final String name = "Family40 Given140";
+        try {
+            cache.setEnabled(false);
+            final long[] before = typeAheadContactFilter(name);
+            cache.setEnabled(true);
+            final long[] after = typeAheadContactFilter(name);
+            Log.i(TAG, String.format("Contact filter: p50=%d us p99=%d us per keystroke without"
+                    + " filter sessions, p50=%d us p99=%d us per keystroke with filter sessions",
+                    percentile(before, 50), percentile(before, 99),
+                    percentile(after, 50), percentile(after, 99)));
+        } finally {
+            cache.setEnabled(true);
+        }
+    }
+
+    /**
+     * Runs a contact filter query for each prefix of the given text, and returns the sorted
+     * elapsed times in microseconds.
+     */
+    private long[] typeAheadContactFilter(String text) {
+        final long[] elapsed = new long[ITERATIONS * text.length()];
+        int k = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (int j = 1; j <= text.length(); j++) {
+                final Uri uri = Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI,
+                        text.substring(0, j));
+                final long start = SystemClock.elapsedRealtimeNanos();
+                try (Cursor cursor = mResolver.query(uri, CONTACT_FILTER_PROJECTION, null, null,
+                        Contacts.SORT_KEY_PRIMARY)) {
+                    assertTrue(cursor.getCount() > 0);
+                }
+                elapsed[k++] = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            }
+        }
+        Arrays.sort(elapsed);
+        return elapsed;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
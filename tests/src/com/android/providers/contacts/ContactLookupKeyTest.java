@@ -179,6 +179,52 @@ public class ContactLookupKeyTest extends BaseContactsProvider2Test {
         assertStoredValue(lookupUri, Contacts._ID, largerContactId);
     }
 
+    public void testLookupKeyCacheFollowsJoinAndSplit() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+        storeValue(RawContacts.CONTENT_URI, rawContactId1, RawContacts.SOURCE_ID, "1");
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Jane", "Roe");
+        storeValue(RawContacts.CONTENT_URI, rawContactId2, RawContacts.SOURCE_ID, "2");
+        assertNotAggregated(rawContactId1, rawContactId2);
+
+        final LookupKeyCache cache = getContactsProvider().getLookupKeyCacheForTest();
+        final int accountHashCode = LOCAL_ACCOUNT_HASH_CODE;
+        final Uri lookupUri1 =
+                Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, accountHashCode + "i1");
+        final Uri lookupUri2 =
+                Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, accountHashCode + "i2");
+        assertStoredValue(lookupUri1, Contacts._ID, queryContactId(rawContactId1));
+        assertStoredValue(lookupUri2, Contacts._ID, queryContactId(rawContactId2));
+
+        // Resolved again from the cache.
+        final int hitCount = cache.getHitCount();
+        assertStoredValue(lookupUri1, Contacts._ID, queryContactId(rawContactId1));
+        assertTrue(cache.getHitCount() > hitCount);
+
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId1, rawContactId2);
+        final long joinedContactId = queryContactId(rawContactId1);
+        assertStoredValue(lookupUri1, Contacts._ID, joinedContactId);
+        assertStoredValue(lookupUri2, Contacts._ID, joinedContactId);
+
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_SEPARATE, rawContactId1, rawContactId2);
+        assertNotAggregated(rawContactId1, rawContactId2);
+        assertStoredValue(lookupUri1, Contacts._ID, queryContactId(rawContactId1));
+        assertStoredValue(lookupUri2, Contacts._ID, queryContactId(rawContactId2));
+
+        // A new raw contact may take over a segment that matched nothing.
+        final Uri lookupUri3 = Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI,
+                accountHashCode + "i1." + accountHashCode + "i3." + accountHashCode + "i4");
+        assertStoredValue(lookupUri3, Contacts._ID, queryContactId(rawContactId1));
+        long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Jim", "Poe");
+        storeValue(RawContacts.CONTENT_URI, rawContactId3, RawContacts.SOURCE_ID, "3");
+        long rawContactId4 = RawContactUtil.createRawContactWithName(mResolver, "Joe", "Moe");
+        storeValue(RawContacts.CONTENT_URI, rawContactId4, RawContacts.SOURCE_ID, "4");
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId3, rawContactId4);
+        assertStoredValue(lookupUri3, Contacts._ID, queryContactId(rawContactId3));
+    }
+
     public void testGetLookupUri() {
         long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
         storeValue(RawContacts.CONTENT_URI, rawContactId1, RawContacts.SOURCE_ID, "1");
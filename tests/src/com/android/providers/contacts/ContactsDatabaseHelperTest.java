@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.content.ContentValues;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
@@ -33,12 +34,15 @@ import androidx.test.filters.LargeTest;
 import androidx.test.filters.SmallTest;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.testutil.RawContactUtil;
 
 import com.google.android.collect.Sets;
 
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -637,4 +641,126 @@ public class ContactsDatabaseHelperTest extends BaseContactsProvider2Test {
 
         assertEquals(0, count);
     }
+
+    public void testRebuildLocaleDataInBatches() {
+        final long[] rawContactIds = {
+                RawContactUtil.createRawContactWithName(mResolver, "Anne", "Alpha"),
+                RawContactUtil.createRawContactWithName(mResolver, "Bob", "Beta"),
+                RawContactUtil.createRawContactWithName(mResolver, "Carl", "Gamma")};
+
+        // Pretend the data was built for another locale.
+        mDb.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                + RawContacts.DISPLAY_NAME_PRIMARY + "='x',"
+                + RawContacts.SORT_KEY_PRIMARY + "='x'");
+        mDb.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
+
+        final LocaleSet locales = LocaleSet.newDefault();
+        assertEquals(0, mDbHelper.startLocaleRebuild(mDb, locales));
+        final long lastRawContactId = mDbHelper.rebuildLocaleDataBatch(mDb, locales, 0, 2);
+        assertEquals(rawContactIds[1], lastRawContactId);
+
+        // Only the first batch has been rebuilt.
+        assertEquals("Anne Alpha", getDisplayName(rawContactIds[0]));
+        assertEquals("Bob Beta", getDisplayName(rawContactIds[1]));
+        assertEquals("x", getDisplayName(rawContactIds[2]));
+        assertTrue(getNameLookupCount(rawContactIds[0]) > 0);
+        assertEquals(0, getNameLookupCount(rawContactIds[2]));
+
+        // Starting again resumes after the first batch.
+        assertEquals(lastRawContactId, mDbHelper.startLocaleRebuild(mDb, locales));
+        assertEquals(rawContactIds[2],
+                mDbHelper.rebuildLocaleDataBatch(mDb, locales, lastRawContactId, 2));
+        assertEquals(-1, mDbHelper.rebuildLocaleDataBatch(mDb, locales, rawContactIds[2], 2));
+
+        assertEquals("Carl Gamma", getDisplayName(rawContactIds[2]));
+        assertTrue(getNameLookupCount(rawContactIds[2]) > 0);
+        assertFalse(mDbHelper.needsToUpdateLocaleData(locales));
+        assertEquals(0, mDbHelper.startLocaleRebuild(mDb, locales));
+    }
+
+    public void testSwitchBackToLocaleDuringRebuild() {
+        final long[] rawContactIds = {
+                RawContactUtil.createRawContactWithName(mResolver, "Anne", "Alpha"),
+                RawContactUtil.createRawContactWithName(mResolver, "Bob", "Beta"),
+                RawContactUtil.createRawContactWithName(mResolver, "Carl", "Gamma")};
+        final LocaleSet locales = LocaleSet.newDefault();
+        mDbHelper.setLocale(locales);
+        assertFalse(mDbHelper.needsToUpdateLocaleData(locales));
+
+        // A change to another locale is interrupted after its first batch.
+        final LocaleSet otherLocales = LocaleSet.newForTest(
+                Locale.KOREA.equals(locales.getPrimaryLocale()) ? Locale.JAPAN : Locale.KOREA);
+        assertEquals(0, mDbHelper.startLocaleRebuild(mDb, otherLocales));
+        assertEquals(rawContactIds[1],
+                mDbHelper.rebuildLocaleDataBatch(mDb, otherLocales, 0, 2));
+
+        // Pretend the first batch was built for the other locale.
+        mDb.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                + RawContacts.DISPLAY_NAME_PRIMARY + "='x',"
+                + RawContacts.SORT_KEY_PRIMARY + "='x'"
+                + " WHERE " + RawContacts._ID + "<=" + rawContactIds[1]);
+        mDb.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
+
+        // Switching back to the original locale rebuilds the data of the first batch.
+        assertTrue(mDbHelper.needsToUpdateLocaleData(locales));
+        mDbHelper.setLocale(locales);
+
+        assertEquals("Anne Alpha", getDisplayName(rawContactIds[0]));
+        assertEquals("Bob Beta", getDisplayName(rawContactIds[1]));
+        assertTrue(getNameLookupCount(rawContactIds[0]) > 0);
+        assertTrue(getNameLookupCount(rawContactIds[1]) > 0);
+        assertTrue(getNameLookupCount(rawContactIds[2]) > 0);
+        assertFalse(mDbHelper.needsToUpdateLocaleData(locales));
+    }
+
+    public void testUpdateRawContactDisplayNames() {
+        final long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "Anne",
+                "Alpha");
+        final long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        final long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Carl",
+                "Gamma");
+        final long rawContactId4 = RawContactUtil.createRawContactWithName(mResolver, "Dora",
+                "Delta");
+        mDb.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                + RawContacts.DISPLAY_NAME_PRIMARY + "='x'");
+
+        mDbHelper.updateRawContactDisplayNames(mDb,
+                Sets.newHashSet(rawContactId4, rawContactId1, rawContactId2));
+
+        assertEquals("Anne Alpha", getDisplayName(rawContactId1));
+        assertNull(getDisplayName(rawContactId2));
+        // Not in the set, even though its data is in between.
+        assertEquals("x", getDisplayName(rawContactId3));
+        assertEquals("Dora Delta", getDisplayName(rawContactId4));
+    }
+
+    public void testStatementCache() {
+        final SqlStatementCache cache = mDbHelper.getStatementCacheForTest();
+        final long id = mDbHelper.getPackageId("com.example.one");
+        final int compileCount = cache.getCompileCount();
+        final int reuseCount = cache.getReuseCount();
+
+        // The statements are reused, with the new arguments.
+        assertEquals(id, mDbHelper.getPackageId("com.example.one"));
+        assertFalse(id == mDbHelper.getPackageId("com.example.two"));
+        assertEquals(compileCount, cache.getCompileCount());
+        assertTrue(cache.getReuseCount() > reuseCount);
+
+        // And compiled again once invalidated.
+        cache.invalidate();
+        assertEquals(id, mDbHelper.getPackageId("com.example.one"));
+        assertTrue(cache.getCompileCount() > compileCount);
+    }
+
+    private String getDisplayName(long rawContactId) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT " + RawContacts.DISPLAY_NAME_PRIMARY
+                + " FROM " + Tables.RAW_CONTACTS + " WHERE " + RawContacts._ID + "=?",
+                new String[] {String.valueOf(rawContactId)});
+    }
+
+    private long getNameLookupCount(long rawContactId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + Tables.NAME_LOOKUP
+                + " WHERE " + NameLookupColumns.RAW_CONTACT_ID + "=?",
+                new String[] {String.valueOf(rawContactId)});
+    }
 }
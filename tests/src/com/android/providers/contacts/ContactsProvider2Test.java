@@ -1972,6 +1972,43 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertEquals(0, getCount(lookupUri2, null, null));
     }
 
+    @Test
+    public void testPhoneLookupWithIndex() {
+        final ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        final PhoneLookupIndex index = cp.getPhoneLookupIndexForTest();
+        final long rawContactId = RawContactUtil.createRawContactWithName(mResolver, "Hot",
+                "Tamale");
+        final Uri dataUri = insertPhoneNumber(rawContactId, "18004664411");
+        index.load(cp.getDatabaseHelper().getReadableDatabase());
+        assertTrue(index.isLoaded());
+
+        final Uri lookupUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, "8004664411");
+        final int hitCount = index.getHitCount();
+        assertEquals(2, getCount(lookupUri, null, null));
+        assertEquals(hitCount + 1, index.getHitCount());
+        assertEquals(0, getCount(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, "4664411"),
+                null, null));
+
+        // The old and new min matches are read again after the number changes.
+        final ContentValues values = new ContentValues();
+        values.put(Phone.NUMBER, "16505551212");
+        mResolver.update(dataUri, values, null, null);
+        final int reloadCount = index.getReloadCount();
+        assertEquals(0, getCount(lookupUri, null, null));
+        assertEquals(2, getCount(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                "6505551212"), null, null));
+        assertEquals(reloadCount + 2, index.getReloadCount());
+
+        // A new number of the same contact.
+        insertPhoneNumber(rawContactId, "8004664411");
+        assertEquals(2, getCount(lookupUri, null, null));
+
+        mResolver.delete(dataUri, null, null);
+        assertEquals(0, getCount(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                "6505551212"), null, null));
+        assertEquals(2, getCount(lookupUri, null, null));
+    }
+
     @Test
     public void testSipPhoneLookup() {
         ContentValues values = new ContentValues();
@@ -2547,6 +2584,52 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         }
     }
 
+    /**
+     * Test for query of merged primary and work contacts, sorted by name.
+     */
+    @Test
+    public void testQueryMergedDataPhones_sorted() throws Exception {
+        mActor.addPermissions("android.permission.INTERACT_ACROSS_USERS");
+
+        for (String name : new String[] {"Beth", "Dora"}) {
+            long rawContactId = ContentUris.parseId(
+                    mResolver.insert(RawContacts.CONTENT_URI, new ContentValues()));
+            DataUtil.insertStructuredName(mResolver, rawContactId, name, "Primary");
+            insertPhoneNumber(rawContactId, "111-111-1111", false, false, Phone.TYPE_MOBILE);
+        }
+        final SynchronousContactsProvider2 corpCp2 = setUpCorpProvider();
+        for (String name : new String[] {"Anna", "Cleo"}) {
+            long rawContactId = ContentUris.parseId(
+                    corpCp2.insert(RawContacts.CONTENT_URI, new ContentValues()));
+            corpCp2.insert(ContactsContract.Data.CONTENT_URI, cv(
+                    Data.RAW_CONTACT_ID, rawContactId,
+                    Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE,
+                    StructuredName.GIVEN_NAME, name,
+                    StructuredName.FAMILY_NAME, "Corp"));
+            corpCp2.insert(ContactsContract.Data.CONTENT_URI, cv(
+                    Data.RAW_CONTACT_ID, rawContactId,
+                    Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE,
+                    Phone.NUMBER, "222-222-2222",
+                    Phone.TYPE, Phone.TYPE_MOBILE));
+        }
+
+        Cursor c = mResolver.query(Phone.ENTERPRISE_CONTENT_URI, new String[]{Phone.CONTACT_ID,
+                Phone.DISPLAY_NAME}, null, null, Phone.DISPLAY_NAME + " COLLATE LOCALIZED ASC");
+        try {
+            assertEquals(4, c.getCount());
+            final String[] expectedNames = new String[] {
+                    "Anna Corp", "Beth Primary", "Cleo Corp", "Dora Primary"};
+            for (String expectedName : expectedNames) {
+                assertTrue(c.moveToNext());
+                assertEquals(expectedName, c.getString(1));
+                assertEquals(expectedName.endsWith("Corp"),
+                        Contacts.isEnterpriseContactId(c.getLong(0)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * Test for enterprise caller-id, with the corp profile.
      *
@@ -3503,6 +3586,44 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertContactFilterNoResult("goolish");
     }
 
+    @Test
+    public void testQueryContactFilterSession() {
+        final ContactFilterSessionCache cache = ((ContactsProvider2) getProvider())
+                .getContactFilterSessionCacheForTest();
+        final long contactId1 = queryContactId(
+                RawContactUtil.createRawContactWithName(mResolver, "John", "Smith"));
+        final long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        final Uri nameUri2 = DataUtil.insertStructuredName(mResolver, rawContactId2, "Johnny",
+                "Appleseed");
+        final long contactId2 = queryContactId(rawContactId2);
+        RawContactUtil.createRawContactWithName(mResolver, "Jane", "Doe");
+
+        final int hitCount = cache.getHitCount();
+        assertContactFilterWithoutSnippet("jo", contactId1, contactId2);
+        assertContactFilterWithoutSnippet("joh", contactId1, contactId2);
+        assertContactFilterWithoutSnippet("john s", contactId1);
+        assertContactFilterWithoutSnippet("john sa");
+        assertEquals(hitCount + 3, cache.getHitCount());
+
+        // A new contact drops the session.
+        final long contactId3 = queryContactId(
+                RawContactUtil.createRawContactWithName(mResolver, "John", "Sample"));
+        assertContactFilterWithoutSnippet("john sa", contactId3);
+
+        // So does a new name.
+        assertContactFilterWithoutSnippet("jo s", contactId1, contactId3);
+        final ContentValues values = new ContentValues();
+        values.put(StructuredName.GIVEN_NAME, "Johanna");
+        values.put(StructuredName.FAMILY_NAME, "Samuels");
+        mResolver.update(nameUri2, values, null, null);
+        assertContactFilterWithoutSnippet("jo sa", contactId2, contactId3);
+        assertEquals(hitCount + 3, cache.getHitCount());
+
+        // Filters with snippets are not cached.
+        assertContactFilter(contactId1, "john sm");
+        assertEquals(hitCount + 3, cache.getHitCount());
+    }
+
     @Test
     public void testQueryContactFilterByEmailAddress() {
         ContentValues values = new ContentValues();
@@ -3558,6 +3679,46 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertContactFilterNoResult("8884664411");
     }
 
+    @Test
+    public void testQueryContactStrequentFilterInfixMatch() {
+        final long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        final Uri nameUri = DataUtil.insertStructuredName(mResolver, rawContactId1, "John",
+                "Smith");
+        final long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Jane",
+                "Doe");
+        final ContentValues values = new ContentValues();
+        values.put(RawContacts.STARRED, 1);
+        mResolver.update(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId1),
+                values, null, null);
+        mResolver.update(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId2),
+                values, null, null);
+
+        assertEquals(0, getCount(Uri.withAppendedPath(Contacts.CONTENT_STREQUENT_FILTER_URI,
+                "mit"), null, null));
+        values.clear();
+        values.put(Contacts._ID, queryContactId(rawContactId1));
+        assertStoredValuesWithProjection(buildStrequentInfixFilterUri("mit"), values);
+
+        // Prefixes still match.
+        assertEquals(1, getCount(buildStrequentInfixFilterUri("smi"), null, null));
+        assertEquals(1, getCount(buildStrequentInfixFilterUri("oe"), null, null));
+
+        // The infixes of the old name are removed when the name changes.
+        values.clear();
+        values.put(StructuredName.FAMILY_NAME, "Jones");
+        mResolver.update(nameUri, values, null, null);
+        assertEquals(0, getCount(buildStrequentInfixFilterUri("mit"), null, null));
+        assertEquals(1, getCount(buildStrequentInfixFilterUri("one"), null, null));
+
+        mResolver.delete(nameUri, null, null);
+        assertEquals(0, getCount(buildStrequentInfixFilterUri("one"), null, null));
+    }
+
+    private Uri buildStrequentInfixFilterUri(String filter) {
+        return Uri.withAppendedPath(Contacts.CONTENT_STREQUENT_FILTER_URI, filter).buildUpon()
+                .appendQueryParameter(ContactsProvider2.INFIX_MATCH, "true").build();
+    }
+
     /**
      * Checks ContactsProvider2 works well with strequent Uris. The provider should return starred
      * contacts.
@@ -5142,6 +5303,23 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertEquals(0, getCount(filterUri, null, null));
     }
 
+    private void assertContactFilterWithoutSnippet(String filter, long... contactIds) {
+        final Uri filterUri = Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI,
+                Uri.encode(filter));
+        final Set<Long> expected = new HashSet<>();
+        for (long contactId : contactIds) {
+            expected.add(contactId);
+        }
+        final Set<Long> actual = new HashSet<>();
+        try (Cursor c = mResolver.query(filterUri, new String[] {Contacts._ID}, null, null,
+                null)) {
+            while (c.moveToNext()) {
+                actual.add(c.getLong(0));
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
     @Test
     public void testSearchSnippetOrganization() throws Exception {
         long rawContactId = RawContactUtil.createRawContactWithName(mResolver);
@@ -6086,6 +6264,38 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         }
     }
 
+    @Test
+    public void testInsertContactsAndPhotosInBatch() throws Exception {
+        final int[] resourceIds = {R.drawable.earth_normal, R.drawable.nebula, R.drawable.galaxy};
+
+        ArrayList<ContentProviderOperation> ops = Lists.newArrayList();
+        for (int resourceId : resourceIds) {
+            final int rawContactIndex = ops.size();
+            ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValues(new ContentValues()).build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                    .withValue(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE)
+                    .withValue(Photo.PHOTO,
+                            loadPhotoFromResource(resourceId, PhotoSize.ORIGINAL).clone())
+                    .build());
+        }
+        ContentProviderResult[] results = mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+
+        // Each raw contact should have its own photo, both as a thumbnail and a display photo.
+        for (int i = 0; i < resourceIds.length; i++) {
+            final long rawContactId = ContentUris.parseId(results[i * 2].uri);
+            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI,
+                    queryContactId(rawContactId));
+            EvenMoreAsserts.assertImageRawData(getContext(),
+                    loadPhotoFromResource(resourceIds[i], PhotoSize.THUMBNAIL),
+                    Contacts.openContactPhotoInputStream(mResolver, contactUri, false));
+            EvenMoreAsserts.assertImageRawData(getContext(),
+                    loadPhotoFromResource(resourceIds[i], PhotoSize.DISPLAY_PHOTO),
+                    Contacts.openContactPhotoInputStream(mResolver, contactUri, true));
+        }
+    }
+
     // Stream item update test cases.
 
     @Test
@@ -8633,6 +8843,33 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertTrue(data.contains("N:Doh;Jane;;;"));
     }
 
+    @Test
+    public void testOpenAssetFileMultiVCard_mixedLookupKeys() throws IOException {
+        final long rawContactId1 = RawContactUtil.createRawContact(mResolver, mAccount,
+                RawContacts.SOURCE_ID, "4:12");
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "John", "Doe");
+        // Without a source ID, the lookup key is made of the raw contact ID and name.
+        final long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Jane",
+                "Doh");
+        final long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Jim",
+                "Dough");
+
+        final String lookupKeys = Uri.encode(queryLookupKey(queryContactId(rawContactId1)))
+                + ":" + Uri.encode(queryLookupKey(queryContactId(rawContactId2)))
+                + ":" + Uri.encode("0r12345-Nobody");
+        final AssetFileDescriptor descriptor = mResolver.openAssetFileDescriptor(
+                Uri.withAppendedPath(Contacts.CONTENT_MULTI_VCARD_URI, Uri.encode(lookupKeys)),
+                "r");
+        final FileInputStream inputStream = descriptor.createInputStream();
+        final String data = readToEnd(inputStream);
+        inputStream.close();
+        descriptor.close();
+
+        assertTrue(data.contains("N:Doe;John;;;"));
+        assertTrue(data.contains("N:Doh;Jane;;;"));
+        assertFalse(data.contains("N:Dough;Jim;;;"));
+    }
+
     @Test
     public void testOpenAssetFileSingleVCard() throws IOException {
         final VCardTestUriCreator contacts = createVCardTestContacts();
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.providers.contacts.enterprise.EnterpriseContactsCursorWrapper;
+
+/**
+ * Benchmark for {@link EnterpriseContactsCursorWrapper}, scanning a work profile contacts cursor
+ * the way a contact picker binds its rows: every column once, and the photo URIs twice.
+ * Compares the wrapped cursor with the bare one; the time per row is logged under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.EnterpriseContactsCursorWrapperPerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class EnterpriseContactsCursorWrapperPerfTest extends FixedAndroidTestCase {
+    private static final String TAG = "EnterpriseContactsCursorWrapperPerfTest";
+
+    private static final int ROW_COUNT = 5000;
+    private static final int ITERATIONS = 10;
+
+    private static final String[] PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.LOOKUP_KEY,
+            Contacts.DISPLAY_NAME,
+            Contacts.STARRED,
+            Contacts.PHOTO_ID,
+            Contacts.PHOTO_URI,
+            Contacts.PHOTO_THUMBNAIL_URI,
+            Contacts.CUSTOM_RINGTONE,
+    };
+
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCursor = new MatrixCursor(PROJECTION, ROW_COUNT);
+        for (int i = 0; i < ROW_COUNT; i++) {
+            final String photoUri = "content://com.android.contacts/contacts/" + i + "/photo";
+            mCursor.addRow(new Object[] {
+                    (long) i, "0r" + i + "-2A", "Contact " + i, i % 2, (long) i,
+                    photoUri, photoUri, null});
+        }
+    }
+
+    public void testScan() {
+        final Cursor wrapped = new EnterpriseContactsCursorWrapper(mCursor, PROJECTION,
+                new int[] {0}, null);
+
+        // Warm up.
+        scan(mCursor);
+        scan(wrapped);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            scan(mCursor);
+        }
+        final long bareNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            scan(wrapped);
+        }
+        final long wrappedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, String.format("Bare: %d ns per row", bareNanos / (ITERATIONS * ROW_COUNT)));
+        Log.i(TAG, String.format("Wrapped: %d ns per row",
+                wrappedNanos / (ITERATIONS * ROW_COUNT)));
+
+        assertTrue(wrapped.moveToPosition(7));
+        assertEquals(Contacts.ENTERPRISE_CONTACT_ID_BASE + 7, wrapped.getLong(0));
+        assertEquals(Contacts.ENTERPRISE_CONTACT_LOOKUP_PREFIX + "0r7-2A", wrapped.getString(1));
+        assertEquals(0, wrapped.getLong(4));
+        assertEquals("content://com.android.contacts/contacts_corp/7/photo",
+                wrapped.getString(6));
+    }
+
+    private static void scan(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            cursor.getLong(0);
+            cursor.getString(1);
+            cursor.getString(2);
+            cursor.getInt(3);
+            cursor.getLong(4);
+            for (int i = 0; i < 2; i++) {
+                cursor.getString(5);
+                cursor.getString(6);
+            }
+            cursor.getString(7);
+        }
+    }
+}
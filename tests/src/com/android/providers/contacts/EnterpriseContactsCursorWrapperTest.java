@@ -251,5 +251,12 @@ public class EnterpriseContactsCursorWrapperTest extends FixedAndroidTestCase {
                 rewritten.getString(11));
         assertEquals("content://com.android.contacts/contacts_corp/13/photo",
                 rewritten.getString(12));
+
+        // The rewritten values follow the cursor back to a previous row.
+        rewritten.moveToPrevious();
+        assertEquals("content://com.android.contacts/contacts_corp/12/photo",
+                rewritten.getString(11));
+        rewritten.moveToPosition(1);
+        assertEquals("c-key", rewritten.getString(2));
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.providers.contacts.ContactLookupKey.LookupKeySegment;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link LookupKeyCache}.
+ */
+@SmallTest
+public class LookupKeyCacheTest extends TestCase {
+
+    private LookupKeyCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new LookupKeyCache(10);
+    }
+
+    public void testGet() {
+        mCache.put("key", 1, segments(1, 2, -1), mCache.getGeneration());
+        assertEquals(1, mCache.get("key"));
+        assertEquals(-1, mCache.get("other"));
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    public void testUnresolvedKeysAreNotCached() {
+        mCache.put("key", -1, segments(-1), mCache.getGeneration());
+        assertEquals(-1, mCache.get("key"));
+    }
+
+    public void testInvalidateContacts() {
+        mCache.put("key1", 1, segments(1, 2), mCache.getGeneration());
+        mCache.put("key2", 3, segments(3), mCache.getGeneration());
+
+        // The key also depends on contacts it matched but did not resolve to.
+        mCache.invalidateContacts(Collections.singleton(2L));
+        assertEquals(-1, mCache.get("key1"));
+        assertEquals(3, mCache.get("key2"));
+    }
+
+    public void testInvalidateAll() {
+        mCache.put("key", 1, segments(1), mCache.getGeneration());
+        mCache.invalidateAll();
+        assertEquals(-1, mCache.get("key"));
+    }
+
+    public void testLookupsOlderThanInvalidationAreNotCached() {
+        final long generation = mCache.getGeneration();
+        mCache.invalidateContacts(Collections.singleton(5L));
+        mCache.put("key", 1, segments(1), generation);
+        assertEquals(-1, mCache.get("key"));
+    }
+
+    public void testTakeInvalidation() {
+        final TransactionContext txContext = new TransactionContext(false);
+        assertNull(mCache.takeInvalidation(txContext));
+
+        mCache.put("key1", 1, segments(1), mCache.getGeneration());
+        mCache.put("key2", 2, segments(2), mCache.getGeneration());
+        txContext.invalidateLookupKeysForContact(1);
+        final Runnable invalidation = mCache.takeInvalidation(txContext);
+        assertTrue(txContext.getStaleLookupKeyContactIds().isEmpty());
+
+        // Nothing happens until the transaction is committed.
+        assertEquals(1, mCache.get("key1"));
+        invalidation.run();
+        assertEquals(-1, mCache.get("key1"));
+        assertEquals(2, mCache.get("key2"));
+
+        txContext.invalidateAllLookupKeys();
+        mCache.takeInvalidation(txContext).run();
+        assertEquals(-1, mCache.get("key2"));
+        assertFalse(txContext.areAllLookupKeysStale());
+    }
+
+    private static ArrayList<LookupKeySegment> segments(long... contactIds) {
+        final ArrayList<LookupKeySegment> segments = new ArrayList<>();
+        for (long contactId : contactIds) {
+            final LookupKeySegment segment = new LookupKeySegment();
+            segment.contactId = contactId;
+            segments.add(segment);
+        }
+        return segments;
+    }
+}
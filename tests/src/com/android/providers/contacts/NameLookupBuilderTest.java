@@ -64,6 +64,24 @@ public class NameLookupBuilderTest extends TestCase {
         }
     }
 
+    private static class TestNameInfixLookupBuilder extends TestNameLookupBuilder {
+
+        public TestNameInfixLookupBuilder(NameSplitter splitter) {
+            super(splitter);
+        }
+
+        @Override
+        protected boolean hasNameInfixLookup() {
+            return true;
+        }
+
+        @Override
+        protected void insertNameInfixLookup(long rawContactId, long dataId,
+                String normalizedInfix) {
+            sb.append("(i:").append(normalizedInfix).append(")");
+        }
+    }
+
     private TestNameLookupBuilder mBuilder;
 
     @Override
@@ -203,4 +221,22 @@ public class NameLookupBuilderTest extends TestCase {
         assertTrue(actual.contains("(2:Jessy"));
         assertTrue(actual.contains("(2:Longname"));
     }
+
+    public void testInfixes() {
+        TestNameLookupBuilder builder = new TestNameInfixLookupBuilder(
+                new NameSplitter("Mr", "", "", "", Locale.getDefault()));
+        builder.insertNameLookup(0, 0, "Foo Bar", FullNameStyle.UNDEFINED);
+        assertEquals("(i:oo)(i:o)(i:ar)(i:r)"
+                + "(0:Foo.Bar)(2:FooBar)(1:Bar.Foo)(2:BarFoo)", builder.inserted());
+    }
+
+    public void testInfixesOfLongToken() {
+        TestNameLookupBuilder builder = new TestNameInfixLookupBuilder(
+                new NameSplitter("Mr", "", "", "", Locale.getDefault()));
+        builder.insertNameLookup(0, 0, "Abcdefghijklmnopqrstuvwxyz", FullNameStyle.UNDEFINED);
+        String actual = builder.inserted();
+        assertTrue(actual.contains("(i:bcdefghijklmnopqrstuvwxyz)"));
+        assertTrue(actual.contains("(i:tuvwxyz)"));
+        assertFalse(actual.contains("(i:uvwxyz)"));
+    }
 }
@@ -120,4 +120,22 @@ public class NameNormalizerTest extends TestCase {
         assertNotSame(compressing1, compressing3);
         assertNotSame(complexity1, complexity3);
     }
+
+    public void testGetCollatorsOnAnotherThread() throws Exception {
+        final RuleBasedCollator compressing = NameNormalizer.getCompressingCollator();
+        final RuleBasedCollator[] otherCompressing = new RuleBasedCollator[1];
+        final String[] otherNormalized = new String[1];
+
+        // Collators are not thread-safe, so each thread gets its own.
+        final Thread thread = new Thread(() -> {
+            otherCompressing[0] = NameNormalizer.getCompressingCollator();
+            otherNormalized[0] = NameNormalizer.normalize("M\u00fcller");
+        });
+        thread.start();
+        thread.join();
+
+        assertNotNull(otherCompressing[0]);
+        assertNotSame(compressing, otherCompressing[0]);
+        assertEquals(NameNormalizer.normalize("M\u00fcller"), otherNormalized[0]);
+    }
 }
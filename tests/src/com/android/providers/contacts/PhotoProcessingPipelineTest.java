@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.test.MoreAsserts;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.providers.contacts.tests.R;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link PhotoProcessingPipeline}.
+ */
+@MediumTest
+public class PhotoProcessingPipelineTest extends PhotoLoadingTestCase {
+
+    private PhotoProcessingPipeline mPipeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPipeline = new PhotoProcessingPipeline();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPipeline.clear();
+        super.tearDown();
+    }
+
+    public void testSubmittedPhotoMatchesInlineProcessing() throws IOException {
+        final byte[] photo = loadPhotoFromResource(R.drawable.earth_large, PhotoSize.ORIGINAL);
+        assertTrue(mPipeline.submit(photo, 256, 96, false));
+        assertEquals(1, mPipeline.getPendingPhotoCount());
+
+        final PhotoProcessor processor = mPipeline.take(photo, 256, 96, false);
+        assertEquals(0, mPipeline.getPendingPhotoCount());
+        assertEquals(256, processor.getDisplayPhotoWidth());
+        MoreAsserts.assertEquals(
+                loadPhotoFromResource(R.drawable.earth_large, PhotoSize.DISPLAY_PHOTO),
+                processor.getDisplayPhotoBytes());
+        MoreAsserts.assertEquals(
+                loadPhotoFromResource(R.drawable.earth_large, PhotoSize.THUMBNAIL),
+                processor.getThumbnailPhotoBytes());
+    }
+
+    public void testPhotosAreMatchedByIdentity() throws IOException {
+        final byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        mPipeline.submit(photo, 256, 96, false);
+
+        // An equal copy, or other dimensions, are processed inline and leave the photo pending.
+        assertNotNull(mPipeline.take(photo.clone(), 256, 96, false));
+        assertEquals(1, mPipeline.getPendingPhotoCount());
+        assertEquals(96, mPipeline.take(photo, 96, 48, false).getDisplayPhotoWidth());
+        assertEquals(0, mPipeline.getPendingPhotoCount());
+    }
+
+    public void testProcessingAheadIsBounded() throws IOException {
+        final byte[] original = loadPhotoFromResource(R.drawable.earth_small, PhotoSize.ORIGINAL);
+        final int count = PhotoProcessingPipeline.MAX_PENDING_PHOTOS_PER_THREAD + 5;
+        final byte[][] photos = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            photos[i] = original.clone();
+            assertTrue(mPipeline.submit(photos[i], 256, 96, false));
+        }
+        assertEquals(count, mPipeline.getPendingPhotoCount());
+        assertEquals(PhotoProcessingPipeline.MAX_PENDING_PHOTOS_PER_THREAD,
+                mPipeline.getProcessingPhotoCount());
+
+        // Taking a photo lets the next waiting one start.
+        mPipeline.take(photos[0], 256, 96, false);
+        assertEquals(PhotoProcessingPipeline.MAX_PENDING_PHOTOS_PER_THREAD,
+                mPipeline.getProcessingPhotoCount());
+
+        for (int i = 1; i < count; i++) {
+            assertNotNull(mPipeline.take(photos[i], 256, 96, false));
+        }
+        assertEquals(0, mPipeline.getPendingPhotoCount());
+        assertEquals(0, mPipeline.getProcessingPhotoCount());
+    }
+
+    public void testInvalidPhoto() {
+        final byte[] photo = new byte[] {1, 2, 3};
+        mPipeline.submit(photo, 256, 96, false);
+        try {
+            mPipeline.take(photo, 256, 96, false);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testClear() {
+        final byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        mPipeline.submit(photo, 256, 96, false);
+        mPipeline.clear();
+        assertEquals(0, mPipeline.getPendingPhotoCount());
+        assertEquals(0, mPipeline.getProcessingPhotoCount());
+    }
+}
@@ -20,12 +20,15 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.test.MoreAsserts;
 
 import androidx.test.filters.SmallTest;
 
 import com.android.providers.contacts.tests.R;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Tests for {@link PhotoProcessor}.
@@ -49,4 +52,64 @@ public class PhotoProcessorTest extends FixedAndroidTestCase {
         // Make sure the transparent pixel is now 100% white.
         assertEquals(Color.argb(255, 255, 255, 255), normalized.getPixel(0, 0));
     }
+
+    public void testDecodeSampledBitmap() throws IOException {
+        // Source image is 1024x1024.
+        final byte[] photo = readResource(R.drawable.earth_huge);
+
+        // Large enough for a 256 display photo, without decoding every pixel.
+        Bitmap decoded = PhotoProcessor.decodeSampledBitmap(photo, 256, false);
+        assertEquals(256, decoded.getWidth());
+        assertEquals(256, decoded.getHeight());
+
+        // Never below the display photo size.
+        decoded = PhotoProcessor.decodeSampledBitmap(photo, 300, false);
+        assertEquals(512, decoded.getWidth());
+        assertEquals(512, decoded.getHeight());
+
+        // Invalid images can't be decoded.
+        assertNull(PhotoProcessor.decodeSampledBitmap(new byte[] {1, 2, 3}, 256, false));
+    }
+
+    public void testDecodeSampledBitmapWithCrop() throws IOException {
+        // Source image is 600x400, so a 200x200 crop needs the full resolution while the longer
+        // side alone could be halved.
+        final byte[] photo = readResource(R.drawable.earth_600x400);
+
+        Bitmap decoded = PhotoProcessor.decodeSampledBitmap(photo, 200, true);
+        assertEquals(600, decoded.getWidth());
+        decoded = PhotoProcessor.decodeSampledBitmap(photo, 200, false);
+        assertEquals(300, decoded.getWidth());
+    }
+
+    public void testCompressPhotos() throws IOException {
+        final byte[] photo = readResource(R.drawable.earth_large);
+        final PhotoProcessor expected = new PhotoProcessor(photo, 256, 96);
+        final PhotoProcessor processor = new PhotoProcessor(photo, 256, 96);
+        processor.compressPhotos();
+
+        assertNull(processor.getDisplayPhoto());
+        assertNull(processor.getThumbnailPhoto());
+        assertEquals(256, processor.getDisplayPhotoWidth());
+        assertEquals(256, processor.getDisplayPhotoHeight());
+        MoreAsserts.assertEquals(expected.getDisplayPhotoBytes(),
+                processor.getDisplayPhotoBytes());
+        MoreAsserts.assertEquals(expected.getThumbnailPhotoBytes(),
+                processor.getThumbnailPhotoBytes());
+    }
+
+    private byte[] readResource(int resourceId) throws IOException {
+        final InputStream is = getTestContext().getResources().openRawResource(resourceId);
+        try {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[10000];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+            }
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
 }
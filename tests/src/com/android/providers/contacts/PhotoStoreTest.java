@@ -30,6 +30,7 @@ import com.android.providers.contacts.tests.R;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -194,6 +195,95 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
         }
     }
 
+    public void testPhotoFilesAreSharded() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File file = new File(mPhotoStore.get(photoFileId).path);
+
+        assertEquals(String.valueOf(photoFileId), file.getName());
+        assertEquals(String.format("%02x", photoFileId % PhotoStore.SHARD_COUNT),
+                file.getParentFile().getName());
+        assertEquals("photos", file.getParentFile().getParentFile().getName());
+    }
+
+    public void testInitializeMovesFlatFilesAndDeletesTempFiles() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        PhotoStore.Entry entry = mPhotoStore.get(photoFileId);
+        File shardedFile = new File(entry.path);
+        File storePath = shardedFile.getParentFile().getParentFile();
+
+        // Move the file to where older versions stored it, and leave an unfinished temp file.
+        File flatFile = new File(storePath, String.valueOf(photoFileId));
+        assertTrue(shardedFile.renameTo(flatFile));
+        File tempFile = File.createTempFile("img", null, new File(storePath, "tmp"));
+
+        mPhotoStore.initialize();
+
+        assertFalse(flatFile.exists());
+        assertFalse(tempFile.exists());
+        assertEquals(entry.path, mPhotoStore.get(photoFileId).path);
+        assertTrue(shardedFile.exists());
+        assertEquals(entry.size, mPhotoStore.getTotalSize());
+    }
+
+    public void testInitializeRenamesTempFilesOfCommittedPhotos() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        PhotoStore.Entry entry = mPhotoStore.get(photoFileId);
+        File shardedFile = new File(entry.path);
+        File tempPath = new File(shardedFile.getParentFile().getParentFile(), "tmp");
+
+        // The process died after the photo was committed, but before its temp file was renamed.
+        File tempFile = File.createTempFile(
+                PhotoStore.getTempFilePrefix(photoFileId), null, tempPath);
+        assertTrue(tempFile.delete());
+        assertTrue(shardedFile.renameTo(tempFile));
+
+        // The temp file of a photo that was rolled back.
+        File rolledBackFile = File.createTempFile(
+                PhotoStore.getTempFilePrefix(photoFileId + 1), null, tempPath);
+
+        mPhotoStore.initialize();
+
+        assertFalse(tempFile.exists());
+        assertFalse(rolledBackFile.exists());
+        assertTrue(shardedFile.exists());
+        assertEquals(entry.path, mPhotoStore.get(photoFileId).path);
+        assertEquals(entry.size, mPhotoStore.getTotalSize());
+    }
+
+    public void testInitializeDeletesIncompleteTempFiles() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        PhotoStore.Entry entry = mPhotoStore.get(photoFileId);
+        File shardedFile = new File(entry.path);
+        File tempPath = new File(shardedFile.getParentFile().getParentFile(), "tmp");
+
+        // The process died after the photo was committed, but before its temp file was synced.
+        File tempFile = File.createTempFile(
+                PhotoStore.getTempFilePrefix(photoFileId), null, tempPath);
+        FileOutputStream stream = new FileOutputStream(tempFile);
+        try {
+            stream.write(new byte[(int) entry.size / 2]);
+        } finally {
+            stream.close();
+        }
+        assertTrue(shardedFile.delete());
+
+        mPhotoStore.initialize();
+
+        assertFalse(tempFile.exists());
+        assertFalse(shardedFile.exists());
+        assertNull(mPhotoStore.get(photoFileId));
+        assertEquals(0, mPhotoStore.getTotalSize());
+
+        // The row is left for the caller of cleanup() to remove.
+        Set<Long> keysInUse = new HashSet<Long>();
+        keysInUse.add(photoFileId);
+        assertEquals(keysInUse, mPhotoStore.cleanup(keysInUse));
+    }
+
     public void testCleanup() throws IOException {
         // Load some photos into the store.
         Set<Long> photoFileIds = new HashSet<Long>();
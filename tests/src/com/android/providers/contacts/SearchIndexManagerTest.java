@@ -17,8 +17,11 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Im;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
@@ -484,6 +487,119 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
                 SearchSnippets.SNIPPET, "john@doe.com");
     }
 
+    public void testRebuildIndexInChunks() {
+        final long[] contactIds = new long[5];
+        for (int i = 0; i < contactIds.length; i++) {
+            long rawContactId = RawContactUtil.createRawContact(mResolver);
+            contactIds[i] = queryContactId(rawContactId);
+            insertEmail(rawContactId, "john" + i + "@doe.com");
+        }
+
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        dbHelper.rebuildSearchIndex();
+        assertEquals(0, querySearchIndexCount(dbHelper));
+
+        getContactsProvider().setSearchIndexRebuildChunkSize(2);
+        getContactsProvider().updateSearchIndexInBackground();
+
+        assertEquals(contactIds.length, querySearchIndexCount(dbHelper));
+        for (int i = 0; i < contactIds.length; i++) {
+            assertSearchIndex(contactIds[i], "john" + i + "@doe.com", null, null);
+        }
+        assertEquals("0", dbHelper.getProperty(
+                SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, null));
+    }
+
+    public void testRebuildIndexResumesFromCursor() {
+        final long[] contactIds = new long[4];
+        for (int i = 0; i < contactIds.length; i++) {
+            long rawContactId = RawContactUtil.createRawContact(mResolver);
+            contactIds[i] = queryContactId(rawContactId);
+            insertEmail(rawContactId, "john" + i + "@doe.com");
+        }
+
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        dbHelper.rebuildSearchIndex();
+
+        // Pretend that a previous rebuild was interrupted after the first two contacts.
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR,
+                String.valueOf(contactIds[1]));
+        getContactsProvider().setSearchIndexRebuildChunkSize(1);
+        getContactsProvider().updateSearchIndexInBackground();
+
+        assertEquals(2, querySearchIndexCount(dbHelper));
+        assertSearchIndex(contactIds[2], "john2@doe.com", null, null);
+        assertSearchIndex(contactIds[3], "john3@doe.com", null, null);
+    }
+
+    public void testRebuildIndexInParallel() {
+        // Accented, Japanese, Chinese and Korean names go through the collators and the
+        // transliterators, which worker threads must not share.
+        final String[][] names = {
+                {"John", "Doe"}, {"J\u00f6rg", "M\u00fcller"}, {"\u00c5sa", "\u00c5ngstr\u00f6m"},
+                {"\u592a\u90ce", "\u5c71\u7530"}, {"\u3072\u308d\u3057", "\u3084\u307e\u3060"},
+                {"\u5c0f\u9f99", "\u674e"}, {"\ubbfc\uc218", "\uae40"},
+        };
+        for (int i = 0; i < 40; i++) {
+            long rawContactId = RawContactUtil.createRawContact(mResolver);
+            final String[] name = names[i % names.length];
+            DataUtil.insertStructuredName(mResolver, rawContactId, name[0] + i, name[1]);
+            insertEmail(rawContactId, "john" + i + "@doe.com");
+            insertPhoneNumber(rawContactId, "65055500" + (10 + i));
+            ContentValues values = new ContentValues();
+            values.put(Organization.COMPANY, "Acme " + i);
+            insertOrganization(rawContactId, values);
+        }
+
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        getContactsProvider().setSearchIndexRebuildChunkSize(20);
+
+        dbHelper.rebuildSearchIndex();
+        getContactsProvider().setSearchIndexRebuildParallelism(1);
+        getContactsProvider().updateSearchIndexInBackground();
+        final String serial = dumpSearchIndex(dbHelper);
+
+        // One contact per batch, so that the workers normalize names at the same time.
+        dbHelper.rebuildSearchIndex();
+        getContactsProvider().setSearchIndexParallelBatchSize(1);
+        getContactsProvider().setSearchIndexRebuildParallelism(4);
+        getContactsProvider().updateSearchIndexInBackground();
+        final String parallel = dumpSearchIndex(dbHelper);
+
+        assertEquals(serial, parallel);
+    }
+
+    public void testUnchangedIndexRowIsNotRewritten() {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId);
+        Uri emailUri = insertEmail(rawContactId, "john@doe.com");
+        assertSearchIndex(contactId, "john@doe.com", null, null);
+
+        SearchIndexManager searchIndexManager =
+                getContactsProvider().getSearchIndexManagerForTest();
+        long skipped = searchIndexManager.getSkippedRowCount();
+        long rewritten = searchIndexManager.getRewrittenRowCount();
+
+        // The email type is not part of the search index.
+        ContentValues values = new ContentValues();
+        values.put(Email.TYPE, Email.TYPE_WORK);
+        mResolver.update(emailUri, values, null, null);
+
+        assertEquals(skipped + 1, searchIndexManager.getSkippedRowCount());
+        assertEquals(rewritten, searchIndexManager.getRewrittenRowCount());
+
+        values.clear();
+        values.put(Email.ADDRESS, "jane@doe.com");
+        mResolver.update(emailUri, values, null, null);
+
+        assertEquals(skipped + 1, searchIndexManager.getSkippedRowCount());
+        assertEquals(rewritten + 1, searchIndexManager.getRewrittenRowCount());
+        assertSearchIndex(contactId, "jane@doe.com", null, null);
+    }
+
     public void testSplitIntoFtsTokens() {
         checkSplitIntoFtsTokens("a", "a");
         checkSplitIntoFtsTokens("a_b c%d-e'f", "a_b", "c", "d", "e", "f");
@@ -527,6 +643,27 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
         DataUtil.insertStructuredName(mResolver, rawContactId, values);
     }
 
+    private long querySearchIndexCount(ContactsDatabaseHelper dbHelper) {
+        return DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                ContactsDatabaseHelper.Tables.SEARCH_INDEX);
+    }
+
+    private String dumpSearchIndex(ContactsDatabaseHelper dbHelper) {
+        final StringBuilder sb = new StringBuilder();
+        final Cursor cursor = dbHelper.getReadableDatabase().rawQuery(
+                "SELECT contact_id, content, name, tokens FROM "
+                        + ContactsDatabaseHelper.Tables.SEARCH_INDEX + " ORDER BY contact_id",
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                sb.append(DatabaseUtils.dumpCurrentRowToString(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return sb.toString();
+    }
+
     // TODO: expectedName must be tested. Many tests in here are quite useless at the moment
     private void assertSearchIndex(
             long contactId, String expectedContent, String expectedName, String expectedTokens) {
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+
+import androidx.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SortedMergeCursor}.
+ */
+@SmallTest
+public class SortedMergeCursorTest extends TestCase {
+    private static final String[] COLUMNS = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME, Contacts.TIMES_CONTACTED
+    };
+
+    public void testMergeByDisplayName() {
+        final Cursor primary = createCursor(new Object[][] {
+                {1, "Alice", 0}, {2, "charlie", 0}, {3, "Eve", 0}});
+        final Cursor corp = createCursor(new Object[][] {
+                {1, "bob", 0}, {2, "Dave", 0}});
+        final Cursor cursor = SortedMergeCursor.create(new Cursor[] {primary, corp},
+                Contacts.DISPLAY_NAME + " COLLATE LOCALIZED ASC");
+        assertNotNull(cursor);
+        assertNames(cursor, "Alice", "bob", "charlie", "Dave", "Eve");
+        cursor.close();
+        assertTrue(primary.isClosed());
+        assertTrue(corp.isClosed());
+    }
+
+    public void testMergeByMultipleTerms() {
+        final Cursor primary = createCursor(new Object[][] {
+                {1, "Alice", 5}, {2, "Bob", 5}, {3, "Carol", 1}, {4, "Null", null}});
+        final Cursor corp = createCursor(new Object[][] {
+                {1, "Alice", 5}, {2, "Dave", 3}});
+        final Cursor cursor = SortedMergeCursor.create(new Cursor[] {primary, corp},
+                "contacts." + Contacts.TIMES_CONTACTED + " DESC, " + Contacts.DISPLAY_NAME);
+        assertNotNull(cursor);
+        assertNames(cursor, "Alice", "Alice", "Bob", "Dave", "Carol", "Null");
+
+        // Equal rows keep the order of the cursors.
+        cursor.moveToPosition(0);
+        assertEquals(0, primary.getPosition());
+        cursor.moveToPosition(1);
+        assertEquals(0, corp.getPosition());
+        assertEquals(5, cursor.getInt(2));
+        cursor.close();
+    }
+
+    public void testEmptyCursors() {
+        final Cursor cursor = SortedMergeCursor.create(new Cursor[] {
+                createCursor(new Object[0][]), createCursor(new Object[][] {{1, "Alice", 0}})},
+                Contacts.DISPLAY_NAME);
+        assertNames(cursor, "Alice");
+        cursor.close();
+    }
+
+    public void testUnsupportedSortOrder() {
+        final Cursor[] cursors = new Cursor[] {
+                createCursor(new Object[0][]), createCursor(new Object[0][])};
+        assertNull(SortedMergeCursor.create(cursors, null));
+        assertNull(SortedMergeCursor.create(cursors, Contacts._ID));
+        assertNull(SortedMergeCursor.create(cursors, Contacts.DISPLAY_NAME + " COLLATE UNICODE"));
+        assertNull(SortedMergeCursor.create(cursors, "length(" + Contacts.DISPLAY_NAME + ")"));
+        // Not in the projection.
+        assertNull(SortedMergeCursor.create(cursors, Contacts.SORT_KEY_PRIMARY));
+    }
+
+    private static Cursor createCursor(Object[][] rows) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static void assertNames(Cursor cursor, String... names) {
+        assertEquals(names.length, cursor.getCount());
+        for (String name : names) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(name, cursor.getString(1));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.content.ContentProviderOperation;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmark for {@link SqlStatementCache}, inserting raw contacts with a name and a phone number
+ * in batches, like a sync adapter does.  Logs the time per raw contact, and how many statements
+ * were compiled and how many compilations the cache saved, under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.SqlStatementCachePerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class SqlStatementCachePerfTest extends BaseContactsProvider2Test {
+    private static final String TAG = "SqlStatementCachePerfTest";
+
+    private static final int RAW_CONTACT_COUNT = 10000;
+    private static final int RAW_CONTACTS_PER_BATCH = 100;
+
+    public void testInsertRawContacts() throws Exception {
+        final SqlStatementCache cache = getContactsProvider().getDatabaseHelper()
+                .getStatementCacheForTest();
+        final int compileCount = cache.getCompileCount();
+        final int reuseCount = cache.getReuseCount();
+
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (int i = 0; i < RAW_CONTACT_COUNT; i += RAW_CONTACTS_PER_BATCH) {
+            ops.clear();
+            for (int j = i; j < i + RAW_CONTACTS_PER_BATCH; j++) {
+                final int backReference = ops.size();
+                ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                        .withValue(RawContacts.ACCOUNT_NAME, "account")
+                        .withValue(RawContacts.ACCOUNT_TYPE, "type")
+                        .withValue(RawContacts.SOURCE_ID, "source" + j)
+                        .build());
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                        .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                        .withValue(StructuredName.GIVEN_NAME, "Given" + j)
+                        .withValue(StructuredName.FAMILY_NAME, "Family" + (j % 100))
+                        .build());
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                        .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                        .withValue(Phone.NUMBER, String.format("650-555-%04d", j))
+                        .build());
+            }
+            mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+
+        final int compiled = cache.getCompileCount() - compileCount;
+        final int reused = cache.getReuseCount() - reuseCount;
+        Log.i(TAG, String.format("%d us per raw contact, %d statements compiled, %d reused",
+                elapsed * 1000 / RAW_CONTACT_COUNT, compiled, reused));
+        assertTrue(reused > compiled);
+    }
+}
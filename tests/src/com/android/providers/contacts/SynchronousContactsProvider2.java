@@ -20,9 +20,11 @@ import android.accounts.Account;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
+import android.util.Pair;
 
 import junit.framework.Assert;
 
+import java.util.ArrayList;
 import java.util.Locale;
 
 /**
@@ -39,6 +41,7 @@ public class SynchronousContactsProvider2 extends ContactsProvider2 {
     private boolean mNetworkNotified;
     private boolean mIsPhone = true;
     private boolean mIsVoiceCapable = true;
+    private ArrayList<Pair<Integer, Object>> mPendingBackgroundTasks;
 
     @Override
     public ContactsDatabaseHelper newDatabaseHelper(final Context context) {
@@ -122,12 +125,38 @@ public class SynchronousContactsProvider2 extends ContactsProvider2 {
 
     @Override
     protected void scheduleBackgroundTask(int task) {
-        performBackgroundTask(task, null);
+        scheduleBackgroundTask(task, null);
     }
 
     @Override
     protected void scheduleBackgroundTask(int task, Object arg) {
-        performBackgroundTask(task, arg);
+        if (mPendingBackgroundTasks != null) {
+            mPendingBackgroundTasks.add(Pair.create(task, arg));
+        } else {
+            performBackgroundTask(task, arg);
+        }
+    }
+
+    /**
+     * Makes background tasks wait for {@link #runPendingBackgroundTasks} instead of running as
+     * soon as they are scheduled, so that tests can see the state they start from.
+     */
+    public void holdBackgroundTasks() {
+        mPendingBackgroundTasks = new ArrayList<>();
+    }
+
+    /**
+     * Runs the background tasks scheduled since {@link #holdBackgroundTasks}, and runs the next
+     * ones as soon as they are scheduled again.
+     */
+    public void runPendingBackgroundTasks() {
+        final ArrayList<Pair<Integer, Object>> tasks = mPendingBackgroundTasks;
+        mPendingBackgroundTasks = null;
+        if (tasks != null) {
+            for (Pair<Integer, Object> task : tasks) {
+                performBackgroundTask(task.first, task.second);
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.provider.VoicemailContract;
+import android.provider.VoicemailContract.Status;
+import android.provider.VoicemailContract.Voicemails;
+import android.test.AndroidTestCase;
+
+import androidx.test.filters.MediumTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VoicemailBroadcastDispatcher}.
+ */
+@MediumTest
+public class VoicemailBroadcastDispatcherTest extends AndroidTestCase {
+    private static final ComponentName RECEIVER = new ComponentName("com.example.vvm", "Receiver");
+
+    private final LinkedBlockingQueue<Intent> mSentIntents = new LinkedBlockingQueue<>();
+    private PackageManager mPackageManager;
+    private Context mContext;
+    private VoicemailBroadcastDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPackageManager = mock(PackageManager.class);
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public PackageManager getPackageManager() {
+                return mPackageManager;
+            }
+
+            @Override
+            public void sendBroadcast(Intent intent) {
+                mSentIntents.add(intent);
+            }
+        };
+        mDispatcher = new VoicemailBroadcastDispatcher();
+    }
+
+    public void testReceiversAreCachedUntilPackageChanges() {
+        final ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = new ActivityInfo();
+        resolveInfo.activityInfo.packageName = RECEIVER.getPackageName();
+        resolveInfo.activityInfo.name = RECEIVER.getClassName();
+        when(mPackageManager.queryBroadcastReceivers(any(Intent.class), anyInt()))
+                .thenReturn(new ArrayList<>(Collections.singletonList(resolveInfo)));
+
+        final List<ComponentName> receivers = mDispatcher.getReceivers(mContext,
+                Intent.ACTION_PROVIDER_CHANGED,
+                ContentUris.withAppendedId(Voicemails.CONTENT_URI, 1));
+        assertEquals(Collections.singletonList(RECEIVER), receivers);
+        // Another voicemail resolves to the same receivers.
+        assertSame(receivers, mDispatcher.getReceivers(mContext, Intent.ACTION_PROVIDER_CHANGED,
+                ContentUris.withAppendedId(Voicemails.CONTENT_URI, 2)));
+        verify(mPackageManager, times(1)).queryBroadcastReceivers(any(Intent.class), anyInt());
+
+        mDispatcher.getReceivers(mContext, Intent.ACTION_PROVIDER_CHANGED, Voicemails.CONTENT_URI);
+        verify(mPackageManager, times(2)).queryBroadcastReceivers(any(Intent.class), anyInt());
+
+        mDispatcher.onPackageChanged(RECEIVER.getPackageName());
+        mDispatcher.getReceivers(mContext, Intent.ACTION_PROVIDER_CHANGED,
+                ContentUris.withAppendedId(Voicemails.CONTENT_URI, 1));
+        verify(mPackageManager, times(3)).queryBroadcastReceivers(any(Intent.class), anyInt());
+    }
+
+    public void testBroadcastsAreCoalesced() throws InterruptedException {
+        send(1, true);
+        // The first broadcast is sent right away.
+        Intent intent = mSentIntents.poll();
+        assertNotNull(intent);
+        assertEquals(ContentUris.withAppendedId(Voicemails.CONTENT_URI, 1), intent.getData());
+        assertEquals(1, mDispatcher.getSentCount());
+
+        // The next ones are merged and sent at the end of the window.
+        send(2, true);
+        send(3, false);
+        send(4, true);
+        assertNull(mSentIntents.poll());
+        assertEquals(2, mDispatcher.getCoalescedCount());
+
+        intent = mSentIntents.poll(VoicemailBroadcastDispatcher.COALESCING_WINDOW_MILLIS * 5,
+                TimeUnit.MILLISECONDS);
+        assertNotNull(intent);
+        assertEquals(RECEIVER, intent.getComponent());
+        assertEquals(Voicemails.CONTENT_URI, intent.getData());
+        assertFalse(intent.getBooleanExtra(VoicemailContract.EXTRA_SELF_CHANGE, true));
+        assertEquals(2, mDispatcher.getSentCount());
+        assertNull(mSentIntents.poll(VoicemailBroadcastDispatcher.COALESCING_WINDOW_MILLIS * 2,
+                TimeUnit.MILLISECONDS));
+    }
+
+    public void testBroadcastsForDifferentTablesAreNotMerged() throws InterruptedException {
+        send(1, true);
+        sendStatus(1);
+        // Each table has its own window, so both are sent right away.
+        assertEquals(ContentUris.withAppendedId(Voicemails.CONTENT_URI, 1),
+                mSentIntents.poll().getData());
+        assertEquals(ContentUris.withAppendedId(Status.CONTENT_URI, 1),
+                mSentIntents.poll().getData());
+
+        send(2, true);
+        sendStatus(2);
+        assertEquals(0, mDispatcher.getCoalescedCount());
+
+        final ArrayList<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final Intent intent = mSentIntents.poll(
+                    VoicemailBroadcastDispatcher.COALESCING_WINDOW_MILLIS * 5,
+                    TimeUnit.MILLISECONDS);
+            assertNotNull(intent);
+            uris.add(intent.getData());
+        }
+        assertTrue(uris.contains(ContentUris.withAppendedId(Voicemails.CONTENT_URI, 2)));
+        assertTrue(uris.contains(ContentUris.withAppendedId(Status.CONTENT_URI, 2)));
+        assertEquals(4, mDispatcher.getSentCount());
+    }
+
+    private void sendStatus(long id) {
+        final Intent intent = new Intent(Intent.ACTION_PROVIDER_CHANGED,
+                ContentUris.withAppendedId(Status.CONTENT_URI, id));
+        intent.setComponent(RECEIVER);
+        mDispatcher.sendBroadcast(mContext, intent, Status.CONTENT_URI, null, null);
+    }
+
+    private void send(long id, boolean selfChange) {
+        final Intent intent = new Intent(Intent.ACTION_PROVIDER_CHANGED,
+                ContentUris.withAppendedId(Voicemails.CONTENT_URI, id));
+        intent.setComponent(RECEIVER);
+        intent.putExtra(VoicemailContract.EXTRA_SELF_CHANGE, selfChange);
+        mDispatcher.sendBroadcast(mContext, intent, Voicemails.CONTENT_URI, null, null);
+    }
+}
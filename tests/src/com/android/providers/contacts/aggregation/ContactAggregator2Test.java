@@ -22,10 +22,14 @@ import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Identity;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions;
@@ -40,7 +44,10 @@ import androidx.test.filters.MediumTest;
 
 import com.android.providers.contacts.BaseContactsProvider2Test;
 import com.android.providers.contacts.ContactsDatabaseHelper;
+import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.ContactsProvider2;
+import com.android.providers.contacts.SynchronousContactsProvider2;
 import com.android.providers.contacts.TestUtils;
 import com.android.providers.contacts.tests.R;
 import com.android.providers.contacts.testutil.DataUtil;
@@ -48,6 +55,8 @@ import com.android.providers.contacts.testutil.RawContactUtil;
 
 import com.google.android.collect.Lists;
 
+import java.util.ArrayList;
+
 /**
  * Unit tests for {@link ContactAggregator2}.
  *
@@ -1371,6 +1380,247 @@ public class ContactAggregator2Test extends BaseContactsProvider2Test {
         assertNotAggregated(rawContactId1, rawContactId2);
     }
 
+    public void testBatchAggregationMatchesPerRowAggregation() throws Exception {
+        final ContactAggregator2 aggregator = (ContactAggregator2)
+                ((ContactsProvider2) getProvider()).getContactAggregatorForTest();
+
+        aggregator.setBatchAggregationThreshold(Integer.MAX_VALUE);
+        final long[] rawContactIds = insertBatchAggregationFixture();
+        final String perRowGroups = getAggregationGroups(rawContactIds);
+        for (long rawContactId : rawContactIds) {
+            RawContactUtil.delete(mResolver, rawContactId, true);
+        }
+
+        aggregator.setBatchAggregationThreshold(1);
+        final long[] batchRawContactIds = insertBatchAggregationFixture();
+        assertEquals(perRowGroups, getAggregationGroups(batchRawContactIds));
+
+        assertAggregated(batchRawContactIds[0], batchRawContactIds[1]);
+        assertAggregated(batchRawContactIds[3], batchRawContactIds[4]);
+        assertAggregated(batchRawContactIds[5], batchRawContactIds[6]);
+        assertAggregated(batchRawContactIds[7], batchRawContactIds[8]);
+        assertNotAggregated(batchRawContactIds[0], batchRawContactIds[2]);
+        assertNotAggregated(batchRawContactIds[0], batchRawContactIds[9]);
+    }
+
+    public void testBatchAggregationMatchesPerRowAggregationBeyondHitLimit() throws Exception {
+        final ContactAggregator2 aggregator = (ContactAggregator2)
+                ((ContactsProvider2) getProvider()).getContactAggregatorForTest();
+
+        aggregator.setBatchAggregationThreshold(Integer.MAX_VALUE);
+        final long[] rawContactIds = insertSameNameRawContacts();
+        final String perRowGroups = getAggregationGroups(rawContactIds);
+        for (long rawContactId : rawContactIds) {
+            RawContactUtil.delete(mResolver, rawContactId, true);
+        }
+
+        aggregator.setBatchAggregationThreshold(1);
+        final long[] batchRawContactIds = insertSameNameRawContacts();
+        assertEquals(perRowGroups, getAggregationGroups(batchRawContactIds));
+    }
+
+    public void testDeferredAggregation() throws Exception {
+        final Uri rawContactsUri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .appendQueryParameter(ContactsProvider2.DEFER_AGGREGATION, "true")
+                .build();
+        final Uri dataUri = Data.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .appendQueryParameter(ContactsProvider2.DEFER_AGGREGATION, "true")
+                .build();
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (Account account : new Account[] {ACCOUNT_1, ACCOUNT_2}) {
+            final int rawContactIndex = ops.size();
+            ops.add(ContentProviderOperation.newInsert(rawContactsUri)
+                    .withValue(RawContacts.ACCOUNT_NAME, account.name)
+                    .withValue(RawContacts.ACCOUNT_TYPE, account.type)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(dataUri)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, "John")
+                    .withValue(StructuredName.FAMILY_NAME, "Doe")
+                    .build());
+        }
+
+        final SynchronousContactsProvider2 cp = getContactsProvider();
+        final ContactsDatabaseHelper dbHelper = cp.getThreadActiveDatabaseHelperForTest();
+        final long rawContactId1;
+        final long rawContactId2;
+        cp.holdBackgroundTasks();
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+            rawContactId1 = ContentUris.parseId(results[0].uri);
+            rawContactId2 = ContentUris.parseId(results[2].uri);
+
+            // Until the background task runs, the raw contacts only wait for aggregation, and
+            // the task starts from the first of them.
+            assertEquals(2, countRawContactsNeedingAggregation(dbHelper));
+            assertEquals("0", dbHelper.getProperty(
+                    ContactsDatabaseHelper.DbProperties.DEFERRED_AGGREGATION_CURSOR, null));
+        } finally {
+            cp.runPendingBackgroundTasks();
+        }
+
+        assertAggregated(rawContactId1, rawContactId2, "John Doe");
+        assertEquals(0, countRawContactsNeedingAggregation(dbHelper));
+        assertEquals("-1", dbHelper.getProperty(
+                ContactsDatabaseHelper.DbProperties.DEFERRED_AGGREGATION_CURSOR, null));
+    }
+
+    private static long countRawContactsNeedingAggregation(ContactsDatabaseHelper dbHelper) {
+        return DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + Tables.RAW_CONTACTS
+                        + " WHERE " + RawContactsColumns.AGGREGATION_NEEDED + "=1", null);
+    }
+
+    public void testAggregationUsesRefreshedNameLookupIndex() {
+        final ContactAggregator2 aggregator = (ContactAggregator2)
+                ((ContactsProvider2) getProvider()).getContactAggregatorForTest();
+
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver, ACCOUNT_1);
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "Johnx", "Doex");
+
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver, ACCOUNT_2);
+        Uri nameUri = DataUtil.insertStructuredName(mResolver, rawContactId2, "Janex", "Roex");
+        assertNotAggregated(rawContactId1, rawContactId2);
+        assertNotNull(aggregator.getNameLookupIndex().getNames(rawContactId2));
+
+        // Renaming the second raw contact has to replace its rows in the index before it is
+        // aggregated again.
+        ContentValues values = new ContentValues();
+        values.put(StructuredName.GIVEN_NAME, "Johnx");
+        values.put(StructuredName.FAMILY_NAME, "Doex");
+        mResolver.update(nameUri, values, null, null);
+        assertAggregated(rawContactId1, rawContactId2, "Johnx Doex");
+
+        RawContactUtil.delete(mResolver, rawContactId2, true);
+        assertNull(aggregator.getNameLookupIndex().getNames(rawContactId2));
+    }
+
+    /**
+     * Inserts raw contacts matching each other by name, phone number, email address and identity
+     * in a single transaction, so that they are aggregated together.
+     */
+    private long[] insertBatchAggregationFixture() throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final ArrayList<Integer> rawContactIndexes = new ArrayList<>();
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_1, "John", "Doe", null, null, null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_2, "john", "doe", null, null, null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_3, "John", "Smith", null, null,
+                null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_1, null, null, "555-1234", null,
+                null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_2, null, null, "5551234", null,
+                null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_1, null, null, null,
+                "jane@example.com", null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_3, null, null, null,
+                "jane@example.com", null);
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_2, null, null, null, null,
+                "12345");
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_3, null, null, null, null,
+                "12345");
+        addRawContactOperations(ops, rawContactIndexes, ACCOUNT_2, "Jim", "Doe", "555-9876",
+                null, null);
+
+        final ContentProviderResult[] results =
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        final long[] rawContactIds = new long[rawContactIndexes.size()];
+        for (int i = 0; i < rawContactIds.length; i++) {
+            rawContactIds[i] = ContentUris.parseId(results[rawContactIndexes.get(i)].uri);
+        }
+        return rawContactIds;
+    }
+
+    /**
+     * Inserts more raw contacts with the same name, and more with the same email and phone, than
+     * the aggregator looks at for each raw contact.
+     */
+    private long[] insertSameNameRawContacts() throws Exception {
+        final Account[] accounts = new Account[] {ACCOUNT_1, ACCOUNT_2, ACCOUNT_3};
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final ArrayList<Integer> rawContactIndexes = new ArrayList<>();
+        final int count = AbstractContactAggregator.PRIMARY_HIT_LIMIT
+                + AbstractContactAggregator.SECONDARY_HIT_LIMIT;
+        for (int i = 0; i < count; i++) {
+            final boolean withData = i >= AbstractContactAggregator.PRIMARY_HIT_LIMIT;
+            addRawContactOperations(ops, rawContactIndexes, accounts[i % accounts.length],
+                    "John", "Doe", withData ? "555-1234" : null,
+                    withData ? "john@example.com" : null, null);
+        }
+
+        final ContentProviderResult[] results =
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        final long[] rawContactIds = new long[rawContactIndexes.size()];
+        for (int i = 0; i < rawContactIds.length; i++) {
+            rawContactIds[i] = ContentUris.parseId(results[rawContactIndexes.get(i)].uri);
+        }
+        return rawContactIds;
+    }
+
+    private void addRawContactOperations(ArrayList<ContentProviderOperation> ops,
+            ArrayList<Integer> rawContactIndexes, Account account, String givenName,
+            String familyName, String phone, String email, String identity) {
+        final int rawContactIndex = ops.size();
+        rawContactIndexes.add(rawContactIndex);
+        ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                .withValue(RawContacts.ACCOUNT_NAME, account.name)
+                .withValue(RawContacts.ACCOUNT_TYPE, account.type)
+                .build());
+        if (givenName != null || familyName != null) {
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, givenName)
+                    .withValue(StructuredName.FAMILY_NAME, familyName)
+                    .build());
+        }
+        if (phone != null) {
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.NUMBER, phone)
+                    .build());
+        }
+        if (email != null) {
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                    .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                    .withValue(Email.DATA, email)
+                    .build());
+        }
+        if (identity != null) {
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                    .withValue(Data.MIMETYPE, Identity.CONTENT_ITEM_TYPE)
+                    .withValue(Identity.NAMESPACE, "namespace")
+                    .withValue(Identity.IDENTITY, identity)
+                    .build());
+        }
+    }
+
+    /**
+     * Returns, for each raw contact, the index of the first raw contact in the same contact.
+     */
+    private String getAggregationGroups(long[] rawContactIds) {
+        final long[] contactIds = new long[rawContactIds.length];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rawContactIds.length; i++) {
+            contactIds[i] = queryContactId(rawContactIds[i]);
+            int group = i;
+            for (int j = 0; j < i; j++) {
+                if (contactIds[j] == contactIds[i]) {
+                    group = j;
+                    break;
+                }
+            }
+            sb.append(group).append(',');
+        }
+        return sb.toString();
+    }
+
     public void testAggregationModeUpdatedToSuspended() throws Exception {
 
         // Setting aggregation mode to SUSPENDED should prevent aggregation from happening
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import androidx.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link MatchScoreTable}.
+ */
+@SmallTest
+public class MatchScoreTableTest extends TestCase {
+
+    private MatchScore add(MatchScoreTable table, long rawContactId, int primaryScore) {
+        final MatchScore score = table.add(rawContactId);
+        score.reset(rawContactId, rawContactId * 10, 1);
+        score.updatePrimaryScore(primaryScore);
+        return score;
+    }
+
+    public void testGetAndAdd() {
+        final MatchScoreTable table = new MatchScoreTable();
+        assertNull(table.get(1));
+
+        // Enough keys to make the table grow several times.
+        for (long id = 1; id <= 1000; id++) {
+            add(table, id * 7919, (int) (id % 100));
+        }
+        assertEquals(1000, table.size());
+        for (long id = 1; id <= 1000; id++) {
+            final MatchScore score = table.get(id * 7919);
+            assertNotNull(score);
+            assertEquals(id * 7919, score.getRawContactId());
+        }
+        assertNull(table.get(7918));
+    }
+
+    public void testClearReusesScores() {
+        final MatchScoreTable table = new MatchScoreTable();
+        final MatchScore first = add(table, 1, 50);
+        add(table, 2, 60);
+        assertEquals(2, table.getAllocatedScoreCount());
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(1));
+
+        assertSame(first, add(table, 3, 70));
+        add(table, 4, 70);
+        assertEquals(2, table.getAllocatedScoreCount());
+        assertEquals(3, table.get(3).getRawContactId());
+    }
+
+    public void testPickBestMatches() {
+        final MatchScoreTable table = new MatchScoreTable();
+        add(table, 1, 40);
+        add(table, 2, 80);
+        add(table, 3, 70);
+        add(table, 4, 99);
+        add(table, 5, 80);
+
+        final List<MatchScore> matches = table.pickBestMatches(70 * MatchScore.SCORE_SCALE);
+        assertEquals(4, matches.size());
+        assertEquals(4, matches.get(0).getRawContactId());
+        // Equal scores keep the order they were added in.
+        assertEquals(2, matches.get(1).getRawContactId());
+        assertEquals(5, matches.get(2).getRawContactId());
+        assertEquals(3, matches.get(3).getRawContactId());
+
+        // Lookups still work after the scores have been reordered.
+        for (long id = 1; id <= 5; id++) {
+            assertEquals(id, table.get(id).getRawContactId());
+        }
+        assertTrue(table.pickBestMatches(100 * MatchScore.SCORE_SCALE).isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.providers.contacts.NameNormalizer;
+import com.android.providers.contacts.util.Hex;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Benchmark for {@link NameDistance} over a synthetic corpus of first and last names with
+ * typos, comparing the plain distance with the thresholded, batch and cached variants the
+ * matchers use.  Throughput is logged under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.aggregation.util.NameDistancePerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class NameDistancePerfTest extends TestCase {
+    private static final String TAG = "NameDistancePerfTest";
+
+    private static final String[] GIVEN_NAMES = {"James", "Mary", "Robert", "Patricia", "John",
+            "Jennifer", "Michael", "Linda", "David", "Elizabeth", "William", "Barbara", "Richard",
+            "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Christopher", "Karen", "Daniel",
+            "Nancy", "Matthew", "Lisa", "Anthony", "Margaret", "Mark", "Sandra", "Donald",
+            "Ashley"};
+    private static final String[] FAMILY_NAMES = {"Smith", "Johnson", "Williams", "Brown",
+            "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez",
+            "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin",
+            "Lee", "Perez", "Thompson", "White", "Harris", "Sanchez", "Clark", "Ramirez", "Lewis",
+            "Robinson"};
+
+    private static final int CORPUS_SIZE = 2000;
+    private static final int QUERY_COUNT = 100;
+    private static final float THRESHOLD = RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD;
+
+    private String[] mNames;
+    private byte[][] mDecodedNames;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final Random random = new Random(42);
+        mNames = new String[CORPUS_SIZE];
+        mDecodedNames = new byte[CORPUS_SIZE][];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+            sb.append(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)]);
+            // Add a typo to every third name.
+            if (i % 3 == 0) {
+                final int position = random.nextInt(sb.length());
+                sb.setCharAt(position, (char) ('a' + random.nextInt(26)));
+            }
+            mNames[i] = NameNormalizer.normalize(sb.toString());
+            mDecodedNames[i] = Hex.decodeHex(mNames[i]);
+        }
+    }
+
+    public void testThroughput() {
+        final NameDistance nameDistance = new NameDistance(30);
+        final long pairs = (long) QUERY_COUNT * CORPUS_SIZE;
+
+        // Plain distance, decoding the names for every pair as the matchers used to.
+        int plainMatches = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            for (int i = 0; i < CORPUS_SIZE; i++) {
+                if (nameDistance.getDistance(Hex.decodeHex(mNames[q]),
+                        Hex.decodeHex(mNames[i])) > THRESHOLD) {
+                    plainMatches++;
+                }
+            }
+        }
+        final long plainNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Batch distance of one query against the whole corpus.
+        final float[] distances = new float[CORPUS_SIZE];
+        int batchMatches = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            nameDistance.getDistances(mDecodedNames[q], mDecodedNames, CORPUS_SIZE, THRESHOLD,
+                    distances);
+            for (int i = 0; i < CORPUS_SIZE; i++) {
+                if (distances[i] > THRESHOLD) {
+                    batchMatches++;
+                }
+            }
+        }
+        final long batchNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Cached distance, with every pair compared twice as when matches are followed
+        // transitively.
+        final NameDistanceCache cache = new NameDistanceCache(nameDistance);
+        int cachedMatches = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            for (int i = 0; i < CORPUS_SIZE; i++) {
+                for (int repeat = 0; repeat < 2; repeat++) {
+                    if (cache.getDistance(mNames[q], mNames[i], THRESHOLD) > THRESHOLD) {
+                        cachedMatches++;
+                    }
+                }
+            }
+        }
+        final long cachedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        log("Plain", pairs, plainNanos);
+        log("Batch", pairs, batchNanos);
+        log("Cached (each pair twice)", pairs * 2, cachedNanos);
+
+        assertEquals(plainMatches, batchMatches);
+        assertEquals(plainMatches * 2, cachedMatches);
+    }
+
+    private static void log(String label, long pairs, long nanos) {
+        Log.i(TAG, String.format("%s: %d pairs in %d ms, %d pairs/ms", label, pairs,
+                nanos / 1000000, pairs * 1000000 / Math.max(1, nanos)));
+    }
+}
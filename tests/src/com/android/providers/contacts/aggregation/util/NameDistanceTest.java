@@ -66,9 +66,71 @@ public class NameDistanceTest extends TestCase {
         assertFloat(0, "Abcd", "Efgh");
     }
 
+    public void testDistanceWithThreshold() {
+        final String[] names = {"Dwayne", "Duane", "Martha", "Marhta", "Dixon", "Dicksonx",
+                "Donny", "Johny", "Abcd", "Efgh"};
+        for (String name1 : names) {
+            for (String name2 : names) {
+                final byte[] s1 = normalize(name1);
+                final byte[] s2 = normalize(name2);
+                final float expected = mNameDistance.getDistance(s1, s2);
+                for (float threshold : new float[] {0f, 0.5f, 0.82f, 0.95f}) {
+                    final float actual = mNameDistance.getDistance(s1, s2, threshold);
+                    if (expected > threshold) {
+                        assertEquals(name1 + "/" + name2, expected, actual);
+                    } else {
+                        assertTrue(name1 + "/" + name2, actual <= threshold);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testGetDistances() {
+        final byte[] name = normalize("Dwayne");
+        final byte[][] names = {normalize("Dwayne"), normalize("Duane"), normalize("Dwaine"),
+                normalize("Abcd"), normalize("Wayne")};
+        final float[] distances = new float[names.length];
+        mNameDistance.getDistances(name, names, names.length, 0.82f, distances);
+
+        assertEquals(1f, distances[0]);
+        for (int i = 0; i < names.length; i++) {
+            final float expected = mNameDistance.getDistance(name, names[i]);
+            if (expected > 0.82f) {
+                assertEquals(expected, distances[i]);
+            } else {
+                assertTrue(distances[i] <= 0.82f);
+            }
+        }
+        assertEquals(0f, distances[3]);
+    }
+
+    public void testCache() {
+        final NameDistanceCache cache = new NameDistanceCache(mNameDistance);
+        final String martha = NameNormalizer.normalize("Martha");
+        final String marhta = NameNormalizer.normalize("Marhta");
+        final String johny = NameNormalizer.normalize("Johny");
+        final String duane = NameNormalizer.normalize("Duane");
+
+        assertEquals(0.961f, cache.getDistance(martha, marhta, 0.82f), 0.001f);
+        assertEquals(0.961f, cache.getDistance(martha, marhta, 0.95f), 0.001f);
+        assertTrue(cache.getDistance(johny, duane, 0.82f) <= 0.82f);
+        assertTrue(cache.getDistance(johny, duane, 0.95f) <= 0.95f);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // The pair is known to be under 0.82, but not under 0.3.
+        assertEquals(0.467f, cache.getDistance(johny, duane, 0.3f), 0.001f);
+        assertEquals(3, cache.getMissCount());
+    }
+
+    private static byte[] normalize(String name) {
+        return Hex.decodeHex(NameNormalizer.normalize(name));
+    }
+
     private void assertFloat(float expected, String name1, String name2) {
-        byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
-        byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
+        byte[] s1 = normalize(name1);
+        byte[] s2 = normalize(name2);
 
         float actual = mNameDistance.getDistance(s1, s2);
         assertTrue("Expected Jaro-Winkler distance: " + expected + ", actual: " + actual,
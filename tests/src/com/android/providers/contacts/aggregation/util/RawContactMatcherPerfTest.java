@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Microbenchmark for the score bookkeeping in {@link RawContactMatcher}, simulating the
+ * aggregation of many raw contacts that each have a few dozen candidates.
+ * <p>
+ * Compares a fresh matcher per raw contact, which is what the aggregator used to do, with one
+ * reused matcher.  The number of {@link MatchScore} objects allocated per raw contact and the time
+ * per raw contact are logged under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.aggregation.util.RawContactMatcherPerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class RawContactMatcherPerfTest extends TestCase {
+    private static final String TAG = "RawContactMatcherPerfTest";
+
+    private static final int RAW_CONTACT_COUNT = 20000;
+    private static final int CANDIDATE_COUNT = 40;
+
+    /**
+     * Scores the candidates of one raw contact the way the aggregator does and returns the number
+     * of matches, so that the work cannot be optimized away.
+     */
+    private static int aggregate(RawContactMatcher matcher, long rawContactId) {
+        for (int i = 0; i < CANDIDATE_COUNT; i++) {
+            // Candidate IDs well outside of the boxed Long cache.
+            final long candidateId = 100000 + (rawContactId * 31 + i * 17) % 50000;
+            if (i % 4 == 0) {
+                matcher.updateScoreWithPhoneNumberMatch(candidateId, candidateId, 1);
+            }
+            matcher.matchName(candidateId, candidateId, 1, 0, "a", 0, i % 8 == 0 ? "a" : "b",
+                    RawContactMatcher.MATCHING_ALGORITHM_EXACT);
+        }
+        return matcher.pickBestMatches().size()
+                + matcher.pickBestMatches(RawContactMatcher.SCORE_THRESHOLD_SUGGEST).size();
+    }
+
+    public void testScoreAllocationsPerRawContact() {
+        // Warm up.
+        final RawContactMatcher reused = new RawContactMatcher();
+        for (int i = 0; i < 1000; i++) {
+            reused.clear();
+            aggregate(reused, i);
+        }
+
+        int freshMatches = 0;
+        long freshAllocations = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < RAW_CONTACT_COUNT; i++) {
+            final RawContactMatcher matcher = new RawContactMatcher();
+            freshMatches += aggregate(matcher, i);
+            freshAllocations += matcher.getAllocatedScoreCount();
+        }
+        final long freshNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        int reusedMatches = 0;
+        final int reusedAllocationsBefore = reused.getAllocatedScoreCount();
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < RAW_CONTACT_COUNT; i++) {
+            reused.clear();
+            reusedMatches += aggregate(reused, i);
+        }
+        final long reusedNanos = SystemClock.elapsedRealtimeNanos() - start;
+        final long reusedAllocations = reused.getAllocatedScoreCount() - reusedAllocationsBefore;
+
+        Log.i(TAG, String.format("Fresh matcher: %.2f scores allocated, %d ns per raw contact",
+                (double) freshAllocations / RAW_CONTACT_COUNT, freshNanos / RAW_CONTACT_COUNT));
+        Log.i(TAG, String.format("Reused matcher: %.2f scores allocated, %d ns per raw contact",
+                (double) reusedAllocations / RAW_CONTACT_COUNT, reusedNanos / RAW_CONTACT_COUNT));
+
+        assertEquals(freshMatches, reusedMatches);
+        assertEquals(0, reusedAllocations);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.sqlite;
+
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Groups;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.Settings;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.FixedAndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmark for {@link SqlChecker}, validating the selections, sort orders and column names that
+ * {@link com.android.providers.contacts.ContactsProvider2Test} sends, over and over like apps do.
+ * Compares the checker with and without remembering what it validated; the time per validation
+ * is logged under the tag below.
+ * <p>
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.sqlite.SqlCheckerPerfTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class SqlCheckerPerfTest extends FixedAndroidTestCase {
+    private static final String TAG = "SqlCheckerPerfTest";
+
+    private static final int ITERATIONS = 20000;
+
+    private static final List<String> INVALID_TOKENS = Arrays.asList(Tables.CONTACTS,
+            Tables.RAW_CONTACTS, Tables.ACCOUNTS, Tables.GROUPS, Tables.PHONE_LOOKUP,
+            Tables.NAME_LOOKUP, Tables.SEARCH_INDEX, Tables.AGGREGATION_EXCEPTIONS, "select");
+
+    private static final String[] SELECTIONS = new String[] {
+            Data._ID + "=?",
+            Data.MIMETYPE + "=?",
+            Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+            RawContacts.CONTACT_ID + "=?",
+            RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?",
+            Groups.ACCOUNT_NAME + "=? AND " + Groups.ACCOUNT_TYPE + "=?",
+            Settings.ACCOUNT_NAME + "=? AND " + Settings.ACCOUNT_TYPE + "=? AND "
+                    + Settings.DATA_SET + " IS NULL",
+            Contacts.DISPLAY_NAME + "=?",
+            Contacts._ID + " IN (1,2,3)",
+            Contacts.SORT_KEY_PRIMARY,
+            Contacts.DISPLAY_NAME + " COLLATE LOCALIZED ASC",
+            Phone.NUMBER + " LIKE '%555%'",
+    };
+
+    private static final String[] COLUMNS = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME, Contacts.LOOKUP_KEY, Contacts.STARRED,
+            Contacts.PHOTO_ID, Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1, Data.DATA2,
+            RawContacts.ACCOUNT_NAME, RawContacts.ACCOUNT_TYPE, RawContacts.SOURCE_ID,
+    };
+
+    public void testValidate() {
+        final long uncached = validate(new SqlChecker(INVALID_TOKENS, /* memoize= */ false));
+        final long cached = validate(new SqlChecker(INVALID_TOKENS, /* memoize= */ true));
+        final int count = ITERATIONS * (SELECTIONS.length + COLUMNS.length);
+        Log.i(TAG, String.format("%d ns per validation without memoization, %d ns with",
+                uncached / count, cached / count));
+    }
+
+    /**
+     * Validates all selections and columns {@link #ITERATIONS} times, and returns the elapsed
+     * time in nanoseconds.
+     */
+    private long validate(SqlChecker checker) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String selection : SELECTIONS) {
+                // Like selections sent over binder, each is a new string.
+                checker.ensureNoInvalidTokens(new String(selection));
+            }
+            for (String column : COLUMNS) {
+                checker.ensureSingleTokenOnly(new String(column));
+            }
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}
@@ -249,4 +249,51 @@ public class SqlCheckerTest extends FixedAndroidTestCase {
         checkEnsureSingleTokenOnly(false, "a/**/", "select");
         checkEnsureSingleTokenOnly(false, "a  \n", "select");
     }
+
+    public void testEnsureNoInvalidTokensIgnoresCase() {
+        checkEnsureNoInvalidTokens(false, "a `Raw_Contacts` b", "RAW_CONTACTS");
+        checkEnsureNoInvalidTokens(false, "a [RAW_contacts] b", "raw_contacts");
+        checkEnsureNoInvalidTokens(false, "a \"sel\"\"ect\" b", "SEL\"ECT");
+        checkEnsureNoInvalidTokens(true, "a raw_contact b", "raw_contacts");
+        checkEnsureNoInvalidTokens(true, "a raw_contactsx b", "raw_contacts");
+        checkEnsureNoInvalidTokens(false, "a b c d e f g h", "a", "b", "c", "d", "e", "f", "g",
+                "h", "i", "j", "k", "l", "m", "n", "o", "h");
+    }
+
+    public void testMemoization() {
+        final SqlChecker checker = getChecker("select");
+        for (int i = 0; i < 2; i++) {
+            checker.ensureNoInvalidTokens("a = ? AND b = ?");
+            checker.ensureSingleTokenOnly("a");
+            checker.ensureSingleTokenOnly("`b`");
+
+            // Invalid SQL is not remembered.
+            try {
+                checker.ensureNoInvalidTokens("a IN (SELECT b)");
+                fail("Should have thrown");
+            } catch (InvalidSqlException e) {
+                // okay
+            }
+            try {
+                checker.ensureSingleTokenOnly("a b");
+                fail("Should have thrown");
+            } catch (InvalidSqlException e) {
+                // okay
+            }
+            try {
+                checker.ensureSingleTokenOnly("x_a");
+                fail("Should have thrown");
+            } catch (InvalidSqlException e) {
+                // okay
+            }
+        }
+
+        // Valid SQL is not valid as a column name.
+        try {
+            checker.ensureSingleTokenOnly("a = ? AND b = ?");
+            fail("Should have thrown");
+        } catch (InvalidSqlException e) {
+            // okay
+        }
+    }
 }